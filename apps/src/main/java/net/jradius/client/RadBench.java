@@ -26,8 +26,15 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import net.jradius.client.auth.EAPAuthenticator;
 import net.jradius.client.auth.RadiusAuthenticator;
+import net.jradius.exception.RadiusException;
 import net.jradius.log.RadiusLog;
 import net.jradius.packet.AccessRequest;
 import net.jradius.packet.AccountingRequest;
@@ -37,6 +44,7 @@ import net.jradius.packet.attribute.AttributeDictionary;
 import net.jradius.packet.attribute.AttributeFactory;
 import net.jradius.packet.attribute.AttributeList;
 import net.jradius.packet.attribute.RadiusAttribute;
+import net.jradius.util.LatencyHistogram;
 
 
 
@@ -54,6 +62,10 @@ import net.jradius.packet.attribute.RadiusAttribute;
  *     	-a auth-mode	= Either PAP (default), CHAP, MSCHAP, MSCHAPv2, 
  *     	                 EAP-MD5, or EAP-MSCHAPv2
  *     	                 (always provide the plain-text password in User-Password)
+ *     	-r requesters	= Number of requester threads (default: 5)
+ *     	-c count	= Number of times each requester sends the file (default: 10)
+ *     	-R rate		= Open loop: send at a fixed rate (packets per second)
+ *     	-u users	= Number of distinct values of ${user} (default: 1000)
  *   </pre>
  * <p>
  * If the packet attribtue list contains "Acct-Status-Type", then RadClient will know the
@@ -61,12 +73,31 @@ import net.jradius.packet.attribute.RadiusAttribute;
  * The attribute file can contain multiple packets separated by a <b>single</b> blank line.
  * You can optionally also "sleep" for a number of seconds between packets as shown in this
  * example attributes file (authentication, following by a start, interim, and stop accounting):
+ * <p>
+ * The file is parsed once. Attribute values may contain the variables ${seq} (the
+ * number of the pass through the file), ${user} (${seq} modulo the number of users),
+ * ${session} (unique per pass) and ${random}, which are substituted for each packet.
+ * <p>
+ * By default each requester waits for a reply before sending the next packet (closed
+ * loop). With -R, packets are sent asynchronously at the given rate whether or not the
+ * server keeps up (open loop), and latency is measured from the time each packet was
+ * due to be sent, so that a stalled server is not hidden by a stalled benchmark. The
+ * sleep lines are ignored and only single round authentication protocols (not EAP)
+ * can be used in this mode. Latency percentiles are reported per packet type.
  * @author David Bird
  */
 public class RadBench
 {
-    protected static RadiusClient client;
-    protected static RadiusAuthenticator auth;
+    protected static RadiusClientPool clientPool;
+    protected static String authProtocol;
+    protected static int users = 1000;
+
+    protected static final AtomicLong sequence = new AtomicLong();
+    protected static final String runId = Long.toHexString(System.currentTimeMillis());
+    protected static final Random random = new Random();
+
+    protected static final LatencyHistogram accessLatency = new LatencyHistogram();
+    protected static final LatencyHistogram accountingLatency = new LatencyHistogram();
     
     protected static void usage()
     {
@@ -81,60 +112,148 @@ public class RadBench
         sb.append("\t-a auth-mode	= Either PAP (default), CHAP, MSCHAP, MSCHAPv2,\n");
         sb.append("\t                 EAP-MD5, or EAP-MSCHAPv2\n");
         sb.append("\t                 (always provide the plain-text password in User-Password)\n");
+        sb.append("\t-r requesters	= Number of requester threads (default: 5)\n");
+        sb.append("\t-c count	= Number of times each requester sends the file (default: 10)\n");
+        sb.append("\t-R rate		= Open loop: send at a fixed rate (packets per second)\n");
+        sb.append("\t-u users	= Number of distinct values of ${user} (default: 1000)\n");
         sb.append("\n");
         System.out.print(sb.toString());
     }
-    
-    protected static boolean loadAttributes(AttributeList list, BufferedReader in) throws IOException
+
+    /**
+     * A packet of the attribute file, parsed once. Lines with variables
+     * are kept as text and parsed for each request.
+     */
+    protected static class PacketTemplate
     {
-        String line;
-        boolean allowLine = true;
-        
-        while ((line = in.readLine()) != null)
+        final AttributeList attributes = new AttributeList();
+        final List<String> variables = new ArrayList<String>();
+        boolean accounting;
+        int sleep;
+
+        RadiusRequest newRequest(RadiusClient client, long seq) throws RadiusException
         {
-            line = line.trim();
-            if (line.startsWith("#")) continue;
-            
-            if (line.equals("")) 
-            {
-                if (!allowLine) break;
-                continue;
-            }
+            RadiusRequest request = accounting ? 
+                    (RadiusRequest) new AccountingRequest(client, attributes) : 
+                    (RadiusRequest) new AccessRequest(client, attributes);
 
-            if (line.startsWith("sleep "))
+            for (String line : variables)
             {
-                allowLine = true;
                 try
                 {
-                    int i = Integer.parseInt(line.substring(6));
-                    if (i > 0) Thread.sleep(i * 1000);
+                    RadiusAttribute a = AttributeFactory.attributeFromString(substitute(line, seq));
+                    if (a != null) request.overwriteAttribute(a);
                 }
-                catch(Exception e)
+                catch (Exception e)
                 {
-                    RadiusLog.warn("Invalid sleep parameter");
+                    throw new RadiusException("Invalid radius attribute: " + line);
                 }
-                continue;
             }
 
-            allowLine = false;
+            return request;
+        }
+    }
 
-            try
-            {
-                RadiusAttribute a = AttributeFactory.attributeFromString(line);
-                if (a != null) list.add(a, false);
-            }
-            catch(Exception e)
+    protected static String substitute(String line, long seq)
+    {
+        StringBuffer sb = new StringBuffer();
+        int idx = 0, start;
+
+        while ((start = line.indexOf("${", idx)) >= 0)
+        {
+            int end = line.indexOf('}', start);
+            if (end < 0) break;
+
+            sb.append(line.substring(idx, start));
+            String name = line.substring(start + 2, end);
+
+            if ("seq".equals(name)) sb.append(seq);
+            else if ("user".equals(name)) sb.append(users > 0 ? seq % users : seq);
+            else if ("session".equals(name)) sb.append(runId).append(Long.toHexString(seq));
+            else if ("random".equals(name)) sb.append(random.nextInt() & 0x7fffffff);
+            else sb.append(line.substring(start, end + 1));
+
+            idx = end + 1;
+        }
+
+        sb.append(line.substring(idx));
+        return sb.toString();
+    }
+
+    protected static List<PacketTemplate> loadTemplates(String file) throws IOException
+    {
+        List<PacketTemplate> templates = new ArrayList<PacketTemplate>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        PacketTemplate template = new PacketTemplate();
+        String line;
+        
+        try
+        {
+            while ((line = in.readLine()) != null)
             {
-                RadiusLog.warn("Invalid radius attribute");
+                line = line.trim();
+                if (line.startsWith("#")) continue;
+                
+                if (line.equals("")) 
+                {
+                    if (template.attributes.getSize() > 0 || !template.variables.isEmpty())
+                    {
+                        templates.add(template);
+                        template = new PacketTemplate();
+                    }
+                    continue;
+                }
+    
+                if (line.startsWith("sleep "))
+                {
+                    try
+                    {
+                        template.sleep = Integer.parseInt(line.substring(6));
+                    }
+                    catch(Exception e)
+                    {
+                        RadiusLog.warn("Invalid sleep parameter");
+                    }
+                    continue;
+                }
+    
+                try
+                {
+                    // parse with the variables of the first pass, to validate the line
+                    RadiusAttribute a = AttributeFactory.attributeFromString(substitute(line, 0));
+                    if (a == null) continue;
+
+                    if (a.getType() == AttributeDictionary.ACCT_STATUS_TYPE)
+                    {
+                        Long status = (Long) a.getValue().getValueObject();
+                        template.accounting = status != null && status.intValue() <= 3;
+                    }
+
+                    if (line.indexOf("${") >= 0) template.variables.add(line);
+                    else template.attributes.add(a, false);
+                }
+                catch(Exception e)
+                {
+                    RadiusLog.warn("Invalid radius attribute");
+                }
             }
         }
-        
-        return (line != null);
+        finally
+        {
+            in.close();
+        }
+
+        if (template.attributes.getSize() > 0 || !template.variables.isEmpty())
+        {
+            templates.add(template);
+        }
+
+        return templates;
     }
    
     public static void main(String[] args)
     {
-        Getopt g = new Getopt("RadBench", args, "a:d:t:p:r:c:");
+        Getopt g = new Getopt("RadBench", args, "a:d:t:p:r:c:R:u:");
 
         String dictClass = "net.jradius.dictionary.AttributeDictionaryImpl";
 
@@ -144,6 +263,7 @@ public class RadBench
         
         int requesters = 5;
         int requests = 10;
+        double rate = 0;
 
         int op;
         while ((op = g.getopt()) != -1)
@@ -172,10 +292,14 @@ public class RadBench
             	case 'a':
             	{
             	    String arg = g.getOptarg();
-            	    if ((auth = RadiusClient.getAuthProtocol(arg)) == null)
+            	    if (RadiusClient.getAuthProtocol(arg) == null)
             	    {
             	        RadiusLog.error("Unsupported authentication protocol " + arg);
             	    }
+            	    else
+            	    {
+            	        authProtocol = arg;
+            	    }
             	}
             	break;
 
@@ -191,6 +315,18 @@ public class RadBench
             	}
             	break;
 
+            	case 'R':
+            	{
+            	    rate = Double.parseDouble(g.getOptarg());
+            	}
+            	break;
+
+            	case 'u':
+            	{
+            	    users = Integer.parseInt(g.getOptarg());
+            	}
+            	break;
+
             	default:
             	{
             	    usage();
@@ -215,8 +351,22 @@ public class RadBench
         
         try
         {
+            List<PacketTemplate> templates = loadTemplates(file);
+            if (templates.isEmpty())
+            {
+                RadiusLog.error("No packets in " + file);
+                return;
+            }
+
             InetAddress inet = InetAddress.getByName(host);
-            client = new RadiusClient(inet, secret, authPort, acctPort, timeout);
+            clientPool = new RadiusClientPool(inet, secret, authPort, acctPort, timeout, requesters, timeout * 1000L);
+
+            if (rate > 0)
+            {
+                runOpenLoop(templates, inet, secret, authPort, acctPort, timeout, (long) requesters * requests, rate);
+                clientPool.close();
+                return;
+            }
 
             BenchThread thread[] = new BenchThread[requesters];
             int i = 0;
@@ -226,7 +376,7 @@ public class RadBench
             
             for (i = 0; i < requesters; i++)
             {
-                (thread[i] = new BenchThread(requests, file)).start();
+                (thread[i] = new BenchThread(requests, templates)).start();
             }
             
             int sent = 0;
@@ -247,24 +397,130 @@ public class RadBench
             RadiusLog.info("	Packets Sent:     " + sent);
             RadiusLog.info("	Packets Received: " + received);
             RadiusLog.info("	Secconds:         " + (double)(endTime - startTime) / 1000);
+            RadiusLog.info("	Client Waits:     " + clientPool.getWaits() + " (avg " + clientPool.getAverageWaitMillis() + " ms)");
+            logLatency();
+            clientPool.close();
         }
         catch (Exception e)
         {
             e.printStackTrace();
         }
     }
+
+    protected static void logLatency()
+    {
+        if (accessLatency.getCount() > 0)
+            RadiusLog.info("	Access (ms):      " + accessLatency.toString(1000.0));
+        if (accountingLatency.getCount() > 0)
+            RadiusLog.info("	Accounting (ms):  " + accountingLatency.toString(1000.0));
+    }
+
+    /**
+     * Sends the passes through the file at a fixed rate from a single thread,
+     * with the replies handled by the receiver thread of an AsyncRadiusClient.
+     */
+    protected static void runOpenLoop(List<PacketTemplate> templates, InetAddress inet, String secret, 
+            int authPort, int acctPort, int timeout, long passes, double rate) throws Exception
+    {
+        if (RadiusClient.getAuthProtocol(authProtocol == null ? "pap" : authProtocol) instanceof EAPAuthenticator)
+        {
+            RadiusLog.error("EAP can not be used in open loop mode");
+            return;
+        }
+
+        AsyncRadiusClient async = new AsyncRadiusClient();
+        async.setSocketTimeout(timeout);
+
+        // a client to give the authenticators the shared secret
+        RadiusClient client = clientPool.borrowClient();
+
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        long interval = (long) (1000000000L / rate);
+        long sent = 0;
+
+        RadiusLog.info("Sending at " + rate + " packets per second...");
+        long startTime = System.nanoTime();
+
+        try
+        {
+            for (long pass = 0; pass < passes; pass++)
+            {
+                long seq = sequence.getAndIncrement();
+
+                for (PacketTemplate template : templates)
+                {
+                    final long intended = startTime + sent * interval;
+                    long wait;
+
+                    while ((wait = intended - System.nanoTime()) > 0)
+                    {
+                        LockSupport.parkNanos(wait);
+                    }
+
+                    RadiusRequest request = template.newRequest(client, seq);
+
+                    if (!template.accounting)
+                    {
+                        RadiusAuthenticator auth = RadiusClient.getAuthProtocol(authProtocol == null ? "pap" : authProtocol);
+                        auth.setupRequest(client, request);
+                        auth.processRequest(request);
+                    }
+
+                    final LatencyHistogram histogram = template.accounting ? accountingLatency : accessLatency;
+
+                    async.send(request, inet, template.accounting ? acctPort : authPort, secret, 5, new RadiusResponseHandler()
+                    {
+                        public void onResponse(RadiusRequest request, RadiusResponse response)
+                        {
+                            histogram.record((System.nanoTime() - intended) / 1000);
+                            received.incrementAndGet();
+                        }
+
+                        public void onFailure(RadiusRequest request, Exception e)
+                        {
+                            failed.incrementAndGet();
+                        }
+                    });
+
+                    sent++;
+                }
+            }
+
+            while (async.getOutstanding() > 0)
+            {
+                Thread.sleep(10);
+            }
+        }
+        finally
+        {
+            clientPool.returnClient(client);
+            async.close();
+        }
+
+        double seconds = (double) (System.nanoTime() - startTime) / 1000000000L;
+        RadiusLog.info("Completed.");
+        RadiusLog.info("Results:");
+        RadiusLog.info("	Target Rate:      " + rate + "/s");
+        RadiusLog.info("	Achieved Rate:    " + Math.round(received.get() / seconds) + "/s");
+        RadiusLog.info("	Packets Sent:     " + sent);
+        RadiusLog.info("	Packets Received: " + received.get());
+        RadiusLog.info("	Packets Failed:   " + failed.get());
+        RadiusLog.info("	Secconds:         " + seconds);
+        logLatency();
+    }
     
     private static class BenchThread extends Thread
     {
         int requests;
-        String file;
+        List<PacketTemplate> templates;
         int sent = 0;
         int received = 0;
         
-        BenchThread(int requests, String file) 
+        BenchThread(int requests, List<PacketTemplate> templates) 
         {
             this.requests = requests;
-            this.file = file;
+            this.templates = templates;
             this.setDaemon(true);
         }
 
@@ -284,31 +540,35 @@ public class RadBench
         {
             while (requests-- > 0)
             {
-                BufferedReader in = new BufferedReader(new FileReader(file));
-                boolean active = true;
+                long seq = sequence.getAndIncrement();
 
-                while (active)
+                for (PacketTemplate template : templates)
                 {
-                    AttributeList attributes = new AttributeList();
-                    active = loadAttributes(attributes, in);
-                    if (attributes.getSize() == 0) continue;
-                
-                    RadiusRequest request;
+                    if (template.sleep > 0) Thread.sleep(template.sleep * 1000L);
+
                     RadiusResponse reply;
-                    RadiusAttribute attr;
-                    Long status;
+                    long started;
                     
-                    if ((attr = attributes.get(AttributeDictionary.ACCT_STATUS_TYPE)) != null &&
-                        (status = (Long)attr.getValue().getValueObject()) != null &&
-                        status.intValue() <= 3) 
+                    RadiusClient client = clientPool.borrowClient();
+                    try
                     {
-                        request = new AccountingRequest(client, attributes);
-                        reply = (RadiusResponse)client.accounting((AccountingRequest)request, 5);
+                        RadiusRequest request = template.newRequest(client, seq);
+                        started = System.nanoTime();
+
+                        if (template.accounting) 
+                        {
+                            reply = (RadiusResponse)client.accounting((AccountingRequest)request, 5);
+                        }
+                        else
+                        {
+                            // authenticators keep the User-Name and password of their first request
+                            RadiusAuthenticator auth = authProtocol == null ? null : RadiusClient.getAuthProtocol(authProtocol);
+                            reply = client.authenticate((AccessRequest)request, auth, 5);
+                        }
                     }
-                    else
+                    finally
                     {
-                        request = new AccessRequest(client, attributes);
-                        reply = client.authenticate((AccessRequest)request, auth, 5);
+                        clientPool.returnClient(client);
                     }
 
                     sent++;
@@ -320,6 +580,7 @@ public class RadBench
                     else
                     {
                         received++;
+                        (template.accounting ? accountingLatency : accessLatency).record((System.nanoTime() - started) / 1000);
                     }
                 }
             }
@@ -0,0 +1,596 @@
+/**
+ * RadReplay
+ * Copyright (C) 2009 Coova Technologies, LLC <support@coova.com>
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.client;
+
+import gnu.getopt.Getopt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.jradius.log.RadiusLog;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.AccountingRequest;
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.RadiusRequest;
+import net.jradius.packet.RadiusResponse;
+import net.jradius.packet.attribute.AttributeDictionary;
+import net.jradius.packet.attribute.AttributeFactory;
+import net.jradius.packet.attribute.RadiusAttribute;
+import net.jradius.server.PacketCapture;
+import net.jradius.util.LatencyHistogram;
+import net.jradius.util.RadiusUtils;
+
+/**
+ * Replays recorded RADIUS requests against a server as a benchmark workload.
+ * <br>Usage:<p>
+ *   <pre>
+ *     RadReplay Arguments: [options] server secret file
+ *     	server			= RADIUS server hostname or ip
+ *     	secret			= Shared secret of the server
+ *     	file			= pcap file, or JRadius packet capture (listener property "capture")
+ *
+ *     Options:
+ *     	-d java-class	= Java class name of the attribute dictionary
+ *     	-p port		= Authentication port (default: 1812, accounting is port + 1)
+ *     	-t timeout	= Seconds to wait for a reply before retrying (default: 5)
+ *     	-x speed	= 1 for the original timing (default), 2 for twice as fast, 0 for maximum speed
+ *     	-w window	= Maximum outstanding requests at maximum speed (default: 256)
+ *     	-s secret	= Shared secret of the recording, to decrypt User-Password in pcap files
+ *     	-P password	= Password to use for all Access-Requests
+ *     	-l loops	= Number of times to replay the file (default: 1)
+ *   </pre>
+ * <p>
+ * Access-Request and Accounting-Request packets are replayed, other packets
+ * (e.g. replies) are ignored. Each request is re-signed with the secret of the
+ * target: new Identifier and Authenticator, User-Password re-encrypted, a
+ * CHAP-Challenge added when CHAP used the original Authenticator, and a new
+ * Message-Authenticator. Access-Requests continuing an EAP or challenge
+ * conversation (with State) can not be replayed and are skipped. JRadius
+ * captures do not record the original Authenticator, so CHAP requests in them
+ * without a CHAP-Challenge are skipped as well. So are the Access-Requests
+ * of a pcap file with a User-Password, unless -s or -P is given.
+ * <p>
+ * At original or scaled speed, latency is measured from the time each packet
+ * was due to be sent, so a slow server can not slow down the replay. pcap files
+ * may have Ethernet, Linux cooked, loopback or raw IP framing, with IPv4 or IPv6;
+ * IP fragments are skipped.
+ */
+public class RadReplay
+{
+    private static final int RETRIES = 2;
+
+    protected static String secret;
+    protected static String captureSecret;
+    protected static String password;
+
+    protected static final LatencyHistogram accessLatency = new LatencyHistogram();
+    protected static final LatencyHistogram accountingLatency = new LatencyHistogram();
+    protected static final AtomicLong received = new AtomicLong();
+    protected static final AtomicLong failed = new AtomicLong();
+    protected static long skipped = 0;
+    protected static long skippedPasswords = 0;
+
+    protected static void usage()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("RadReplay Arguments: [options] server secret file\n");
+        sb.append("\tserver			= RADIUS server hostname or ip\n");
+        sb.append("\tsecret			= Shared secret of the server\n");
+        sb.append("\tfile			= pcap file, or JRadius packet capture\n");
+        sb.append("\nOptions:\n");
+        sb.append("\t-d java-class	= Java class name of the attribute dictionary\n");
+        sb.append("\t-p port		= Authentication port (default: 1812, accounting is port + 1)\n");
+        sb.append("\t-t timeout	= Seconds to wait for a reply before retrying (default: 5)\n");
+        sb.append("\t-x speed	= 1 for the original timing (default), 2 for twice as fast, 0 for maximum speed\n");
+        sb.append("\t-w window	= Maximum outstanding requests at maximum speed (default: 256)\n");
+        sb.append("\t-s secret	= Shared secret of the recording, to decrypt User-Password in pcap files\n");
+        sb.append("\t-P password	= Password to use for all Access-Requests\n");
+        sb.append("\t-l loops	= Number of times to replay the file (default: 1)\n");
+        sb.append("\n");
+        System.out.print(sb.toString());
+    }
+
+    /**
+     * A recorded RADIUS packet
+     */
+    protected static class Record
+    {
+        final long time;
+        final byte[] data;
+        final boolean encrypted;
+
+        Record(long time, byte[] data, boolean encrypted)
+        {
+            this.time = time;
+            this.data = data;
+            this.encrypted = encrypted;
+        }
+    }
+
+    /**
+     * A source of recorded packets
+     */
+    protected static interface Recording
+    {
+        /**
+         * @return Returns the next packet, or null at the end
+         */
+        public Record next() throws IOException;
+
+        public void close() throws IOException;
+    }
+
+    /**
+     * Reads a JRadius packet capture; the passwords are in clear text
+     */
+    protected static class CaptureRecording implements Recording
+    {
+        private final PacketCapture.Reader reader;
+
+        CaptureRecording(PacketCapture.Reader reader)
+        {
+            this.reader = reader;
+        }
+
+        public Record next() throws IOException
+        {
+            PacketCapture.Record record = reader.next();
+            return record == null ? null : new Record(record.getTime(), record.getPacket(), false);
+        }
+
+        public void close() throws IOException
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the UDP payloads of a (libpcap format) pcap file
+     */
+    protected static class PcapRecording implements Recording
+    {
+        private static final int LINKTYPE_NULL = 0;
+        private static final int LINKTYPE_ETHERNET = 1;
+        private static final int LINKTYPE_RAW = 101;
+        private static final int LINKTYPE_LINUX_SLL = 113;
+        private static final int LINKTYPE_LINUX_SLL2 = 276;
+
+        private final DataInputStream in;
+        private final ByteOrder order;
+        private final boolean nanos;
+        private final int linkType;
+        private final byte[] header = new byte[16];
+
+        PcapRecording(DataInputStream in, int magic) throws IOException
+        {
+            this.in = in;
+
+            switch (magic)
+            {
+                case 0xa1b2c3d4: order = ByteOrder.BIG_ENDIAN; nanos = false; break;
+                case 0xd4c3b2a1: order = ByteOrder.LITTLE_ENDIAN; nanos = false; break;
+                case 0xa1b23c4d: order = ByteOrder.BIG_ENDIAN; nanos = true; break;
+                case 0x4d3cb2a1: order = ByteOrder.LITTLE_ENDIAN; nanos = true; break;
+                default: throw new IOException("Not a pcap file");
+            }
+
+            byte[] rest = new byte[20];
+            in.readFully(rest);
+            linkType = ByteBuffer.wrap(rest).order(order).getInt(16);
+        }
+
+        public Record next() throws IOException
+        {
+            while (true)
+            {
+                try
+                {
+                    in.readFully(header);
+                }
+                catch (EOFException e)
+                {
+                    return null;
+                }
+
+                ByteBuffer h = ByteBuffer.wrap(header).order(order);
+                long seconds = h.getInt(0) & 0xffffffffL;
+                long fraction = h.getInt(4) & 0xffffffffL;
+                int length = h.getInt(8);
+
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+
+                byte[] payload = udpPayload(ByteBuffer.wrap(frame));
+                if (payload != null && payload.length >= RadiusPacket.RADIUS_HEADER_LENGTH)
+                {
+                    return new Record(seconds * 1000000L + (nanos ? fraction / 1000 : fraction), payload, true);
+                }
+            }
+        }
+
+        private byte[] udpPayload(ByteBuffer frame)
+        {
+            int protocol;
+
+            switch (linkType)
+            {
+                case LINKTYPE_ETHERNET:
+                {
+                    if (frame.remaining() < 14) return null;
+                    int offset = 12;
+                    protocol = frame.getShort(offset) & 0xffff;
+                    while ((protocol == 0x8100 || protocol == 0x88a8) && frame.remaining() >= offset + 6)
+                    {
+                        offset += 4;
+                        protocol = frame.getShort(offset) & 0xffff;
+                    }
+                    frame.position(offset + 2);
+                    break;
+                }
+
+                case LINKTYPE_LINUX_SLL:
+                {
+                    if (frame.remaining() < 16) return null;
+                    protocol = frame.getShort(14) & 0xffff;
+                    frame.position(16);
+                    break;
+                }
+
+                case LINKTYPE_LINUX_SLL2:
+                {
+                    if (frame.remaining() < 20) return null;
+                    protocol = frame.getShort(0) & 0xffff;
+                    frame.position(20);
+                    break;
+                }
+
+                case LINKTYPE_NULL:
+                case LINKTYPE_RAW:
+                {
+                    if (linkType == LINKTYPE_NULL) frame.position(4);
+                    if (!frame.hasRemaining()) return null;
+                    protocol = (frame.get(frame.position()) >> 4) == 6 ? 0x86dd : 0x0800;
+                    break;
+                }
+
+                default:
+                    return null;
+            }
+
+            int ip = frame.position();
+
+            if (protocol == 0x0800)
+            {
+                if (frame.remaining() < 20) return null;
+                if (frame.get(ip + 9) != 17) return null;
+                if ((frame.getShort(ip + 6) & 0x3fff) != 0) return null;
+                frame.position(ip + (frame.get(ip) & 0x0f) * 4);
+            }
+            else if (protocol == 0x86dd)
+            {
+                if (frame.remaining() < 40) return null;
+                if (frame.get(ip + 6) != 17) return null;
+                frame.position(ip + 40);
+            }
+            else
+            {
+                return null;
+            }
+
+            int udp = frame.position();
+            if (frame.remaining() < 8) return null;
+
+            int length = Math.min((frame.getShort(udp + 4) & 0xffff) - 8, frame.remaining() - 8);
+            if (length <= 0) return null;
+
+            byte[] payload = new byte[length];
+            frame.position(udp + 8);
+            frame.get(payload);
+            return payload;
+        }
+
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+    protected static Recording openRecording(String file) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        in.mark(8);
+        int magic = in.readInt();
+        in.reset();
+
+        if (magic == PacketCapture.MAGIC)
+        {
+            return new CaptureRecording(new PacketCapture.Reader(in));
+        }
+
+        in.readInt();
+        return new PcapRecording(in, magic);
+    }
+
+    /**
+     * Turns a recorded packet into a request for the target server
+     * @return Returns the request, or null if the packet is not to be replayed
+     */
+    protected static RadiusRequest rewrite(Record record) throws Exception
+    {
+        int code = record.data[0] & 0xff;
+        if (code != AccessRequest.CODE && code != AccountingRequest.CODE) return null;
+
+        byte[] data = new byte[record.data.length];
+        System.arraycopy(record.data, 0, data, 0, data.length);
+
+        RadiusPacket p = PacketFactory.parseUDP(ByteBuffer.wrap(data), false);
+        if (p == null) return null;
+
+        byte[] authenticator = p.getAuthenticator();
+        p.removeAttribute(AttributeDictionary.MESSAGE_AUTHENTICATOR);
+
+        if (p instanceof AccountingRequest)
+        {
+            p.setAuthenticator(null);
+            return (RadiusRequest) p;
+        }
+
+        if (p.findAttribute(AttributeDictionary.STATE) != null)
+        {
+            skipped++;
+            return null;
+        }
+
+        if (!record.encrypted &&
+            p.findAttribute(AttributeDictionary.CHAP_PASSWORD) != null && 
+            p.findAttribute(AttributeDictionary.CHAP_CHALLENGE) == null)
+        {
+            // the Authenticator of a JRadius capture is not the one the CHAP-Password was built with
+            skipped++;
+            return null;
+        }
+
+        byte[] clear = null;
+        RadiusAttribute a = p.findAttribute(AttributeDictionary.USER_PASSWORD);
+
+        if (password != null)
+        {
+            if (p.findAttribute(AttributeDictionary.CHAP_PASSWORD) == null) clear = password.getBytes();
+        }
+        else if (a != null)
+        {
+            if (!record.encrypted)
+            {
+                clear = a.getValue().getBytes();
+            }
+            else if (captureSecret != null)
+            {
+                clear = RadiusUtils.decodePapPassword(a.getValue().getBytes(), authenticator, captureSecret);
+                int length = clear.length;
+                while (length > 0 && clear[length - 1] == 0) length--;
+                byte[] b = new byte[length];
+                System.arraycopy(clear, 0, b, 0, length);
+                clear = b;
+            }
+            else
+            {
+                // encrypted with the old Authenticator, the server would always reject it
+                if (skippedPasswords++ == 0)
+                {
+                    RadiusLog.warn("Skipping Access-Requests with User-Password, give -s or -P to replay them");
+                }
+                skipped++;
+                return null;
+            }
+        }
+
+        if (p.findAttribute(AttributeDictionary.CHAP_PASSWORD) != null && 
+            p.findAttribute(AttributeDictionary.CHAP_CHALLENGE) == null)
+        {
+            p.addAttribute(AttributeFactory.newAttribute(AttributeDictionary.CHAP_CHALLENGE, authenticator, false));
+        }
+
+        byte[] newAuthenticator = p.createAuthenticator(null, 0, 0, secret);
+
+        if (clear != null)
+        {
+            p.removeAttribute(AttributeDictionary.USER_PASSWORD);
+            p.addAttribute(AttributeFactory.newAttribute(AttributeDictionary.USER_PASSWORD, 
+                    RadiusUtils.encodePapPassword(clear, newAuthenticator, secret), false));
+        }
+
+        return (RadiusRequest) p;
+    }
+
+    public static void main(String[] args)
+    {
+        Getopt g = new Getopt("RadReplay", args, "d:p:t:x:w:s:P:l:");
+
+        String dictClass = "net.jradius.dictionary.AttributeDictionaryImpl";
+
+        int authPort = 1812;
+        int acctPort = 1813;
+        int timeout = 5;
+        double speed = 1;
+        int window = 256;
+        int loops = 1;
+
+        int op;
+        while ((op = g.getopt()) != -1)
+        {
+            switch(op)
+            {
+                case 'd': dictClass = g.getOptarg(); break;
+                case 'p': authPort = Integer.parseInt(g.getOptarg()); acctPort = authPort + 1; break;
+                case 't': timeout = Integer.parseInt(g.getOptarg()); break;
+                case 'x': speed = Double.parseDouble(g.getOptarg()); break;
+                case 'w': window = Integer.parseInt(g.getOptarg()); break;
+                case 's': captureSecret = g.getOptarg(); break;
+                case 'P': password = g.getOptarg(); break;
+                case 'l': loops = Integer.parseInt(g.getOptarg()); break;
+                default: usage(); return;
+            }
+        }
+
+        int gidx = g.getOptind();
+
+        if (args.length - gidx < 3)
+        {
+            usage();
+            return;
+        }
+
+        String host = args[gidx];
+        secret      = args[gidx + 1];
+        String file = args[gidx + 2];
+
+        AttributeFactory.loadAttributeDictionary(dictClass);
+
+        AsyncRadiusClient client = null;
+
+        try
+        {
+            InetAddress inet = InetAddress.getByName(host);
+            client = new AsyncRadiusClient();
+            client.setSocketTimeout(timeout);
+
+            long sent = 0;
+            long startTime = System.nanoTime();
+            long offset = 0;
+
+            RadiusLog.info("Replaying " + file + (speed > 0 ? " at " + speed + "x speed" : " at maximum speed") + "...");
+
+            for (int loop = 0; loop < loops; loop++)
+            {
+                Recording recording = openRecording(file);
+                long firstTime = -1;
+                long lastOffset = offset;
+
+                try
+                {
+                    Record record;
+                    while ((record = recording.next()) != null)
+                    {
+                        RadiusRequest request = rewrite(record);
+                        if (request == null) continue;
+
+                        if (firstTime < 0) firstTime = record.time;
+
+                        long intended;
+
+                        if (speed > 0)
+                        {
+                            lastOffset = offset + (long) ((record.time - firstTime) * 1000 / speed);
+                            intended = startTime + lastOffset;
+
+                            long wait;
+                            while ((wait = intended - System.nanoTime()) > 0)
+                            {
+                                LockSupport.parkNanos(wait);
+                            }
+                        }
+                        else
+                        {
+                            while (client.getOutstanding() >= window)
+                            {
+                                LockSupport.parkNanos(100000L);
+                            }
+                            intended = System.nanoTime();
+                        }
+
+                        boolean accounting = request instanceof AccountingRequest;
+                        client.send(request, inet, accounting ? acctPort : authPort, secret, RETRIES, 
+                                new LatencyRecorder(accounting ? accountingLatency : accessLatency, intended));
+                        sent++;
+                    }
+                }
+                finally
+                {
+                    recording.close();
+                }
+
+                // the next loop follows the last packet of this one
+                offset = lastOffset + 1000000L;
+            }
+
+            while (client.getOutstanding() > 0)
+            {
+                Thread.sleep(10);
+            }
+
+            double seconds = (double) (System.nanoTime() - startTime) / 1000000000L;
+            RadiusLog.info("Completed.");
+            RadiusLog.info("Results:");
+            RadiusLog.info("	Packets Sent:     " + sent);
+            RadiusLog.info("	Packets Received: " + received.get());
+            RadiusLog.info("	Packets Failed:   " + failed.get());
+            RadiusLog.info("	Packets Skipped:  " + skipped);
+            if (skippedPasswords > 0)
+                RadiusLog.info("	  User-Password:  " + skippedPasswords + " (no -s or -P)");
+            RadiusLog.info("	Secconds:         " + seconds);
+            RadiusLog.info("	Rate:             " + Math.round(received.get() / seconds) + "/s");
+            if (accessLatency.getCount() > 0)
+                RadiusLog.info("	Access (ms):      " + accessLatency.toString(1000.0));
+            if (accountingLatency.getCount() > 0)
+                RadiusLog.info("	Accounting (ms):  " + accountingLatency.toString(1000.0));
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if (client != null) client.close();
+        }
+    }
+
+    private static class LatencyRecorder implements RadiusResponseHandler
+    {
+        private final LatencyHistogram histogram;
+        private final long intended;
+
+        LatencyRecorder(LatencyHistogram histogram, long intended)
+        {
+            this.histogram = histogram;
+            this.intended = intended;
+        }
+
+        public void onResponse(RadiusRequest request, RadiusResponse response)
+        {
+            histogram.record((System.nanoTime() - intended) / 1000);
+            received.incrementAndGet();
+        }
+
+        public void onFailure(RadiusRequest request, Exception e)
+        {
+            failed.incrementAndGet();
+        }
+    }
+}
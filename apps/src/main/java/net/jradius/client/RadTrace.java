@@ -0,0 +1,155 @@
+/**
+ * RadTrace
+ * Copyright (C) 2009 Coova Technologies, LLC <support@coova.com>
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.client;
+
+import gnu.getopt.Getopt;
+
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.attribute.AttributeFactory;
+import net.jradius.server.JRadiusServer;
+import net.jradius.server.RequestTimestamps;
+import net.jradius.server.RequestTracer;
+
+/**
+ * Prints the requests traced by a JRadius server (listener property "trace"),
+ * from the oldest to the newest, with their stage timings and packets.
+ * <br>Usage:<p>
+ *   <pre>
+ *     RadTrace Arguments: [options] file
+ *     	file			= Request trace file
+ *
+ *     Options:
+ *     	-d java-class	= Java class name of the attribute dictionary
+ *     	-s		= Summary only, without the packets
+ *   </pre>
+ * <p>
+ * The trace file may be read while the server is running; a trace being
+ * written at the same time may then show up as corrupt.
+ */
+public class RadTrace
+{
+    protected static void usage()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("RadTrace Arguments: [options] file\n");
+        sb.append("\tfile			= Request trace file\n");
+        sb.append("\nOptions:\n");
+        sb.append("\t-d java-class	= Java class name of the attribute dictionary\n");
+        sb.append("\t-s		= Summary only, without the packets\n");
+        sb.append("\n");
+        System.out.print(sb.toString());
+    }
+
+    protected static void printPackets(String direction, List<byte[]> packets)
+    {
+        for (byte[] data : packets)
+        {
+            System.out.println(direction + " " + data.length + " bytes");
+
+            try
+            {
+                RadiusPacket p = PacketFactory.parseUDP(ByteBuffer.wrap(data), false);
+                System.out.print(p.toString());
+            }
+            catch (Exception e)
+            {
+                System.out.println("Unable to decode packet: " + e.getMessage());
+            }
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        Getopt g = new Getopt("RadTrace", args, "d:s");
+
+        String dictClass = "net.jradius.dictionary.AttributeDictionaryImpl";
+        boolean summary = false;
+
+        int op;
+        while ((op = g.getopt()) != -1)
+        {
+            switch(op)
+            {
+                case 'd': dictClass = g.getOptarg(); break;
+                case 's': summary = true; break;
+                default: usage(); return;
+            }
+        }
+
+        int gidx = g.getOptind();
+
+        if (args.length - gidx < 1)
+        {
+            usage();
+            return;
+        }
+
+        AttributeFactory.loadAttributeDictionary(dictClass);
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+        try
+        {
+            RequestTracer.Reader reader = new RequestTracer.Reader(args[gidx]);
+
+            System.out.println(reader.getCount() + " of " + reader.getWritten() + " traced requests" +
+                    (reader.hasPasswords() ? " (with passwords)" : ""));
+
+            RequestTracer.Trace trace;
+
+            while ((trace = reader.next()) != null)
+            {
+                StringBuffer sb = new StringBuffer();
+                sb.append("\n#").append(trace.getSequence());
+                sb.append(' ').append(dateFormat.format(new Date(trace.getTime())));
+                sb.append(' ').append(trace.getType());
+                sb.append(" from \"").append(trace.getSender()).append('"');
+                sb.append(": ").append(JRadiusServer.resultCodeToString(trace.getResult()));
+                sb.append("\n ");
+
+                for (int i = 0; i < RequestTimestamps.STAGES; i++)
+                {
+                    int t = trace.getStageTime(i);
+                    if (t < 0) continue;
+                    sb.append(' ').append(RequestTimestamps.stageName(i)).append('=').append(t).append("us");
+                }
+
+                System.out.println(sb.toString());
+
+                if (!summary)
+                {
+                    printPackets(">>> received", trace.getInbound());
+                    printPackets("<<< handled", trace.getOutbound());
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            System.err.println("Unable to read " + args[gidx] + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,805 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.client;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jradius.log.RadiusLog;
+import net.jradius.packet.AccountingRequest;
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusFormat;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.RadiusRequest;
+import net.jradius.packet.RadiusResponse;
+import net.jradius.packet.attribute.AttributeDictionary;
+import net.jradius.packet.attribute.AttributeFactory;
+import net.jradius.packet.attribute.RadiusAttribute;
+import net.jradius.util.TimerWheel;
+
+/**
+ * A buffered sender of Accounting-Requests. send() queues the request and
+ * returns; sender threads keep many requests outstanding on an
+ * AsyncRadiusClient, so the throughput of the caller does not depend on the
+ * latency of the server. Requests of the same session (Acct-Session-Id) are
+ * delivered in order: the next one is only sent once the previous one is
+ * answered. A request without reply is retried, with exponential backoff,
+ * until the server answers; Acct-Delay-Time is updated on every attempt.
+ * <p>
+ * With a spool directory, requests are also appended to segment files
+ * (synced to disk once per batch) before they are sent. A segment is
+ * deleted once all its requests are answered; segments left over from a
+ * previous run are sent again on start(), so requests survive a restart
+ * but may be delivered twice.
+ * <p>
+ * The sender takes over the requests given to it; they must not be
+ * changed or sent otherwise afterwards.
+ */
+public class AccountingSender
+{
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    private final AsyncRadiusClient client;
+    private final boolean ownClient;
+    private final InetAddress address;
+    private final String sharedSecret;
+    private int port = 1813;
+
+    private int retries = 2;
+    private int maxQueued = 100000;
+    private int maxOutstanding = 1024;
+    private int maxAttempts = 0;
+    private long retryInterval = 5000;
+    private long maxRetryInterval = 60000;
+    private int senders = 1;
+
+    private File spoolDirectory;
+    private long segmentSize = 16 * 1024 * 1024;
+    private int syncBatch = 1000;
+    private boolean sync = true;
+
+    private Semaphore capacity;
+    private Semaphore window;
+    private final BlockingQueue<Entry> incoming = new LinkedBlockingQueue<Entry>();
+    private final BlockingQueue<Entry> ready = new LinkedBlockingQueue<Entry>();
+    private final Map<String, LinkedList<Entry>> sessions = new HashMap<String, LinkedList<Entry>>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private Thread writer;
+    private TimerWheel timer;
+    private volatile boolean active = false;
+
+    private Segment segment;
+    private long segmentNumber = 0;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * A queued request
+     */
+    private static class Entry
+    {
+        final AccountingRequest request;
+        final String session;
+        final long queuedTime;
+        final long delay;
+        Segment segment;
+        boolean counted = true;
+        int attempts;
+
+        Entry(AccountingRequest request, long queuedTime)
+        {
+            this.request = request;
+            this.queuedTime = queuedTime;
+
+            RadiusAttribute a = request.findAttribute(AttributeDictionary.ACCT_SESSION_ID);
+            this.session = a == null ? null : new String(a.getValue().getBytes());
+
+            a = request.findAttribute(AttributeDictionary.ACCT_DELAY_TIME);
+            Object value = a == null ? null : a.getValue().getValueObject();
+            this.delay = value instanceof Long ? ((Long) value).longValue() : 0;
+        }
+    }
+
+    /**
+     * A spool file, deleted when all its requests are answered
+     */
+    private static class Segment
+    {
+        final File file;
+        final RandomAccessFile raf;
+        long size;
+        int records;
+        int done;
+        boolean closed;
+
+        Segment(File file, RandomAccessFile raf)
+        {
+            this.file = file;
+            this.raf = raf;
+        }
+
+        synchronized void close()
+        {
+            closed = true;
+            try { if (raf != null) raf.close(); }
+            catch (IOException e) { }
+            deleteIfDone();
+        }
+
+        synchronized void done()
+        {
+            done++;
+            deleteIfDone();
+        }
+
+        private void deleteIfDone()
+        {
+            if (closed && done >= records && file.exists() && !file.delete())
+            {
+                RadiusLog.warn("Unable to delete accounting spool " + file);
+            }
+        }
+    }
+
+    /**
+     * @param address The accounting server
+     * @param sharedSecret The shared secret of the server
+     * @throws IOException
+     */
+    public AccountingSender(InetAddress address, String sharedSecret) throws IOException
+    {
+        this(new AsyncRadiusClient(), true, address, sharedSecret);
+    }
+
+    /**
+     * @param client The client to send with (not closed by close())
+     * @param address The accounting server
+     * @param sharedSecret The shared secret of the server
+     */
+    public AccountingSender(AsyncRadiusClient client, InetAddress address, String sharedSecret)
+    {
+        this(client, false, address, sharedSecret);
+    }
+
+    private AccountingSender(AsyncRadiusClient client, boolean ownClient, InetAddress address, String sharedSecret)
+    {
+        this.client = client;
+        this.ownClient = ownClient;
+        this.address = address;
+        this.sharedSecret = sharedSecret;
+    }
+
+    /**
+     * Recovers the spool (if any) and starts sending
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException
+    {
+        if (active) return;
+        active = true;
+
+        capacity = new Semaphore(maxQueued);
+        window = new Semaphore(maxOutstanding);
+        timer = new TimerWheel("AccountingSender-Timer", 100, 512);
+
+        if (spoolDirectory != null)
+        {
+            if (!spoolDirectory.isDirectory() && !spoolDirectory.mkdirs())
+            {
+                throw new IOException("Unable to create accounting spool " + spoolDirectory);
+            }
+
+            recover();
+
+            writer = new Thread(new Runnable() { public void run() { runWriter(); } }, "AccountingSender-Spool");
+            threads.add(writer);
+        }
+
+        for (int i = 0; i < senders; i++)
+        {
+            threads.add(new Thread(new Runnable() { public void run() { runSender(); } }, "AccountingSender-" + i));
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops sending. Spool segments with requests not yet answered are kept for the next start().
+     * The client is closed too, when the sender created it.
+     */
+    public synchronized void close()
+    {
+        active = false;
+
+        // the writer is not interrupted, which would close the channel of
+        // the segment it writes to; it stops once the queued requests are spooled
+        for (Thread thread : threads)
+        {
+            if (thread != writer) thread.interrupt();
+        }
+
+        boolean interrupted = false;
+        for (Thread thread : threads)
+        {
+            while (thread.isAlive())
+            {
+                try
+                {
+                    thread.join();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        threads.clear();
+        writer = null;
+
+        if (timer != null) timer.stop();
+        if (segment != null) closeSegment(segment);
+        segment = null;
+
+        if (ownClient) client.close();
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Queues a request, waiting while the queue is full
+     * @param request The request (owned by the sender from now on)
+     * @throws InterruptedException
+     */
+    public void send(AccountingRequest request) throws InterruptedException
+    {
+        capacity.acquire();
+        enqueue(request);
+    }
+
+    /**
+     * Queues a request unless the queue is full
+     * @param request The request (owned by the sender from now on)
+     * @param timeout The time to wait for room in the queue (in milliseconds)
+     * @return Returns false if the request was not queued
+     * @throws InterruptedException
+     */
+    public boolean offer(AccountingRequest request, long timeout) throws InterruptedException
+    {
+        if (!capacity.tryAcquire(timeout, TimeUnit.MILLISECONDS)) return false;
+        enqueue(request);
+        return true;
+    }
+
+    private void enqueue(AccountingRequest request)
+    {
+        if (!active)
+        {
+            capacity.release();
+            throw new IllegalStateException("AccountingSender is not started");
+        }
+
+        Entry entry = new Entry(request, System.currentTimeMillis());
+        queued.incrementAndGet();
+
+        if (spoolDirectory != null) incoming.add(entry);
+        else dispatch(entry);
+    }
+
+    /**
+     * Sends the entry now, or after the outstanding request of its session
+     */
+    private void dispatch(Entry entry)
+    {
+        if (entry.session != null)
+        {
+            synchronized (sessions)
+            {
+                LinkedList<Entry> waiting = sessions.get(entry.session);
+                if (waiting != null)
+                {
+                    waiting.add(entry);
+                    return;
+                }
+                sessions.put(entry.session, new LinkedList<Entry>());
+            }
+        }
+
+        ready.add(entry);
+    }
+
+    /**
+     * Called once an entry is answered (or given up), releases its session
+     */
+    private void complete(Entry entry)
+    {
+        window.release();
+        if (entry.counted) capacity.release();
+        queued.decrementAndGet();
+
+        if (entry.segment != null) entry.segment.done();
+
+        if (entry.session != null)
+        {
+            Entry next;
+            synchronized (sessions)
+            {
+                LinkedList<Entry> waiting = sessions.get(entry.session);
+                next = waiting == null ? null : waiting.poll();
+                if (next == null) sessions.remove(entry.session);
+            }
+            if (next != null) ready.add(next);
+        }
+    }
+
+    private void runSender()
+    {
+        while (active)
+        {
+            try
+            {
+                Entry entry = ready.take();
+                window.acquire();
+                transmit(entry);
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+
+    private void transmit(final Entry entry)
+    {
+        long delay = entry.delay + (System.currentTimeMillis() - entry.queuedTime) / 1000;
+        byte[] value = new byte[4];
+        value[0] = (byte) (delay >> 24);
+        value[1] = (byte) (delay >> 16);
+        value[2] = (byte) (delay >> 8);
+        value[3] = (byte) delay;
+        entry.request.overwriteAttribute(AttributeFactory.newAttribute(AttributeDictionary.ACCT_DELAY_TIME, value, false));
+
+        entry.attempts++;
+        sent.incrementAndGet();
+
+        client.send(entry.request, address, port, sharedSecret, retries, new RadiusResponseHandler()
+        {
+            public void onResponse(RadiusRequest request, RadiusResponse response)
+            {
+                delivered.incrementAndGet();
+                complete(entry);
+            }
+
+            public void onFailure(RadiusRequest request, Exception e)
+            {
+                retry(entry, e);
+            }
+        });
+    }
+
+    private void retry(final Entry entry, Exception e)
+    {
+        if (maxAttempts > 0 && entry.attempts >= maxAttempts)
+        {
+            dropped.incrementAndGet();
+            RadiusLog.warn("Dropping Accounting-Request after " + entry.attempts + " attempts: " + e.getMessage());
+            complete(entry);
+            return;
+        }
+
+        // the session stays blocked, so its order is kept
+        window.release();
+        retried.incrementAndGet();
+
+        long interval = retryInterval << Math.min(entry.attempts - 1, 16);
+        if (interval > maxRetryInterval || interval <= 0) interval = maxRetryInterval;
+
+        timer.schedule(new Runnable()
+        {
+            public void run()
+            {
+                if (active) ready.add(entry);
+            }
+        }, interval);
+    }
+
+    /**
+     * Appends queued requests to the spool, syncs once per batch and then sends them
+     */
+    private void runWriter()
+    {
+        List<Entry> batch = new ArrayList<Entry>(syncBatch);
+        ByteBuffer buffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH + 12);
+        RadiusFormat format = RadiusFormat.getInstance();
+
+        // after close(), the requests already queued are still spooled for the next start()
+        while (active || !incoming.isEmpty())
+        {
+            try
+            {
+                Entry first = incoming.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                incoming.drainTo(batch, syncBatch - 1);
+            }
+            catch (InterruptedException e)
+            {
+                continue;
+            }
+
+            try
+            {
+                for (Entry entry : batch)
+                {
+                    if (segment == null || segment.size >= segmentSize)
+                    {
+                        if (segment != null) closeSegment(segment);
+                        segment = newSegment();
+                    }
+
+                    buffer.clear();
+                    buffer.position(12);
+                    format.packPacket(entry.request, sharedSecret, buffer, true);
+                    int length = buffer.position() - 12;
+                    buffer.putInt(0, length);
+                    buffer.putLong(4, entry.queuedTime);
+                    buffer.flip();
+
+                    FileChannel channel = segment.raf.getChannel();
+                    while (buffer.hasRemaining()) channel.write(buffer);
+
+                    synchronized (segment)
+                    {
+                        segment.records++;
+                    }
+                    segment.size += length + 12;
+                    entry.segment = segment;
+                }
+
+                if (sync && segment != null) segment.raf.getChannel().force(false);
+            }
+            catch (IOException e)
+            {
+                RadiusLog.error("Unable to write accounting spool, sending without it", e);
+            }
+
+            for (Entry entry : batch)
+            {
+                dispatch(entry);
+            }
+
+            batch.clear();
+        }
+    }
+
+    private Segment newSegment() throws IOException
+    {
+        File file = new File(spoolDirectory, String.format("acct-%016d", Long.valueOf(++segmentNumber)) + SEGMENT_SUFFIX);
+        return new Segment(file, new RandomAccessFile(file, "rw"));
+    }
+
+    /**
+     * Closes the segment, it is deleted as soon as all its requests are answered
+     */
+    private void closeSegment(Segment s)
+    {
+        try
+        {
+            if (sync) s.raf.getChannel().force(false);
+        }
+        catch (IOException e)
+        {
+        }
+
+        s.close();
+    }
+
+    /**
+     * Queues the requests of the segments left by a previous run
+     */
+    private void recover() throws IOException
+    {
+        File[] files = spoolDirectory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+
+        int recovered = 0;
+
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (!name.startsWith("acct-") || !name.endsWith(SEGMENT_SUFFIX)) continue;
+
+            try
+            {
+                long n = Long.parseLong(name.substring(5, name.length() - SEGMENT_SUFFIX.length()));
+                if (n > segmentNumber) segmentNumber = n;
+            }
+            catch (NumberFormatException e)
+            {
+            }
+
+            Segment s = new Segment(file, null);
+            List<Entry> entries = new ArrayList<Entry>();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+
+            try
+            {
+                while (true)
+                {
+                    int length = in.readInt();
+                    long queuedTime = in.readLong();
+                    if (length < RadiusPacket.RADIUS_HEADER_LENGTH || length > RadiusPacket.MAX_PACKET_LENGTH)
+                    {
+                        throw new IOException("Invalid record length " + length);
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+
+                    RadiusPacket p = PacketFactory.parseUDP(ByteBuffer.wrap(data), false);
+                    if (!(p instanceof AccountingRequest)) continue;
+
+                    Entry entry = new Entry((AccountingRequest) p, queuedTime);
+                    entry.segment = s;
+                    entries.add(entry);
+                }
+            }
+            catch (EOFException e)
+            {
+                // the end, or a record cut short by a crash
+            }
+            catch (Exception e)
+            {
+                RadiusLog.warn("Error reading accounting spool " + file + ": " + e.getMessage());
+            }
+            finally
+            {
+                in.close();
+            }
+
+            s.records = entries.size();
+            s.close();
+
+            for (Entry entry : entries)
+            {
+                // a large spool may exceed maxQueued, it is not waited for
+                entry.counted = capacity.tryAcquire();
+                queued.incrementAndGet();
+                dispatch(entry);
+                recovered++;
+            }
+        }
+
+        if (recovered > 0)
+        {
+            RadiusLog.info("Recovered " + recovered + " Accounting-Requests from " + spoolDirectory);
+        }
+    }
+
+    /**
+     * @return Returns the number of requests queued or outstanding
+     */
+    public long getQueued()
+    {
+        return queued.get();
+    }
+
+    /**
+     * @return Returns the number of transmissions (including retries)
+     */
+    public long getSent()
+    {
+        return sent.get();
+    }
+
+    /**
+     * @return Returns the number of requests answered by the server
+     */
+    public long getDelivered()
+    {
+        return delivered.get();
+    }
+
+    public long getRetried()
+    {
+        return retried.get();
+    }
+
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public void setPort(int port)
+    {
+        this.port = port;
+    }
+
+    public int getRetries()
+    {
+        return retries;
+    }
+
+    /**
+     * @param retries Number of retransmissions by the client per attempt
+     */
+    public void setRetries(int retries)
+    {
+        this.retries = retries;
+    }
+
+    public int getMaxQueued()
+    {
+        return maxQueued;
+    }
+
+    /**
+     * @param maxQueued The maximum number of requests held in memory (set before start())
+     */
+    public void setMaxQueued(int maxQueued)
+    {
+        this.maxQueued = maxQueued;
+    }
+
+    public int getMaxOutstanding()
+    {
+        return maxOutstanding;
+    }
+
+    /**
+     * @param maxOutstanding The maximum number of requests sent and not yet answered (set before start())
+     */
+    public void setMaxOutstanding(int maxOutstanding)
+    {
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    /**
+     * @param maxAttempts The number of attempts before a request is dropped (0 to retry forever)
+     */
+    public void setMaxAttempts(int maxAttempts)
+    {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getRetryInterval()
+    {
+        return retryInterval;
+    }
+
+    /**
+     * @param retryInterval The wait before the first retry, doubled for each further one (in milliseconds)
+     */
+    public void setRetryInterval(long retryInterval)
+    {
+        this.retryInterval = retryInterval;
+    }
+
+    public long getMaxRetryInterval()
+    {
+        return maxRetryInterval;
+    }
+
+    public void setMaxRetryInterval(long maxRetryInterval)
+    {
+        this.maxRetryInterval = maxRetryInterval;
+    }
+
+    public int getSenders()
+    {
+        return senders;
+    }
+
+    /**
+     * @param senders The number of sender threads (set before start())
+     */
+    public void setSenders(int senders)
+    {
+        this.senders = senders;
+    }
+
+    public File getSpoolDirectory()
+    {
+        return spoolDirectory;
+    }
+
+    /**
+     * @param spoolDirectory The directory of the spool segments (null for no spool, set before start())
+     */
+    public void setSpoolDirectory(File spoolDirectory)
+    {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public long getSegmentSize()
+    {
+        return segmentSize;
+    }
+
+    /**
+     * @param segmentSize The size at which a new spool segment is started (in bytes)
+     */
+    public void setSegmentSize(long segmentSize)
+    {
+        this.segmentSize = segmentSize;
+    }
+
+    public int getSyncBatch()
+    {
+        return syncBatch;
+    }
+
+    /**
+     * @param syncBatch The maximum number of requests written per sync
+     */
+    public void setSyncBatch(int syncBatch)
+    {
+        this.syncBatch = syncBatch;
+    }
+
+    public boolean isSync()
+    {
+        return sync;
+    }
+
+    /**
+     * @param sync Whether to sync the spool to disk after each batch
+     */
+    public void setSync(boolean sync)
+    {
+        this.sync = sync;
+    }
+}
@@ -0,0 +1,536 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.jradius.exception.RadiusException;
+import net.jradius.exception.TimeoutException;
+import net.jradius.log.RadiusLog;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusFormat;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.RadiusRequest;
+import net.jradius.packet.RadiusResponse;
+import net.jradius.packet.attribute.AttributeDictionary;
+import net.jradius.util.MessageAuthenticator;
+import net.jradius.util.TimerWheel;
+
+/**
+ * An asynchronous RADIUS client. A single UDP socket carries up to 256
+ * outstanding requests per server (one per RADIUS Identifier), further
+ * requests wait in a backlog until an Identifier is free. Replies are
+ * matched to requests by Identifier and verified against the request
+ * Authenticator by one receiver thread; retransmissions are driven by
+ * a timer wheel, so no thread is needed per outstanding request.
+ * <p>
+ * Results are delivered either through a Future or a RadiusResponseHandler
+ * callback, which is called on the receiver or timer thread.
+ */
+public class AsyncRadiusClient
+{
+    private static final RadiusFormat format = RadiusFormat.getInstance();
+
+    private final DatagramChannel channel;
+    private final TimerWheel timer;
+    private final ConcurrentHashMap<InetSocketAddress, Destination> destinations = new ConcurrentHashMap<InetSocketAddress, Destination>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile boolean active = true;
+
+    private int socketTimeout = 5000;
+    private int maxBacklog = 10000;
+    private RetransmitPolicy retransmitPolicy;
+
+    /**
+     * Creates a client on an ephemeral local port
+     * @throws IOException
+     */
+    public AsyncRadiusClient() throws IOException
+    {
+        this(null);
+    }
+
+    /**
+     * @param localAddress The local address to bind to (null for any)
+     * @throws IOException
+     */
+    public AsyncRadiusClient(InetSocketAddress localAddress) throws IOException
+    {
+        channel = DatagramChannel.open();
+        channel.socket().bind(localAddress);
+        timer = new TimerWheel("RadiusClient-Timer-" + channel.socket().getLocalPort(), 50, 512);
+
+        Thread receiver = new Thread(new Receiver(), "RadiusClient-Receiver-" + channel.socket().getLocalPort());
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Sends a request
+     * @param request The request (its Identifier is assigned by the client)
+     * @param address The server address
+     * @param port The server port
+     * @param sharedSecret The shared secret of the server
+     * @param retries Number of times to retry (without response)
+     * @return Returns the Future of the response
+     */
+    public Future<RadiusResponse> send(RadiusRequest request, InetAddress address, int port, String sharedSecret, int retries)
+    {
+        RadiusResponseFuture future = new RadiusResponseFuture();
+        send(request, address, port, sharedSecret, retries, future);
+        return future;
+    }
+
+    /**
+     * Sends a request, the result is passed to the given handler
+     * @param request The request (its Identifier is assigned by the client)
+     * @param address The server address
+     * @param port The server port
+     * @param sharedSecret The shared secret of the server
+     * @param retries Number of times to retry (without response)
+     * @param handler The handler of the response
+     */
+    public void send(RadiusRequest request, InetAddress address, int port, String sharedSecret, int retries, RadiusResponseHandler handler)
+    {
+        if (!active)
+        {
+            handler.onFailure(request, new RadiusException("RADIUS client closed"));
+            return;
+        }
+
+        InetSocketAddress server = new InetSocketAddress(address, port);
+        Destination destination = destinations.get(server);
+
+        if (destination == null)
+        {
+            destination = new Destination(server);
+            Destination d = destinations.putIfAbsent(server, destination);
+            if (d != null) destination = d;
+        }
+
+        Pending pending = new Pending(destination, request, sharedSecret, retries < 0 ? 0 : retries, handler);
+
+        outstanding.incrementAndGet();
+
+        synchronized (destination)
+        {
+            if (!destination.assign(pending))
+            {
+                if (destination.backlog.size() >= maxBacklog)
+                {
+                    pending = null;
+                }
+                else
+                {
+                    destination.backlog.add(pending);
+                    return;
+                }
+            }
+        }
+
+        if (pending == null)
+        {
+            outstanding.decrementAndGet();
+            handler.onFailure(request, new RadiusException("Too many outstanding requests to " + server));
+            return;
+        }
+
+        start(pending);
+    }
+
+    /**
+     * @return Returns the number of requests sent or waiting to be sent
+     */
+    public int getOutstanding()
+    {
+        return outstanding.get();
+    }
+
+    /**
+     * @return Returns the local port of the client socket
+     */
+    public int getLocalPort()
+    {
+        return channel.socket().getLocalPort();
+    }
+
+    public void close()
+    {
+        active = false;
+
+        try { channel.close(); }
+        catch (IOException e) { }
+
+        timer.stop();
+
+        List<Pending> failed = new ArrayList<Pending>();
+        for (Destination destination : destinations.values())
+        {
+            synchronized (destination)
+            {
+                for (int i = 0; i < destination.slots.length; i++)
+                {
+                    if (destination.slots[i] != null) failed.add(destination.slots[i]);
+                }
+                failed.addAll(destination.backlog);
+                destination.backlog.clear();
+            }
+        }
+
+        for (Pending pending : failed)
+        {
+            finish(pending, null, new RadiusException("RADIUS client closed"));
+        }
+    }
+
+    /**
+     * Encodes the request with its assigned Identifier and sends it
+     */
+    private void start(Pending pending)
+    {
+        RadiusRequest request = pending.request;
+
+        try
+        {
+            request.setIdentifier(pending.id);
+
+            if (request instanceof AccessRequest)
+            {
+                MessageAuthenticator.generateRequestMessageAuthenticator(request, pending.sharedSecret);
+            }
+            else
+            {
+                // the authenticator is computed over the packet (and Identifier)
+                request.setAuthenticator(null);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+            format.packPacket(request, pending.sharedSecret, buffer, true);
+            pending.data = new byte[buffer.position()];
+            System.arraycopy(buffer.array(), 0, pending.data, 0, pending.data.length);
+            pending.requestAuthenticator = request.getAuthenticator();
+        }
+        catch (Exception e)
+        {
+            finish(pending, null, e instanceof RadiusException ? e : new RadiusException(e));
+            return;
+        }
+
+        if (retransmitPolicy != null)
+        {
+            pending.estimator = RTTEstimator.getEstimator(pending.destination.address.getAddress(), pending.destination.address.getPort());
+            pending.rto = retransmitPolicy.getInitialTimeout(pending.estimator);
+        }
+        else
+        {
+            pending.rto = socketTimeout;
+        }
+
+        pending.started = System.nanoTime();
+        transmit(pending);
+    }
+
+    private void transmit(Pending pending)
+    {
+        pending.sent = System.nanoTime();
+
+        try
+        {
+            channel.send(ByteBuffer.wrap(pending.data), pending.destination.address);
+        }
+        catch (IOException e)
+        {
+            RadiusLog.warn("Unable to send radius packet to " + pending.destination.address + ": " + e.getMessage());
+        }
+
+        pending.timeout = timer.schedule(pending, pending.rto);
+    }
+
+    private void finish(Pending pending, RadiusResponse response, Exception e)
+    {
+        Destination destination = pending.destination;
+        Pending next;
+
+        synchronized (destination)
+        {
+            if (pending.id == -1)
+            {
+                // still in the backlog (only on close)
+                pending.id = -2;
+                next = null;
+            }
+            else if (pending.id >= 0 && destination.slots[pending.id] == pending)
+            {
+                destination.slots[pending.id] = null;
+                destination.used--;
+                next = destination.backlog.poll();
+                if (next != null) destination.assign(next);
+            }
+            else
+            {
+                return; // already finished
+            }
+        }
+
+        TimerWheel.Timeout timeout = pending.timeout;
+        if (timeout != null) timeout.cancel();
+
+        outstanding.decrementAndGet();
+
+        if (response != null && pending.attempts == 0 && pending.estimator != null)
+        {
+            pending.estimator.sample((System.nanoTime() - pending.sent) / 1000000L);
+        }
+
+        try
+        {
+            if (e != null) pending.handler.onFailure(pending.request, e);
+            else pending.handler.onResponse(pending.request, response);
+        }
+        catch (Throwable t)
+        {
+            RadiusLog.error("Error in RADIUS response handler", t);
+        }
+
+        if (next != null && active) start(next);
+    }
+
+    /**
+     * The outstanding requests to one server, by Identifier
+     */
+    private static class Destination
+    {
+        final InetSocketAddress address;
+        final Pending[] slots = new Pending[256];
+        final LinkedList<Pending> backlog = new LinkedList<Pending>();
+        int nextId = 0;
+        int used = 0;
+
+        Destination(InetSocketAddress address)
+        {
+            this.address = address;
+        }
+
+        /**
+         * Assigns a free Identifier to the request (must hold the lock)
+         */
+        boolean assign(Pending pending)
+        {
+            if (used == slots.length) return false;
+
+            while (slots[nextId] != null)
+            {
+                nextId = (nextId + 1) % slots.length;
+            }
+
+            slots[nextId] = pending;
+            pending.id = nextId;
+            nextId = (nextId + 1) % slots.length;
+            used++;
+            return true;
+        }
+
+        synchronized Pending get(int id)
+        {
+            return slots[id];
+        }
+    }
+
+    /**
+     * An outstanding request; runs as the retransmission timeout
+     */
+    private class Pending implements Runnable
+    {
+        final Destination destination;
+        final RadiusRequest request;
+        final String sharedSecret;
+        final int retries;
+        final RadiusResponseHandler handler;
+        int id = -1;
+        int attempts = 0;
+        int rto;
+        long started;
+        volatile long sent;
+        RTTEstimator estimator;
+        byte[] data;
+        volatile byte[] requestAuthenticator;
+        volatile TimerWheel.Timeout timeout;
+
+        Pending(Destination destination, RadiusRequest request, String sharedSecret, int retries, RadiusResponseHandler handler)
+        {
+            this.destination = destination;
+            this.request = request;
+            this.sharedSecret = sharedSecret;
+            this.retries = retries;
+            this.handler = handler;
+        }
+
+        public void run()
+        {
+            if (!active || destination.get(id) != this) return;
+
+            if (attempts < retries && mayRetransmit())
+            {
+                attempts++;
+                RadiusLog.warn("RadiusClient retrying request to " + destination.address + " (attempt " + attempts + ")...");
+                transmit(this);
+            }
+            else
+            {
+                finish(this, null, new TimeoutException("Timeout: No Response from RADIUS Server " + destination.address));
+            }
+        }
+
+        private boolean mayRetransmit()
+        {
+            if (retransmitPolicy == null) return true;
+
+            long elapsed = (System.nanoTime() - started) / 1000000L;
+            if (!retransmitPolicy.mayRetransmit(attempts, elapsed)) return false;
+
+            rto = retransmitPolicy.limitTimeout(retransmitPolicy.getNextTimeout(rto), elapsed);
+            return true;
+        }
+    }
+
+    /**
+     * Receives all replies of the socket and completes the matching requests
+     */
+    private class Receiver implements Runnable
+    {
+        public void run()
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+
+            while (active)
+            {
+                try
+                {
+                    buffer.clear();
+                    InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+                    buffer.flip();
+
+                    if (from == null || buffer.remaining() < RadiusPacket.RADIUS_HEADER_LENGTH) continue;
+
+                    Destination destination = destinations.get(from);
+                    if (destination == null)
+                    {
+                        RadiusLog.debug("Ignoring RADIUS packet from unknown server {}", from);
+                        continue;
+                    }
+
+                    Pending pending = destination.get(buffer.get(1) & 0xff);
+                    if (pending == null || pending.requestAuthenticator == null)
+                    {
+                        RadiusLog.debug("Ignoring late or duplicate RADIUS reply from {}", from);
+                        continue;
+                    }
+
+                    // parsed attributes keep a reference to the bytes, so parse a copy
+                    byte[] data = new byte[buffer.remaining()];
+                    buffer.get(data);
+                    RadiusPacket packet = PacketFactory.parseUDP(ByteBuffer.wrap(data), false);
+
+                    if (!(packet instanceof RadiusResponse))
+                    {
+                        RadiusLog.warn("Received something other than a RADIUS Response from " + from);
+                        continue;
+                    }
+
+                    RadiusResponse response = (RadiusResponse) packet;
+
+                    if (!RadiusClientTransport.verifyAuthenticator(pending.requestAuthenticator, response, pending.sharedSecret) ||
+                        !RadiusClientTransport.verifyMessageAuthenticator(pending.requestAuthenticator, response, pending.sharedSecret,
+                                response.findAttribute(AttributeDictionary.EAP_MESSAGE) != null))
+                    {
+                        RadiusLog.warn("Ignoring RADIUS reply from " + from + " with invalid authenticator");
+                        continue;
+                    }
+
+                    finish(pending, response, null);
+                }
+                catch (ClosedChannelException e)
+                {
+                    break;
+                }
+                catch (Exception e)
+                {
+                    if (active) RadiusLog.warn("Error receiving RADIUS reply: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Returns the time to wait for a reply before retrying (in seconds)
+     */
+    public int getSocketTimeout()
+    {
+        return socketTimeout / 1000;
+    }
+
+    /**
+     * @param socketTimeout The time to wait for a reply before retrying (in seconds)
+     */
+    public void setSocketTimeout(int socketTimeout)
+    {
+        this.socketTimeout = socketTimeout * 1000;
+    }
+
+    public RetransmitPolicy getRetransmitPolicy()
+    {
+        return retransmitPolicy;
+    }
+
+    /**
+     * @param retransmitPolicy The backoff between tries (null for the fixed socket timeout).
+     * Acct-Delay-Time is not updated, retransmissions keep their Identifier.
+     */
+    public void setRetransmitPolicy(RetransmitPolicy retransmitPolicy)
+    {
+        this.retransmitPolicy = retransmitPolicy;
+    }
+
+    public int getMaxBacklog()
+    {
+        return maxBacklog;
+    }
+
+    /**
+     * @param maxBacklog The maximum number of requests per server waiting for a free Identifier
+     */
+    public void setMaxBacklog(int maxBacklog)
+    {
+        this.maxBacklog = maxBacklog;
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.client;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Smoothed round trip time of one RADIUS server (RFC 6298 style: SRTT and
+ * RTTVAR with gains of 1/8 and 1/4). Estimators are shared per server
+ * address and port, so all the clients of a process learn together.
+ * Only replies to first transmissions are sampled (Karn's algorithm),
+ * since a reply to a retransmitted request is ambiguous.
+ */
+public class RTTEstimator
+{
+    private static final ConcurrentMap<InetSocketAddress, RTTEstimator> estimators = new ConcurrentHashMap<InetSocketAddress, RTTEstimator>();
+
+    private long srtt = -1;
+    private long rttvar = 0;
+    private long samples = 0;
+
+    /**
+     * @param address The server address
+     * @param port The server port
+     * @return Returns the (shared) estimator of the server
+     */
+    public static RTTEstimator getEstimator(InetAddress address, int port)
+    {
+        InetSocketAddress key = new InetSocketAddress(address, port);
+        RTTEstimator estimator = estimators.get(key);
+        if (estimator == null)
+        {
+            estimator = new RTTEstimator();
+            RTTEstimator existing = estimators.putIfAbsent(key, estimator);
+            if (existing != null) estimator = existing;
+        }
+        return estimator;
+    }
+
+    /**
+     * @param rtt A measured round trip time (in milliseconds)
+     */
+    public synchronized void sample(long rtt)
+    {
+        if (rtt < 0) return;
+
+        if (srtt < 0)
+        {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        }
+        else
+        {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+
+        samples++;
+    }
+
+    /**
+     * @param min The lower bound (in milliseconds)
+     * @param max The upper bound (in milliseconds)
+     * @return Returns SRTT + 4 * RTTVAR within the bounds, or -1 without samples
+     */
+    public synchronized int getTimeout(int min, int max)
+    {
+        if (srtt < 0) return -1;
+        long rto = srtt + 4 * rttvar;
+        return (int) Math.max(min, Math.min(max, rto));
+    }
+
+    /**
+     * @return Returns the smoothed round trip time (in milliseconds), or -1
+     */
+    public synchronized long getSmoothedRTT()
+    {
+        return srtt;
+    }
+
+    public synchronized long getRTTVariation()
+    {
+        return rttvar;
+    }
+
+    public synchronized long getSamples()
+    {
+        return samples;
+    }
+}
@@ -436,6 +436,19 @@ public class RadiusClient
     {
         transport.setSocketTimeout(socketTimeout);
     }
+
+    public RetransmitPolicy getRetransmitPolicy()
+    {
+        return transport.getRetransmitPolicy();
+    }
+
+    /**
+     * @param retransmitPolicy The backoff between retries (null to wait the socket timeout each try)
+     */
+    public void setRetransmitPolicy(RetransmitPolicy retransmitPolicy)
+    {
+        transport.setRetransmitPolicy(retransmitPolicy);
+    }
     
     /**
      * @return Returns the remote server IP Address
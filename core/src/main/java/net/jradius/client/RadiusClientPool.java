@@ -0,0 +1,308 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.client;
+
+import java.net.InetAddress;
+import java.security.NoSuchAlgorithmException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jradius.client.auth.RadiusAuthenticator;
+import net.jradius.exception.RadiusException;
+import net.jradius.exception.UnknownAttributeException;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.AccountingRequest;
+import net.jradius.packet.AccountingResponse;
+import net.jradius.packet.RadiusRequest;
+import net.jradius.packet.RadiusResponse;
+
+import org.apache.commons.pool.PoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+/**
+ * A pool of RadiusClients to one RADIUS server, for sharing between
+ * threads. A RadiusClient (its socket) is not thread safe: a thread
+ * may read the reply meant for another. Each client of the pool has
+ * its own socket, and so its own source port and Identifier space,
+ * and is leased to one thread at a time. Idle clients are handed out
+ * in FIFO order to spread the requests over the source ports.
+ * <p>
+ * Either lease clients with borrowClient() and returnClient(), or use
+ * the sendReceive(), authenticate() and accounting() shortcuts. The
+ * saturation of the pool can be monitored with getNumActive(),
+ * getWaits(), getExhausted() and getAverageWaitMillis().
+ */
+public class RadiusClientPool
+{
+    private final InetAddress address;
+    private final String sharedSecret;
+    private final int authPort;
+    private final int acctPort;
+    private final int timeout;
+    private final int maxClients;
+
+    private final GenericObjectPool pool;
+    private volatile RetransmitPolicy retransmitPolicy;
+
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * @param address The RADIUS server
+     * @param sharedSecret The shared secret
+     * @param authPort The authentication port
+     * @param acctPort The accounting port
+     * @param timeout The socket timeout (in seconds)
+     * @param maxClients The maximum number of clients (sockets)
+     * @param maxWait The maximum time to wait for a free client (in milliseconds)
+     */
+    public RadiusClientPool(InetAddress address, String sharedSecret, int authPort, int acctPort, int timeout, int maxClients, long maxWait)
+    {
+        this.address = address;
+        this.sharedSecret = sharedSecret;
+        this.authPort = authPort;
+        this.acctPort = acctPort;
+        this.timeout = timeout;
+        this.maxClients = maxClients;
+
+        pool = new GenericObjectPool(new ClientFactory(), maxClients, GenericObjectPool.WHEN_EXHAUSTED_BLOCK, maxWait);
+        pool.setMaxIdle(maxClients);
+        pool.setLifo(false);
+    }
+
+    /**
+     * Leases a client, waiting at most maxWait for one to be free
+     * @return Returns a client for the exclusive use of the caller
+     * @throws RadiusException if no client is available
+     */
+    public RadiusClient borrowClient() throws RadiusException
+    {
+        boolean busy = pool.getNumIdle() == 0;
+        long start = busy ? System.nanoTime() : 0;
+
+        try
+        {
+            RadiusClient client = (RadiusClient) pool.borrowObject();
+            leases.incrementAndGet();
+            return client;
+        }
+        catch (NoSuchElementException e)
+        {
+            exhausted.incrementAndGet();
+            throw new RadiusException("RADIUS client pool for " + address.getHostAddress() + " exhausted (" + maxClients + " clients)");
+        }
+        catch (Exception e)
+        {
+            throw new RadiusException(e);
+        }
+        finally
+        {
+            if (busy)
+            {
+                waits.incrementAndGet();
+                waitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Returns a leased client to the pool
+     */
+    public void returnClient(RadiusClient client)
+    {
+        try
+        {
+            pool.returnObject(client);
+        }
+        catch (Exception e)
+        {
+            client.close();
+        }
+    }
+
+    /**
+     * Closes a leased client instead of returning it (e.g. after a socket error)
+     */
+    public void invalidateClient(RadiusClient client)
+    {
+        try
+        {
+            pool.invalidateObject(client);
+        }
+        catch (Exception e)
+        {
+            client.close();
+        }
+    }
+
+    public RadiusResponse sendReceive(RadiusRequest p, int retries) throws RadiusException
+    {
+        RadiusClient client = borrowClient();
+        try
+        {
+            return client.sendReceive(p, retries);
+        }
+        finally
+        {
+            returnClient(client);
+        }
+    }
+
+    public RadiusResponse authenticate(AccessRequest p, RadiusAuthenticator auth, int retries)
+        throws RadiusException, UnknownAttributeException, NoSuchAlgorithmException
+    {
+        RadiusClient client = borrowClient();
+        try
+        {
+            return client.authenticate(p, auth, retries);
+        }
+        finally
+        {
+            returnClient(client);
+        }
+    }
+
+    public AccountingResponse accounting(AccountingRequest p, int retries) throws RadiusException
+    {
+        RadiusClient client = borrowClient();
+        try
+        {
+            return client.accounting(p, retries);
+        }
+        finally
+        {
+            returnClient(client);
+        }
+    }
+
+    public void close()
+    {
+        try
+        {
+            pool.close();
+        }
+        catch (Exception e)
+        {
+        }
+    }
+
+    /**
+     * @return Returns the number of leased clients
+     */
+    public int getNumActive()
+    {
+        return pool.getNumActive();
+    }
+
+    /**
+     * @return Returns the number of idle clients
+     */
+    public int getNumIdle()
+    {
+        return pool.getNumIdle();
+    }
+
+    public int getMaxClients()
+    {
+        return maxClients;
+    }
+
+    /**
+     * @return Returns the number of leases so far
+     */
+    public long getLeases()
+    {
+        return leases.get();
+    }
+
+    /**
+     * @return Returns the number of leases that found no idle client
+     */
+    public long getWaits()
+    {
+        return waits.get();
+    }
+
+    /**
+     * @return Returns the number of leases that failed because the pool was exhausted
+     */
+    public long getExhausted()
+    {
+        return exhausted.get();
+    }
+
+    /**
+     * @return Returns the average time waited by the leases that found no idle client
+     */
+    public double getAverageWaitMillis()
+    {
+        long n = waits.get();
+        return n == 0 ? 0 : (double) waitNanos.get() / n / 1000000;
+    }
+
+    public InetAddress getAddress()
+    {
+        return address;
+    }
+
+    public RetransmitPolicy getRetransmitPolicy()
+    {
+        return retransmitPolicy;
+    }
+
+    /**
+     * @param retransmitPolicy The backoff between retries of clients created from now on
+     */
+    public void setRetransmitPolicy(RetransmitPolicy retransmitPolicy)
+    {
+        this.retransmitPolicy = retransmitPolicy;
+    }
+
+    private class ClientFactory implements PoolableObjectFactory
+    {
+        public Object makeObject() throws Exception
+        {
+            RadiusClient client = new RadiusClient(address, sharedSecret, authPort, acctPort, timeout);
+            client.setRetransmitPolicy(retransmitPolicy);
+            return client;
+        }
+
+        public void destroyObject(Object obj) throws Exception
+        {
+            ((RadiusClient) obj).close();
+        }
+
+        public boolean validateObject(Object obj)
+        {
+            return true;
+        }
+
+        public void activateObject(Object obj) throws Exception
+        {
+        }
+
+        public void passivateObject(Object obj) throws Exception
+        {
+        }
+    }
+}
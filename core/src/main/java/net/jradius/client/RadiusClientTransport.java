@@ -31,10 +31,12 @@ import net.jradius.exception.RadiusSecurityException;
 import net.jradius.exception.TimeoutException;
 import net.jradius.log.RadiusLog;
 import net.jradius.packet.AccessRequest;
+import net.jradius.packet.AccountingRequest;
 import net.jradius.packet.RadiusPacket;
 import net.jradius.packet.RadiusRequest;
 import net.jradius.packet.RadiusResponse;
 import net.jradius.packet.attribute.AttributeDictionary;
+import net.jradius.packet.attribute.AttributeFactory;
 import net.jradius.util.MessageAuthenticator;
 
 public abstract class RadiusClientTransport 
@@ -51,6 +53,10 @@ public abstract class RadiusClientTransport
     protected int socketTimeout = defaultTimeout * 1000;
 
     protected RadiusClient radiusClient;
+
+    protected RetransmitPolicy retransmitPolicy;
+    
+    protected int receiveTimeout = -1;
     
     protected abstract void send(RadiusRequest req, int attempt) throws Exception;
 
@@ -87,12 +93,26 @@ public abstract class RadiusClientTransport
 
         if (retries < 0) retries = 0; retries++; // do at least one
         
+        RTTEstimator estimator = getRTTEstimator(p);
+        long start = System.nanoTime();
+        int timeout = retransmitPolicy == null ? -1 : retransmitPolicy.getInitialTimeout(estimator);
+        Long acctDelayTime = null;
+
+        if (retransmitPolicy != null && retransmitPolicy.isUpdateAcctDelayTime() && p instanceof AccountingRequest)
+        {
+            Object value = p.getAttributeValue(AttributeDictionary.ACCT_DELAY_TIME);
+            acctDelayTime = new Long(value instanceof Number ? ((Number) value).longValue() : 0);
+        }
+
         while (tries < retries)
         {
             try
             {
+                receiveTimeout = timeout;
+                long sent = System.nanoTime();
                 send(p, tries);
                 r = receive(p);
+                if (tries == 0) estimator.sample((System.nanoTime() - sent) / 1000000L);
                 break;
             }
             catch (SocketTimeoutException e)
@@ -108,8 +128,28 @@ public abstract class RadiusClientTransport
             	e.printStackTrace();
             }
             tries++;
+
+            if (retransmitPolicy != null && tries < retries)
+            {
+                long elapsed = (System.nanoTime() - start) / 1000000L;
+
+                if (!retransmitPolicy.mayRetransmit(tries - 1, elapsed))
+                {
+                    tries = retries;
+                    break;
+                }
+
+                timeout = retransmitPolicy.limitTimeout(retransmitPolicy.getNextTimeout(timeout), elapsed);
+
+                if (acctDelayTime != null)
+                {
+                    updateAcctDelayTime(p, acctDelayTime.longValue() + elapsed / 1000);
+                }
+            }
         }
         
+        receiveTimeout = -1;
+
         if (tries == retries)
         {                        
             throw new TimeoutException("Timeout: No Response from RADIUS Server");
@@ -128,6 +168,41 @@ public abstract class RadiusClientTransport
         return r;
     }
 
+    /**
+     * Sets the Acct-Delay-Time of a request about to be retransmitted. The
+     * content changes, so the request gets a new Identifier and Authenticator.
+     * @param request The Accounting-Request
+     * @param delay The new Acct-Delay-Time (in seconds)
+     */
+    protected void updateAcctDelayTime(RadiusRequest request, long delay)
+    {
+        byte[] value = new byte[4];
+        value[0] = (byte) (delay >> 24);
+        value[1] = (byte) (delay >> 16);
+        value[2] = (byte) (delay >> 8);
+        value[3] = (byte) delay;
+        request.overwriteAttribute(AttributeFactory.newAttribute(AttributeDictionary.ACCT_DELAY_TIME, value, false));
+        request.setIdentifier(-1);
+        request.setAuthenticator(null);
+    }
+
+    /**
+     * @param request The request being sent
+     * @return Returns the RTT estimator of the server the request is sent to
+     */
+    protected RTTEstimator getRTTEstimator(RadiusRequest request)
+    {
+        return RTTEstimator.getEstimator(remoteInetAddress, request instanceof AccountingRequest ? acctPort : authPort);
+    }
+
+    /**
+     * @return Returns how long receive() waits for the current try (in milliseconds)
+     */
+    protected int getReceiveTimeout()
+    {
+        return receiveTimeout < 0 ? socketTimeout : receiveTimeout;
+    }
+
     /**
      * Add the Message-Authentivator attribute to the given RadiusPacket
      * @param request The RadiusPacket
@@ -260,4 +335,15 @@ public abstract class RadiusClientTransport
 	public void setStatusListener(TransportStatusListener statusListener) {
 		this.statusListener = statusListener;
 	}
+
+	public RetransmitPolicy getRetransmitPolicy() {
+		return retransmitPolicy;
+	}
+
+	/**
+	 * @param retransmitPolicy The backoff between tries (null for the fixed socket timeout)
+	 */
+	public void setRetransmitPolicy(RetransmitPolicy retransmitPolicy) {
+		this.retransmitPolicy = retransmitPolicy;
+	}
 }
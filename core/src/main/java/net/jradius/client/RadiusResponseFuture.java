@@ -0,0 +1,90 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.client;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.jradius.packet.RadiusRequest;
+import net.jradius.packet.RadiusResponse;
+
+/**
+ * The Future of an asynchronous RADIUS request. Requests can not be
+ * cancelled once sent; cancel() always returns false.
+ * @see AsyncRadiusClient
+ */
+public class RadiusResponseFuture implements Future<RadiusResponse>, RadiusResponseHandler
+{
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile RadiusResponse response;
+    private volatile Exception failure;
+
+    public void onResponse(RadiusRequest request, RadiusResponse response)
+    {
+        this.response = response;
+        done.countDown();
+    }
+
+    public void onFailure(RadiusRequest request, Exception e)
+    {
+        this.failure = e;
+        done.countDown();
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return false;
+    }
+
+    public boolean isCancelled()
+    {
+        return false;
+    }
+
+    public boolean isDone()
+    {
+        return done.getCount() == 0;
+    }
+
+    public RadiusResponse get() throws InterruptedException, ExecutionException
+    {
+        done.await();
+        return result();
+    }
+
+    public RadiusResponse get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if (!done.await(timeout, unit))
+        {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private RadiusResponse result() throws ExecutionException
+    {
+        if (failure != null) throw new ExecutionException(failure);
+        return response;
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.client;
+
+import net.jradius.packet.RadiusRequest;
+import net.jradius.packet.RadiusResponse;
+
+/**
+ * Callback of an asynchronous RADIUS request. The methods are called
+ * by the receiver (or timer) thread of the client and must not block.
+ * @see AsyncRadiusClient
+ */
+public interface RadiusResponseHandler
+{
+    /**
+     * Called with the (verified) response to the request
+     */
+    public void onResponse(RadiusRequest request, RadiusResponse response);
+
+    /**
+     * Called when no valid response was received (e.g. TimeoutException)
+     */
+    public void onFailure(RadiusRequest request, Exception e);
+}
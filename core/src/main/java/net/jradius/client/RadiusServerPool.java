@@ -0,0 +1,610 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jradius.exception.RadiusException;
+import net.jradius.exception.TimeoutException;
+import net.jradius.log.RadiusLog;
+import net.jradius.packet.AccountingRequest;
+import net.jradius.packet.RadiusRequest;
+import net.jradius.packet.RadiusResponse;
+import net.jradius.packet.StatusServerRequest;
+import net.jradius.packet.attribute.AttributeDictionary;
+
+/**
+ * A RADIUS client transport over a group of upstream servers. Each
+ * request goes to one server chosen by the balancing policy:
+ * <ul>
+ * <li>round-robin: the servers in turn</li>
+ * <li>least-outstanding: the server with the fewest requests in flight</li>
+ * <li>hash: consistent hashing on the User-Name, so that all the rounds
+ * of an EAP conversation reach the same server (and a server going down
+ * only moves its own users)</li>
+ * </ul>
+ * When a request times out it is sent to the next live server. A server
+ * is marked dead after deadAfter consecutive timeouts and gets no more
+ * requests (unless all servers are dead); it is probed every probeInterval
+ * with Status-Server (RFC 5997) and revived after reviveAfter answered
+ * probes. With probing disabled, dead servers are revived after one
+ * probeInterval.
+ * <p>
+ * Each server has its own RadiusClientPool, so the transport is thread
+ * safe. Use it in a RadiusClient, e.g.
+ * <pre>
+ * RadiusServerPool pool = new RadiusServerPool();
+ * pool.setBalanceName("hash");
+ * pool.addServer(InetAddress.getByName("10.0.0.1"), "secret", 1812, 1813);
+ * pool.addServer(InetAddress.getByName("10.0.0.2"), "secret", 1812, 1813);
+ * RadiusClient client = new RadiusClient(pool);
+ * </pre>
+ */
+public class RadiusServerPool extends RadiusClientTransport
+{
+    public static final int ROUND_ROBIN = 0;
+    public static final int LEAST_OUTSTANDING = 1;
+    public static final int HASH = 2;
+
+    private static final int VIRTUAL_NODES = 64;
+
+    private final List<Server> servers = new CopyOnWriteArrayList<Server>();
+    private volatile TreeMap<Integer, Server> ring = new TreeMap<Integer, Server>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    private int balance = ROUND_ROBIN;
+    private int maxClients = 32;
+    private long maxWait = 5000;
+    private int deadAfter = 2;
+    private int reviveAfter = 3;
+    private int probeInterval = 10;
+    private int probeTimeout = 2;
+    private boolean probe = true;
+
+    private String serverList;
+    private Prober prober;
+    private volatile boolean active = true;
+
+    public RadiusServerPool()
+    {
+        authPort = UDPClientTransport.defaultAuthPort;
+        acctPort = UDPClientTransport.defaultAcctPort;
+        socketTimeout = 5000;
+    }
+
+    /**
+     * Adds an upstream server
+     * @param address The server address
+     * @param sharedSecret The shared secret with the server
+     * @param authPort The authentication port
+     * @param acctPort The accounting port
+     * @return Returns the added server
+     */
+    public synchronized Server addServer(InetAddress address, String sharedSecret, int authPort, int acctPort)
+    {
+        Server server = new Server(address, sharedSecret, authPort, acctPort);
+        servers.add(server);
+
+        TreeMap<Integer, Server> newRing = new TreeMap<Integer, Server>(ring);
+        for (int i = 0; i < VIRTUAL_NODES; i++)
+        {
+            newRing.put(new Integer(hash(address.getHostAddress() + ":" + authPort + "#" + i)), server);
+        }
+        ring = newRing;
+
+        return server;
+    }
+
+    public RadiusResponse sendReceive(RadiusRequest p, int retries) throws RadiusException
+    {
+        RadiusException failure = null;
+
+        for (Server server : select(p))
+        {
+            if (p instanceof AccountingRequest)
+            {
+                // signed with the secret of the server
+                p.setAuthenticator(null);
+            }
+
+            RadiusClient client;
+
+            try
+            {
+                client = server.clients.borrowClient();
+            }
+            catch (RadiusException e)
+            {
+                failure = e;
+                RadiusLog.warn("RADIUS server " + server + " is saturated, failing over");
+                continue;
+            }
+
+            server.outstanding.incrementAndGet();
+            server.requests.incrementAndGet();
+
+            try
+            {
+                RadiusResponse response = client.sendReceive(p, retries);
+                server.responded();
+                return response;
+            }
+            catch (TimeoutException e)
+            {
+                server.timedOut();
+                failure = e;
+                RadiusLog.warn("No response from RADIUS server " + server + ", failing over");
+            }
+            finally
+            {
+                server.outstanding.decrementAndGet();
+                server.clients.returnClient(client);
+            }
+        }
+
+        if (failure != null) throw failure;
+        throw new RadiusException("No RADIUS server configured");
+    }
+
+    protected void send(RadiusRequest req, int attempt) throws Exception
+    {
+        List<Server> list = select(req);
+        if (list.isEmpty()) throw new RadiusException("No RADIUS server configured");
+
+        RadiusClientPool clients = list.get(0).clients;
+        RadiusClient client = clients.borrowClient();
+        try
+        {
+            client.send(req);
+        }
+        finally
+        {
+            clients.returnClient(client);
+        }
+    }
+
+    protected RadiusResponse receive(RadiusRequest req) throws Exception
+    {
+        throw new RadiusException("RadiusServerPool only supports sendReceive()");
+    }
+
+    public synchronized void close()
+    {
+        active = false;
+
+        if (prober != null)
+        {
+            prober.interrupt();
+            prober = null;
+        }
+
+        for (Server server : servers)
+        {
+            server.close();
+        }
+    }
+
+    /**
+     * @return Returns the servers to try, the chosen server first
+     */
+    protected List<Server> select(RadiusRequest request)
+    {
+        if (serverList != null) addServers();
+
+        List<Server> alive = new ArrayList<Server>(servers.size());
+        for (Server server : servers)
+        {
+            if (!server.dead) alive.add(server);
+        }
+
+        // with all servers down, try them anyway
+        if (alive.isEmpty()) alive.addAll(servers);
+        if (alive.size() < 2) return alive;
+
+        int first = -1;
+
+        if (balance == HASH)
+        {
+            Object userName = request.getAttributeValue(AttributeDictionary.USER_NAME);
+            if (userName != null)
+            {
+                Server server = lookup(hash(userName.toString()));
+                if (server != null) first = alive.indexOf(server);
+            }
+        }
+        else if (balance == LEAST_OUTSTANDING)
+        {
+            int offset = next.getAndIncrement() & 0x7fffffff;
+            int least = Integer.MAX_VALUE;
+            for (int i = 0; i < alive.size(); i++)
+            {
+                int n = (offset + i) % alive.size();
+                int outstanding = alive.get(n).outstanding.get();
+                if (outstanding < least)
+                {
+                    least = outstanding;
+                    first = n;
+                }
+            }
+        }
+
+        if (first < 0) first = (next.getAndIncrement() & 0x7fffffff) % alive.size();
+
+        List<Server> list = new ArrayList<Server>(alive.size());
+        for (int i = 0; i < alive.size(); i++)
+        {
+            list.add(alive.get((first + i) % alive.size()));
+        }
+        return list;
+    }
+
+    /**
+     * @return Returns the first live server on the ring from the hash on
+     */
+    private Server lookup(int hash)
+    {
+        TreeMap<Integer, Server> ring = this.ring;
+        SortedMap<Integer, Server> tail = ring.tailMap(new Integer(hash));
+
+        for (Iterator<Map.Entry<Integer, Server>> it = tail.entrySet().iterator(); it.hasNext(); )
+        {
+            Server server = it.next().getValue();
+            if (!server.dead) return server;
+        }
+
+        for (Iterator<Map.Entry<Integer, Server>> it = ring.entrySet().iterator(); it.hasNext(); )
+        {
+            Server server = it.next().getValue();
+            if (!server.dead) return server;
+        }
+
+        return null;
+    }
+
+    /**
+     * FNV-1a, with a final mix to spread similar keys over the ring
+     */
+    private static int hash(String key)
+    {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++)
+        {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private synchronized void addServers()
+    {
+        if (serverList == null) return;
+
+        String[] list = serverList.split("[ \\t]*,[ \\t]*");
+        serverList = null;
+
+        for (int i = 0; i < list.length; i++)
+        {
+            if (list[i].length() == 0) continue;
+            String[] parts = list[i].split(":");
+            try
+            {
+                addServer(InetAddress.getByName(parts[0]), sharedSecret,
+                        parts.length > 1 ? Integer.parseInt(parts[1]) : authPort,
+                        parts.length > 2 ? Integer.parseInt(parts[2]) : acctPort);
+            }
+            catch (IOException e)
+            {
+                RadiusLog.error("Invalid RADIUS server " + list[i] + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void startProber()
+    {
+        if (prober == null && active)
+        {
+            prober = new Prober();
+            prober.start();
+        }
+    }
+
+    /**
+     * An upstream server and its state
+     */
+    public class Server
+    {
+        private final InetAddress address;
+        private final String sharedSecret;
+        private final int authPort;
+        private final int acctPort;
+        private final RadiusClientPool clients;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicInteger consecutiveTimeouts = new AtomicInteger();
+        private volatile boolean dead = false;
+        private volatile long deadSince;
+        private int answeredProbes;
+        private RadiusClient probeClient;
+
+        Server(InetAddress address, String sharedSecret, int authPort, int acctPort)
+        {
+            this.address = address;
+            this.sharedSecret = sharedSecret;
+            this.authPort = authPort;
+            this.acctPort = acctPort;
+            this.clients = new RadiusClientPool(address, sharedSecret, authPort, acctPort, getSocketTimeout(), maxClients, maxWait);
+            this.clients.setRetransmitPolicy(retransmitPolicy);
+        }
+
+        void responded()
+        {
+            consecutiveTimeouts.set(0);
+        }
+
+        void timedOut()
+        {
+            timeouts.incrementAndGet();
+
+            if (consecutiveTimeouts.incrementAndGet() >= deadAfter && !dead)
+            {
+                synchronized (this)
+                {
+                    if (dead) return;
+                    dead = true;
+                    deadSince = System.currentTimeMillis();
+                    answeredProbes = 0;
+                }
+                RadiusLog.error("RADIUS server " + this + " is dead after " + deadAfter + " timeouts");
+                startProber();
+            }
+        }
+
+        /**
+         * Sends a Status-Server, reviving the server after enough answers
+         */
+        void probe()
+        {
+            if (!probe)
+            {
+                if (System.currentTimeMillis() - deadSince >= probeInterval * 1000L) revive();
+                return;
+            }
+
+            try
+            {
+                if (probeClient == null)
+                {
+                    probeClient = new RadiusClient(address, sharedSecret, authPort, acctPort, probeTimeout);
+                }
+
+                probeClient.sendReceive(new StatusServerRequest(), 0);
+
+                if (++answeredProbes >= reviveAfter) revive();
+            }
+            catch (Exception e)
+            {
+                answeredProbes = 0;
+                RadiusLog.debug("RADIUS server " + this + " did not answer Status-Server: " + e.getMessage());
+            }
+        }
+
+        private void revive()
+        {
+            consecutiveTimeouts.set(0);
+            dead = false;
+            RadiusLog.info("RADIUS server " + this + " is alive again");
+        }
+
+        void close()
+        {
+            clients.close();
+            if (probeClient != null) probeClient.close();
+        }
+
+        public InetAddress getAddress()
+        {
+            return address;
+        }
+
+        public int getAuthPort()
+        {
+            return authPort;
+        }
+
+        public int getAcctPort()
+        {
+            return acctPort;
+        }
+
+        public boolean isDead()
+        {
+            return dead;
+        }
+
+        /**
+         * @return Returns the number of requests in flight
+         */
+        public int getOutstanding()
+        {
+            return outstanding.get();
+        }
+
+        public long getRequests()
+        {
+            return requests.get();
+        }
+
+        public long getTimeouts()
+        {
+            return timeouts.get();
+        }
+
+        public RadiusClientPool getClientPool()
+        {
+            return clients;
+        }
+
+        public String toString()
+        {
+            return address.getHostAddress() + ":" + authPort;
+        }
+    }
+
+    /**
+     * Probes the dead servers until the pool is closed
+     */
+    private class Prober extends Thread
+    {
+        Prober()
+        {
+            super("RadiusServerPool-Prober");
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            while (active)
+            {
+                try
+                {
+                    Thread.sleep(probeInterval * 1000L);
+                }
+                catch (InterruptedException e)
+                {
+                    continue;
+                }
+
+                for (Server server : servers)
+                {
+                    if (active && server.dead) server.probe();
+                }
+            }
+        }
+    }
+
+    public List<Server> getServers()
+    {
+        if (serverList != null) addServers();
+        return servers;
+    }
+
+    /**
+     * @param servers Comma separated list of host[:authPort[:acctPort]], using
+     * the shared secret and ports of the pool (set those first, or at least
+     * before the first request)
+     */
+    public void setServers(String servers)
+    {
+        this.serverList = servers;
+    }
+
+    public int getBalance()
+    {
+        return balance;
+    }
+
+    public void setBalance(int balance)
+    {
+        this.balance = balance;
+    }
+
+    /**
+     * @param balance One of "round-robin", "least-outstanding" or "hash"
+     */
+    public void setBalanceName(String balance)
+    {
+        if ("least-outstanding".equalsIgnoreCase(balance)) this.balance = LEAST_OUTSTANDING;
+        else if ("hash".equalsIgnoreCase(balance)) this.balance = HASH;
+        else if ("round-robin".equalsIgnoreCase(balance)) this.balance = ROUND_ROBIN;
+        else throw new IllegalArgumentException("Unknown balancing policy " + balance);
+    }
+
+    /**
+     * @param maxClients The maximum number of sockets per server (for servers added from now on)
+     */
+    public void setMaxClients(int maxClients)
+    {
+        this.maxClients = maxClients;
+    }
+
+    /**
+     * @param maxWait The maximum time to wait for a free socket (in milliseconds)
+     */
+    public void setMaxWait(long maxWait)
+    {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @param deadAfter The number of consecutive timeouts after which a server is dead
+     */
+    public void setDeadAfter(int deadAfter)
+    {
+        this.deadAfter = deadAfter;
+    }
+
+    /**
+     * @param reviveAfter The number of answered probes after which a dead server is alive
+     */
+    public void setReviveAfter(int reviveAfter)
+    {
+        this.reviveAfter = reviveAfter;
+    }
+
+    /**
+     * @param probeInterval The time between probes of dead servers (in seconds)
+     */
+    public void setProbeInterval(int probeInterval)
+    {
+        this.probeInterval = probeInterval;
+    }
+
+    /**
+     * @param probeTimeout The time to wait for a Status-Server answer (in seconds)
+     */
+    public void setProbeTimeout(int probeTimeout)
+    {
+        this.probeTimeout = probeTimeout;
+    }
+
+    /**
+     * @param probe Whether to probe dead servers with Status-Server (or just wait probeInterval)
+     */
+    public void setProbe(boolean probe)
+    {
+        this.probe = probe;
+    }
+}
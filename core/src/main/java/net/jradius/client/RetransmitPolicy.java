@@ -0,0 +1,221 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.client;
+
+import java.util.Random;
+
+/**
+ * Retransmission timing of the RADIUS client, following RFC 5080 section
+ * 2.2.1: the first timeout is IRT (or the learned RTO of the server, see
+ * RTTEstimator) and every further timeout doubles, up to MRT, each with a
+ * random jitter of +/- 10%. Retransmission stops after MRC retransmissions
+ * or once MRD has elapsed, whichever comes first (0 meaning no limit).
+ * Set on a RadiusClientTransport with setRetransmitPolicy(); without one,
+ * the transport waits the fixed socket timeout between tries.
+ * <p>
+ * With updateAcctDelayTime set, a retransmitted Accounting-Request gets
+ * its Acct-Delay-Time increased by the time elapsed since the first
+ * transmission, and therefore a new Identifier (RFC 2866 section 5.2).
+ */
+public class RetransmitPolicy
+{
+    private static final Random random = new Random();
+
+    private int initialTimeout = 2000;
+    private int maxRetransmitCount = 5;
+    private int maxRetransmitTime = 16000;
+    private int maxRetransmitDuration = 30000;
+    private int minTimeout = 100;
+    private double jitter = 0.1;
+    private boolean adaptive = true;
+    private boolean updateAcctDelayTime = true;
+
+    /**
+     * @param estimator The RTT estimator of the server, or null
+     * @return Returns the first timeout (in milliseconds)
+     */
+    public int getInitialTimeout(RTTEstimator estimator)
+    {
+        int timeout = initialTimeout;
+
+        if (adaptive && estimator != null)
+        {
+            int rto = estimator.getTimeout(minTimeout, initialTimeout);
+            if (rto > 0) timeout = rto;
+        }
+
+        return jitter(timeout);
+    }
+
+    /**
+     * @param previous The previous timeout (in milliseconds)
+     * @return Returns the next timeout (in milliseconds)
+     */
+    public int getNextTimeout(int previous)
+    {
+        int timeout = jitter(2 * previous);
+
+        if (maxRetransmitTime > 0 && timeout > maxRetransmitTime)
+        {
+            timeout = jitter(maxRetransmitTime);
+        }
+
+        return timeout;
+    }
+
+    /**
+     * @param retransmits The number of retransmissions done
+     * @param elapsed The time since the first transmission (in milliseconds)
+     * @return Returns whether another retransmission is allowed
+     */
+    public boolean mayRetransmit(int retransmits, long elapsed)
+    {
+        if (maxRetransmitCount > 0 && retransmits >= maxRetransmitCount) return false;
+        if (maxRetransmitDuration > 0 && elapsed >= maxRetransmitDuration) return false;
+        return true;
+    }
+
+    /**
+     * @param timeout The timeout of the next try (in milliseconds)
+     * @param elapsed The time since the first transmission (in milliseconds)
+     * @return Returns the timeout, shortened to end with MRD
+     */
+    public int limitTimeout(int timeout, long elapsed)
+    {
+        if (maxRetransmitDuration > 0 && elapsed + timeout > maxRetransmitDuration)
+        {
+            return (int) Math.max(1, maxRetransmitDuration - elapsed);
+        }
+        return timeout;
+    }
+
+    private int jitter(int timeout)
+    {
+        double rand;
+        synchronized (random)
+        {
+            rand = random.nextDouble();
+        }
+        return (int) Math.max(1, timeout + timeout * jitter * (2 * rand - 1));
+    }
+
+    public int getInitialTimeout()
+    {
+        return initialTimeout;
+    }
+
+    /**
+     * @param initialTimeout IRT, the first timeout (in milliseconds)
+     */
+    public void setInitialTimeout(int initialTimeout)
+    {
+        this.initialTimeout = initialTimeout;
+    }
+
+    public int getMaxRetransmitCount()
+    {
+        return maxRetransmitCount;
+    }
+
+    /**
+     * @param maxRetransmitCount MRC, the maximum number of retransmissions (0 for no limit)
+     */
+    public void setMaxRetransmitCount(int maxRetransmitCount)
+    {
+        this.maxRetransmitCount = maxRetransmitCount;
+    }
+
+    public int getMaxRetransmitTime()
+    {
+        return maxRetransmitTime;
+    }
+
+    /**
+     * @param maxRetransmitTime MRT, the maximum timeout (in milliseconds, 0 for no limit)
+     */
+    public void setMaxRetransmitTime(int maxRetransmitTime)
+    {
+        this.maxRetransmitTime = maxRetransmitTime;
+    }
+
+    public int getMaxRetransmitDuration()
+    {
+        return maxRetransmitDuration;
+    }
+
+    /**
+     * @param maxRetransmitDuration MRD, the maximum total time (in milliseconds, 0 for no limit)
+     */
+    public void setMaxRetransmitDuration(int maxRetransmitDuration)
+    {
+        this.maxRetransmitDuration = maxRetransmitDuration;
+    }
+
+    public int getMinTimeout()
+    {
+        return minTimeout;
+    }
+
+    /**
+     * @param minTimeout The lower bound of a learned timeout (in milliseconds)
+     */
+    public void setMinTimeout(int minTimeout)
+    {
+        this.minTimeout = minTimeout;
+    }
+
+    public double getJitter()
+    {
+        return jitter;
+    }
+
+    /**
+     * @param jitter The random factor applied to each timeout (0.1 for +/- 10%)
+     */
+    public void setJitter(double jitter)
+    {
+        this.jitter = jitter;
+    }
+
+    public boolean isAdaptive()
+    {
+        return adaptive;
+    }
+
+    /**
+     * @param adaptive Whether to start from the learned RTO of the server instead of IRT
+     */
+    public void setAdaptive(boolean adaptive)
+    {
+        this.adaptive = adaptive;
+    }
+
+    public boolean isUpdateAcctDelayTime()
+    {
+        return updateAcctDelayTime;
+    }
+
+    public void setUpdateAcctDelayTime(boolean updateAcctDelayTime)
+    {
+        this.updateAcctDelayTime = updateAcctDelayTime;
+    }
+}
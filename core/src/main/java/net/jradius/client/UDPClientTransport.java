@@ -23,9 +23,14 @@ package net.jradius.client;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 import net.jradius.exception.RadiusException;
 import net.jradius.log.RadiusLog;
@@ -36,6 +41,15 @@ import net.jradius.packet.RadiusPacket;
 import net.jradius.packet.RadiusRequest;
 import net.jradius.packet.RadiusResponse;
 
+/**
+ * The UDP RADIUS client transport. The send and receive buffers are
+ * allocated once per transport (direct buffers for the DatagramChannel),
+ * and a request is encoded only once: retransmissions resend the same
+ * bytes. The Identifier of a reply is read from the receive buffer, and
+ * only the reply to the request is copied out of it, into an array of
+ * the exact packet size, since parsed attributes keep a reference to the
+ * bytes they were parsed from.
+ */
 public class UDPClientTransport extends RadiusClientTransport
 {
     private static final RadiusFormat format = RadiusFormat.getInstance();
@@ -46,10 +60,24 @@ public class UDPClientTransport extends RadiusClientTransport
     protected DatagramChannel channel;
     protected DatagramSocket socket;
 
+    private Selector selector;
+
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+    private ByteBuffer channelSendBuffer;
+    private ByteBuffer receiveBuffer;
+    private DatagramPacket sendPacket;
+    private DatagramPacket receivePacket;
+
+    private RadiusRequest encodedRequest;
+    private InetSocketAddress remoteSocketAddress;
+
 	public UDPClientTransport(DatagramSocket socket) 
 	{
 		this.socket = socket;
 		this.remoteInetAddress = socket.getInetAddress();
+		this.receiveBuffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+		this.sendPacket = new DatagramPacket(sendBuffer.array(), 0);
+		this.receivePacket = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
 	}
 
 	public UDPClientTransport() throws IOException 
@@ -57,10 +85,25 @@ public class UDPClientTransport extends RadiusClientTransport
 		this.channel = DatagramChannel.open();
 		this.socket = channel.socket();
 		this.remoteInetAddress = socket.getInetAddress();
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.channel.register(selector, SelectionKey.OP_READ);
+		this.channelSendBuffer = ByteBuffer.allocateDirect(RadiusPacket.MAX_PACKET_LENGTH);
+		this.receiveBuffer = ByteBuffer.allocateDirect(RadiusPacket.MAX_PACKET_LENGTH);
 	}
 
 	public void close()
 	{
+		if (selector != null)
+		{
+			try 
+			{
+				selector.close();
+			}
+			catch (Throwable e) 
+			{
+			}
+		}
 		if (socket != null)
 		{
 			try 
@@ -98,11 +141,44 @@ public class UDPClientTransport extends RadiusClientTransport
             RadiusLog.warn("RadiusClient retrying request (attempt " + attempt + ")...");
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(4096);
-        format.packPacket(req, sharedSecret, buffer, true);
+        if (attempt == 0 || req != encodedRequest || req.getAuthenticator() == null)
+        {
+            // packed into a heap buffer, the packet format works on its array
+            sendBuffer.clear();
+            format.packPacket(req, sharedSecret, sendBuffer, true);
+            sendBuffer.flip();
+            encodedRequest = req;
 
-        DatagramPacket request = new DatagramPacket(buffer.array(), buffer.position(), getRemoteInetAddress(), port);
-        socket.send(request);
+            if (channel != null)
+            {
+                channelSendBuffer.clear();
+                channelSendBuffer.put(sendBuffer);
+                channelSendBuffer.flip();
+            }
+        }
+        else
+        {
+            // retransmission of the unchanged request, send the same bytes
+            sendBuffer.rewind();
+            if (channel != null) channelSendBuffer.rewind();
+        }
+
+        InetSocketAddress target = remoteSocketAddress;
+        if (target == null || target.getPort() != port || !target.getAddress().equals(getRemoteInetAddress()))
+        {
+            remoteSocketAddress = target = new InetSocketAddress(getRemoteInetAddress(), port);
+        }
+
+        if (channel != null)
+        {
+            channel.send(channelSendBuffer, target);
+        }
+        else
+        {
+            sendPacket.setData(sendBuffer.array(), 0, sendBuffer.limit());
+            sendPacket.setSocketAddress(target);
+            socket.send(sendPacket);
+        }
 
         if (statusListener != null)
         {
@@ -117,15 +193,30 @@ public class UDPClientTransport extends RadiusClientTransport
         	statusListener.onBeforeReceive(this);
         }
         
-        byte replyBytes[] = new byte[RadiusPacket.MAX_PACKET_LENGTH];
-        DatagramPacket reply = new DatagramPacket(replyBytes, replyBytes.length);
+        int timeout = getReceiveTimeout();
+        long deadline = System.currentTimeMillis() + timeout;
+        RadiusPacket replyPacket;
         
-        socket.receive(reply);
-        
-        RadiusPacket replyPacket = PacketFactory.parse(reply, req.isRecyclable());
+        while (true)
+        {
+            receiveDatagram(timeout, deadline);
+
+            // a late reply to an earlier request on this socket, dropped
+            // before it is copied or parsed into (possibly pooled) packet objects
+            int identifier = receiveBuffer.remaining() > 1 ? receiveBuffer.get(1) & 0xff : -1;
+            if (identifier == req.getIdentifier())
+            {
+                byte[] data = new byte[receiveBuffer.remaining()];
+                receiveBuffer.get(data);
+                replyPacket = PacketFactory.parseUDP(ByteBuffer.wrap(data), req.isRecyclable());
+                break;
+            }
+            RadiusLog.warn("Ignoring reply with Identifier " + identifier + " while waiting for " + req.getIdentifier());
+        }
         
         if (!(replyPacket instanceof RadiusResponse))
         {
+            if (replyPacket != null) PacketFactory.recycle(replyPacket);
             throw new RadiusException("Received something other than a RADIUS Response to a Request");
         }
 
@@ -137,6 +228,47 @@ public class UDPClientTransport extends RadiusClientTransport
         return (RadiusResponse)replyPacket;
     }
 
+    /**
+     * Waits for a datagram until the deadline (no deadline with a timeout of 0),
+     * leaving it between the position and the limit of the receive buffer
+     */
+    private void receiveDatagram(int timeout, long deadline) throws IOException
+    {
+        receiveBuffer.clear();
+
+        if (channel != null)
+        {
+            while (channel.receive(receiveBuffer) == null)
+            {
+                long wait = deadline - System.currentTimeMillis();
+
+                if (timeout == 0)
+                {
+                    selector.select();
+                }
+                else if (wait <= 0)
+                {
+                    throw new SocketTimeoutException("Timeout waiting for RADIUS reply");
+                }
+                else
+                {
+                    selector.select(wait);
+                }
+
+                selector.selectedKeys().clear();
+            }
+
+            receiveBuffer.flip();
+        }
+        else
+        {
+            if (socket.getSoTimeout() != timeout) socket.setSoTimeout(timeout);
+            receivePacket.setLength(receiveBuffer.capacity());
+            socket.receive(receivePacket);
+            receiveBuffer.limit(receivePacket.getLength());
+        }
+    }
+
 	@Override
 	public void setSocketTimeout(int timeout) 
 	{
@@ -147,4 +279,11 @@ public class UDPClientTransport extends RadiusClientTransport
 			e.printStackTrace();
 		}
 	}
+
+	@Override
+	public void setRemoteInetAddress(InetAddress remoteInetAddress) 
+	{
+		super.setRemoteInetAddress(remoteInetAddress);
+		this.remoteSocketAddress = null;
+	}
 }
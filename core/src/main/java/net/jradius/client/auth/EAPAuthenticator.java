@@ -85,7 +85,7 @@ public abstract class EAPAuthenticator extends RadiusAuthenticator
         AttributeFactory.addToAttributeList(p.getAttributes(), 
         		AttributeDictionary.EAP_MESSAGE, eapMessage, p.isRecyclable());
 
-        RadiusLog.debug("Sending Challenge:\n" + p.toString());
+        RadiusLog.debug("Sending Challenge:\n{}", p);
     }
     
     /**
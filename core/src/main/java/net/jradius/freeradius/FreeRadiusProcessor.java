@@ -32,9 +32,11 @@ import net.jradius.packet.PacketFactory;
 import net.jradius.packet.RadiusFormat;
 import net.jradius.packet.RadiusPacket;
 import net.jradius.packet.attribute.AttributeFactory;
+import net.jradius.server.JRadiusRequest;
 import net.jradius.server.JRadiusServer;
 import net.jradius.server.ListenerRequest;
 import net.jradius.server.RadiusProcessor;
+import net.jradius.server.RequestTimestamps;
 import net.jradius.server.config.Configuration;
 
 /**
@@ -55,23 +57,23 @@ public class FreeRadiusProcessor extends RadiusProcessor
     protected void processRequest(ListenerRequest listenerRequest) throws Exception
     {
         FreeRadiusRequest request = (FreeRadiusRequest) listenerRequest.getRequestEvent();
+        request.setApplicationContext(getApplicationContext());
+        runPacketHandlers(listenerRequest, request);
+    }
+
+    protected void requestCompleted(ListenerRequest listenerRequest, JRadiusRequest jRequest)
+    {
+        FreeRadiusRequest request = (FreeRadiusRequest) jRequest;
 
         try
         { 
 	        try
 	        {
-	            request.setApplicationContext(getApplicationContext());
-	            request.setReturnValue(runPacketHandlers(request));
-	        }
-	        catch (Throwable th)
-	        {
-	            request.setReturnValue(JRadiusServer.RLM_MODULE_FAIL);
-	            RadiusLog.error(">>> processRequest(): Error during processing RunPacketHandlers block", th);
-	        }
-	
-	        try
-	        {
-	            this.writeResponse(request, listenerRequest.getOutputStream());
+	            OutputStream out = listenerRequest.getOutputStream();
+	            synchronized (out)
+	            {
+	                this.writeResponse(request, out);
+	            }
 	        }
 	        catch(Throwable e)
 	        {
@@ -80,11 +82,8 @@ public class FreeRadiusProcessor extends RadiusProcessor
         }
         finally 
         {
-        	if (request != null)
-        	{
-	            PacketFactory.recycle(request.getPackets());
-	            request.getConfigItems().clear();
-        	}
+            PacketFactory.recycle(request.getPackets());
+            request.getConfigItems().clear();
         }
     }
 
@@ -122,8 +121,12 @@ public class FreeRadiusProcessor extends RadiusProcessor
         RadiusFormat.putUnsignedInt(buffer, pktsLength, cItemsLength - pktsLength - 4);
         RadiusFormat.putUnsignedInt(buffer, 0, buffer.position() - 4);
 
+        request.markTimestamp(RequestTimestamps.ENCODED);
+
         out.write(buffer.array(), 0, buffer.position());
         out.flush();
+
+        request.markTimestamp(RequestTimestamps.FLUSHED);
     }
 
     protected void logReturnCode(int result, JRCommand handler)
@@ -137,7 +140,7 @@ public class FreeRadiusProcessor extends RadiusProcessor
                 break;
             case JRadiusServer.RLM_MODULE_HANDLED:
             case JRadiusServer.RLM_MODULE_REJECT:
-                RadiusLog.info("Packet handler returned " + JRadiusServer.resultCodeToString(result) + ". Stopped handling this packet.");
+                RadiusLog.info("Packet handler returned {}. Stopped handling this packet.", JRadiusServer.resultCodeToString(result));
                 break;
             case JRadiusServer.RLM_MODULE_OK:
             case JRadiusServer.RLM_MODULE_NOOP:
@@ -145,7 +148,7 @@ public class FreeRadiusProcessor extends RadiusProcessor
             case JRadiusServer.RLM_MODULE_NUMCODES:
             case JRadiusServer.RLM_MODULE_USERLOCK:
             default:
-                RadiusLog.debug("Packet handler " + handler.getName() + " returned " + JRadiusServer.resultCodeToString(result) + ". Continue handling this packet.");
+                RadiusLog.debug("Packet handler {} returned {}. Continue handling this packet.", handler.getName(), JRadiusServer.resultCodeToString(result));
                 break;
         }
     }
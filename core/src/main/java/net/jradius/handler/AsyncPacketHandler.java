@@ -0,0 +1,75 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.handler;
+
+import net.jradius.log.RadiusLog;
+import net.jradius.server.JRadiusRequest;
+
+/**
+ * The base class of packet handlers waiting on I/O (a proxied server,
+ * a directory or a database) without blocking the processor thread.
+ * handleAsync() starts the work and returns a HandlerCompletion, which
+ * the handler completes once the result is known. Meanwhile, the
+ * RadiusProcessor suspends the request, with its session still locked,
+ * and takes the next one; the remaining handlers and the writing of the
+ * response are then run by the thread completing the handler. Handlers
+ * expecting to be completed by a shared I/O thread (such as the receiver
+ * of an AsyncRadiusClient) should therefore be followed only by handlers
+ * which do not block.
+ * <p>
+ * Where a handler chain does not support suspension, handle() simply waits
+ * for the completion.
+ */
+public abstract class AsyncPacketHandler extends PacketHandlerBase
+{
+    /**
+     * Starts handling the request
+     * @param request The JRadiusRequest being processed
+     * @return Returns the completion of the handler, to be completed with
+     * true to break the chain
+     * @throws Exception
+     */
+    public abstract HandlerCompletion handleAsync(JRadiusRequest request) throws Exception;
+
+    /**
+     * The asynchronous counterpart of execute(), used by the RadiusProcessor
+     * @param request The JRadiusRequest being processed
+     * @return Returns the completion of the handler
+     * @throws Exception
+     */
+    public HandlerCompletion executeAsync(JRadiusRequest request) throws Exception
+    {
+        RadiusLog.debug("Executing command: {}", getName());
+        HandlerCompletion completion = handleAsync(request);
+        if (completion == null) throw new IllegalStateException("Handler " + getName() + " returned no completion");
+        return completion;
+    }
+
+    /**
+     * Handles the request synchronously, by waiting for handleAsync()
+     * @see net.jradius.handler.PacketHandlerBase#handle(net.jradius.server.JRadiusRequest)
+     */
+    public boolean handle(JRadiusRequest request) throws Exception
+    {
+        return handleAsync(request).get();
+    }
+}
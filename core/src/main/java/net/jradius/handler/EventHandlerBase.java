@@ -62,7 +62,7 @@ public abstract class EventHandlerBase implements EventHandler
     public boolean execute(Context context) throws Exception
     {
         JRadiusEvent event = (JRadiusEvent)context;
-        RadiusLog.debug("Executing command: " + getName());
+        RadiusLog.debug("Executing command: {}", getName());
         return handle(event);
     }
     
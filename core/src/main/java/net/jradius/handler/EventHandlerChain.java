@@ -35,6 +35,7 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.BeansException;
 
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The EventHandlerChain is a simple EventHandler that delegates
@@ -42,12 +43,18 @@ import java.util.Iterator;
  * if one is found. In the case of accounting, if the 'accounting'
  * chain is not found, accounting status specific chains are tried
  * (e.g. acct-start, acct-interim, and acct-stop).
+ * <p>
+ * Commands are looked up in the catalog once and then remembered, the
+ * catalog is fixed at startup.
  * @author David Bird
  */
 public class EventHandlerChain extends EventHandlerBase implements BeanFactoryAware
 {
-    private Catalog catalog;
+    private static final Object NO_COMMAND = new Object();
+
+    private volatile Catalog catalog;
     private String catalogName;
+    private final ConcurrentHashMap<String, Object> commands = new ConcurrentHashMap<String, Object>();
 
     private BeanFactory beanFactory;
 
@@ -115,8 +122,26 @@ public class EventHandlerChain extends EventHandlerBase implements BeanFactoryAw
         if (catalog == null) return true;
         if ("true".equalsIgnoreCase(commandName)) return true;
         if ("false".equalsIgnoreCase(commandName)) return false;
-        JRCommand command = (JRCommand)catalog.getCommand(commandName);
-        return execute(command, event);
+        return execute(getCommand(commandName), event);
+    }
+
+    /**
+     * @param name The name of the command
+     * @return Returns the command of the catalog, or null
+     */
+    protected JRCommand getCommand(String name)
+    {
+        Object command = commands.get(name);
+
+        if (command == null)
+        {
+            Catalog catalog = getCatalog();
+            if (catalog == null) return null;
+            command = catalog.getCommand(name);
+            commands.put(name, command == null ? NO_COMMAND : command);
+        }
+
+        return command == NO_COMMAND ? null : (JRCommand) command;
     }
 
     protected boolean execute(JRCommand command, JRadiusEvent event) throws Exception
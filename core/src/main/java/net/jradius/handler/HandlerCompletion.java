@@ -0,0 +1,143 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.handler;
+
+/**
+ * The pending result of an AsyncPacketHandler: whether the handler chain
+ * is to stop (true) or to continue (false), or the exception of a failed
+ * handler. A completion is completed once, by any thread; the callback
+ * is run by the completing thread, or by the thread setting it when the
+ * completion is already done.
+ * @see AsyncPacketHandler
+ */
+public class HandlerCompletion
+{
+    /**
+     * Called once, when the completion is done
+     */
+    public interface Callback
+    {
+        public void completed(HandlerCompletion completion);
+    }
+
+    private boolean done = false;
+    private boolean stop = false;
+    private Throwable failure;
+    private Callback callback;
+
+    /**
+     * @param stop The result of the handler
+     * @return Returns a completion which is already done
+     */
+    public static HandlerCompletion completed(boolean stop)
+    {
+        HandlerCompletion completion = new HandlerCompletion();
+        completion.complete(stop);
+        return completion;
+    }
+
+    /**
+     * @param stop True to stop the handler chain
+     * @return Returns false if the completion was already done
+     */
+    public boolean complete(boolean stop)
+    {
+        return done(stop, null);
+    }
+
+    /**
+     * @param failure The exception of the handler
+     * @return Returns false if the completion was already done
+     */
+    public boolean fail(Throwable failure)
+    {
+        if (failure == null) throw new IllegalArgumentException("failure is null");
+        return done(false, failure);
+    }
+
+    private boolean done(boolean stop, Throwable failure)
+    {
+        Callback c;
+
+        synchronized (this)
+        {
+            if (done) return false;
+            this.done = true;
+            this.stop = stop;
+            this.failure = failure;
+            c = callback;
+            notifyAll();
+        }
+
+        if (c != null) c.completed(this);
+        return true;
+    }
+
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    /**
+     * Sets the callback, which is run right away if the completion is done
+     * @param callback The callback
+     */
+    public void setCallback(Callback callback)
+    {
+        synchronized (this)
+        {
+            if (this.callback != null) throw new IllegalStateException("Callback already set");
+            this.callback = callback;
+            if (!done) return;
+        }
+
+        callback.completed(this);
+    }
+
+    /**
+     * Waits for the completion
+     * @return Returns the result of the handler
+     * @throws Exception The exception of the handler
+     */
+    public boolean get() throws Exception
+    {
+        synchronized (this)
+        {
+            while (!done) wait();
+        }
+
+        return getResult();
+    }
+
+    /**
+     * @return Returns the result of a completion which is done
+     * @throws Exception The exception of the handler
+     */
+    public synchronized boolean getResult() throws Exception
+    {
+        if (!done) throw new IllegalStateException("Handler not completed");
+        if (failure == null) return stop;
+        if (failure instanceof Exception) throw (Exception) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        throw new RuntimeException(failure);
+    }
+}
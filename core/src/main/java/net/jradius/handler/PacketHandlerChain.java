@@ -41,6 +41,21 @@ import org.apache.commons.chain.Catalog;
  */
 public class PacketHandlerChain extends EventHandlerChain implements PacketHandler
 {
+    private static final String[] accountingCommands = new String[16];
+
+    static
+    {
+        for (int i = 0; i < accountingCommands.length; i++)
+        {
+            accountingCommands[i] = "other_accounting";
+        }
+        accountingCommands[AccountingRequest.ACCT_STATUS_START] = "start_accounting";
+        accountingCommands[AccountingRequest.ACCT_STATUS_STOP] = "stop_accounting";
+        accountingCommands[AccountingRequest.ACCT_STATUS_INTERIM] = "interim_accounting";
+        accountingCommands[AccountingRequest.ACCT_STATUS_ACCOUNTING_ON] = "accounting_on";
+        accountingCommands[AccountingRequest.ACCT_STATUS_ACCOUNTING_OFF] = "accounting_off";
+    }
+
     public boolean handle(JRadiusEvent event) throws Exception
     {
         return handle((JRadiusRequest)event);
@@ -59,21 +74,14 @@ public class PacketHandlerChain extends EventHandlerChain implements PacketHandl
                 Long i = (Long) req.getAttributeValue(AttributeDictionary.ACCT_STATUS_TYPE);
                 if (i != null)
                 {
-                    String com = "other_accounting";
-                    switch(i.intValue())
-                    {
-                    	case AccountingRequest.ACCT_STATUS_START: com = "start_accounting"; break;
-                    	case AccountingRequest.ACCT_STATUS_STOP: com = "stop_accounting"; break;
-                    	case AccountingRequest.ACCT_STATUS_INTERIM: com = "interim_accounting"; break;
-                        case AccountingRequest.ACCT_STATUS_ACCOUNTING_ON: com = "accounting_on"; break;
-                        case AccountingRequest.ACCT_STATUS_ACCOUNTING_OFF: com = "accounting_off"; break;
-                    }
-                    command = (JRCommand)catalog.getCommand(com);
+                    long status = i.longValue();
+                    command = getCommand(status >= 0 && status < accountingCommands.length ? 
+                            accountingCommands[(int) status] : "other_accounting");
                     if (command != null) return execute(command, request);
                 }
             }
 
-            command = (JRCommand)catalog.getCommand(request.getTypeString());
+            command = getCommand(request.getTypeString());
             return execute(command, request);
         }
         return true;
@@ -0,0 +1,191 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.handler.chain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.jradius.handler.EventHandlerBase;
+import net.jradius.server.JRadiusEvent;
+
+/**
+ * The handlers of a processor (or the event dispatcher), compiled into a
+ * table indexed by sender and request type. Each entry holds exactly the
+ * handlers to run for events of that sender and type, so the type and
+ * sender lists of the handler configurations are not searched for every
+ * request.
+ * <p>
+ * Only handlers that use the standard doesHandle() (of EventHandlerBase or
+ * JRChainBase), which depends on nothing but the sender and the type string,
+ * are filtered in the table. Handlers with their own doesHandle() stay in
+ * every entry and are asked at run time. Entries are compiled the first time
+ * an event of a sender and type is seen, and are never changed afterwards.
+ */
+public class HandlerDispatchTable
+{
+    private static final int MAX_TYPES = 32;
+    private static final int MAX_SENDERS = 1024;
+    private static final Object NO_SENDER = new Object();
+
+    private final JRCommand[] handlers;
+    private final boolean[] standard;
+    private final ConcurrentHashMap<Object, Entry[]> table = new ConcurrentHashMap<Object, Entry[]>();
+
+    /**
+     * The handlers for a sender and type
+     */
+    public static final class Entry
+    {
+        private final Class<?> eventClass;
+        private final JRCommand[] handlers;
+        private final boolean[] check;
+
+        Entry(Class<?> eventClass, JRCommand[] handlers, boolean[] check)
+        {
+            this.eventClass = eventClass;
+            this.handlers = handlers;
+            this.check = check;
+        }
+
+        public int size()
+        {
+            return handlers.length;
+        }
+
+        public JRCommand getHandler(int i)
+        {
+            return handlers[i];
+        }
+
+        /**
+         * @return Returns whether the i-th handler handles the event
+         */
+        public boolean handles(int i, JRadiusEvent event)
+        {
+            return !check[i] || handlers[i].doesHandle(event);
+        }
+    }
+
+    public HandlerDispatchTable(List<JRCommand> handlers)
+    {
+        this.handlers = handlers.toArray(new JRCommand[handlers.size()]);
+        this.standard = new boolean[this.handlers.length];
+
+        for (int i = 0; i < this.handlers.length; i++)
+        {
+            standard[i] = isStandard(this.handlers[i]);
+        }
+    }
+
+    private static boolean isStandard(JRCommand handler)
+    {
+        try
+        {
+            Class<?> c = handler.getClass().getMethod("doesHandle", JRadiusEvent.class).getDeclaringClass();
+            return c == EventHandlerBase.class || c == JRChainBase.class;
+        }
+        catch (NoSuchMethodException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @param event The event (or request) to handle
+     * @return Returns the handlers for the sender and type of the event
+     */
+    public Entry lookup(JRadiusEvent event)
+    {
+        int type = event.getType();
+        if (type < 0 || type >= MAX_TYPES) return compile(event);
+
+        Object sender = event.getSender();
+        if (sender == null) sender = NO_SENDER;
+
+        Entry[] entries = table.get(sender);
+
+        if (entries == null)
+        {
+            if (table.size() >= MAX_SENDERS) return compile(event);
+            entries = new Entry[MAX_TYPES];
+            Entry[] e = table.putIfAbsent(sender, entries);
+            if (e != null) entries = e;
+        }
+
+        // entries are immutable, a race only compiles one twice
+        Entry entry = entries[type];
+
+        if (entry == null || entry.eventClass != event.getClass())
+        {
+            entry = compile(event);
+            entries[type] = entry;
+        }
+
+        return entry;
+    }
+
+    private Entry compile(JRadiusEvent event)
+    {
+        List<JRCommand> list = new ArrayList<JRCommand>(handlers.length);
+        List<Boolean> check = new ArrayList<Boolean>(handlers.length);
+
+        for (int i = 0; i < handlers.length; i++)
+        {
+            if (standard[i])
+            {
+                boolean handles;
+
+                try
+                {
+                    handles = handlers[i].doesHandle(event);
+                }
+                catch (RuntimeException e)
+                {
+                    // leave it to run time, where the error is reported
+                    list.add(handlers[i]);
+                    check.add(Boolean.TRUE);
+                    continue;
+                }
+
+                if (handles)
+                {
+                    list.add(handlers[i]);
+                    check.add(Boolean.FALSE);
+                }
+            }
+            else
+            {
+                list.add(handlers[i]);
+                check.add(Boolean.TRUE);
+            }
+        }
+
+        boolean[] c = new boolean[check.size()];
+        for (int i = 0; i < c.length; i++)
+        {
+            c[i] = check.get(i).booleanValue();
+        }
+
+        return new Entry(event.getClass(), list.toArray(new JRCommand[list.size()]), c);
+    }
+}
@@ -73,7 +73,7 @@ public class JRChainBase extends ChainBase implements JRCommand, BeanFactoryAwar
     
     public boolean execute(Context context) throws Exception
     {
-        RadiusLog.debug("Executing command: " + getName());
+        RadiusLog.debug("Executing command: {}", getName());
         return super.execute(context);
     }
 
@@ -0,0 +1,623 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import net.jradius.server.JRadiusThread;
+import net.jradius.server.StatisticsRegistry;
+
+/**
+ * A LogSink writing records to rolling files from a background thread,
+ * so that logging never adds disk latency to request processing.
+ * <p>
+ * Records are handed over through a bounded lock free ring buffer (any
+ * number of producers, one consumer). The writer drains the ring in
+ * batches, writes each batch through a buffered stream and flushes it once.
+ * An idle writer sleeps until a producer wakes it for the next record.
+ * When the ring is full (the disk is slower than the log rate) records
+ * are dropped, or with overflow "block" the producer waits up to
+ * blockTimeout milliseconds for room before dropping.
+ * <p>
+ * Files are named prefix-NNNNNNNNNNNNNNNN.jsonl (JSON lines, one object
+ * per record with the time in "time") or .bin (the binary format: the magic
+ * "JRLG" and a version, then per record its length, the time, the number
+ * of fields and each name and value in modified UTF-8). A file is rolled
+ * at maxFileSize bytes and only the newest maxFiles are kept.
+ * <p>
+ * start() makes the sink the sink of RadiusLog; as a Spring bean, use
+ * init-method="start" and destroy-method="stop".
+ */
+public class AsyncLogSink implements LogSink
+{
+    public static final int BINARY_MAGIC = 0x4a524c47;     // "JRLG"
+    public static final int BINARY_VERSION = 1;
+
+    private static final int MAX_VALUE_LENGTH = 16 * 1024;
+
+    private File directory = new File("log");
+    private String prefix = "jradius";
+    private String format = "json";
+    private int capacity = 64 * 1024;
+    private int batchSize = 1024;
+    private long maxFileSize = 100 * 1024 * 1024;
+    private int maxFiles = 10;
+    private String overflow = "drop";
+    private long blockTimeout = 100;
+
+    private AtomicReferenceArray<LogRecord> ring;
+    private AtomicLongArray sequences;
+    private int mask;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private volatile long dequeuePosition = 0;
+
+    private final AtomicLong logged = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    private volatile Writer writer;
+    private volatile boolean sleeping = false;
+    private volatile boolean active = false;
+    private boolean binary;
+    private boolean block;
+
+    public synchronized void start() throws IOException
+    {
+        if (active) return;
+
+        if (!"json".equals(format) && !"binary".equals(format))
+        {
+            throw new IllegalArgumentException("Unknown log format: " + format);
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Unable to create log directory " + directory);
+        }
+
+        int size = 1;
+        while (size < capacity) size <<= 1;
+
+        ring = new AtomicReferenceArray<LogRecord>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+        mask = size - 1;
+
+        binary = "binary".equals(format);
+        block = "block".equals(overflow);
+        active = true;
+
+        writer = new Writer();
+        writer.start();
+
+        RadiusLog.setLogSink(this);
+        publishStatistics();
+    }
+
+    /**
+     * Publishes the counts of the sink to the StatisticsRegistry
+     */
+    private void publishStatistics()
+    {
+        StatisticsRegistry.Group stats = StatisticsRegistry.getInstance().getGroup("LogSink", prefix);
+
+        stats.counter("logged", "Records accepted", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return getLogged(); }
+        });
+        stats.counter("dropped", "Records dropped", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return getDropped(); }
+        });
+        stats.counter("written", "Records written", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return getWritten(); }
+        });
+        stats.gauge("pending", "Records waiting to be written", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return getPending(); }
+        });
+    }
+
+    /**
+     * Stops the sink, after writing the records still in the ring
+     */
+    public void stop()
+    {
+        Writer w;
+
+        synchronized (this)
+        {
+            if (!active) return;
+            active = false;
+            w = writer;
+        }
+
+        if (RadiusLog.getLogSink() == this) RadiusLog.setLogSink(null);
+
+        LockSupport.unpark(w);
+
+        try
+        {
+            w.join(10000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean log(LogRecord record)
+    {
+        if (!active || !offer(record))
+        {
+            if (!active || !block || !offer(record, blockTimeout * 1000000L))
+            {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+
+        logged.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Claims a slot of the ring: a slot is free for position p when its
+     * sequence is p, and holds a record for the consumer when it is p + 1.
+     */
+    private boolean offer(LogRecord record)
+    {
+        long position = enqueuePosition.get();
+
+        while (true)
+        {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0)
+            {
+                if (enqueuePosition.compareAndSet(position, position + 1))
+                {
+                    ring.set(index, record);
+                    sequences.set(index, position + 1);
+                    if (sleeping) wakeWriter();
+                    return true;
+                }
+                position = enqueuePosition.get();
+            }
+            else if (difference < 0)
+            {
+                return false;   // full
+            }
+            else
+            {
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    private void wakeWriter()
+    {
+        sleeping = false;
+        LockSupport.unpark(writer);
+    }
+
+    private boolean offer(LogRecord record, long timeoutNanos)
+    {
+        long deadline = System.nanoTime() + timeoutNanos;
+
+        while (System.nanoTime() - deadline < 0)
+        {
+            LockSupport.parkNanos(100000);
+            if (offer(record)) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Returns whether the ring has a record for the writer (writer thread only)
+     */
+    private boolean hasRecord()
+    {
+        return sequences.get((int) dequeuePosition & mask) == dequeuePosition + 1;
+    }
+
+    /**
+     * @return Returns the next record, or null if the ring is empty (writer thread only)
+     */
+    private LogRecord poll()
+    {
+        int index = (int) dequeuePosition & mask;
+        if (sequences.get(index) != dequeuePosition + 1) return null;
+
+        LogRecord record = ring.get(index);
+        ring.set(index, null);
+        sequences.set(index, dequeuePosition + mask + 1);
+        dequeuePosition++;
+        return record;
+    }
+
+    /**
+     * Drains the ring in batches to the current file
+     */
+    private class Writer extends JRadiusThread
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        private final DataOutputStream data = new DataOutputStream(bytes);
+        private final StringBuilder sb = new StringBuilder(1024);
+        private OutputStream out;
+        private long fileSize;
+        private long fileNumber;
+        private boolean failed = false;
+
+        Writer()
+        {
+            setName("AsyncLogSink-" + prefix);
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            fileNumber = lastFileNumber();
+
+            while (true)
+            {
+                boolean running = active;
+                int n = 0;
+                int lost = 0;
+
+                try
+                {
+                    LogRecord record;
+                    while (n < batchSize && (record = poll()) != null)
+                    {
+                        lost = n + 1;
+                        write(record);
+                        n++;
+                    }
+
+                    if (n > 0)
+                    {
+                        lost = n;
+                        out.flush();
+                        written.addAndGet(n);
+                        failed = false;
+                    }
+                }
+                catch (IOException e)
+                {
+                    // the records of the batch not flushed are lost
+                    dropped.addAndGet(lost);
+                    if (!failed) RadiusLog.error("Unable to write log file, dropping records: " + e.getMessage());
+                    failed = true;
+                    close();
+                }
+
+                if (n == 0)
+                {
+                    if (!running) break;
+
+                    // announce the sleep before the last look, so a record
+                    // published after the look finds the flag and wakes us
+                    sleeping = true;
+                    if (!hasRecord() && active) LockSupport.park(this);
+                    sleeping = false;
+                }
+            }
+
+            close();
+        }
+
+        private void write(LogRecord record) throws IOException
+        {
+            bytes.reset();
+
+            if (binary)
+            {
+                data.writeInt(0);
+                data.writeLong(record.getTime());
+                data.writeShort(record.size());
+                for (int i = 0; i < record.size(); i++)
+                {
+                    data.writeUTF(record.getName(i));
+                    data.writeUTF(truncate(String.valueOf(record.getValue(i))));
+                }
+                byte[] b = bytes.toByteArray();
+                int length = b.length - 4;
+                b[0] = (byte) (length >>> 24);
+                b[1] = (byte) (length >>> 16);
+                b[2] = (byte) (length >>> 8);
+                b[3] = (byte) length;
+                output(b);
+            }
+            else
+            {
+                sb.setLength(0);
+                sb.append("{\"time\":").append(record.getTime());
+                for (int i = 0; i < record.size(); i++)
+                {
+                    sb.append(",\"");
+                    escape(record.getName(i));
+                    sb.append("\":");
+                    Object value = record.getValue(i);
+                    if (value instanceof Number || value instanceof Boolean)
+                    {
+                        sb.append(value);
+                    }
+                    else
+                    {
+                        sb.append('"');
+                        escape(String.valueOf(value));
+                        sb.append('"');
+                    }
+                }
+                sb.append("}\n");
+                output(sb.toString().getBytes("UTF-8"));
+            }
+        }
+
+        private void output(byte[] b) throws IOException
+        {
+            if (out == null || fileSize >= maxFileSize) roll();
+            out.write(b);
+            fileSize += b.length;
+        }
+
+        private void escape(String s)
+        {
+            for (int i = 0; i < s.length(); i++)
+            {
+                char c = s.charAt(i);
+                switch (c)
+                {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if (c < 0x20)
+                        {
+                            String hex = Integer.toHexString(c);
+                            sb.append("\\u");
+                            for (int j = hex.length(); j < 4; j++) sb.append('0');
+                            sb.append(hex);
+                        }
+                        else
+                        {
+                            sb.append(c);
+                        }
+                }
+            }
+        }
+
+        private void roll() throws IOException
+        {
+            close();
+
+            File file = new File(directory, String.format("%s-%016d", prefix, Long.valueOf(++fileNumber)) + suffix());
+            out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            fileSize = 0;
+
+            if (binary)
+            {
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(BINARY_MAGIC);
+                header.writeShort(BINARY_VERSION);
+                fileSize = 6;
+            }
+
+            removeOldFiles();
+        }
+
+        private void close()
+        {
+            if (out == null) return;
+
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                RadiusLog.warn("Unable to close log file: " + e.getMessage());
+            }
+
+            out = null;
+        }
+    }
+
+    private static String truncate(String s)
+    {
+        return s.length() > MAX_VALUE_LENGTH ? s.substring(0, MAX_VALUE_LENGTH) : s;
+    }
+
+    private String suffix()
+    {
+        return binary ? ".bin" : ".jsonl";
+    }
+
+    /**
+     * @return Returns the log files of the sink, oldest first
+     */
+    private File[] listFiles()
+    {
+        final String start = prefix + "-";
+        final String end = suffix();
+
+        File[] files = directory.listFiles(new FileFilter()
+        {
+            public boolean accept(File f)
+            {
+                String name = f.getName();
+                return name.startsWith(start) && name.endsWith(end) 
+                    && name.length() == start.length() + 16 + end.length();
+            }
+        });
+
+        if (files == null) return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    private long lastFileNumber()
+    {
+        File[] files = listFiles();
+        if (files.length == 0) return 0;
+
+        String name = files[files.length - 1].getName();
+        try
+        {
+            return Long.parseLong(name.substring(prefix.length() + 1, prefix.length() + 17));
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    private void removeOldFiles()
+    {
+        File[] files = listFiles();
+
+        for (int i = 0; i < files.length - maxFiles; i++)
+        {
+            if (!files[i].delete()) RadiusLog.warn("Unable to delete log file " + files[i]);
+        }
+    }
+
+    /**
+     * @return Returns the number of records accepted
+     */
+    public long getLogged()
+    {
+        return logged.get();
+    }
+
+    /**
+     * @return Returns the number of records dropped because the ring was full
+     * (or they could not be written)
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * @return Returns the number of records written
+     */
+    public long getWritten()
+    {
+        return written.get();
+    }
+
+    /**
+     * @return Returns the number of records waiting to be written
+     */
+    public long getPending()
+    {
+        return enqueuePosition.get() - dequeuePosition;
+    }
+
+    public void setDirectory(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * @param prefix The prefix of the file names
+     */
+    public void setPrefix(String prefix)
+    {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @param format "json" (JSON lines) or "binary"
+     */
+    public void setFormat(String format)
+    {
+        this.format = format;
+    }
+
+    /**
+     * @param capacity The number of records the ring holds (rounded up to a power of 2)
+     */
+    public void setCapacity(int capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param batchSize The maximum number of records written per flush
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param maxFileSize The size at which a file is rolled (in bytes)
+     */
+    public void setMaxFileSize(long maxFileSize)
+    {
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * @param maxFiles The number of files kept
+     */
+    public void setMaxFiles(int maxFiles)
+    {
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * @param overflow What to do when the ring is full: "drop" (default) or "block"
+     */
+    public void setOverflow(String overflow)
+    {
+        this.overflow = overflow;
+    }
+
+    /**
+     * @param blockTimeout How long to wait for room with overflow "block" (in milliseconds)
+     */
+    public void setBlockTimeout(long blockTimeout)
+    {
+        this.blockTimeout = blockTimeout;
+    }
+}
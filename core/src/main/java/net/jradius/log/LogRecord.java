@@ -0,0 +1,98 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A structured log record: the time it was created and an ordered list
+ * of named values, captured as they are (no formatting) so that creating
+ * a record is cheap. Null values are left out.
+ * @see LogSink
+ */
+public class LogRecord
+{
+    private final long time;
+    private final List<String> names = new ArrayList<String>(16);
+    private final List<Object> values = new ArrayList<Object>(16);
+
+    public LogRecord()
+    {
+        this(System.currentTimeMillis());
+    }
+
+    /**
+     * @param time The time of the record (in milliseconds since the epoch)
+     */
+    public LogRecord(long time)
+    {
+        this.time = time;
+    }
+
+    /**
+     * @param name The name of the field
+     * @param value The value (a String, Number, Boolean or any Object, written with toString())
+     * @return Returns this record
+     */
+    public LogRecord add(String name, Object value)
+    {
+        if (value != null)
+        {
+            names.add(name);
+            values.add(value);
+        }
+
+        return this;
+    }
+
+    public long getTime()
+    {
+        return time;
+    }
+
+    public int size()
+    {
+        return names.size();
+    }
+
+    public String getName(int i)
+    {
+        return names.get(i);
+    }
+
+    public Object getValue(int i)
+    {
+        return values.get(i);
+    }
+
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < names.size(); i++)
+        {
+            if (i > 0) sb.append(", ");
+            sb.append(names.get(i)).append(" = ").append(values.get(i));
+        }
+        return sb.toString();
+    }
+}
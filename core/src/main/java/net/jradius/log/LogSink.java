@@ -0,0 +1,37 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.log;
+
+/**
+ * A destination for structured log records, such as the session log
+ * entries. Implementations must not block the caller on I/O.
+ * @see AsyncLogSink
+ * @see RadiusLog#setLogSink(LogSink)
+ */
+public interface LogSink
+{
+    /**
+     * @param record The record to log
+     * @return Returns false if the record was dropped
+     */
+    public boolean log(LogRecord record);
+}
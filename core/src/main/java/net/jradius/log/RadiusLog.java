@@ -27,6 +27,12 @@ import net.jradius.session.JRadiusSession;
 
 /**
  * JRadius Server Logger Class.
+ * <p>
+ * The methods taking a format and arguments only build the message when
+ * the level is enabled, so that hot paths do not pay for messages which
+ * are never written. Each "{}" of the format is replaced by the next
+ * argument (see format()); arguments are converted with String.valueOf()
+ * only then.
  * @author David Bird
  */
 public final class RadiusLog 
@@ -123,6 +129,132 @@ public final class RadiusLog
         }
     }
 
+    /**
+     * @return Returns true if debug messages are logged; guards the building
+     * of messages too costly for the parameterized methods
+     */
+    public static boolean isDebugEnabled()
+    {
+        return isLoggable(RadiusLogger.LEVEL_DEBUG);
+    }
+
+    public static void warn(String format, Object arg)
+    {
+        RadiusLogger ler = RadiusLog.logger;
+
+        if (ler != null && ler.isLoggable(RadiusLogger.LEVEL_WARNING))
+        {
+            ler.warn(format(format, new Object[] { arg }));
+        }
+    }
+
+    public static void warn(String format, Object arg1, Object arg2)
+    {
+        RadiusLogger ler = RadiusLog.logger;
+
+        if (ler != null && ler.isLoggable(RadiusLogger.LEVEL_WARNING))
+        {
+            ler.warn(format(format, new Object[] { arg1, arg2 }));
+        }
+    }
+
+    public static void warn(String format, Object... args)
+    {
+        RadiusLogger ler = RadiusLog.logger;
+
+        if (ler != null && ler.isLoggable(RadiusLogger.LEVEL_WARNING))
+        {
+            ler.warn(format(format, args));
+        }
+    }
+
+    public static void info(String format, Object arg)
+    {
+        RadiusLogger ler = RadiusLog.logger;
+
+        if (ler != null && ler.isLoggable(RadiusLogger.LEVEL_INFO))
+        {
+            ler.info(format(format, new Object[] { arg }));
+        }
+    }
+
+    public static void info(String format, Object arg1, Object arg2)
+    {
+        RadiusLogger ler = RadiusLog.logger;
+
+        if (ler != null && ler.isLoggable(RadiusLogger.LEVEL_INFO))
+        {
+            ler.info(format(format, new Object[] { arg1, arg2 }));
+        }
+    }
+
+    public static void info(String format, Object... args)
+    {
+        RadiusLogger ler = RadiusLog.logger;
+
+        if (ler != null && ler.isLoggable(RadiusLogger.LEVEL_INFO))
+        {
+            ler.info(format(format, args));
+        }
+    }
+
+    public static void debug(String format, Object arg)
+    {
+        RadiusLogger ler = RadiusLog.logger;
+
+        if (ler != null && ler.isLoggable(RadiusLogger.LEVEL_DEBUG))
+        {
+            ler.debug(format(format, new Object[] { arg }));
+        }
+    }
+
+    public static void debug(String format, Object arg1, Object arg2)
+    {
+        RadiusLogger ler = RadiusLog.logger;
+
+        if (ler != null && ler.isLoggable(RadiusLogger.LEVEL_DEBUG))
+        {
+            ler.debug(format(format, new Object[] { arg1, arg2 }));
+        }
+    }
+
+    public static void debug(String format, Object... args)
+    {
+        RadiusLogger ler = RadiusLog.logger;
+
+        if (ler != null && ler.isLoggable(RadiusLogger.LEVEL_DEBUG))
+        {
+            ler.debug(format(format, args));
+        }
+    }
+
+    /**
+     * Replaces each "{}" of the format with the next argument
+     * @param format The message format
+     * @param args The arguments
+     * @return Returns the message
+     */
+    public static String format(String format, Object[] args)
+    {
+        if (format == null) return null;
+        if (args == null || args.length == 0) return format;
+
+        StringBuilder sb = new StringBuilder(format.length() + 16 * args.length);
+        int start = 0;
+        int n = 0;
+
+        while (n < args.length)
+        {
+            int i = format.indexOf("{}", start);
+            if (i < 0) break;
+            sb.append(format, start, i).append(String.valueOf(args[n++]));
+            start = i + 2;
+        }
+
+        sb.append(format, start, format.length());
+        return sb.toString();
+    }
+
     public static String problem(JRadiusRequest request, JRadiusSession session, RadiusException exception, String mesg)
     {
         StringBuffer sb = new StringBuffer();
@@ -189,5 +321,23 @@ public final class RadiusLog
         RadiusLog.logger = logger;
     }
 
+    /**
+     * @return Returns the sink of structured log records (or null)
+     */
+    public static LogSink getLogSink()
+    {
+        return RadiusLog.logSink;
+    }
+
+    /**
+     * @param logSink Where structured log records (e.g. session log entries) go,
+     * null to log them as messages
+     */
+    public static void setLogSink(LogSink logSink)
+    {
+        RadiusLog.logSink = logSink;
+    }
+
     private static RadiusLogger logger = new Log4JRadiusLogger();
+    private static volatile LogSink logSink;
 }
@@ -445,6 +445,24 @@ public class PacketFactory
 		if (pktObjectPool == null) return "";
 		return "active="+pktObjectPool.getNumActive()+", idle="+pktObjectPool.getNumIdle();
     }
+
+    /**
+     * @return Returns the number of pooled objects in use (or -1 without pool)
+     */
+    public static int getPoolActive()
+    {
+		if (pktObjectPool == null) return -1;
+		return pktObjectPool.getNumActive();
+    }
+
+    /**
+     * @return Returns the number of idle pooled objects (or -1 without pool)
+     */
+    public static int getPoolIdle()
+    {
+		if (pktObjectPool == null) return -1;
+		return pktObjectPool.getNumIdle();
+    }
     
 	public static void recycle(RadiusPacket p) 
 	{
@@ -0,0 +1,42 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.packet;
+
+/**
+ *  The RADIUS Status-Server Packet (RFC 5997), used to check whether a
+ *  server is alive. It is authenticated like an Access-Request (with a
+ *  random Authenticator and a Message-Authenticator); a server answers
+ *  on its authentication port with an Access-Accept. It is only sent by
+ *  clients and is not registered with the PacketFactory, so a received
+ *  Status-Server is never handled as an Access-Request.
+ *  See http://www.iana.org/assignments/radius-types
+ */
+public class StatusServerRequest extends AccessRequest
+{
+    public static final byte CODE = (byte)12;
+    private static final long serialVersionUID = (long)CODE;
+
+    public StatusServerRequest() 
+    {
+        code = CODE;
+    }
+}
@@ -36,10 +36,16 @@ public abstract interface AttributeDictionary
     // should not be referencing any attribute class directly).
     public static final int USER_NAME 				= 1;	// User-Name
     public static final int USER_PASSWORD 			= 2;	// User-Password
+    public static final int CHAP_PASSWORD 			= 3;	// CHAP-Password
+    public static final int NAS_IP_ADDRESS			= 4;	// NAS-IP-Address
     public static final int STATE					= 24;	// State
     public static final int CLASS					= 25;   // Class
+    public static final int CALLING_STATION_ID		= 31;	// Calling-Station-Id
     public static final int NAS_IDENTIFIER			= 32;	// NAS-Identifier
     public static final int ACCT_STATUS_TYPE 		= 40;	// Acct-Status-Type
+    public static final int ACCT_DELAY_TIME 		= 41;	// Acct-Delay-Time
+    public static final int ACCT_SESSION_ID 		= 44;	// Acct-Session-Id
+    public static final int CHAP_CHALLENGE			= 60;	// CHAP-Challenge
     public static final int EAP_MESSAGE				= 79;	// EAP-Message
     public static final int MESSAGE_AUTHENTICATOR	= 80;	// Message-Authenticator
     public static final int CHARGEABLE_USER_IDENTITY= 89;	// Message-Authenticator
@@ -71,7 +71,7 @@ public final class AttributeFactory
         }
         else
         {
-        	RadiusLog.warn("Unknown Vendor Specific Attribute: " + vendor+":"+type);
+        	RadiusLog.warn("Unknown Vendor Specific Attribute: {}:{}", vendor, type);
         	attr = new Attr_UnknownVSAttribute(vendor, type);
         }
      
@@ -89,7 +89,7 @@ public final class AttributeFactory
         }
         else
         {
-        	RadiusLog.warn("Unknown Attribute: " + type);
+        	RadiusLog.warn("Unknown Attribute: {}", type);
         	attr = new Attr_UnknownAttribute(type);
         }
 
@@ -758,6 +758,24 @@ public final class AttributeFactory
 		if (attributeObjectPool == null) return "";
 		return "active="+attributeObjectPool.getNumActive()+", idle="+attributeObjectPool.getNumIdle();
     }
+
+    /**
+     * @return Returns the number of pooled objects in use (or -1 without pool)
+     */
+    public static int getPoolActive()
+    {
+		if (attributeObjectPool == null) return -1;
+		return attributeObjectPool.getNumActive();
+    }
+
+    /**
+     * @return Returns the number of idle pooled objects (or -1 without pool)
+     */
+    public static int getPoolIdle()
+    {
+		if (attributeObjectPool == null) return -1;
+		return attributeObjectPool.getNumIdle();
+    }
     
 	public static void recycle(RadiusAttribute a) 
 	{
@@ -140,13 +140,13 @@ public class JRadiusModule implements LoginModule
             request.addAttribute(AttributeFactory.newAttribute("User-Password", password, "="));
             if (debug)
             {
-                RadiusLog.debug("Sending:\n" + request.toString());
+                RadiusLog.debug("Sending:\n{}", request);
             }
             RadiusResponse reply = radiusClient.authenticate(request, radiusCallback.getRadiusAuthenticator(), retries);
             if (reply == null) throw new LoginException("no reply from remote RADIUS server");
             if (debug)
             {
-                RadiusLog.debug("Received:\n" + reply.toString());
+                RadiusLog.debug("Received:\n{}", reply);
             }
             if (!(reply instanceof AccessAccept)) throw new CredentialExpiredException("authentication failed");
         }
@@ -0,0 +1,198 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.server;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes the requests of a listener to per processor queues, by the
+ * affinity key of the request (see ListenerRequest.getAffinityKey()).
+ * Consecutive requests of the same subscriber (e.g. the rounds of an EAP
+ * conversation) are then handled by the same processor thread instead of
+ * waiting for each other on the session lock in different threads.
+ * Requests without an affinity key are spread round-robin. A processor
+ * with an empty queue steals from the queues of busy processors, so
+ * that no thread idles while others have a backlog.
+ * <p>
+ * Enabled with the listener property "affinity" set to "true".
+ */
+public class AffinityDispatcher
+{
+    private final WorkerQueue[] queues;
+    private final BlockingQueue<ListenerRequest> listenerQueue = new ListenerQueue();
+    private final AtomicInteger next = new AtomicInteger();
+
+    private int stealThreshold = 2;
+    private long stealInterval = 10;
+
+    /**
+     * @param processors The number of processor threads
+     */
+    public AffinityDispatcher(int processors)
+    {
+        queues = new WorkerQueue[processors];
+        for (int i = 0; i < processors; i++)
+        {
+            queues[i] = new WorkerQueue(i);
+        }
+    }
+
+    /**
+     * @return Returns the queue the listener puts requests on
+     */
+    public BlockingQueue<ListenerRequest> getListenerQueue()
+    {
+        return listenerQueue;
+    }
+
+    /**
+     * @param i The index of the processor
+     * @return Returns the queue the processor takes requests from
+     */
+    public BlockingQueue<ListenerRequest> getProcessorQueue(int i)
+    {
+        return queues[i];
+    }
+
+    public void dispatch(ListenerRequest request) throws InterruptedException
+    {
+        int key = request.getAffinityKey();
+        if (key == 0) key = next.getAndIncrement();
+        queues[(key & 0x7fffffff) % queues.length].put(request);
+    }
+
+    private ListenerRequest steal(int index)
+    {
+        for (int i = 1; i < queues.length; i++)
+        {
+            WorkerQueue queue = queues[(index + i) % queues.length];
+            if (queue.size() >= stealThreshold)
+            {
+                ListenerRequest request = queue.poll();
+                if (request != null) return request;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param stealThreshold The minimum backlog of a processor before others steal from it
+     */
+    public void setStealThreshold(int stealThreshold)
+    {
+        this.stealThreshold = stealThreshold;
+    }
+
+    /**
+     * @param stealInterval How often an idle processor looks for requests to steal (in milliseconds)
+     */
+    public void setStealInterval(long stealInterval)
+    {
+        this.stealInterval = stealInterval;
+    }
+
+    /**
+     * The queue of one processor. take() falls back to stealing when the
+     * processor has nothing of its own to do.
+     */
+    private class WorkerQueue extends LinkedBlockingQueue<ListenerRequest>
+    {
+        private static final long serialVersionUID = 0L;
+
+        private final int index;
+
+        WorkerQueue(int index)
+        {
+            this.index = index;
+        }
+
+        public ListenerRequest take() throws InterruptedException
+        {
+            ListenerRequest request = poll();
+
+            while (request == null)
+            {
+                request = steal(index);
+                if (request == null) request = poll(stealInterval, TimeUnit.MILLISECONDS);
+            }
+
+            return request;
+        }
+    }
+
+    /**
+     * The queue seen by the listener; it holds nothing itself and hands
+     * every request on to the queue of a processor. size() and isEmpty()
+     * report the requests waiting in the processor queues.
+     */
+    private class ListenerQueue extends LinkedBlockingQueue<ListenerRequest>
+    {
+        private static final long serialVersionUID = 0L;
+
+        public void put(ListenerRequest request) throws InterruptedException
+        {
+            dispatch(request);
+        }
+
+        public boolean offer(ListenerRequest request)
+        {
+            try
+            {
+                dispatch(request);
+                return true;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        public boolean offer(ListenerRequest request, long timeout, TimeUnit unit) throws InterruptedException
+        {
+            dispatch(request);
+            return true;
+        }
+
+        public int size()
+        {
+            int size = 0;
+            for (int i = 0; i < queues.length; i++)
+            {
+                size += queues[i].size();
+            }
+            return size;
+        }
+
+        public boolean isEmpty()
+        {
+            for (int i = 0; i < queues.length; i++)
+            {
+                if (!queues[i].isEmpty()) return false;
+            }
+            return true;
+        }
+    }
+}
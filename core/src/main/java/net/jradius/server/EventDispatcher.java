@@ -25,61 +25,228 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.jradius.handler.chain.HandlerDispatchTable;
 import net.jradius.handler.chain.JRCommand;
 import net.jradius.log.RadiusLog;
 import net.jradius.server.event.ServerEvent;
+import net.jradius.server.event.SessionExpiredEvent;
 import net.jradius.session.JRadiusSession;
 import net.jradius.session.JRadiusSessionManager;
 
 /**
  * The JRadius Server Event (JRadiusEvent) Dispatcher.
+ * <p>
+ * Events are dispatched by a number of threads (one by default), each
+ * with its own bounded queue. Events of a session are hashed by session
+ * key to the same thread, so they are handled in the order they were
+ * posted; events without a session are spread round-robin. When a queue
+ * is full, post() either waits for room (overflow "block", the default),
+ * drops the new event ("drop") or drops the oldest queued event
+ * ("drop-oldest"). Event handlers must be thread safe when more than
+ * one thread is used.
+ * <p>
+ * The queues are bounded (queueSize events per thread, 100000 by
+ * default), where earlier versions used one unbounded queue: with the
+ * default overflow "block", the processor threads posting events now
+ * wait once a dispatch thread falls that far behind, instead of the
+ * backlog growing without limit. Since a dispatch thread locks the
+ * session of the events it dispatches, events must not be posted while
+ * holding a session lock.
  * 
  * @author Gert Jan Verhoog
  * @author David Bird
  */
 public class EventDispatcher extends JRadiusThread
 {
-    private BlockingQueue<JRadiusEvent> eventQueue = new LinkedBlockingQueue<JRadiusEvent>();
+    public static final String OVERFLOW_BLOCK = "block";
+    public static final String OVERFLOW_DROP = "drop";
+    public static final String OVERFLOW_DROP_OLDEST = "drop-oldest";
+
     private List<JRCommand> eventHandlers = new LinkedList<JRCommand>();
+    private HandlerDispatchTable eventDispatchTable = new HandlerDispatchTable(eventHandlers);
     private volatile boolean active = false;
 
+    private int threads = 1;
+    private int queueSize = 100000;
+    private String overflow = OVERFLOW_BLOCK;
+
+    private volatile Worker[] workers;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
     public EventDispatcher()
     {
         super();
     }
 
-    public void post(JRadiusEvent event)
+    /**
+     * One dispatch thread and its queue. The first worker runs
+     * in the thread of the dispatcher itself.
+     */
+    private class Worker implements Runnable
     {
-        while(getActive())
+        final BlockingQueue<JRadiusEvent> queue;
+        volatile int maxDepth;
+        Thread thread;
+
+        Worker()
         {
-            try
+            queue = new LinkedBlockingQueue<JRadiusEvent>(queueSize);
+        }
+
+        public void run()
+        {
+            while (getActive())
+            {
+                try
+                {
+                    Thread.yield();
+                    JRadiusEvent event = queue.take();
+                    dispatchEvent(event);
+                }
+                catch (InterruptedException e)
+                {
+                }
+                catch (Throwable e)
+                {
+                    RadiusLog.error("Error during event dispatch", e);
+                }
+            }
+        }
+
+        void post(JRadiusEvent event)
+        {
+            if (OVERFLOW_BLOCK.equals(overflow))
             {
-                this.eventQueue.put(event);
-                break;
+                while (getActive())
+                {
+                    try
+                    {
+                        queue.put(event);
+                        break;
+                    }
+                    catch (InterruptedException e)
+                    {
+                    }
+                }
             }
-            catch(InterruptedException e)
+            else
             {
+                while (!queue.offer(event))
+                {
+                    if (!OVERFLOW_DROP_OLDEST.equals(overflow) || queue.poll() == null)
+                    {
+                        overflow();
+                        return;
+                    }
+                    overflow();
+                }
             }
+
+            int depth = queue.size();
+            if (depth > maxDepth) maxDepth = depth;
         }
     }
 
+    /**
+     * @return Returns the workers, or an empty array before the dispatcher is started
+     */
+    private Worker[] getWorkers()
+    {
+        Worker[] w = workers;
+        return w == null ? new Worker[0] : w;
+    }
+
+    private void overflow()
+    {
+        long n = dropped.incrementAndGet();
+        if (n % 1000 == 1)
+        {
+            RadiusLog.warn("Event queue full, " + n + " events dropped");
+        }
+    }
+
+    public void post(JRadiusEvent event)
+    {
+        Worker[] w = workers;
+        if (w == null || !getActive()) return;
+
+        String key = getPartitionKey(event);
+        int i = key == null ? next.getAndIncrement() : key.hashCode();
+        w[(i & 0x7fffffff) % w.length].post(event);
+    }
+
+    /**
+     * @param event The event
+     * @return Returns the session key of the event, or null if it has none
+     */
+    protected String getPartitionKey(JRadiusEvent event)
+    {
+        if (event instanceof ServerEvent)
+        {
+            return ((ServerEvent) event).getSessionKey();
+        }
+
+        if (event instanceof SessionExpiredEvent)
+        {
+            JRadiusSession session = ((SessionExpiredEvent) event).getSession();
+            return session == null ? null : session.getSessionKey();
+        }
+
+        return null;
+    }
+
     public void run()
     {
+        Worker[] w = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < w.length; i++)
+        {
+            w[i] = new Worker();
+        }
+
+        // published before active, which post() checks after reading workers
+        this.workers = w;
         this.active = true;
+        publishStatistics();
 
-        while (getActive())
+        for (int i = 1; i < w.length; i++)
         {
-            try
-            {
-                Thread.yield();
-                this.dispatchEvent();
-            }
-            catch (Throwable e)
-            {
-                RadiusLog.error("Error during event dispatch", e);
-            }
+            w[i].thread = new JRadiusThread(w[i]);
+            w[i].thread.setDaemon(true);
+            w[i].thread.start();
         }
+
+        w[0].thread = this;
+        w[0].run();
+    }
+
+    /**
+     * Publishes the backlog of the dispatcher to the StatisticsRegistry
+     */
+    private void publishStatistics()
+    {
+        StatisticsRegistry.Group stats = StatisticsRegistry.getInstance().getGroup("EventDispatcher", getName());
+
+        stats.gauge("queue_depth", "Events waiting to be dispatched", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return getQueueDepth(); }
+        });
+        stats.gauge("max_queue_depth", "Highest number of events waiting for a dispatch thread", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return getMaxQueueDepth(); }
+        });
+        stats.counter("dispatched", "Events dispatched", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return getDispatched(); }
+        });
+        stats.counter("dropped", "Events dropped because the queue was full", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return getDropped(); }
+        });
     }
 
     public boolean getActive()
@@ -97,6 +264,15 @@ public class EventDispatcher extends JRadiusThread
             try
             {
                 this.interrupt();
+
+                Worker[] w = workers;
+                if (w != null)
+                {
+                    for (int i = 1; i < w.length; i++)
+                    {
+                        if (w[i].thread != null) w[i].thread.interrupt();
+                    }
+                }
             }
             catch(Throwable t)
             {
@@ -104,24 +280,12 @@ public class EventDispatcher extends JRadiusThread
         }
     }
 
-    private void dispatchEvent()
+    private void dispatchEvent(JRadiusEvent event)
     {
-        JRadiusEvent event = null;
-
-        while (getActive())
-        {
-            try
-            {
-                event = this.eventQueue.take();
-                break;
-            }
-            catch(InterruptedException e)
-            {
-            }
-        }
-
         if (event != null)
         {
+            dispatched.incrementAndGet();
+
             JRadiusSessionManager sessionManager = JRadiusSessionManager.getManager(event.getSender());
             JRadiusSession session = null;
 
@@ -137,11 +301,14 @@ public class EventDispatcher extends JRadiusThread
 
             try
             {
-                for (JRCommand command : eventHandlers)
+                HandlerDispatchTable.Entry entry = eventDispatchTable.lookup(event);
+
+                for (int i = 0; i < entry.size(); i++)
                 {
+                    JRCommand command = entry.getHandler(i);
                     try
                     {
-                        if (command.doesHandle(event)) 
+                        if (entry.handles(i, event)) 
                             if (command.execute(event)) 
                                 break;
                     }
@@ -169,5 +336,95 @@ public class EventDispatcher extends JRadiusThread
     public void setEventHandlers(List<JRCommand> eventHandlers)
     {
         this.eventHandlers = eventHandlers;
+        this.eventDispatchTable = new HandlerDispatchTable(eventHandlers);
+    }
+
+    /**
+     * @return Returns the number of events waiting to be dispatched
+     */
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        for (Worker w : getWorkers())
+        {
+            depth += w.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @param thread The index of the dispatch thread
+     * @return Returns the number of events waiting for the thread
+     */
+    public int getQueueDepth(int thread)
+    {
+        Worker[] w = getWorkers();
+        return thread < w.length ? w[thread].queue.size() : 0;
+    }
+
+    /**
+     * @return Returns the highest number of events waiting for any thread
+     */
+    public int getMaxQueueDepth()
+    {
+        int max = 0;
+        for (Worker w : getWorkers())
+        {
+            if (w.maxDepth > max) max = w.maxDepth;
+        }
+        return max;
+    }
+
+    public long getDispatched()
+    {
+        return dispatched.get();
+    }
+
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @param threads The number of dispatch threads (set before the dispatcher is started)
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    public int getQueueSize()
+    {
+        return queueSize;
+    }
+
+    /**
+     * @param queueSize The capacity of the queue of each dispatch thread (set before the dispatcher is started)
+     */
+    public void setQueueSize(int queueSize)
+    {
+        this.queueSize = queueSize;
+    }
+
+    public String getOverflow()
+    {
+        return overflow;
+    }
+
+    /**
+     * @param overflow What post() does when a queue is full: "block", "drop" or "drop-oldest"
+     */
+    public void setOverflow(String overflow)
+    {
+        if (!OVERFLOW_BLOCK.equals(overflow) && !OVERFLOW_DROP.equals(overflow) && !OVERFLOW_DROP_OLDEST.equals(overflow))
+        {
+            throw new IllegalArgumentException("Unknown overflow " + overflow);
+        }
+        this.overflow = overflow;
     }
 }
@@ -0,0 +1,224 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.jradius.handler.chain.JRCommand;
+import net.jradius.log.RadiusLog;
+
+/**
+ * Call counts, result codes, exceptions and latencies of the packet
+ * handlers, by handler name and request type. The RadiusProcessor and
+ * the WebServiceProcessor record every handler they run in the shared
+ * instance; recording is lock free and costs two System.nanoTime() calls
+ * and a few atomic increments.
+ * <p>
+ * Each handler and request type is registered as a JMX MBean named
+ * "net.jradius:type=Handler,name=...,request=..." when first seen, and
+ * writeText() formats all of them in the Prometheus text format
+ * (see net.jradius.webservice.MetricsService).
+ */
+public class HandlerMetrics
+{
+    private static final int MAX_TYPES = 32;
+
+    private static final HandlerMetrics instance = new HandlerMetrics();
+
+    private final ConcurrentHashMap<String, AtomicReferenceArray<HandlerStats>> handlers = 
+        new ConcurrentHashMap<String, AtomicReferenceArray<HandlerStats>>();
+
+    private volatile boolean jmx = true;
+
+    /**
+     * @return Returns the metrics shared by all processors
+     */
+    public static HandlerMetrics getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Records one run of a handler
+     * @param handler The handler
+     * @param event The event (request) it ran for
+     * @param result The result code, or -1 for none
+     * @param nanos The time spent (in nanoseconds)
+     * @param exception Whether the handler threw an exception
+     */
+    public void record(JRCommand handler, JRadiusEvent event, int result, long nanos, boolean exception)
+    {
+        getStats(handler, event).record(result, nanos / 1000, exception);
+    }
+
+    /**
+     * @return Returns the stats of the handler for the type of the event,
+     * created when first asked for
+     */
+    public HandlerStats getStats(JRCommand handler, JRadiusEvent event)
+    {
+        String name = handler.getName();
+        if (name == null) name = handler.getClass().getName();
+
+        AtomicReferenceArray<HandlerStats> types = handlers.get(name);
+
+        if (types == null)
+        {
+            types = new AtomicReferenceArray<HandlerStats>(MAX_TYPES);
+            AtomicReferenceArray<HandlerStats> t = handlers.putIfAbsent(name, types);
+            if (t != null) types = t;
+        }
+
+        int type = event.getType();
+        if (type < 0 || type >= MAX_TYPES) type = 0;
+
+        HandlerStats stats = types.get(type);
+
+        if (stats == null)
+        {
+            stats = new HandlerStats(name, event.getTypeString());
+            if (types.compareAndSet(type, null, stats))
+            {
+                if (jmx) register(stats);
+            }
+            else
+            {
+                stats = types.get(type);
+            }
+        }
+
+        return stats;
+    }
+
+    private void register(HandlerStats stats)
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("net.jradius:type=Handler,name=" + ObjectName.quote(stats.getHandler()) 
+                    + ",request=" + ObjectName.quote(stats.getRequestType()));
+            if (!server.isRegistered(name)) server.registerMBean(stats, name);
+        }
+        catch (Exception e)
+        {
+            RadiusLog.warn("Unable to register handler metrics of " + stats.getHandler() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Returns the stats of all handlers, sorted by handler and request type
+     */
+    public List<HandlerStats> getStats()
+    {
+        List<HandlerStats> list = new ArrayList<HandlerStats>();
+
+        for (Iterator<AtomicReferenceArray<HandlerStats>> i = handlers.values().iterator(); i.hasNext();)
+        {
+            AtomicReferenceArray<HandlerStats> types = i.next();
+            for (int t = 0; t < types.length(); t++)
+            {
+                HandlerStats stats = types.get(t);
+                if (stats != null) list.add(stats);
+            }
+        }
+
+        Collections.sort(list, new Comparator<HandlerStats>()
+        {
+            public int compare(HandlerStats a, HandlerStats b)
+            {
+                int c = a.getHandler().compareTo(b.getHandler());
+                return c != 0 ? c : a.getRequestType().compareTo(b.getRequestType());
+            }
+        });
+
+        return list;
+    }
+
+    public void reset()
+    {
+        for (HandlerStats stats : getStats())
+        {
+            stats.reset();
+        }
+    }
+
+    /**
+     * Formats the metrics in the Prometheus text exposition format
+     * @param sb The buffer to append to
+     */
+    public void writeText(StringBuilder sb)
+    {
+        List<HandlerStats> list = getStats();
+        
+        PrometheusWriter.family(sb, "jradius_handler_calls_total", "counter", "Number of times the handler ran");
+        for (HandlerStats stats : list)
+        {
+            PrometheusWriter.sample(sb, "jradius_handler_calls_total", labels(stats), stats.getCalls());
+        }
+
+        PrometheusWriter.family(sb, "jradius_handler_exceptions_total", "counter", "Number of exceptions thrown by the handler");
+        for (HandlerStats stats : list)
+        {
+            PrometheusWriter.sample(sb, "jradius_handler_exceptions_total", labels(stats), stats.getExceptions());
+        }
+
+        PrometheusWriter.family(sb, "jradius_handler_results_total", "counter", "Result codes returned by the handler");
+        for (HandlerStats stats : list)
+        {
+            for (int r = 0; r < JRadiusServer.RLM_MODULE_NUMCODES; r++)
+            {
+                long n = stats.getResultCount(r);
+                if (n > 0) PrometheusWriter.sample(sb, "jradius_handler_results_total", new String[] { "handler", 
+                        stats.getHandler(), "type", stats.getRequestType(), "result", JRadiusServer.resultCodeToString(r) }, n);
+            }
+        }
+
+        PrometheusWriter.family(sb, "jradius_handler_latency_seconds", "summary", "Time spent in the handler");
+        for (HandlerStats stats : list)
+        {
+            PrometheusWriter.summary(sb, "jradius_handler_latency_seconds", labels(stats), stats.getLatency());
+        }
+    }
+
+    private static String[] labels(HandlerStats stats)
+    {
+        return new String[] { "handler", stats.getHandler(), "type", stats.getRequestType() };
+    }
+
+    /**
+     * @param jmx Whether to register the stats as JMX MBeans (default true)
+     */
+    public void setJmx(boolean jmx)
+    {
+        this.jmx = jmx;
+    }
+}
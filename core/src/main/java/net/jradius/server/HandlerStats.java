@@ -0,0 +1,149 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jradius.util.LatencyHistogram;
+
+/**
+ * The counters and latency histogram of one handler for one request type.
+ * Recording is lock free.
+ * @see HandlerMetrics
+ */
+public class HandlerStats implements HandlerStatsMBean
+{
+    private final String handler;
+    private final String requestType;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong exceptions = new AtomicLong();
+    private final AtomicLongArray results = new AtomicLongArray(JRadiusServer.RLM_MODULE_NUMCODES);
+    private final LatencyHistogram latency = new LatencyHistogram(600L * 1000000L, 6);
+
+    public HandlerStats(String handler, String requestType)
+    {
+        this.handler = handler;
+        this.requestType = requestType;
+    }
+
+    /**
+     * @param result The result code, or -1 for none
+     * @param micros The time spent in the handler (in microseconds)
+     * @param exception Whether the handler threw an exception
+     */
+    public void record(int result, long micros, boolean exception)
+    {
+        calls.incrementAndGet();
+        if (exception) exceptions.incrementAndGet();
+        if (result >= 0 && result < JRadiusServer.RLM_MODULE_NUMCODES) results.incrementAndGet(result);
+        latency.record(micros);
+    }
+
+    public String getHandler()
+    {
+        return handler;
+    }
+
+    public String getRequestType()
+    {
+        return requestType;
+    }
+
+    public long getCalls()
+    {
+        return calls.get();
+    }
+
+    public long getExceptions()
+    {
+        return exceptions.get();
+    }
+
+    public long getResultCount(int result)
+    {
+        return results.get(result);
+    }
+
+    public long[] getResultCounts()
+    {
+        long[] counts = new long[results.length()];
+        for (int i = 0; i < counts.length; i++) counts[i] = results.get(i);
+        return counts;
+    }
+
+    public long getRejects()
+    {
+        return results.get(JRadiusServer.RLM_MODULE_REJECT);
+    }
+
+    public long getFails()
+    {
+        return results.get(JRadiusServer.RLM_MODULE_FAIL);
+    }
+
+    /**
+     * @return Returns the latency histogram (in microseconds)
+     */
+    public LatencyHistogram getLatency()
+    {
+        return latency;
+    }
+
+    public double getLatencyMean()
+    {
+        return latency.getMean();
+    }
+
+    public long getLatency50()
+    {
+        return latency.getValueAtPercentile(50);
+    }
+
+    public long getLatency90()
+    {
+        return latency.getValueAtPercentile(90);
+    }
+
+    public long getLatency99()
+    {
+        return latency.getValueAtPercentile(99);
+    }
+
+    public long getLatency999()
+    {
+        return latency.getValueAtPercentile(99.9);
+    }
+
+    public long getLatencyMax()
+    {
+        return latency.getMax();
+    }
+
+    public void reset()
+    {
+        calls.set(0);
+        exceptions.set(0);
+        for (int i = 0; i < results.length(); i++) results.set(i, 0);
+        latency.reset();
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.server;
+
+/**
+ * The JMX management interface of the HandlerStats of one handler and
+ * request type. Latencies are in microseconds.
+ */
+public interface HandlerStatsMBean
+{
+    public String getHandler();
+    public String getRequestType();
+    public long getCalls();
+    public long getExceptions();
+
+    /**
+     * @return Returns the number of times each result code was returned,
+     * indexed by result code (JRadiusServer.RLM_MODULE_*)
+     */
+    public long[] getResultCounts();
+
+    public long getRejects();
+    public long getFails();
+    public double getLatencyMean();
+    public long getLatency50();
+    public long getLatency90();
+    public long getLatency99();
+    public long getLatency999();
+    public long getLatencyMax();
+    public void reset();
+}
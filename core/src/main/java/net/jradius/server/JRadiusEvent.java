@@ -21,19 +21,46 @@
 
 package net.jradius.server;
 
-import org.apache.commons.chain.impl.ContextBase;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.chain.Context;
 import org.springframework.context.ApplicationContext;
 
 /**
  * The JRadiusEvent is the base class for server events and JRadiusRequests.
+ * <p>
+ * An event is the commons-chain Context of the handlers. As with ContextBase,
+ * the bean properties of the event can be read and written as entries of the
+ * context, and other entries are kept in a map. Unlike ContextBase, the bean
+ * properties are introspected once per class rather than for every event,
+ * and the map is only allocated when an entry is put. Events are equal only
+ * to themselves.
+ * 
  * @author Gert Jan Verhoog
  * @author David Bird
  */
-public abstract class JRadiusEvent extends ContextBase
+@SuppressWarnings("unchecked")
+public abstract class JRadiusEvent extends AbstractMap implements Context, Serializable
 {
+    private static final long serialVersionUID = 0L;
+
+    private static final ConcurrentHashMap<Class<?>, Map<String, PropertyDescriptor>> propertyCache = 
+        new ConcurrentHashMap<Class<?>, Map<String, PropertyDescriptor>>();
+
     protected ApplicationContext applicationContext;
     private Listener listener;
     private Object sender;
+    private HashMap<Object, Object> attributes;
 
     /**
      * @return Returns the type of the JRadiusRequest
@@ -75,4 +102,155 @@ public abstract class JRadiusEvent extends ContextBase
     {
         this.applicationContext = applicationContext;
     }
+
+    /**
+     * @return Returns the readable bean properties of the class, by name
+     */
+    private Map<String, PropertyDescriptor> properties()
+    {
+        Class<?> c = getClass();
+        Map<String, PropertyDescriptor> map = propertyCache.get(c);
+
+        if (map == null)
+        {
+            map = new HashMap<String, PropertyDescriptor>();
+
+            try
+            {
+                PropertyDescriptor[] pd = Introspector.getBeanInfo(c).getPropertyDescriptors();
+                for (int i = 0; i < pd.length; i++)
+                {
+                    String name = pd[i].getName();
+                    // "empty" is isEmpty() of the map itself
+                    if ("class".equals(name) || "empty".equals(name) || pd[i].getReadMethod() == null) continue;
+                    map.put(name, pd[i]);
+                }
+            }
+            catch (IntrospectionException e)
+            {
+                throw new IllegalStateException("Unable to introspect " + c.getName() + ": " + e.getMessage());
+            }
+
+            map = Collections.unmodifiableMap(map);
+            propertyCache.putIfAbsent(c, map);
+        }
+
+        return map;
+    }
+
+    private Object readProperty(PropertyDescriptor pd)
+    {
+        try
+        {
+            return pd.getReadMethod().invoke(this, new Object[0]);
+        }
+        catch (Exception e)
+        {
+            throw new UnsupportedOperationException("Unable to read property " + pd.getName() + ": " + e.getMessage());
+        }
+    }
+
+    public Object get(Object key)
+    {
+        PropertyDescriptor pd = properties().get(key);
+        if (pd != null) return readProperty(pd);
+        return attributes == null ? null : attributes.get(key);
+    }
+
+    public Object put(Object key, Object value)
+    {
+        PropertyDescriptor pd = properties().get(key);
+
+        if (pd != null)
+        {
+            if (pd.getWriteMethod() == null)
+            {
+                throw new UnsupportedOperationException("Property " + key + " is read only");
+            }
+
+            Object previous = readProperty(pd);
+
+            try
+            {
+                pd.getWriteMethod().invoke(this, new Object[] { value });
+            }
+            catch (Exception e)
+            {
+                throw new UnsupportedOperationException("Unable to write property " + key + ": " + e.getMessage());
+            }
+
+            return previous;
+        }
+
+        if (attributes == null) attributes = new HashMap<Object, Object>();
+        return attributes.put(key, value);
+    }
+
+    public Object remove(Object key)
+    {
+        if (properties().containsKey(key))
+        {
+            throw new UnsupportedOperationException("Property " + key + " can not be removed");
+        }
+
+        return attributes == null ? null : attributes.remove(key);
+    }
+
+    public boolean containsKey(Object key)
+    {
+        return properties().containsKey(key) || (attributes != null && attributes.containsKey(key));
+    }
+
+    public int size()
+    {
+        return properties().size() + (attributes == null ? 0 : attributes.size());
+    }
+
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    public void clear()
+    {
+        if (attributes != null) attributes.clear();
+    }
+
+    /**
+     * @return Returns a snapshot of the properties and the other entries
+     */
+    public Set entrySet()
+    {
+        HashMap<Object, Object> map = new HashMap<Object, Object>();
+
+        for (Iterator<PropertyDescriptor> i = properties().values().iterator(); i.hasNext();)
+        {
+            PropertyDescriptor pd = i.next();
+            try
+            {
+                map.put(pd.getName(), readProperty(pd));
+            }
+            catch (UnsupportedOperationException e)
+            {
+            }
+        }
+
+        if (attributes != null) map.putAll(attributes);
+        return Collections.unmodifiableMap(map).entrySet();
+    }
+
+    public String toString()
+    {
+        return getClass().getName() + "[" + getTypeString() + "]";
+    }
+
+    public boolean equals(Object o)
+    {
+        return this == o;
+    }
+
+    public int hashCode()
+    {
+        return System.identityHashCode(this);
+    }
 }
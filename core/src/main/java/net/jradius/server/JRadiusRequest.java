@@ -48,6 +48,7 @@ public abstract class JRadiusRequest extends JRadiusEvent
 	private static final long serialVersionUID = 1L;
 	
 	private JRadiusSession session;
+	private transient RequestTimestamps timestamps;
 
     /**
      * @return Returns the return value of the JRadiusRequest
@@ -79,6 +80,28 @@ public abstract class JRadiusRequest extends JRadiusEvent
      */
     public abstract void setPackets(RadiusPacket[] packets);
     
+    /**
+     * @return Returns the timestamps of the stages of the request (or null)
+     */
+    public RequestTimestamps getTimestamps()
+    {
+        return timestamps;
+    }
+
+    public void setTimestamps(RequestTimestamps timestamps)
+    {
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Marks a stage of the request, if it is timed
+     * @param stage The stage (see RequestTimestamps)
+     */
+    public void markTimestamp(int stage)
+    {
+        if (timestamps != null) timestamps.mark(stage);
+    }
+
     /**
      * Get the RadiusSession assinged to this JRadiusRequest
      * @return Returns the session.
@@ -21,10 +21,13 @@
 
 package net.jradius.server;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -32,6 +35,7 @@ import org.springframework.beans.factory.InitializingBean;
 
 import net.jradius.handler.chain.JRCommand;
 import net.jradius.log.RadiusLog;
+import net.jradius.packet.PacketFactory;
 import net.jradius.packet.attribute.AttributeDictionary;
 import net.jradius.packet.attribute.AttributeFactory;
 import net.jradius.server.config.Configuration;
@@ -75,6 +79,8 @@ public class JRadiusServer implements InitializingBean
 
     private List<Processor> processors;
     private List<Listener> listeners;
+    private List<PacketCapture> packetCaptures;
+    private List<RequestTracer> requestTracers;
     
     private EventDispatcher eventDispatcher;
     
@@ -96,6 +102,8 @@ public class JRadiusServer implements InitializingBean
     {
         processors = new LinkedList<Processor>();
         listeners = new LinkedList<Listener>();
+        packetCaptures = new LinkedList<PacketCapture>();
+        requestTracers = new LinkedList<RequestTracer>();
     }
 
     public JRadiusServer(EventDispatcher eventDispatcher) throws Exception
@@ -129,6 +137,12 @@ public class JRadiusServer implements InitializingBean
             RadiusLog.info("Starting Event Dispatcher...");
             this.eventDispatcher.start();
 
+            for (PacketCapture capture : packetCaptures)
+            {
+                capture.start();
+                RadiusLog.info("Capturing packets to " + capture.getFileName());
+            }
+
             RadiusLog.info("Starting Processors...");
             for (Iterator i = processors.iterator(); i.hasNext();)
             {
@@ -170,6 +184,16 @@ public class JRadiusServer implements InitializingBean
                 processor.interrupt();
             }
 
+            for (PacketCapture capture : packetCaptures)
+            {
+                capture.shutdown();
+            }
+
+            for (RequestTracer tracer : requestTracers)
+            {
+                tracer.close();
+            }
+
             JRadiusSessionManager.shutdownManagers();
 
             this.eventDispatcher.setActive(false);
@@ -200,10 +224,27 @@ public class JRadiusServer implements InitializingBean
         }
         for (ListenerConfigurationItem listenerConfig :  Configuration.getListenerConfigs())
         {
-            LinkedBlockingQueue<ListenerRequest> queue = new LinkedBlockingQueue<ListenerRequest>();
-            createListenerWithConfigAndQueue(listenerConfig, queue);
-            createProcessorsWithConfigAndQueue(listenerConfig, queue);
+            int firstProcessor = processors.size();
+
+            if ("true".equalsIgnoreCase(listenerConfig.getProperties().get("affinity")))
+            {
+                AffinityDispatcher dispatcher = new AffinityDispatcher(listenerConfig.getNumberOfThreads());
+                createListenerWithConfigAndQueue(listenerConfig, dispatcher.getListenerQueue());
+                createProcessorsWithConfigAndDispatcher(listenerConfig, dispatcher);
+                RadiusLog.info("Using session affinity for listener " + listenerConfig.getName());
+            }
+            else
+            {
+                LinkedBlockingQueue<ListenerRequest> queue = new LinkedBlockingQueue<ListenerRequest>();
+                createListenerWithConfigAndQueue(listenerConfig, queue);
+                createProcessorsWithConfigAndQueue(listenerConfig, queue);
+            }
+
+            setPacketCaptureForProcessors(listenerConfig, processors.subList(firstProcessor, processors.size()));
+            setRequestTracerForProcessors(listenerConfig, processors.subList(firstProcessor, processors.size()));
+            publishListenerStatistics(listenerConfig, listeners.get(listeners.size() - 1), processors.subList(firstProcessor, processors.size()));
         }
+        publishPoolStatistics();
         RadiusLog.info("JRadius Server succesfully Initialized.");
     }
 
@@ -222,6 +263,133 @@ public class JRadiusServer implements InitializingBean
         }
     }
 
+    private void createProcessorsWithConfigAndDispatcher(ListenerConfigurationItem listenerConfig, AffinityDispatcher dispatcher) throws Exception
+    {
+        for (int j = 0; j < listenerConfig.getNumberOfThreads(); j++)
+        {
+            Processor processor = newProcessorForName(listenerConfig.getProcessorClassName());
+            processor.setRequestQueue(dispatcher.getProcessorQueue(j));
+            RadiusLog.info("Created processor " + processor.getName());
+            setPacketHandlersForProcessor(listenerConfig, processor);
+            setEventHandlersForProcessor(listenerConfig, eventDispatcher);
+            processor.setEventDispatcher(eventDispatcher);
+            processors.add(processor);
+        }
+    }
+
+    private void setPacketCaptureForProcessors(ListenerConfigurationItem cfg, List<Processor> listenerProcessors)
+    {
+        Map<String, String> props = cfg.getProperties();
+        String fileName = props.get("capture");
+        if (fileName == null) return;
+
+        String s = props.get("captureMaxPending");
+        PacketCapture capture = new PacketCapture(fileName, 
+                "true".equalsIgnoreCase(props.get("capturePasswords")), 
+                s == null ? 10000 : Integer.parseInt(s));
+
+        for (Processor processor : listenerProcessors)
+        {
+            if (processor instanceof RadiusProcessor)
+            {
+                ((RadiusProcessor) processor).setPacketCapture(capture);
+            }
+        }
+
+        packetCaptures.add(capture);
+    }
+
+    private void setRequestTracerForProcessors(ListenerConfigurationItem cfg, List<Processor> listenerProcessors) throws IOException
+    {
+        Map<String, String> props = cfg.getProperties();
+        String fileName = props.get("trace");
+        if (fileName == null) return;
+
+        String s = props.get("traceSize");
+        RequestTracer tracer = new RequestTracer(fileName, 
+                (s == null ? 64 : Integer.parseInt(s)) * 1024 * 1024,
+                "true".equalsIgnoreCase(props.get("tracePasswords")));
+
+        s = props.get("traceSampleRate");
+        if (s != null) tracer.setSampleRate(Integer.parseInt(s));
+        tracer.setUserName(props.get("traceUserName"));
+        tracer.setNas(props.get("traceNas"));
+        tracer.setRealm(props.get("traceRealm"));
+
+        for (Processor processor : listenerProcessors)
+        {
+            if (processor instanceof RadiusProcessor)
+            {
+                ((RadiusProcessor) processor).setRequestTracer(tracer);
+            }
+        }
+
+        requestTracers.add(tracer);
+        RadiusLog.info("Tracing requests of " + cfg.getName() + " to " + fileName);
+    }
+
+    /**
+     * Publishes the queue depth and connections of a listener to the StatisticsRegistry
+     */
+    private void publishListenerStatistics(ListenerConfigurationItem cfg, final Listener listener, List<Processor> listenerProcessors)
+    {
+        final List<BlockingQueue<ListenerRequest>> queues = new ArrayList<BlockingQueue<ListenerRequest>>();
+
+        for (Processor processor : listenerProcessors)
+        {
+            BlockingQueue<ListenerRequest> queue = processor.getRequestQueue();
+            if (queue != null && !queues.contains(queue)) queues.add(queue);
+        }
+
+        StatisticsRegistry.Group stats = StatisticsRegistry.getInstance().getGroup("Listener", cfg.getName());
+
+        stats.gauge("queue_depth", "Requests waiting for a processor", new StatisticsRegistry.Gauge()
+        {
+            public long getValue()
+            {
+                long depth = 0;
+                for (BlockingQueue<ListenerRequest> queue : queues) depth += queue.size();
+                return depth;
+            }
+        });
+
+        if (listener instanceof TCPListener)
+        {
+            stats.gauge("connections", "Open keep-alive connections", new StatisticsRegistry.Gauge()
+            {
+                public long getValue() { return ((TCPListener) listener).getConnectionCount(); }
+            });
+        }
+    }
+
+    /**
+     * Publishes the sizes of the packet and attribute pools to the StatisticsRegistry
+     */
+    private void publishPoolStatistics()
+    {
+        StatisticsRegistry registry = StatisticsRegistry.getInstance();
+
+        StatisticsRegistry.Group stats = registry.getGroup("Pool", "packet");
+        stats.gauge("active", "Pooled objects in use", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return PacketFactory.getPoolActive(); }
+        });
+        stats.gauge("idle", "Idle pooled objects", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return PacketFactory.getPoolIdle(); }
+        });
+
+        stats = registry.getGroup("Pool", "attribute");
+        stats.gauge("active", "Pooled objects in use", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return AttributeFactory.getPoolActive(); }
+        });
+        stats.gauge("idle", "Idle pooled objects", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return AttributeFactory.getPoolIdle(); }
+        });
+    }
+
     private void setPacketHandlersForProcessor(ListenerConfigurationItem cfg, Processor processor)
     {
         List<JRCommand> requestHandlers = cfg.getRequestHandlers();
@@ -56,6 +56,15 @@ public class KeepAliveListener extends JRadiusThread
         {
             while (true)
             {
+            	// wait for the next request, so that it is timed from its arrival
+            	bin.mark(1);
+            	if (bin.read() < 0)
+            	{
+                    RadiusLog.info(this.getClass().getName() + ".run(): shutting down tcp socket listener");
+                    break;
+            	}
+            	bin.reset();
+
             	TCPListenerRequest lr = (TCPListenerRequest) listener.requestObjectPool.borrowObject();
             	lr.setBorrowedFromPool(listener.requestObjectPool);
             	lr.accept(this.socket, this.bin, this.bout, this.listener, true, true);
@@ -67,6 +76,7 @@ public class KeepAliveListener extends JRadiusThread
                 }
                 
                 // enqueue item to list so one of processors can start processing
+                lr.getTimestamps().mark(RequestTimestamps.ENQUEUE);
                 while (true)
                 {
                     try
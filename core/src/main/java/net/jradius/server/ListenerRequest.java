@@ -26,6 +26,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.attribute.AttributeDictionary;
+import net.jradius.packet.attribute.RadiusAttribute;
 
 import org.apache.commons.pool.ObjectPool;
 
@@ -37,6 +42,9 @@ public abstract class ListenerRequest
     protected JRadiusEvent event;
     protected Listener listener;
     protected ObjectPool borrowedFromPool;
+    protected int affinityKey;
+    protected final RequestTimestamps timestamps = new RequestTimestamps();
+    private final AtomicInteger references = new AtomicInteger(1);
     
     public ListenerRequest()
     {
@@ -77,7 +85,9 @@ public abstract class ListenerRequest
     {
         JRadiusEvent e = listener.parseRequest(this, getByteBufferIn(), getInputStream());
         if (e == null) return null;
+        timestamps.mark(RequestTimestamps.PARSE);
         e.setListener(listener);
+        if (e instanceof JRadiusRequest) ((JRadiusRequest) e).setTimestamps(timestamps);
         return e;
     }
     
@@ -91,9 +101,78 @@ public abstract class ListenerRequest
         return event;
     }
     
+    /**
+     * A cheap hash of the subscriber the request belongs to, computed from
+     * the Calling-Station-Id (or User-Name) and the NAS of the request packet.
+     * Only available once the event is parsed, which keep-alive listeners
+     * do before queueing the request.
+     * @return Returns the affinity key, or 0 when unknown
+     * @see AffinityDispatcher
+     */
+    public int getAffinityKey()
+    {
+        if (affinityKey == 0 && event instanceof JRadiusRequest)
+        {
+            RadiusPacket[] packets = ((JRadiusRequest) event).getPackets();
+            if (packets != null && packets.length > 0 && packets[0] != null)
+            {
+                RadiusPacket p = packets[0];
+                int key = hashAttribute(p, AttributeDictionary.CALLING_STATION_ID);
+                if (key == 0) key = hashAttribute(p, AttributeDictionary.USER_NAME);
+                if (key != 0)
+                {
+                    int nas = hashAttribute(p, AttributeDictionary.NAS_IP_ADDRESS);
+                    if (nas == 0) nas = hashAttribute(p, AttributeDictionary.NAS_IDENTIFIER);
+                    affinityKey = key * 31 + nas;
+                }
+            }
+        }
+
+        return affinityKey;
+    }
+
+    private static int hashAttribute(RadiusPacket p, long type)
+    {
+        RadiusAttribute a = p.findAttribute(type);
+        if (a == null || a.getValue() == null) return 0;
+        Object o = a.getValue().getValueObject();
+        return o == null ? 0 : o.hashCode();
+    }
+
+    /**
+     * Keeps the request from being returned to its pool when the processor
+     * is done with it, for a request that completes on another thread.
+     * Every retain() is matched by a release().
+     */
+    public void retain()
+    {
+        references.incrementAndGet();
+    }
+
+    /**
+     * @return Returns true when the last reference is released, the request
+     * may then be returned to its pool
+     */
+    public boolean release()
+    {
+        if (references.decrementAndGet() != 0) return false;
+        references.set(1);
+        return true;
+    }
+
+    /**
+     * @return Returns the timestamps of the stages of the request
+     */
+    public RequestTimestamps getTimestamps()
+    {
+        return timestamps;
+    }
+
     public void clear()
     {
     	event = null;
+    	affinityKey = 0;
+    	timestamps.clear();
     }
 
 	public ObjectPool getBorrowedFromPool() {
@@ -0,0 +1,286 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.jradius.log.RadiusLog;
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusFormat;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.attribute.AttributeDictionary;
+
+/**
+ * Records the request packets of a listener to a file, for replaying
+ * them later as a benchmark workload (see RadReplay). The file starts
+ * with a header (magic "JRPC", version and flags) followed by one record
+ * per packet: the capture time in microseconds since the epoch, the
+ * length of the packet and the packet in RADIUS wire format.
+ * <p>
+ * The packets are recorded as the handlers see them; User-Password (in
+ * clear text with FreeRADIUS) and CHAP-Password are left out unless
+ * capturePasswords is set. Packets are encoded in the processor thread
+ * and written by the capture thread; when the writer falls behind,
+ * packets are dropped rather than slowing down the server.
+ * <p>
+ * Enabled with the listener property "capture" set to the file name.
+ */
+public class PacketCapture extends JRadiusThread
+{
+    public static final int MAGIC = 0x4a525043; // "JRPC"
+    public static final int VERSION = 1;
+    public static final int FLAG_PASSWORDS = 1;
+
+    private final String fileName;
+    private final boolean capturePasswords;
+    private final BlockingQueue<Record> queue;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private volatile boolean active = true;
+    private long dropped = 0;
+
+    /**
+     * A captured packet
+     */
+    public static class Record
+    {
+        private final long time;
+        private final byte[] packet;
+
+        public Record(long time, byte[] packet)
+        {
+            this.time = time;
+            this.packet = packet;
+        }
+
+        /**
+         * @return Returns the capture time (in microseconds since the epoch)
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        /**
+         * @return Returns the packet in RADIUS wire format
+         */
+        public byte[] getPacket()
+        {
+            return packet;
+        }
+    }
+
+    /**
+     * @param fileName The capture file (overwritten)
+     * @param capturePasswords Whether to record User-Password and CHAP-Password
+     * @param maxPending The maximum number of packets waiting to be written
+     */
+    public PacketCapture(String fileName, boolean capturePasswords, int maxPending)
+    {
+        this.fileName = fileName;
+        this.capturePasswords = capturePasswords;
+        this.queue = new ArrayBlockingQueue<Record>(maxPending);
+        setDaemon(true);
+    }
+
+    /**
+     * Records a packet (the packet itself is not changed)
+     */
+    public void capture(RadiusPacket packet)
+    {
+        if (!active || packet == null) return;
+
+        byte[] bytes = encode(packet, capturePasswords);
+        if (bytes == null) return;
+
+        long time = startMillis * 1000L + (System.nanoTime() - startNanos) / 1000L;
+
+        if (!queue.offer(new Record(time, bytes)))
+        {
+            synchronized (this)
+            {
+                if (dropped++ % 1000 == 0)
+                {
+                    RadiusLog.warn("Packet capture to " + fileName + " is falling behind, " + dropped + " packets dropped");
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes a copy of the packet in RADIUS wire format (also used by RequestTracer)
+     * @param packet The packet (not changed)
+     * @param passwords Whether to keep User-Password and CHAP-Password
+     * @return Returns the encoded packet, or null if it could not be encoded
+     */
+    static byte[] encode(RadiusPacket packet, boolean passwords)
+    {
+        RadiusPacket p = PacketFactory.copyPacket(packet, false);
+
+        if (!passwords)
+        {
+            p.removeAttribute(AttributeDictionary.USER_PASSWORD);
+            p.removeAttribute(AttributeDictionary.CHAP_PASSWORD);
+        }
+
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+            RadiusFormat.getInstance().packPacket(p, "", buffer, true);
+            byte[] bytes = new byte[buffer.position()];
+            System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+            return bytes;
+        }
+        catch (Exception e)
+        {
+            RadiusLog.debug("Unable to encode packet: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void run()
+    {
+        DataOutputStream out = null;
+
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 65536));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(capturePasswords ? FLAG_PASSWORDS : 0);
+
+            while (active || !queue.isEmpty())
+            {
+                Record record = queue.poll();
+
+                if (record == null)
+                {
+                    out.flush();
+                    try { record = queue.take(); }
+                    catch (InterruptedException e) { continue; }
+                }
+
+                out.writeLong(record.time);
+                out.writeShort(record.packet.length);
+                out.write(record.packet);
+            }
+        }
+        catch (IOException e)
+        {
+            RadiusLog.error("Packet capture to " + fileName + " failed", e);
+            active = false;
+        }
+        finally
+        {
+            try { if (out != null) out.close(); }
+            catch (IOException e) { }
+        }
+    }
+
+    public void shutdown()
+    {
+        active = false;
+        interrupt();
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    /**
+     * Reads a capture file
+     */
+    public static class Reader
+    {
+        private final DataInputStream in;
+        private final int flags;
+
+        public Reader(InputStream in) throws IOException
+        {
+            this.in = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 65536));
+
+            if (this.in.readInt() != MAGIC)
+            {
+                throw new IOException("Not a JRadius packet capture");
+            }
+
+            int version = this.in.readUnsignedShort();
+            if (version != VERSION)
+            {
+                throw new IOException("Unsupported packet capture version " + version);
+            }
+
+            flags = this.in.readUnsignedShort();
+        }
+
+        public Reader(String fileName) throws IOException
+        {
+            this(new FileInputStream(fileName));
+        }
+
+        /**
+         * @return Returns whether the passwords were recorded
+         */
+        public boolean hasPasswords()
+        {
+            return (flags & FLAG_PASSWORDS) != 0;
+        }
+
+        /**
+         * @return Returns the next record, or null at the end of the file
+         */
+        public Record next() throws IOException
+        {
+            long time;
+
+            try
+            {
+                time = in.readLong();
+            }
+            catch (EOFException e)
+            {
+                return null;
+            }
+
+            byte[] packet = new byte[in.readUnsignedShort()];
+            in.readFully(packet);
+            return new Record(time, packet);
+        }
+
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+}
@@ -24,6 +24,7 @@ package net.jradius.server;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
+import net.jradius.handler.chain.HandlerDispatchTable;
 import net.jradius.handler.chain.JRCommand;
 
 import org.apache.commons.logging.Log;
@@ -47,8 +48,12 @@ public abstract class Processor extends JRadiusThread implements ApplicationCont
     private EventDispatcher eventDispatcher;
     
     private List<JRCommand> requestHandlers;
+
+    private HandlerDispatchTable requestDispatchTable;
     
     private BlockingQueue<ListenerRequest> queue;
+
+    private HandlerMetrics handlerMetrics = HandlerMetrics.getInstance();
     
     private boolean active = true;
 
@@ -85,6 +90,7 @@ public abstract class Processor extends JRadiusThread implements ApplicationCont
     public void setRequestHandlers(List<JRCommand> handlers)
     {
         requestHandlers = handlers;
+        requestDispatchTable = handlers == null ? null : new HandlerDispatchTable(handlers);
     }
     
     public List<JRCommand> getRequestHandlers()
@@ -92,6 +98,27 @@ public abstract class Processor extends JRadiusThread implements ApplicationCont
         return requestHandlers;
     }
 
+    /**
+     * @return Returns the request handlers compiled by sender and type (or null)
+     */
+    public HandlerDispatchTable getRequestDispatchTable()
+    {
+        return requestDispatchTable;
+    }
+
+    public HandlerMetrics getHandlerMetrics()
+    {
+        return handlerMetrics;
+    }
+
+    /**
+     * @param handlerMetrics Where the handlers run are recorded (null to disable)
+     */
+    public void setHandlerMetrics(HandlerMetrics handlerMetrics)
+    {
+        this.handlerMetrics = handlerMetrics;
+    }
+
     protected abstract void processRequest(ListenerRequest listenerRequest) throws Exception;
 
     public void run()
@@ -125,6 +152,7 @@ public abstract class Processor extends JRadiusThread implements ApplicationCont
         }
 
 		ListenerRequest request = (ListenerRequest) queueElement;
+		request.getTimestamps().mark(RequestTimestamps.DEQUEUE);
 
 		try
 		{
@@ -132,15 +160,35 @@ public abstract class Processor extends JRadiusThread implements ApplicationCont
 		}
 		finally
 		{
-			ObjectPool pool = request.getBorrowedFromPool();
-			
-	        if (pool != null)
-	        {
-	        	pool.returnObject(request);
-	        }
+			release(request);
 		}
     }
 
+    /**
+     * Returns the request to the pool it was borrowed from, once it is
+     * no longer referenced (see ListenerRequest.retain())
+     * @param request The ListenerRequest
+     * @throws Exception
+     */
+    protected void release(ListenerRequest request) throws Exception
+    {
+        if (!request.release()) return;
+
+        Listener listener = request.getListener();
+        if (listener instanceof TCPListener)
+        {
+            RequestTimings timings = ((TCPListener) listener).getRequestTimings();
+            if (timings != null) timings.record(request);
+        }
+
+        ObjectPool pool = request.getBorrowedFromPool();
+
+        if (pool != null)
+        {
+            pool.returnObject(request);
+        }
+    }
+
     public ApplicationContext getApplicationContext()
     {
         return applicationContext;
@@ -0,0 +1,94 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.server;
+
+import net.jradius.util.LatencyHistogram;
+
+/**
+ * Formats samples in the Prometheus text exposition format, for the
+ * HandlerMetrics and the StatisticsRegistry. Labels are given as pairs of
+ * label name and value; histograms (in microseconds) are written as
+ * summaries in seconds.
+ */
+class PrometheusWriter
+{
+    /**
+     * Writes the HELP and TYPE lines of a metric family
+     */
+    static void family(StringBuilder sb, String family, String type, String help)
+    {
+        sb.append("# HELP ").append(family).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+    }
+
+    static void sample(StringBuilder sb, String metric, String[] labels, double sample)
+    {
+        sample(sb, metric, labels, null, sample);
+    }
+
+    /**
+     * Writes the quantiles, sum and count of a histogram of latencies
+     */
+    static void summary(StringBuilder sb, String family, String[] labels, LatencyHistogram h)
+    {
+        sample(sb, family, labels, "0.5", h.getValueAtPercentile(50) / 1e6);
+        sample(sb, family, labels, "0.9", h.getValueAtPercentile(90) / 1e6);
+        sample(sb, family, labels, "0.99", h.getValueAtPercentile(99) / 1e6);
+        sample(sb, family, labels, "0.999", h.getValueAtPercentile(99.9) / 1e6);
+        sample(sb, family + "_sum", labels, null, h.getMean() * h.getCount() / 1e6);
+        sample(sb, family + "_count", labels, null, h.getCount());
+    }
+
+    private static void sample(StringBuilder sb, String metric, String[] labels, String quantile, double sample)
+    {
+        sb.append(metric).append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2)
+        {
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            escape(sb, labels[i + 1]);
+            sb.append('"');
+        }
+        if (quantile != null)
+        {
+            sb.append(",quantile=\"").append(quantile).append('"');
+        }
+        sb.append("} ");
+        if (sample == Math.rint(sample) && Math.abs(sample) < 1e15) sb.append((long) sample);
+        else sb.append(sample);
+        sb.append('\n');
+    }
+
+    private static void escape(StringBuilder sb, String s)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            switch (c)
+            {
+                case '\\': sb.append("\\\\"); break;
+                case '"': sb.append("\\\""); break;
+                case '\n': sb.append("\\n"); break;
+                default: sb.append(c);
+            }
+        }
+    }
+}
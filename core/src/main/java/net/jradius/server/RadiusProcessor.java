@@ -21,10 +21,11 @@
 
 package net.jradius.server;
 
-import java.util.List;
-
 import net.jradius.exception.RadiusException;
 import net.jradius.exception.RadiusSecurityException;
+import net.jradius.handler.AsyncPacketHandler;
+import net.jradius.handler.HandlerCompletion;
+import net.jradius.handler.chain.HandlerDispatchTable;
 import net.jradius.handler.chain.JRCommand;
 import net.jradius.log.RadiusLog;
 import net.jradius.server.event.HandlerLogEvent;
@@ -39,10 +40,39 @@ import net.jradius.session.JRadiusSessionManager;
  */
 public abstract class RadiusProcessor extends Processor
 {
+    private PacketCapture packetCapture;
+    private RequestTracer requestTracer;
+
     public RadiusProcessor()
     {
         super();
     }
+
+    public PacketCapture getPacketCapture()
+    {
+        return packetCapture;
+    }
+
+    /**
+     * @param packetCapture Records the request packets before they are handled (or null)
+     */
+    public void setPacketCapture(PacketCapture packetCapture)
+    {
+        this.packetCapture = packetCapture;
+    }
+
+    public RequestTracer getRequestTracer()
+    {
+        return requestTracer;
+    }
+
+    /**
+     * @param requestTracer Traces a sample of the requests (or null)
+     */
+    public void setRequestTracer(RequestTracer requestTracer)
+    {
+        this.requestTracer = requestTracer;
+    }
     
     abstract protected void logReturnCode(int result, JRCommand handler);
     
@@ -71,143 +101,405 @@ public abstract class RadiusProcessor extends Processor
         return (e instanceof RadiusSecurityException) ? JRadiusServer.RLM_MODULE_REJECT :  JRadiusServer.RLM_MODULE_FAIL;
     }
 
+    /**
+     * Runs the packet handlers of the request, waiting for any
+     * AsyncPacketHandler to complete.
+     * @param request The JRadiusRequest
+     * @return Returns the result of the handlers
+     */
     protected int runPacketHandlers(JRadiusRequest request)
     {
-        List<JRCommand> handlers = getRequestHandlers();
+        HandlerRun run = new HandlerRun(null, request);
+        run.start();
+        return run.await();
+    }
+
+    /**
+     * Runs the packet handlers of the request, without waiting for an
+     * AsyncPacketHandler: the request is then suspended (its session stays
+     * locked) and the remaining handlers are run by the thread completing
+     * the handler. Once the handlers are done, the return value of the
+     * request is set and requestCompleted() is called, by whichever thread
+     * ran the last handler. The ListenerRequest is retained until then.
+     * @param listenerRequest The ListenerRequest
+     * @param request The JRadiusRequest
+     */
+    protected void runPacketHandlers(ListenerRequest listenerRequest, JRadiusRequest request)
+    {
+        listenerRequest.retain();
+        new HandlerRun(listenerRequest, request).start();
+    }
 
-        int result = JRadiusServer.RLM_MODULE_NOOP;
-        boolean exceptionThrown = false;
-        
-        //RadiusLog.debug("Processing JRadiusRequest: " + request.toString());
-        
-        if (handlers == null) return result;
+    /**
+     * Called when the handlers of a request run with 
+     * runPacketHandlers(ListenerRequest, JRadiusRequest) are done,
+     * to write the response.
+     * @param listenerRequest The ListenerRequest
+     * @param request The JRadiusRequest, with its return value set
+     */
+    protected void requestCompleted(ListenerRequest listenerRequest, JRadiusRequest request)
+    {
+    }
 
-        JRadiusSessionManager sessionManager = JRadiusSessionManager.getManager(request.getSender());
-        JRadiusSession session = null;
+    /**
+     * The state of the handler chain of one request, so that it can be
+     * resumed when an asynchronous handler completes.
+     */
+    private class HandlerRun implements HandlerCompletion.Callback
+    {
+        private final ListenerRequest listenerRequest;
+        private final JRadiusRequest request;
+        private JRadiusSessionManager sessionManager;
+        private JRadiusSession session;
+        private HandlerDispatchTable.Entry entry;
+        private int index = 0;
+        private int result = JRadiusServer.RLM_MODULE_NOOP;
+        private boolean exceptionThrown = false;
+        private boolean done = false;
+        private long started;
+        private RequestTracer.Trace trace;
 
-        /*
-        if (sessionManager == null) 
+        HandlerRun(ListenerRequest listenerRequest, JRadiusRequest request)
         {
-            RadiusLog.error("No JRadiusSessionManager for request: " + request.toString());
-            return result;
+            this.listenerRequest = listenerRequest;
+            this.request = request;
         }
-         */
-        
-        if (sessionManager != null)
+
+        void start()
         {
-        	session = request.getSession();
-        
-	        if (session == null)
-	        {
-	            try
-	            {
-	                session = sessionManager.getSession(request);
-	            }
-	            catch (RadiusException e)
-	            {
-	                String error = e.getMessage();
-	                String mesg = "Rejecting request";
-	
-	                try
-	                {
-	                    mesg = mesg + ": " + request.getRequestPacket().toString();
-	                }
-	                catch (RadiusException e2)
-	                {
-	                }
-	
-	                RadiusLog.warn(mesg + ": " + error);
-	                RadiusLog.problem(request, null, e, mesg);
-	                return JRadiusServer.RLM_MODULE_REJECT;
-	            }
-	        }
-	
-	        if (session == null)
-	        {
-	            RadiusLog.error("Unable to create session");
-	            return JRadiusServer.RLM_MODULE_REJECT;
-	        }
-
-	        request.setSession(session);
-
-	        sessionManager.lock(session);
+            try
+            {
+                if (!begin())
+                {
+                    finish();
+                    return;
+                }
+            }
+            catch (Throwable e)
+            {
+                RadiusLog.error("Error starting the packet handlers", e);
+                result = JRadiusServer.RLM_MODULE_FAIL;
+                if (session != null) sessionManager.unlock(session, false);
+                finish();
+                return;
+            }
+
+            proceed();
         }
-        
-        try
+
+        /**
+         * Finds the handlers and the (locked) session of the request
+         * @return Returns false if there is nothing to run
+         */
+        private boolean begin()
         {
-            for (JRCommand handler : handlers)
+            HandlerDispatchTable handlers = getRequestDispatchTable();
+
+            //RadiusLog.debug("Processing JRadiusRequest: " + request.toString());
+            
+            if (handlers == null) return false;
+
+            if (packetCapture != null)
             {
-                boolean stop = false;
                 try
                 {
-                    if (handler.doesHandle(request))
-                    {
-                        stop = handler.execute(request);
-                        result = request.getReturnValue();
-                        logReturnCode(result, handler);
-                        if (stop) break;
-                    }
+                    packetCapture.capture(request.getRequestPacket());
                 }
                 catch (RadiusException e)
                 {
-                    exceptionThrown = true;
-                    result = handleRadiusException(request, e);
-                    logReturnCode(result, handler);
-                    break;
                 }
-                catch (Throwable e)
+            }
+
+            if (requestTracer != null)
+            {
+                trace = requestTracer.begin(request);
+            }
+
+            entry = handlers.lookup(request);
+            sessionManager = JRadiusSessionManager.getManager(request.getSender());
+
+            /*
+            if (sessionManager == null) 
+            {
+                RadiusLog.error("No JRadiusSessionManager for request: " + request.toString());
+                return false;
+            }
+             */
+            
+            if (sessionManager != null)
+            {
+                JRadiusSession s = request.getSession();
+            
+                if (s == null)
                 {
-                    exceptionThrown = true;
-                    String error = e.getMessage();
-                    RadiusLog.error("Handler " + handler.getName() + " threw throwable: " + error);
-                    result = JRadiusServer.RLM_MODULE_FAIL;
-                    logReturnCode(result, handler);
-                    
-                    // XXX
-                    e.printStackTrace();
-                    
-                    break;
+                    try
+                    {
+                        s = sessionManager.getSession(request);
+                    }
+                    catch (RadiusException e)
+                    {
+                        String error = e.getMessage();
+                        String mesg = "Rejecting request";
+    
+                        try
+                        {
+                            mesg = mesg + ": " + request.getRequestPacket().toString();
+                        }
+                        catch (RadiusException e2)
+                        {
+                        }
+    
+                        RadiusLog.warn(mesg + ": " + error);
+                        RadiusLog.problem(request, null, e, mesg);
+                        result = JRadiusServer.RLM_MODULE_REJECT;
+                        return false;
+                    }
                 }
+    
+                if (s == null)
+                {
+                    RadiusLog.error("Unable to create session");
+                    result = JRadiusServer.RLM_MODULE_REJECT;
+                    return false;
+                }
+
+                request.setSession(s);
+
+                sessionManager.lock(s);
+                session = s;
+                request.markTimestamp(RequestTimestamps.SESSION);
             }
+
+            return true;
+        }
+
+        /**
+         * Runs the handlers from the current one, until the chain is done
+         * or an asynchronous handler is pending
+         */
+        private void proceed()
+        {
+            try
+            {
+                while (index < entry.size())
+                {
+                    JRCommand handler = entry.getHandler(index);
+                    started = System.nanoTime();
+                    try
+                    {
+                        if (entry.handles(index, request))
+                        {
+                            boolean stop;
+
+                            if (handler instanceof AsyncPacketHandler)
+                            {
+                                HandlerCompletion completion = ((AsyncPacketHandler) handler).executeAsync(request);
+                                if (!completion.isDone())
+                                {
+                                    // suspended; completed() resumes the chain
+                                    completion.setCallback(this);
+                                    return;
+                                }
+                                stop = completion.getResult();
+                            }
+                            else
+                            {
+                                stop = handler.execute(request);
+                            }
+
+                            if (handled(handler, stop)) break;
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failed(handler, e);
+                        break;
+                    }
+                    index++;
+                }
             
-            if (session != null && !exceptionThrown) 
+                postProcess();
+            }
+            catch (Throwable e)
             {
-                try
+                RadiusLog.error("Error running the packet handlers", e);
+                result = JRadiusServer.RLM_MODULE_FAIL;
+            }
+
+            finish();
+        }
+
+        public void completed(HandlerCompletion completion)
+        {
+            JRCommand handler = entry.getHandler(index);
+            boolean stop;
+
+            try
+            {
+                stop = handled(handler, completion.getResult());
+            }
+            catch (Throwable e)
+            {
+                failed(handler, e);
+                stop = true;
+            }
+
+            RadiusLog.debug("Resuming the handlers of session {}", request.getSessionKey());
+            index = stop ? entry.size() : index + 1;
+            proceed();
+        }
+
+        private boolean handled(JRCommand handler, boolean stop)
+        {
+            result = request.getReturnValue();
+            logReturnCode(result, handler);
+            record(handler, false);
+            return stop;
+        }
+
+        private void failed(JRCommand handler, Throwable e)
+        {
+            exceptionThrown = true;
+
+            if (e instanceof RadiusException)
+            {
+                result = handleRadiusException(request, (RadiusException) e);
+            }
+            else
+            {
+                String error = e.getMessage();
+                RadiusLog.error("Handler " + handler.getName() + " threw throwable: " + error);
+                result = JRadiusServer.RLM_MODULE_FAIL;
+                
+                // XXX
+                e.printStackTrace();
+            }
+
+            logReturnCode(result, handler);
+            record(handler, true);
+        }
+
+        private void record(JRCommand handler, boolean exception)
+        {
+            HandlerMetrics metrics = getHandlerMetrics();
+            if (metrics != null) metrics.record(handler, request, result, System.nanoTime() - started, exception);
+        }
+
+        private void postProcess()
+        {
+            HandlerLogEvent log = null;
+
+            try
+            {
+                if (session != null && !exceptionThrown) 
                 {
-                    session.onPostProcessing(request);
+                    try
+                    {
+                        session.onPostProcessing(request);
+                    }
+                    catch (RadiusException e)
+                    {
+                        result = handleRadiusException(request, e);
+                    }
+                    catch (Throwable e)
+                    {
+                        RadiusLog.error("Error occured during handling postprocess.", e);
+                        result = JRadiusServer.RLM_MODULE_FAIL;
+                    }
                 }
-                catch (RadiusException e)
+                
+                if (result == JRadiusServer.RLM_MODULE_REJECT && request.isAccountingRequest())
                 {
-                    result = handleRadiusException(request, e);
+                    RadiusLog.debug("Ack'ing AccountingRequest that was rejected");
+                    result = JRadiusServer.RLM_MODULE_OK;
                 }
-                catch (Throwable e)
+               
+                if (session != null && session.isLogging())
                 {
-                    RadiusLog.error("Error occured during handling postprocess.", e);
-                    result = JRadiusServer.RLM_MODULE_FAIL;
+                    log = new HandlerLogEvent(request, request.getSessionKey(), result);
                 }
             }
-            
-            if (result == JRadiusServer.RLM_MODULE_REJECT && request.isAccountingRequest())
+            finally
             {
-                RadiusLog.debug("Ack'ing AccountingRequest that was rejected");
-                result = JRadiusServer.RLM_MODULE_OK;
+                if (session != null)
+                {
+                    sessionManager.unlock(session, true);
+                }
             }
-           
-            // Send a log-event to the event-dispatcher
-            if (session != null && session.isLogging())
+
+            // Send a log-event to the event-dispatcher, once the session is
+            // unlocked: post() may wait for a dispatch thread, which locks
+            // the session of the events it dispatches
+            if (log != null)
             {
-	            HandlerLogEvent log = new HandlerLogEvent(request, request.getSessionKey(), result);
-	            getEventDispatcher().post(log);
+                getEventDispatcher().post(log);
             }
         }
-        finally
+
+        private void finish()
         {
-        	if (session != null)
-        	{
-        		sessionManager.unlock(session, true);
-        	}
+            request.markTimestamp(RequestTimestamps.HANDLED);
+
+            if (listenerRequest == null)
+            {
+                if (trace != null)
+                {
+                    request.setReturnValue(result);
+                    requestTracer.handled(trace, request);
+                    requestTracer.write(trace, request.getTimestamps());
+                }
+
+                synchronized (this)
+                {
+                    done = true;
+                    notifyAll();
+                }
+                return;
+            }
+
+            try
+            {
+                request.setReturnValue(result);
+                if (trace != null) requestTracer.handled(trace, request);
+                requestCompleted(listenerRequest, request);
+                if (trace != null) requestTracer.write(trace, request.getTimestamps());
+            }
+            catch (Throwable e)
+            {
+                RadiusLog.error("Error completing request", e);
+            }
+            finally
+            {
+                try
+                {
+                    release(listenerRequest);
+                }
+                catch (Exception e)
+                {
+                    RadiusLog.error("Error releasing request", e);
+                }
+            }
+        }
+
+        synchronized int await()
+        {
+            boolean interrupted = false;
+
+            // the session stays locked until the handlers complete
+            while (!done)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) Thread.currentThread().interrupt();
+            return result;
         }
-        
-        return result;
     }
 }
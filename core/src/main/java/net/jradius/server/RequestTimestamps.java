@@ -0,0 +1,141 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.server;
+
+/**
+ * The System.nanoTime() stamps of the stages a request passes through,
+ * from reading it off the socket to flushing the response. Stages a
+ * request does not pass through are left at 0.
+ * @see RequestTimings
+ */
+public class RequestTimestamps
+{
+    /** The first bytes of the request were read */
+    public static final int ACCEPT   = 0;
+    /** The request was parsed */
+    public static final int PARSE    = 1;
+    /** The request was put on the queue of the processors */
+    public static final int ENQUEUE  = 2;
+    /** A processor took the request from the queue */
+    public static final int DEQUEUE  = 3;
+    /** The session of the request was found and locked */
+    public static final int SESSION  = 4;
+    /** The handlers are done (and the session unlocked) */
+    public static final int HANDLED  = 5;
+    /** The response was encoded */
+    public static final int ENCODED  = 6;
+    /** The response was flushed to the socket */
+    public static final int FLUSHED  = 7;
+
+    public static final int STAGES   = 8;
+
+    private static final String[] names = 
+        { "accept", "parse", "enqueue", "dequeue", "session", "handled", "encoded", "flushed" };
+
+    private final long[] times = new long[STAGES];
+
+    public void mark(int stage)
+    {
+        times[stage] = System.nanoTime();
+    }
+
+    public long get(int stage)
+    {
+        return times[stage];
+    }
+
+    /**
+     * @return Returns the nanoseconds between the two stages, or -1 if the
+     * request did not pass through both
+     */
+    public long elapsed(int from, int to)
+    {
+        if (times[from] == 0 || times[to] == 0) return -1;
+        return times[to] - times[from];
+    }
+
+    /**
+     * @return Returns the nanoseconds from the latest stage before the given
+     * one (in time) to the given one, or -1 if the request did not pass
+     * through it. Requests are not parsed at the same point by all listeners.
+     */
+    public long sincePrevious(int stage)
+    {
+        long t = times[stage];
+        if (t == 0) return -1;
+
+        long previous = 0;
+        for (int i = 0; i < STAGES; i++)
+        {
+            if (i == stage || times[i] == 0 || times[i] - t > 0) continue;
+            if (previous == 0 || times[i] - previous > 0) previous = times[i];
+        }
+
+        return previous == 0 ? -1 : t - previous;
+    }
+
+    /**
+     * @return Returns the nanoseconds from the first to the last stage
+     */
+    public long total()
+    {
+        long first = 0, last = 0;
+
+        for (int i = 0; i < STAGES; i++)
+        {
+            long t = times[i];
+            if (t == 0) continue;
+            if (first == 0 || t - first < 0) first = t;
+            if (last == 0 || t - last > 0) last = t;
+        }
+
+        return last - first;
+    }
+
+    public void clear()
+    {
+        for (int i = 0; i < STAGES; i++) times[i] = 0;
+    }
+
+    public static String stageName(int stage)
+    {
+        return names[stage];
+    }
+
+    /**
+     * @return Returns the time of each stage since the previous one, in microseconds
+     */
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+
+        for (int i = 0; i < STAGES; i++)
+        {
+            if (times[i] == 0) continue;
+            long t = sincePrevious(i);
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(names[i]).append('=').append(t < 0 ? 0 : t / 1000).append("us");
+        }
+
+        return sb.toString();
+    }
+}
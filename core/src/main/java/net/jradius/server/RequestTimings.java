@@ -0,0 +1,284 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jradius.log.RadiusLog;
+import net.jradius.util.LatencyHistogram;
+
+/**
+ * The latency breakdown of the requests of a listener: how long requests
+ * take to be parsed, wait in the queue of the processors, wait for the
+ * lock of their session, run through the handlers, and have their response
+ * encoded and written. Each interval is kept in a LatencyHistogram (in
+ * microseconds). Requests taking longer than the slow request threshold
+ * have their full breakdown logged, at most slowRequestSamples per second.
+ * <p>
+ * The timings of a listener are published to the StatisticsRegistry, in
+ * the "Listener" group of the listener. The threshold is set with the
+ * listener property "slowRequestThreshold" (in milliseconds, 0 to disable).
+ * @see RequestTimestamps
+ */
+public class RequestTimings
+{
+    private static final int HIGHEST = 600 * 1000000;
+
+    private final String name;
+    private final LatencyHistogram parse = new LatencyHistogram(HIGHEST, 6);
+    private final LatencyHistogram queue = new LatencyHistogram(HIGHEST, 6);
+    private final LatencyHistogram session = new LatencyHistogram(HIGHEST, 6);
+    private final LatencyHistogram handlers = new LatencyHistogram(HIGHEST, 6);
+    private final LatencyHistogram encode = new LatencyHistogram(HIGHEST, 6);
+    private final LatencyHistogram write = new LatencyHistogram(HIGHEST, 6);
+    private final LatencyHistogram total = new LatencyHistogram(HIGHEST, 6);
+    private final AtomicLong slowRequests = new AtomicLong();
+    private final AtomicLong sampleSecond = new AtomicLong();
+    private final AtomicLong sampleCount = new AtomicLong();
+
+    private volatile long slowRequestThreshold = 1000;
+    private volatile int slowRequestSamples = 10;
+
+    public RequestTimings(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Publishes the timings to the StatisticsRegistry
+     */
+    public void register()
+    {
+        StatisticsRegistry.Group stats = StatisticsRegistry.getInstance().getGroup("Listener", name);
+        stats.histogram("parse_latency", "Time to read and parse requests", parse);
+        stats.histogram("queue_latency", "Time requests wait for a processor", queue);
+        stats.histogram("session_latency", "Time to find and lock the session of requests", session);
+        stats.histogram("handlers_latency", "Time spent in the handlers", handlers);
+        stats.histogram("encode_latency", "Time to encode responses", encode);
+        stats.histogram("write_latency", "Time to write responses", write);
+        stats.histogram("total_latency", "Total time of requests", total);
+        stats.counter("slow_requests", "Requests slower than the slow request threshold", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return slowRequests.get(); }
+        });
+    }
+
+    /**
+     * Records the timestamps of a completed request
+     * @param request The ListenerRequest
+     */
+    public void record(ListenerRequest request)
+    {
+        RequestTimestamps t = request.getTimestamps();
+
+        record(parse, t.sincePrevious(RequestTimestamps.PARSE));
+        record(queue, t.sincePrevious(RequestTimestamps.DEQUEUE));
+        record(session, t.sincePrevious(RequestTimestamps.SESSION));
+        record(handlers, t.sincePrevious(RequestTimestamps.HANDLED));
+        record(encode, t.sincePrevious(RequestTimestamps.ENCODED));
+        record(write, t.sincePrevious(RequestTimestamps.FLUSHED));
+
+        long nanos = t.total();
+        record(total, nanos);
+
+        long threshold = slowRequestThreshold;
+        if (threshold > 0 && nanos >= threshold * 1000000L)
+        {
+            slowRequests.incrementAndGet();
+            if (sample()) RadiusLog.warn("Slow request on " + name + " (" + (nanos / 1000000L) + "ms): " 
+                    + describe(request) + " " + t.toString());
+        }
+    }
+
+    private static void record(LatencyHistogram histogram, long nanos)
+    {
+        if (nanos >= 0) histogram.record(nanos / 1000);
+    }
+
+    /**
+     * @return Returns true while fewer than slowRequestSamples were logged this second
+     */
+    private boolean sample()
+    {
+        long second = System.currentTimeMillis() / 1000;
+        long s = sampleSecond.get();
+
+        if (s != second && sampleSecond.compareAndSet(s, second))
+        {
+            sampleCount.set(0);
+        }
+
+        return sampleCount.incrementAndGet() <= slowRequestSamples;
+    }
+
+    private static String describe(ListenerRequest request)
+    {
+        JRadiusEvent event = request.event;
+        if (event == null) return "[unparsed]";
+
+        StringBuffer sb = new StringBuffer();
+        sb.append('[').append(event.getTypeString());
+        if (event.getSender() != null) sb.append(" sender=").append(event.getSender());
+        if (event instanceof JRadiusRequest)
+        {
+            String key = ((JRadiusRequest) event).getSessionKey();
+            if (key != null) sb.append(" session=").append(key);
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public LatencyHistogram getParseHistogram()
+    {
+        return parse;
+    }
+
+    public LatencyHistogram getQueueHistogram()
+    {
+        return queue;
+    }
+
+    public LatencyHistogram getSessionHistogram()
+    {
+        return session;
+    }
+
+    public LatencyHistogram getHandlersHistogram()
+    {
+        return handlers;
+    }
+
+    public LatencyHistogram getEncodeHistogram()
+    {
+        return encode;
+    }
+
+    public LatencyHistogram getWriteHistogram()
+    {
+        return write;
+    }
+
+    public LatencyHistogram getTotalHistogram()
+    {
+        return total;
+    }
+
+    public String getParse()
+    {
+        return parse.toString(1000.0);
+    }
+
+    public String getQueue()
+    {
+        return queue.toString(1000.0);
+    }
+
+    public String getSession()
+    {
+        return session.toString(1000.0);
+    }
+
+    public String getHandlers()
+    {
+        return handlers.toString(1000.0);
+    }
+
+    public String getEncode()
+    {
+        return encode.toString(1000.0);
+    }
+
+    public String getWrite()
+    {
+        return write.toString(1000.0);
+    }
+
+    public String getTotal()
+    {
+        return total.toString(1000.0);
+    }
+
+    public long getSlowRequests()
+    {
+        return slowRequests.get();
+    }
+
+    public long getSlowRequestThreshold()
+    {
+        return slowRequestThreshold;
+    }
+
+    /**
+     * @param slowRequestThreshold Requests taking longer are logged (in milliseconds, 0 for none)
+     */
+    public void setSlowRequestThreshold(long slowRequestThreshold)
+    {
+        this.slowRequestThreshold = slowRequestThreshold;
+    }
+
+    public int getSlowRequestSamples()
+    {
+        return slowRequestSamples;
+    }
+
+    /**
+     * @param slowRequestSamples The maximum number of slow requests logged per second
+     */
+    public void setSlowRequestSamples(int slowRequestSamples)
+    {
+        this.slowRequestSamples = slowRequestSamples;
+    }
+
+    public void reset()
+    {
+        parse.reset();
+        queue.reset();
+        session.reset();
+        handlers.reset();
+        encode.reset();
+        write.reset();
+        total.reset();
+        slowRequests.set(0);
+    }
+
+    /**
+     * @return Returns the summary of each interval, in milliseconds
+     */
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append(name).append(" request timings (ms):");
+        sb.append("\n  parse:    ").append(getParse());
+        sb.append("\n  queue:    ").append(getQueue());
+        sb.append("\n  session:  ").append(getSession());
+        sb.append("\n  handlers: ").append(getHandlers());
+        sb.append("\n  encode:   ").append(getEncode());
+        sb.append("\n  write:    ").append(getWrite());
+        sb.append("\n  total:    ").append(getTotal());
+        return sb.toString();
+    }
+}
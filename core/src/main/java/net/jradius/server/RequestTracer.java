@@ -0,0 +1,614 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import net.jradius.exception.RadiusException;
+import net.jradius.log.RadiusLog;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.attribute.AttributeDictionary;
+
+/**
+ * Traces a sample of the requests of a listener into a fixed size,
+ * memory mapped ring file: the packets of the request as received, the
+ * packets as returned by the handlers, the result and the time of each
+ * stage of the request (see RequestTimestamps). When the file is full,
+ * the oldest traces are overwritten, so tracing can be left on in
+ * production; unlike Configuration.isDebug(), which prints every request,
+ * a request that is not sampled costs only a counter increment (plus
+ * an attribute lookup per configured pattern).
+ * <p>
+ * One request in sampleRate is traced, as well as every request whose
+ * User-Name, NAS (NAS-Identifier or NAS-IP-Address) or realm (the part of
+ * the User-Name after '@') matches the configured regular expression.
+ * Packets are recorded in RADIUS wire format, without User-Password and
+ * CHAP-Password unless tracePasswords is set.
+ * <p>
+ * The file starts with a header (magic "JRTR", version, flags, file size,
+ * offsets of the newest and oldest traces, number of traces in the file
+ * and number of traces ever written), followed by the traces, each
+ * prefixed by its length. A length of 0 (or the end of the file) marks
+ * the wrap to the start of the ring. Read with RequestTracer.Reader or
+ * the RadTrace program.
+ * <p>
+ * Enabled with the listener property "trace" set to the file name.
+ */
+public class RequestTracer
+{
+    public static final int MAGIC = 0x4a525452; // "JRTR"
+    public static final int VERSION = 1;
+    public static final int FLAG_PASSWORDS = 1;
+
+    private static final int HEADER_LENGTH = 64;
+    private static final int H_SIZE = 8;
+    private static final int H_HEAD = 12;
+    private static final int H_TAIL = 16;
+    private static final int H_COUNT = 20;
+    private static final int H_WRITTEN = 24;
+
+    private final String fileName;
+    private final int size;
+    private final boolean tracePasswords;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private int sampleRate = 1000;
+    private Pattern userName;
+    private Pattern nas;
+    private Pattern realm;
+
+    private RandomAccessFile file;
+    private MappedByteBuffer ring;
+    private int head = HEADER_LENGTH;
+    private int tail = HEADER_LENGTH;
+    private int count = 0;
+    private long written = 0;
+    private long dropped = 0;
+
+    /**
+     * The trace of one request
+     */
+    public static class Trace
+    {
+        private long sequence;
+        private long time;
+        private String type;
+        private String sender;
+        private int result;
+        private final int[] stages = new int[RequestTimestamps.STAGES];
+        private List<byte[]> inbound;
+        private List<byte[]> outbound = new ArrayList<byte[]>();
+
+        Trace()
+        {
+        }
+
+        /**
+         * @return Returns the number of the trace (from 1, in the order the requests were sampled)
+         */
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        /**
+         * @return Returns the time the request was sampled (in milliseconds since the epoch)
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        /**
+         * @return Returns the type of the request (e.g. authorize)
+         */
+        public String getType()
+        {
+            return type;
+        }
+
+        public String getSender()
+        {
+            return sender;
+        }
+
+        /**
+         * @return Returns the result of the handlers (see JRadiusServer.resultCodeToString())
+         */
+        public int getResult()
+        {
+            return result;
+        }
+
+        /**
+         * @param stage The stage (see RequestTimestamps)
+         * @return Returns the microseconds from the first stage of the request 
+         * to the given stage, or -1 if the request did not pass through it
+         */
+        public int getStageTime(int stage)
+        {
+            return stages[stage];
+        }
+
+        /**
+         * @return Returns the packets of the request as received, in RADIUS wire format
+         */
+        public List<byte[]> getInbound()
+        {
+            return inbound;
+        }
+
+        /**
+         * @return Returns the packets of the request as returned by the handlers, in RADIUS wire format
+         */
+        public List<byte[]> getOutbound()
+        {
+            return outbound;
+        }
+
+        void write(DataOutputStream out) throws IOException
+        {
+            out.writeLong(sequence);
+            out.writeLong(time);
+            out.writeUTF(type);
+            out.writeUTF(sender);
+            out.writeShort(result);
+            out.writeByte(stages.length);
+            for (int i = 0; i < stages.length; i++)
+            {
+                out.writeInt(stages[i]);
+            }
+            writePackets(out, inbound);
+            writePackets(out, outbound);
+        }
+
+        static Trace read(DataInputStream in) throws IOException
+        {
+            Trace trace = new Trace();
+            trace.sequence = in.readLong();
+            trace.time = in.readLong();
+            trace.type = in.readUTF();
+            trace.sender = in.readUTF();
+            trace.result = in.readShort();
+            int n = in.readUnsignedByte();
+            for (int i = 0; i < n; i++)
+            {
+                int t = in.readInt();
+                if (i < trace.stages.length) trace.stages[i] = t;
+            }
+            trace.inbound = readPackets(in);
+            trace.outbound = readPackets(in);
+            return trace;
+        }
+
+        private static void writePackets(DataOutputStream out, List<byte[]> packets) throws IOException
+        {
+            out.writeByte(packets.size());
+            for (byte[] packet : packets)
+            {
+                out.writeShort(packet.length);
+                out.write(packet);
+            }
+        }
+
+        private static List<byte[]> readPackets(DataInputStream in) throws IOException
+        {
+            int n = in.readUnsignedByte();
+            List<byte[]> packets = new ArrayList<byte[]>(n);
+            for (int i = 0; i < n; i++)
+            {
+                byte[] packet = new byte[in.readUnsignedShort()];
+                in.readFully(packet);
+                packets.add(packet);
+            }
+            return packets;
+        }
+    }
+
+    /**
+     * @param fileName The trace file (overwritten)
+     * @param size The size of the trace file (in bytes)
+     * @param tracePasswords Whether to record User-Password and CHAP-Password
+     * @throws IOException
+     */
+    public RequestTracer(String fileName, int size, boolean tracePasswords) throws IOException
+    {
+        if (size < HEADER_LENGTH * 2)
+        {
+            throw new IllegalArgumentException("Trace file size too small: " + size);
+        }
+
+        this.fileName = fileName;
+        this.size = size;
+        this.tracePasswords = tracePasswords;
+
+        file = new RandomAccessFile(fileName, "rw");
+        file.setLength(size);
+        ring = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        ring.putInt(0, MAGIC);
+        ring.putShort(4, (short) VERSION);
+        ring.putShort(6, (short) (tracePasswords ? FLAG_PASSWORDS : 0));
+        ring.putInt(H_SIZE, size);
+        writeHeader();
+    }
+
+    /**
+     * Decides whether to trace the request, before it is handled
+     * @param request The request
+     * @return Returns the trace, with the packets of the request as
+     * received, or null if the request is not sampled
+     */
+    public Trace begin(JRadiusRequest request)
+    {
+        if (!sample(request)) return null;
+
+        Trace trace = new Trace();
+        trace.sequence = sequence.incrementAndGet();
+        trace.time = System.currentTimeMillis();
+        trace.type = request.getTypeString();
+        trace.sender = String.valueOf(request.getSender());
+        trace.inbound = encode(request.getPackets());
+        return trace;
+    }
+
+    /**
+     * Records the result and the packets of the request once handled
+     * (before the packets are recycled)
+     */
+    public void handled(Trace trace, JRadiusRequest request)
+    {
+        trace.result = request.getReturnValue();
+        trace.outbound = encode(request.getPackets());
+    }
+
+    /**
+     * Writes the trace to the ring, once the response was written
+     * @param trace The trace
+     * @param timestamps The timestamps of the request (or null)
+     */
+    public void write(Trace trace, RequestTimestamps timestamps)
+    {
+        long first = 0;
+
+        for (int i = 0; i < RequestTimestamps.STAGES; i++)
+        {
+            long t = timestamps == null ? 0 : timestamps.get(i);
+            if (t != 0 && (first == 0 || t - first < 0)) first = t;
+        }
+
+        for (int i = 0; i < RequestTimestamps.STAGES; i++)
+        {
+            long t = timestamps == null ? 0 : timestamps.get(i);
+            trace.stages[i] = t == 0 ? -1 : (int) ((t - first) / 1000);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+
+        try
+        {
+            trace.write(new DataOutputStream(bytes));
+        }
+        catch (IOException e)
+        {
+            RadiusLog.debug("Unable to trace request: {}", e.getMessage());
+            return;
+        }
+
+        put(bytes.toByteArray());
+    }
+
+    private boolean sample(JRadiusRequest request)
+    {
+        if (sampleRate > 0 && requests.incrementAndGet() % sampleRate == 0) return true;
+        if (userName == null && nas == null && realm == null) return false;
+
+        RadiusPacket packet;
+
+        try
+        {
+            packet = request.getRequestPacket();
+        }
+        catch (RadiusException e)
+        {
+            return false;
+        }
+
+        if (userName != null || realm != null)
+        {
+            Object value = packet.getAttributeValue(AttributeDictionary.USER_NAME);
+            if (value != null)
+            {
+                String name = value.toString();
+                if (userName != null && userName.matcher(name).matches()) return true;
+                int idx = name.lastIndexOf('@');
+                if (realm != null && idx >= 0 && realm.matcher(name.substring(idx + 1)).matches()) return true;
+            }
+        }
+
+        if (nas != null)
+        {
+            Object value = packet.getAttributeValue(AttributeDictionary.NAS_IDENTIFIER);
+            if (value != null && nas.matcher(value.toString()).matches()) return true;
+            value = packet.getAttributeValue(AttributeDictionary.NAS_IP_ADDRESS);
+            if (value instanceof InetAddress) value = ((InetAddress) value).getHostAddress();
+            if (value != null && nas.matcher(value.toString()).matches()) return true;
+        }
+
+        return false;
+    }
+
+    private List<byte[]> encode(RadiusPacket[] packets)
+    {
+        List<byte[]> list = new ArrayList<byte[]>(2);
+        if (packets == null) return list;
+
+        for (int i = 0; i < packets.length && list.size() < 255; i++)
+        {
+            if (packets[i] == null) continue;
+            byte[] bytes = PacketCapture.encode(packets[i], tracePasswords);
+            if (bytes != null) list.add(bytes);
+        }
+
+        return list;
+    }
+
+    private synchronized void put(byte[] record)
+    {
+        int length = record.length + 4;
+
+        if (ring == null || length > size - HEADER_LENGTH)
+        {
+            dropped++;
+            return;
+        }
+
+        if (head + length > size)
+        {
+            reclaim(head, size);
+            if (head + 4 <= size) ring.putInt(head, 0);
+            head = HEADER_LENGTH;
+        }
+
+        reclaim(head, head + length);
+        if (count == 0) tail = head;
+
+        ring.putInt(head, length);
+        ring.position(head + 4);
+        ring.put(record);
+
+        head += length;
+        count++;
+        written++;
+        writeHeader();
+    }
+
+    /**
+     * Drops the oldest traces stored between the given offsets
+     */
+    private void reclaim(int start, int end)
+    {
+        while (count > 0 && tail >= start && tail < end)
+        {
+            tail += ring.getInt(tail);
+            count--;
+            if (tail + 4 > size || ring.getInt(tail) == 0) tail = HEADER_LENGTH;
+        }
+    }
+
+    private void writeHeader()
+    {
+        ring.putInt(H_HEAD, head);
+        ring.putInt(H_TAIL, tail);
+        ring.putInt(H_COUNT, count);
+        ring.putLong(H_WRITTEN, written);
+    }
+
+    /**
+     * Flushes the ring to disk and stops tracing
+     */
+    public synchronized void close()
+    {
+        if (ring == null) return;
+
+        ring.force();
+        ring = null;
+
+        try
+        {
+            file.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    /**
+     * @return Returns the number of traces written
+     */
+    public synchronized long getWritten()
+    {
+        return written;
+    }
+
+    /**
+     * @return Returns the number of traces too large for the ring
+     */
+    public synchronized long getDropped()
+    {
+        return dropped;
+    }
+
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    /**
+     * @param sampleRate Trace one request in sampleRate (0 to trace only the requests matching a pattern)
+     */
+    public void setSampleRate(int sampleRate)
+    {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @param userName Regular expression of the User-Names to trace (or null)
+     */
+    public void setUserName(String userName)
+    {
+        this.userName = userName == null ? null : Pattern.compile(userName);
+    }
+
+    /**
+     * @param nas Regular expression of the NAS-Identifiers or NAS-IP-Addresses to trace (or null)
+     */
+    public void setNas(String nas)
+    {
+        this.nas = nas == null ? null : Pattern.compile(nas);
+    }
+
+    /**
+     * @param realm Regular expression of the realms to trace (or null)
+     */
+    public void setRealm(String realm)
+    {
+        this.realm = realm == null ? null : Pattern.compile(realm);
+    }
+
+    /**
+     * Reads a trace file, from the oldest to the newest trace
+     */
+    public static class Reader
+    {
+        private final ByteBuffer ring;
+        private final int size;
+        private final int flags;
+        private final long written;
+        private int position;
+        private int remaining;
+
+        public Reader(String fileName) throws IOException
+        {
+            RandomAccessFile in = new RandomAccessFile(fileName, "r");
+            byte[] data;
+
+            try
+            {
+                data = new byte[(int) in.length()];
+                in.readFully(data);
+            }
+            finally
+            {
+                in.close();
+            }
+
+            ring = ByteBuffer.wrap(data);
+
+            if (data.length < HEADER_LENGTH || ring.getInt(0) != MAGIC)
+            {
+                throw new IOException("Not a JRadius request trace");
+            }
+
+            int version = ring.getShort(4) & 0xffff;
+            if (version != VERSION)
+            {
+                throw new IOException("Unsupported request trace version " + version);
+            }
+
+            flags = ring.getShort(6) & 0xffff;
+            size = ring.getInt(H_SIZE);
+
+            if (size != data.length)
+            {
+                throw new IOException("Request trace truncated");
+            }
+
+            position = ring.getInt(H_TAIL);
+            remaining = ring.getInt(H_COUNT);
+            written = ring.getLong(H_WRITTEN);
+        }
+
+        /**
+         * @return Returns whether the passwords were recorded
+         */
+        public boolean hasPasswords()
+        {
+            return (flags & FLAG_PASSWORDS) != 0;
+        }
+
+        /**
+         * @return Returns the number of traces in the file
+         */
+        public int getCount()
+        {
+            return ring.getInt(H_COUNT);
+        }
+
+        /**
+         * @return Returns the number of traces written (including those overwritten since)
+         */
+        public long getWritten()
+        {
+            return written;
+        }
+
+        /**
+         * @return Returns the next trace, or null at the end of the file
+         */
+        public Trace next() throws IOException
+        {
+            if (remaining == 0) return null;
+
+            if (position + 4 > size || ring.getInt(position) == 0) position = HEADER_LENGTH;
+
+            int length = ring.getInt(position);
+            if (length <= 4 || position + length > size)
+            {
+                throw new IOException("Corrupt request trace at offset " + position);
+            }
+
+            Trace trace = Trace.read(new DataInputStream(new ByteArrayInputStream(ring.array(), position + 4, length - 4)));
+            position += length;
+            remaining--;
+            return trace;
+        }
+    }
+}
@@ -0,0 +1,507 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import net.jradius.log.RadiusLog;
+import net.jradius.util.LatencyHistogram;
+
+/**
+ * A registry of the statistics of the server components (object pools,
+ * listeners, session managers, the event dispatcher, ...), for capacity
+ * planning. Each component publishes a group of counters, gauges (read
+ * when the statistics are asked for, so they cost nothing in between) and
+ * latency histograms, under a group type and a name, e.g. "Listener" and
+ * the name of the listener.
+ * <p>
+ * Each group is registered as the JMX MBean
+ * "net.jradius:type=Statistics,group=...,name=...", and writeText()
+ * formats all groups in the Prometheus text format as
+ * jradius_&lt;group&gt;_&lt;metric&gt;{name="..."}, with the suffix
+ * _total for counters and _seconds for histograms (see
+ * net.jradius.webservice.MetricsService).
+ */
+public class StatisticsRegistry
+{
+    private static final int HIGHEST = 600 * 1000000;
+
+    private static final StatisticsRegistry instance = new StatisticsRegistry();
+
+    private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+
+    private volatile boolean jmx = true;
+
+    /**
+     * A value read when the statistics are asked for
+     */
+    public static interface Gauge
+    {
+        public long getValue();
+    }
+
+    /**
+     * A lock free counter
+     */
+    public static class Counter
+    {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment()
+        {
+            value.incrementAndGet();
+        }
+
+        public void add(long n)
+        {
+            value.addAndGet(n);
+        }
+
+        public long get()
+        {
+            return value.get();
+        }
+
+        public void reset()
+        {
+            value.set(0);
+        }
+    }
+
+    private static class Metric
+    {
+        final String name;
+        final String description;
+        final Counter counter;
+        final Gauge gauge;
+        final LatencyHistogram histogram;
+        final boolean monotonic;
+
+        Metric(String name, String description, Counter counter, Gauge gauge, LatencyHistogram histogram, boolean monotonic)
+        {
+            this.name = name;
+            this.description = description;
+            this.counter = counter;
+            this.gauge = gauge;
+            this.histogram = histogram;
+            this.monotonic = monotonic;
+        }
+
+        long getValue()
+        {
+            return counter != null ? counter.get() : gauge.getValue();
+        }
+    }
+
+    /**
+     * @return Returns the registry shared by all components
+     */
+    public static StatisticsRegistry getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @param group The type of the component (e.g. "Listener")
+     * @param name The name of the component
+     * @return Returns the statistics of the component, created when first asked for
+     */
+    public Group getGroup(String group, String name)
+    {
+        String key = group + "," + name;
+        Group g = groups.get(key);
+
+        if (g == null)
+        {
+            g = new Group(group, name);
+            Group p = groups.putIfAbsent(key, g);
+            if (p != null) return p;
+            if (jmx) g.register();
+        }
+
+        return g;
+    }
+
+    /**
+     * Removes the statistics of a component (e.g. when it is shut down)
+     */
+    public void removeGroup(String group, String name)
+    {
+        Group g = groups.remove(group + "," + name);
+        if (g != null && jmx) g.unregister();
+    }
+
+    /**
+     * @return Returns all groups, sorted by type and name
+     */
+    public List<Group> getGroups()
+    {
+        List<Group> list = new ArrayList<Group>(groups.values());
+
+        Collections.sort(list, new Comparator<Group>()
+        {
+            public int compare(Group a, Group b)
+            {
+                int c = a.getGroup().compareTo(b.getGroup());
+                return c != 0 ? c : a.getName().compareTo(b.getName());
+            }
+        });
+
+        return list;
+    }
+
+    public void reset()
+    {
+        for (Group g : groups.values())
+        {
+            g.reset();
+        }
+    }
+
+    /**
+     * Formats the statistics in the Prometheus text exposition format
+     * @param sb The buffer to append to
+     */
+    public void writeText(StringBuilder sb)
+    {
+        // the samples of a metric must follow each other, across groups
+        Map<String, List<Object[]>> families = new LinkedHashMap<String, List<Object[]>>();
+
+        for (Group g : getGroups())
+        {
+            for (Metric m : g.getMetrics())
+            {
+                String family = "jradius_" + g.getGroup().toLowerCase() + "_" + m.name;
+                if (m.monotonic) family = family + "_total";
+                else if (m.histogram != null) family = family + "_seconds";
+                List<Object[]> list = families.get(family);
+                if (list == null) families.put(family, list = new ArrayList<Object[]>());
+                list.add(new Object[] { g, m });
+            }
+        }
+
+        for (Map.Entry<String, List<Object[]>> e : families.entrySet())
+        {
+            String family = e.getKey();
+            Metric first = (Metric) e.getValue().get(0)[1];
+
+            PrometheusWriter.family(sb, family, first.histogram != null ? "summary" : 
+                first.monotonic ? "counter" : "gauge", first.description);
+
+            for (Object[] o : e.getValue())
+            {
+                Group g = (Group) o[0];
+                Metric m = (Metric) o[1];
+                String[] labels = { "name", g.getName() };
+
+                if (m.histogram == null) PrometheusWriter.sample(sb, family, labels, m.getValue());
+                else PrometheusWriter.summary(sb, family, labels, m.histogram);
+            }
+        }
+    }
+
+    /**
+     * @param jmx Whether to register the groups as JMX MBeans (default true)
+     */
+    public void setJmx(boolean jmx)
+    {
+        this.jmx = jmx;
+    }
+
+    /**
+     * The statistics of one component. As a JMX MBean, counters and gauges
+     * are attributes of the same name, histograms are the attributes
+     * &lt;metric&gt;_p50, _p90, _p99, _p999, _max (in microseconds) and 
+     * _count; the operation reset() clears counters and histograms.
+     */
+    public static class Group implements DynamicMBean
+    {
+        private final String group;
+        private final String name;
+        private final Map<String, Metric> metrics = new LinkedHashMap<String, Metric>();
+
+        Group(String group, String name)
+        {
+            this.group = group;
+            this.name = name;
+        }
+
+        public String getGroup()
+        {
+            return group;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @param metric The name of the metric (lower case, with underscores)
+         * @param description The description of the metric
+         * @return Returns the counter, created when first asked for
+         */
+        public synchronized Counter counter(String metric, String description)
+        {
+            Metric m = metrics.get(metric);
+            if (m == null || m.counter == null) metrics.put(metric, m = new Metric(metric, description, new Counter(), null, null, true));
+            return m.counter;
+        }
+
+        /**
+         * Publishes a count kept by the component, replacing any metric of the same name
+         * @param metric The name of the metric (lower case, with underscores)
+         * @param description The description of the metric
+         * @param count The count, which only ever increases
+         */
+        public synchronized void counter(String metric, String description, Gauge count)
+        {
+            metrics.put(metric, new Metric(metric, description, null, count, null, true));
+        }
+
+        /**
+         * Publishes a gauge, replacing any metric of the same name
+         * @param metric The name of the metric (lower case, with underscores)
+         * @param description The description of the metric
+         * @param gauge The gauge
+         */
+        public synchronized void gauge(String metric, String description, Gauge gauge)
+        {
+            metrics.put(metric, new Metric(metric, description, null, gauge, null, false));
+        }
+
+        /**
+         * @param metric The name of the metric (lower case, with underscores)
+         * @param description The description of the metric
+         * @return Returns the histogram of latencies (in microseconds), created when first asked for
+         */
+        public LatencyHistogram histogram(String metric, String description)
+        {
+            return histogram(metric, description, null);
+        }
+
+        /**
+         * Publishes a histogram kept by the component
+         * @param metric The name of the metric (lower case, with underscores)
+         * @param description The description of the metric
+         * @param histogram The histogram of latencies (in microseconds), or null to create one
+         * @return Returns the histogram of the metric
+         */
+        public synchronized LatencyHistogram histogram(String metric, String description, LatencyHistogram histogram)
+        {
+            Metric m = metrics.get(metric);
+            if (m == null || (histogram != null && m.histogram != histogram))
+            {
+                if (histogram == null) histogram = new LatencyHistogram(HIGHEST, 6);
+                metrics.put(metric, m = new Metric(metric, description, null, null, histogram, false));
+            }
+            return m.histogram;
+        }
+
+        synchronized List<Metric> getMetrics()
+        {
+            return new ArrayList<Metric>(metrics.values());
+        }
+
+        public void reset()
+        {
+            for (Metric m : getMetrics())
+            {
+                if (m.counter != null) m.counter.reset();
+                if (m.histogram != null) m.histogram.reset();
+            }
+        }
+
+        /**
+         * @return Returns the value of a counter or gauge, or -1 if there is none
+         */
+        public long getValue(String metric)
+        {
+            Metric m;
+            synchronized (this)
+            {
+                m = metrics.get(metric);
+            }
+            if (m == null || m.histogram != null) return -1;
+            return m.getValue();
+        }
+
+        private ObjectName getObjectName() throws Exception
+        {
+            return new ObjectName("net.jradius:type=Statistics,group=" + ObjectName.quote(group) 
+                    + ",name=" + ObjectName.quote(name));
+        }
+
+        void register()
+        {
+            try
+            {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = getObjectName();
+                if (!server.isRegistered(objectName)) server.registerMBean(this, objectName);
+            }
+            catch (Exception e)
+            {
+                RadiusLog.warn("Unable to register statistics of " + group + " " + name + ": " + e.getMessage());
+            }
+        }
+
+        void unregister()
+        {
+            try
+            {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = getObjectName();
+                if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            }
+            catch (Exception e)
+            {
+                RadiusLog.debug("Unable to unregister statistics of {} {}", group, name);
+            }
+        }
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException
+        {
+            Metric m;
+            String suffix = null;
+
+            synchronized (this)
+            {
+                m = metrics.get(attribute);
+                if (m == null)
+                {
+                    int idx = attribute.lastIndexOf('_');
+                    if (idx > 0)
+                    {
+                        m = metrics.get(attribute.substring(0, idx));
+                        suffix = attribute.substring(idx + 1);
+                    }
+                }
+            }
+
+            if (m != null && suffix == null)
+            {
+                if (m.histogram == null) return new Long(m.getValue());
+            }
+            else if (m != null && m.histogram != null)
+            {
+                LatencyHistogram h = m.histogram;
+                if (suffix.equals("p50")) return new Long(h.getValueAtPercentile(50));
+                if (suffix.equals("p90")) return new Long(h.getValueAtPercentile(90));
+                if (suffix.equals("p99")) return new Long(h.getValueAtPercentile(99));
+                if (suffix.equals("p999")) return new Long(h.getValueAtPercentile(99.9));
+                if (suffix.equals("max")) return new Long(h.getMax());
+                if (suffix.equals("count")) return new Long(h.getCount());
+            }
+
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        public AttributeList getAttributes(String[] attributes)
+        {
+            AttributeList list = new AttributeList();
+
+            for (int i = 0; i < attributes.length; i++)
+            {
+                try
+                {
+                    list.add(new Attribute(attributes[i], getAttribute(attributes[i])));
+                }
+                catch (AttributeNotFoundException e)
+                {
+                }
+            }
+
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+        {
+            throw new AttributeNotFoundException("Statistics are read only: " + attribute.getName());
+        }
+
+        public AttributeList setAttributes(AttributeList attributes)
+        {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+        {
+            if ("reset".equals(actionName))
+            {
+                reset();
+                return null;
+            }
+
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo()
+        {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+
+            for (Metric m : getMetrics())
+            {
+                if (m.histogram == null)
+                {
+                    attributes.add(new MBeanAttributeInfo(m.name, "long", m.description, true, false, false));
+                }
+                else
+                {
+                    String[] suffixes = { "p50", "p90", "p99", "p999", "max", "count" };
+                    for (int i = 0; i < suffixes.length; i++)
+                    {
+                        attributes.add(new MBeanAttributeInfo(m.name + "_" + suffixes[i], "long", 
+                                m.description + " (" + suffixes[i] + ")", true, false, false));
+                    }
+                }
+            }
+
+            MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clears the counters and histograms", 
+                    new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+
+            return new MBeanInfo(getClass().getName(), "Statistics of " + group + " " + name,
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, 
+                    new MBeanOperationInfo[] { reset }, null);
+        }
+    }
+}
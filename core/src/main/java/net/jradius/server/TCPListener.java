@@ -33,6 +33,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -81,6 +82,8 @@ public abstract class TCPListener extends JRadiusThread implements Listener
     protected boolean keepAlive;
  
     protected ServerSocket serverSocket;
+
+    protected RequestTimings requestTimings;
     
     protected final List<KeepAliveListener> keepAliveListeners = new LinkedList<KeepAliveListener>();
 
@@ -136,6 +139,16 @@ public abstract class TCPListener extends JRadiusThread implements Listener
         
         s = (String) props.get("backlog");
         if (s != null) backlog = new Integer(s).intValue();
+
+        requestTimings = new RequestTimings(cfg.getName());
+
+        s = (String) props.get("slowRequestThreshold");
+        if (s != null) requestTimings.setSlowRequestThreshold(Long.parseLong(s));
+
+        s = (String) props.get("slowRequestSamples");
+        if (s != null) requestTimings.setSlowRequestSamples(Integer.parseInt(s));
+
+        requestTimings.register();
         
         if (keepAlive) 
         {
@@ -307,6 +320,7 @@ public abstract class TCPListener extends JRadiusThread implements Listener
         	TCPListenerRequest lr = (TCPListenerRequest) requestObjectPool.borrowObject();
         	lr.setBorrowedFromPool(requestObjectPool);
         	lr.accept(socket, this, false, false);
+        	lr.getTimestamps().mark(RequestTimestamps.ENQUEUE);
 
             while(true)
             {
@@ -324,6 +338,21 @@ public abstract class TCPListener extends JRadiusThread implements Listener
     
     public void deadKeepAliveListener(KeepAliveListener keepAliveListener)
     {
+        synchronized (keepAliveListeners)
+        {
+            keepAliveListeners.remove(keepAliveListener);
+        }
+    }
+
+    /**
+     * @return Returns the number of open keep-alive connections
+     */
+    public int getConnectionCount()
+    {
+        synchronized (keepAliveListeners)
+        {
+            return keepAliveListeners.size();
+        }
     }
 
     public boolean getActive()
@@ -336,14 +365,19 @@ public abstract class TCPListener extends JRadiusThread implements Listener
         this.active = active;
         if (!active)
         {
-            for (KeepAliveListener listener : keepAliveListeners)
+            List<KeepAliveListener> list;
+            synchronized (keepAliveListeners)
+            {
+                list = new ArrayList<KeepAliveListener>(keepAliveListeners);
+                keepAliveListeners.clear();
+            }
+
+            for (KeepAliveListener listener : list)
             {
                 try { listener.shutdown(true); }
                 catch (Throwable e) { }
             }
 
-            this.keepAliveListeners.clear();
-
             try { this.serverSocket.close(); }
             catch (Throwable e) { }
 
@@ -392,6 +426,14 @@ public abstract class TCPListener extends JRadiusThread implements Listener
         RadiusLog.debug("Listener: " + this.getClass().getName() + " exiting (not active)");
     }
 
+    /**
+     * @return Returns the latency breakdown of the requests of the listener (or null)
+     */
+    public RequestTimings getRequestTimings()
+    {
+        return requestTimings;
+    }
+
     public boolean isUsingSSL() 
     {
         return usingSSL;
@@ -61,6 +61,7 @@ public class TCPListenerRequest extends ListenerRequest
     
     public void accept(Socket socket, InputStream bin, OutputStream bout, Listener listener, boolean getEvent, boolean keepAlive) throws Exception
     {
+    	this.timestamps.mark(RequestTimestamps.ACCEPT);
     	this.listener = listener;
     	this.socket = socket;
     	this.bin = bin;
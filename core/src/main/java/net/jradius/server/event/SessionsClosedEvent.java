@@ -0,0 +1,70 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.server.event;
+
+import java.util.List;
+
+import net.jradius.server.JRadiusEvent;
+import net.jradius.session.JRadiusSession;
+
+
+/**
+ * Sessions Closed Server Event Type. Posted once for all the sessions
+ * closed in a single bulk operation of the JRadiusSessionManager
+ * (for instance, all sessions of a NAS sending Accounting-On/Off).
+ */
+public class SessionsClosedEvent extends JRadiusEvent
+{
+    private final List<JRadiusSession> sessions;
+    private final String reason;
+
+    public SessionsClosedEvent(List<JRadiusSession> sessions, String reason)
+    {
+        this.sessions = sessions;
+        this.reason = reason;
+    }
+
+    public int getType()
+    {
+        return 3;
+    }
+
+    public String getTypeString()
+    {
+        return "sessions-closed";
+    }
+
+    /**
+     * @return Returns the closed sessions.
+     */
+    public List<JRadiusSession> getSessions()
+    {
+        return sessions;
+    }
+
+    /**
+     * @return Returns why the sessions were closed (e.g. "nas:10.0.0.1")
+     */
+    public String getReason()
+    {
+        return reason;
+    }
+}
@@ -22,8 +22,15 @@
 package net.jradius.session;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.jradius.exception.RadiusException;
 import net.jradius.log.JRadiusLogEntry;
@@ -31,7 +38,9 @@ import net.jradius.log.RadiusLog;
 import net.jradius.server.EventDispatcher;
 import net.jradius.server.JRadiusEvent;
 import net.jradius.server.JRadiusRequest;
+import net.jradius.server.StatisticsRegistry;
 import net.jradius.server.event.SessionExpiredEvent;
+import net.jradius.server.event.SessionsClosedEvent;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheException;
 import net.sf.ehcache.CacheManager;
@@ -67,6 +76,20 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
     private Cache logCache;
 
     private EventDispatcher eventDispatcher;
+    private SessionReplicator replicator;
+
+    private int negativeCacheTTL = 2000;
+    private int negativeCacheSize = 10000;
+    private final ConcurrentHashMap<Serializable, Long> missingKeys = new ConcurrentHashMap<Serializable, Long>();
+    private final ConcurrentHashMap<Serializable, FutureTask<JRadiusSession>> loading = new ConcurrentHashMap<Serializable, FutureTask<JRadiusSession>>();
+
+    private final SessionIndex nasIndex = new SessionIndex();
+    private final SessionIndex realmIndex = new SessionIndex();
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong negativeCacheHits = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
 
     /**
      * There is a single JRadiusSessionManager available that
@@ -166,6 +189,11 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
 
     public void shutdown()
     {
+        if (replicator != null)
+        {
+            replicator.stop();
+        }
+
     	if (cacheManager != null && cacheManager.getStatus() == Status.STATUS_ALIVE)
         {
             cacheManager.shutdown();
@@ -203,6 +231,50 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
 
         sessionCache.getCacheEventNotificationService().registerListener(this);
         logCache.getCacheEventNotificationService().registerListener(this);
+
+        if (replicator != null)
+        {
+            replicator.start(this);
+        }
+
+        publishStatistics();
+    }
+
+    /**
+     * Publishes the cache sizes and hit counts to the StatisticsRegistry
+     */
+    private void publishStatistics()
+    {
+        StatisticsRegistry.Group stats = StatisticsRegistry.getInstance().getGroup("SessionManager", cacheName);
+
+        stats.gauge("sessions", "Entries in the session cache (sessions are stored by two keys)", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return sessionCache.getSize(); }
+        });
+        stats.gauge("log_entries", "Entries in the log cache", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return logCache.getSize(); }
+        });
+        stats.gauge("negative_cache_size", "Keys remembered as missing", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return missingKeys.size(); }
+        });
+        stats.counter("cache_hits", "Sessions found in the cache", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return cacheHits.get(); }
+        });
+        stats.counter("cache_misses", "Sessions not found in the cache", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return cacheMisses.get(); }
+        });
+        stats.counter("negative_cache_hits", "Lookups answered by the negative cache", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return negativeCacheHits.get(); }
+        });
+        stats.counter("lookups", "Sessions looked up with the SessionFactory", new StatisticsRegistry.Gauge()
+        {
+            public long getValue() { return lookups.get(); }
+        });
     }
 
     /**
@@ -277,7 +349,7 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
         
         if (key != null) 
         {
-            RadiusLog.debug("** Looking for session: " + key);
+            RadiusLog.debug("** Looking for session: {}", key);
             
             session = getSession(request, key);
             if (session == null)
@@ -293,7 +365,7 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
             
             if (key != null) 
             {
-                RadiusLog.debug("** Looking for session: " + key);
+                RadiusLog.debug("** Looking for session: {}", key);
                 
                 session = getSession(request, key);
                 if (session == null)
@@ -324,14 +396,14 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
             {
                 key = ((Serializable[])(keys))[0];
                 nkey = ((Serializable[])(keys))[1];
-                RadiusLog.debug("Rehashing session with key " + key + " under new key " + nkey);
+                RadiusLog.debug("Rehashing session with key {} under new key {}", key, nkey);
             }
             else
             {
                 key = keys;
             }
             
-            RadiusLog.debug("** Looking for session: " + key);
+            RadiusLog.debug("** Looking for session: {}", key);
             session = getSession(request, key);
 
             if (session != null && nkey != null && !nkey.equals(key))
@@ -377,15 +449,14 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
         	session = (JRadiusSession) element.getValue();
         }
         
-        if (session == null && request != null)
+        if (session != null)
         {
-            SessionFactory sf = getSessionFactory(request.getSender());
-            session = sf.getSession(request, key);
-            if (session != null)
-            {
-                put(session.getJRadiusKey(), session);
-                put(session.getSessionKey(), session);
-            }
+            cacheHits.incrementAndGet();
+        }
+        else if (request != null)
+        {
+            cacheMisses.incrementAndGet();
+            session = loadSession(request, key);
         }
         
         if (session == null) return null;
@@ -393,6 +464,83 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
         return session;
     }
 
+    /**
+     * Looks up a session missing from the cache with the SessionFactory.
+     * Concurrent lookups of the same key wait for a single call to the
+     * factory, and keys the factory did not find are remembered for
+     * negativeCacheTTL milliseconds, so that unknown keys (e.g. during
+     * accounting storms) do not hit the backend over and over again.
+     */
+    private JRadiusSession loadSession(final JRadiusRequest request, final Serializable key) throws RadiusException
+    {
+        Long expires = missingKeys.get(key);
+        if (expires != null)
+        {
+            if (expires.longValue() > System.currentTimeMillis())
+            {
+                negativeCacheHits.incrementAndGet();
+                return null;
+            }
+            missingKeys.remove(key, expires);
+        }
+
+        FutureTask<JRadiusSession> task = new FutureTask<JRadiusSession>(new Callable<JRadiusSession>()
+        {
+            public JRadiusSession call() throws Exception
+            {
+                lookups.incrementAndGet();
+                JRadiusSession session = getSessionFactory(request.getSender()).getSession(request, key);
+                if (session != null)
+                {
+                    put(session.getJRadiusKey(), session);
+                    put(session.getSessionKey(), session);
+                }
+                else if (negativeCacheTTL > 0)
+                {
+                    if (missingKeys.size() >= negativeCacheSize) missingKeys.clear();
+                    missingKeys.put(key, new Long(System.currentTimeMillis() + negativeCacheTTL));
+                }
+                return session;
+            }
+        });
+
+        FutureTask<JRadiusSession> running = loading.putIfAbsent(key, task);
+
+        if (running == null)
+        {
+            running = task;
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                loading.remove(key, task);
+            }
+        }
+        else
+        {
+            RadiusLog.debug("Waiting for concurrent lookup of session: {}", key);
+        }
+
+        try
+        {
+            return running.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new RadiusException("Interrupted while looking up session " + key, e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RadiusException) throw (RadiusException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RadiusException("Error looking up session " + key, (Exception) cause);
+        }
+    }
+
     public void lock(JRadiusSession session)
     {
         session.lock();
@@ -401,6 +549,11 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
 
     public void unlock(JRadiusSession session, boolean save)
     {
+        if (save)
+        {
+            indexSession(session);
+            if (replicator != null) replicator.sessionUpdated(session);
+        }
         session.unlock();
         //RadiusLog.error("Appropriate session locking must be implemented");
     }
@@ -424,19 +577,165 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
         {
             remove(session.getJRadiusKey());
             remove(session.getSessionKey());
+            unindexSession(session);
+            if (replicator != null) replicator.sessionRemoved(session);
+        }
+    }
+
+    /**
+     * Stores a session received from another node by the SessionReplicator.
+     * The session is not replicated again.
+     * @param session The replicated session
+     */
+    public void replicated(JRadiusSession session)
+    {
+        if (session.getJRadiusKey() != null && !session.getJRadiusKey().equals(session.getSessionKey()))
+        {
+            put(session.getJRadiusKey(), session);
+        }
+        put(session.getSessionKey(), session);
+    }
+
+    /**
+     * Removes a session removed on another node by the SessionReplicator.
+     * The removal is not replicated again.
+     * @param sessionKey The session key
+     * @param jRadiusKey The JRadius key of the session (may be null)
+     */
+    public void replicatedRemove(String sessionKey, String jRadiusKey)
+    {
+        if (jRadiusKey != null) remove(jRadiusKey);
+        remove(sessionKey);
+        nasIndex.remove(sessionKey);
+        realmIndex.remove(sessionKey);
+    }
+
+    /**
+     * Updates the NAS and realm indexes of the session. This is done
+     * when the session is stored and when it is unlocked after processing
+     * (the NAS and realm are typically known only after initSession()).
+     * @param session The session to index
+     */
+    public void indexSession(JRadiusSession session)
+    {
+        String sessionKey = session.getSessionKey();
+        nasIndex.update(sessionKey, new String[] { session.getNasIPAddress(), session.getNasIdentifier() });
+        realmIndex.update(sessionKey, new String[] { session.getRealm() });
+    }
+
+    private void unindexSession(JRadiusSession session)
+    {
+        String sessionKey = session.getSessionKey();
+        nasIndex.remove(sessionKey);
+        realmIndex.remove(sessionKey);
+    }
+
+    /**
+     * Returns all sessions of a NAS without scanning the session cache.
+     * @param nas The NAS-IP-Address or NAS-Identifier of the NAS
+     * @return Returns the (possibly empty) list of sessions
+     */
+    public List<JRadiusSession> getSessionsByNas(String nas)
+    {
+        return getIndexedSessions(nasIndex, nas);
+    }
+
+    /**
+     * Returns all sessions of a realm without scanning the session cache.
+     * @param realm The realm
+     * @return Returns the (possibly empty) list of sessions
+     */
+    public List<JRadiusSession> getSessionsByRealm(String realm)
+    {
+        return getIndexedSessions(realmIndex, realm);
+    }
+
+    /**
+     * Closes all sessions of a NAS, as required when the NAS sends
+     * an Accounting-On or Accounting-Off.
+     * @param nas The NAS-IP-Address or NAS-Identifier of the NAS
+     * @return Returns the closed sessions
+     * @see #closeSessions(List, String)
+     */
+    public List<JRadiusSession> closeSessionsByNas(String nas)
+    {
+        return closeSessions(getSessionsByNas(nas), "nas:" + nas);
+    }
+
+    /**
+     * Closes all sessions of a realm.
+     * @param realm The realm
+     * @return Returns the closed sessions
+     * @see #closeSessions(List, String)
+     */
+    public List<JRadiusSession> closeSessionsByRealm(String realm)
+    {
+        return closeSessions(getSessionsByRealm(realm), "realm:" + realm);
+    }
+
+    /**
+     * Removes the given sessions from the session manager in one pass and
+     * posts a single SessionsClosedEvent for all of them to the event dispatcher.
+     * @param sessions The sessions to close
+     * @param reason Why the sessions are closed (passed on in the event)
+     * @return Returns the closed sessions
+     */
+    public List<JRadiusSession> closeSessions(List<JRadiusSession> sessions, String reason)
+    {
+        if (sessions.isEmpty()) return sessions;
+
+        for (JRadiusSession session : sessions)
+        {
+            removeSession(session);
+        }
+
+        RadiusLog.debug("Closed {} sessions ({})", sessions.size(), reason);
+
+        if (eventDispatcher != null)
+        {
+            SessionsClosedEvent evt = new SessionsClosedEvent(sessions, reason);
+            evt.setApplicationContext(applicationContext);
+            eventDispatcher.post(evt);
+        }
+
+        return sessions;
+    }
+
+    private List<JRadiusSession> getIndexedSessions(SessionIndex index, String value)
+    {
+        List<String> keys = index.get(value);
+        List<JRadiusSession> sessions = new ArrayList<JRadiusSession>(keys.size());
+
+        for (String key : keys)
+        {
+            Element element = sessionCache.get(key);
+            JRadiusSession session = element == null ? null : (JRadiusSession) element.getValue();
+
+            if (session == null)
+            {
+                // the session left the cache without us noticing
+                index.remove(key);
+                continue;
+            }
+
+            sessions.add(session);
         }
+
+        return sessions;
     }
     
     private void remove(Serializable key)
     {
-    	RadiusLog.debug("Removing session key: " + key);
+    	RadiusLog.debug("Removing session key: {}", key);
         sessionCache.remove(key);
     }
 
     private void put(Object key, Object value)
     {
-        RadiusLog.debug("Adding session key: " + key);
+        RadiusLog.debug("Adding session key: {}", key);
+        if (!missingKeys.isEmpty()) missingKeys.remove(key);
         sessionCache.put(new Element(key, value));
+        if (value instanceof JRadiusSession) indexSession((JRadiusSession) value);
     }
 
     public int getMaxInactiveInterval()
@@ -459,6 +758,33 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
         this.minInterimInterval = minInterimInterval;
     }
     
+    public int getNegativeCacheTTL()
+    {
+        return negativeCacheTTL;
+    }
+
+    /**
+     * @param negativeCacheTTL How long a key not found by the SessionFactory
+     * is remembered as missing (in milliseconds, 0 to disable)
+     */
+    public void setNegativeCacheTTL(int negativeCacheTTL)
+    {
+        this.negativeCacheTTL = negativeCacheTTL;
+    }
+
+    public int getNegativeCacheSize()
+    {
+        return negativeCacheSize;
+    }
+
+    /**
+     * @param negativeCacheSize The maximum number of keys remembered as missing
+     */
+    public void setNegativeCacheSize(int negativeCacheSize)
+    {
+        this.negativeCacheSize = negativeCacheSize;
+    }
+
     public CacheManager getCacheManager()
     {
         return cacheManager;
@@ -479,12 +805,37 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
         this.cacheName = cacheName;
     }
 
+    /**
+     * @return Returns the number of sessions found in the cache
+     */
+    public long getCacheHits()
+    {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return Returns the number of sessions not found in the cache
+     */
+    public long getCacheMisses()
+    {
+        return cacheMisses.get();
+    }
+
     public void dispose()
     {
     }
 
     public void notifyElementEvicted(Ehcache cache, Element element)
     {
+        Object value = element.getValue();
+        if (value != null && value instanceof JRadiusSession)
+        {
+            JRadiusSession session = (JRadiusSession) value;
+            if (element.getKey().equals(session.getSessionKey()))
+            {
+                unindexSession(session);
+            }
+        }
     }
 
     public void notifyElementExpired(Ehcache cache, Element element)
@@ -493,7 +844,11 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
         if (value != null && value instanceof JRadiusSession)
         {
             JRadiusSession session = (JRadiusSession) value;
-            RadiusLog.debug("Expired session: " + session.getSessionKey());
+            RadiusLog.debug("Expired session: {}", session.getSessionKey());
+            if (element.getKey().equals(session.getSessionKey()))
+            {
+                unindexSession(session);
+            }
             if (eventDispatcher != null)
             {
                 SessionExpiredEvent evt = new SessionExpiredEvent(session);
@@ -539,6 +894,19 @@ public class JRadiusSessionManager implements InitializingBean, ApplicationConte
 		this.eventDispatcher = eventDispatcher;
 	}
 
+    public SessionReplicator getReplicator()
+    {
+        return replicator;
+    }
+
+    /**
+     * @param replicator The replicator sharing sessions with other nodes (optional)
+     */
+    public void setReplicator(SessionReplicator replicator)
+    {
+        this.replicator = replicator;
+    }
+
 	public ApplicationContext getApplicationContext()
     {
         return applicationContext;
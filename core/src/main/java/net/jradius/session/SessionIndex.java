@@ -0,0 +1,120 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A secondary index of session keys by attribute value (for instance,
+ * all sessions of a NAS or of a realm). Lookups are lock free; updates
+ * are only synchronized when the indexed values of a session change.
+ */
+class SessionIndex
+{
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> index = new ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>>();
+    private final ConcurrentHashMap<String, String[]> entries = new ConcurrentHashMap<String, String[]>();
+
+    /**
+     * Index the session key under the given values, replacing
+     * any values the key was previously indexed under.
+     * @param sessionKey The session key
+     * @param values The values to index the session under (null values are ignored)
+     */
+    public void update(String sessionKey, String[] values)
+    {
+        if (sessionKey == null) return;
+
+        if (Arrays.equals(entries.get(sessionKey), values)) return;
+
+        synchronized (this)
+        {
+            unindex(sessionKey, entries.remove(sessionKey));
+
+            for (int i = 0; i < values.length; i++)
+            {
+                if (values[i] == null) continue;
+                ConcurrentHashMap<String, Boolean> keys = index.get(values[i]);
+                if (keys == null)
+                {
+                    keys = new ConcurrentHashMap<String, Boolean>();
+                    index.put(values[i], keys);
+                }
+                keys.put(sessionKey, Boolean.TRUE);
+            }
+
+            entries.put(sessionKey, values);
+        }
+    }
+
+    /**
+     * Remove the session key from the index
+     * @param sessionKey The session key
+     */
+    public void remove(String sessionKey)
+    {
+        if (sessionKey == null || !entries.containsKey(sessionKey)) return;
+
+        synchronized (this)
+        {
+            unindex(sessionKey, entries.remove(sessionKey));
+        }
+    }
+
+    /**
+     * @param value The indexed value
+     * @return Returns a snapshot of the session keys indexed under the value
+     */
+    public List<String> get(String value)
+    {
+        List<String> list = new ArrayList<String>();
+        if (value == null) return list;
+        ConcurrentHashMap<String, Boolean> keys = index.get(value);
+        if (keys != null) list.addAll(keys.keySet());
+        return list;
+    }
+
+    /**
+     * @return Returns the number of indexed session keys
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    private void unindex(String sessionKey, String[] values)
+    {
+        if (values == null) return;
+
+        for (int i = 0; i < values.length; i++)
+        {
+            if (values[i] == null) continue;
+            ConcurrentHashMap<String, Boolean> keys = index.get(values[i]);
+            if (keys != null)
+            {
+                keys.remove(sessionKey);
+                if (keys.isEmpty()) index.remove(values[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.session;
+
+/**
+ * Replicates the sessions of a JRadiusSessionManager to the other
+ * JRadius nodes of a cluster, so that a request landing on any node
+ * finds the session created on another. The session manager notifies
+ * the replicator after each change; the replicator hands sessions received
+ * from peers back to the manager with JRadiusSessionManager.replicated().
+ * @see TCPSessionReplicator
+ */
+public interface SessionReplicator
+{
+    /**
+     * Starts replicating for the given session manager
+     * @param manager The local session manager
+     * @throws Exception
+     */
+    public void start(JRadiusSessionManager manager) throws Exception;
+
+    public void stop();
+
+    /**
+     * Called with the session still locked, after it was processed.
+     * @param session The changed session
+     */
+    public void sessionUpdated(JRadiusSession session);
+
+    /**
+     * Called when a session is removed from the session manager.
+     * @param session The removed session
+     */
+    public void sessionRemoved(JRadiusSession session);
+}
@@ -0,0 +1,638 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.jradius.log.RadiusLog;
+import net.jradius.server.JRadiusThread;
+
+/**
+ * Asynchronous session replication between JRadius nodes over TCP. Every
+ * node listens on a port and keeps a connection to each of its peers
+ * (a full mesh). When a session changes, it is serialized while still
+ * locked and queued for every peer; pending changes are coalesced per
+ * session, so a slow peer only receives the latest state of each session.
+ * Peers apply what they receive to their own session manager without
+ * replicating it any further. Conflicting concurrent changes of the same
+ * session on two nodes are resolved by the last write.
+ * <p>
+ * Several nodes can run on one machine by giving each its own port, e.g.
+ * port=1815, peers="127.0.0.1:1816,127.0.0.1:1817" and so on. Only
+ * connections from the configured peer addresses are accepted.
+ * <p>
+ * All nodes share a secret: the receiving side of a connection sends a
+ * random challenge, and every update is followed by an HMAC-SHA256 over
+ * the challenge, a sequence number and the update, so that updates can
+ * neither be forged nor replayed. Received sessions are only deserialized
+ * from the classes of JRadius (net.jradius.*), java.lang, java.util and
+ * java.net (and arrays of them), plus the class name prefixes listed in
+ * allowedClasses.
+ */
+public class TCPSessionReplicator implements SessionReplicator
+{
+    private static final byte OP_UPDATE = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int CHALLENGE_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String[] DEFAULT_ALLOWED_CLASSES = { "net.jradius.", "java.lang.", "java.util.", "java.net." };
+
+    private int port = 1815;
+    private String peers;
+    private int maxPending = 100000;
+    private int maxSessionSize = 1024 * 1024;
+    private int connectTimeout = 5;
+    private int reconnectInterval = 5;
+    private String secret;
+    private String[] allowedClasses = DEFAULT_ALLOWED_CLASSES;
+
+    private JRadiusSessionManager manager;
+    private ServerSocket serverSocket;
+    private final List<Peer> peerList = new LinkedList<Peer>();
+    private final Set<InetAddress> peerAddresses = new HashSet<InetAddress>();
+    private volatile boolean active = false;
+    private final SecureRandom random = new SecureRandom();
+
+    public void start(JRadiusSessionManager manager) throws Exception
+    {
+        if (secret == null || secret.length() == 0)
+        {
+            throw new IllegalArgumentException("TCPSessionReplicator requires a shared secret");
+        }
+
+        this.manager = manager;
+        this.active = true;
+
+        if (peers != null)
+        {
+            String[] list = peers.split("[ \\t]*,[ \\t]*");
+            for (int i = 0; i < list.length; i++)
+            {
+                if (list[i].length() == 0) continue;
+                int idx = list[i].lastIndexOf(':');
+                if (idx < 0) throw new IllegalArgumentException("peer without port: " + list[i]);
+                InetAddress address = InetAddress.getByName(list[i].substring(0, idx));
+                int peerPort = Integer.parseInt(list[i].substring(idx + 1));
+                Peer peer = new Peer(new InetSocketAddress(address, peerPort));
+                peerList.add(peer);
+                peerAddresses.add(address);
+            }
+        }
+
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+
+        new Receiver().start();
+
+        for (Peer peer : peerList)
+        {
+            peer.start();
+        }
+
+        RadiusLog.info("Session replication listening on port " + port + " with " + peerList.size() + " peers");
+    }
+
+    public void stop()
+    {
+        active = false;
+
+        try { if (serverSocket != null) serverSocket.close(); }
+        catch (IOException e) { }
+
+        for (Peer peer : peerList)
+        {
+            peer.shutdown();
+        }
+    }
+
+    public void sessionUpdated(JRadiusSession session)
+    {
+        if (peerList.isEmpty()) return;
+
+        byte[] data;
+
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(session);
+            out.close();
+            data = bytes.toByteArray();
+        }
+        catch (IOException e)
+        {
+            RadiusLog.warn("Unable to serialize session " + session.getSessionKey() + " for replication", e);
+            return;
+        }
+
+        offer(new Update(OP_UPDATE, session.getSessionKey(), session.getJRadiusKey(), data));
+    }
+
+    public void sessionRemoved(JRadiusSession session)
+    {
+        if (peerList.isEmpty()) return;
+        offer(new Update(OP_REMOVE, session.getSessionKey(), session.getJRadiusKey(), null));
+    }
+
+    private void offer(Update update)
+    {
+        if (update.sessionKey == null) return;
+
+        for (Peer peer : peerList)
+        {
+            peer.offer(update);
+        }
+    }
+
+    private Mac newMac(byte[] challenge) throws IOException
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), MAC_ALGORITHM));
+            mac.update(challenge);
+            return mac;
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("Unable to initialize " + MAC_ALGORITHM + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Returns the MAC of an update frame, chained to the challenge
+     * of the connection by the sequence number of the frame
+     */
+    private static byte[] sign(Mac mac, byte[] challenge, long sequence, byte[] frame)
+    {
+        mac.reset();
+        mac.update(challenge);
+        for (int i = 56; i >= 0; i -= 8) mac.update((byte) (sequence >>> i));
+        return mac.doFinal(frame);
+    }
+
+    private boolean isAllowedClass(String name)
+    {
+        // arrays: "[B", "[[I", "[Ljava.lang.String;"
+        int dims = 0;
+        while (dims < name.length() && name.charAt(dims) == '[') dims++;
+        if (dims > 0)
+        {
+            if (name.length() == dims + 1) return true;
+            if (name.charAt(dims) != 'L' || !name.endsWith(";")) return false;
+            name = name.substring(dims + 1, name.length() - 1);
+        }
+
+        for (int i = 0; i < allowedClasses.length; i++)
+        {
+            if (name.startsWith(allowedClasses[i])) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Deserializes only the allowed classes
+     */
+    private class SessionInputStream extends ObjectInputStream
+    {
+        SessionInputStream(InputStream in) throws IOException
+        {
+            super(in);
+        }
+
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+        {
+            if (!isAllowedClass(desc.getName()))
+            {
+                throw new InvalidClassException(desc.getName(), "Class not allowed in replicated sessions");
+            }
+            return super.resolveClass(desc);
+        }
+    }
+
+    private static class Update
+    {
+        final byte op;
+        final String sessionKey;
+        final String jRadiusKey;
+        final byte[] data;
+
+        Update(byte op, String sessionKey, String jRadiusKey, byte[] data)
+        {
+            this.op = op;
+            this.sessionKey = sessionKey;
+            this.jRadiusKey = jRadiusKey;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The outbound connection to one peer. Pending updates are kept
+     * by session key, so only the latest change of a session is sent.
+     */
+    private class Peer extends JRadiusThread
+    {
+        private final InetSocketAddress address;
+        private final LinkedHashMap<String, Update> pending = new LinkedHashMap<String, Update>();
+        private Socket socket;
+        private DataOutputStream out;
+        private Mac mac;
+        private byte[] challenge;
+        private long sequence;
+        private long dropped = 0;
+
+        Peer(InetSocketAddress address)
+        {
+            this.address = address;
+            setDaemon(true);
+        }
+
+        synchronized void offer(Update update)
+        {
+            pending.remove(update.sessionKey);
+            pending.put(update.sessionKey, update);
+
+            if (pending.size() > maxPending)
+            {
+                Iterator<String> it = pending.keySet().iterator();
+                it.next();
+                it.remove();
+                if (dropped++ % 1000 == 0)
+                {
+                    RadiusLog.warn("Session replication to " + address + " is falling behind, " + dropped + " updates dropped");
+                }
+            }
+
+            notify();
+        }
+
+        public void run()
+        {
+            while (active)
+            {
+                List<Update> batch;
+
+                synchronized (this)
+                {
+                    while (active && pending.isEmpty())
+                    {
+                        try { wait(); }
+                        catch (InterruptedException e) { }
+                    }
+
+                    batch = new ArrayList<Update>(pending.values());
+                    pending.clear();
+                }
+
+                try
+                {
+                    write(batch);
+                }
+                catch (IOException e)
+                {
+                    RadiusLog.warn("Session replication to " + address + " failed: " + e.getMessage());
+                    close();
+                    requeue(batch);
+
+                    try { Thread.sleep(reconnectInterval * 1000L); }
+                    catch (InterruptedException ie) { }
+                }
+            }
+
+            close();
+        }
+
+        private synchronized void requeue(List<Update> batch)
+        {
+            for (Update update : batch)
+            {
+                if (!pending.containsKey(update.sessionKey) && pending.size() < maxPending)
+                {
+                    pending.put(update.sessionKey, update);
+                }
+            }
+        }
+
+        private void write(List<Update> batch) throws IOException
+        {
+            if (socket == null)
+            {
+                socket = new Socket();
+                socket.connect(address, connectTimeout * 1000);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(connectTimeout * 1000);
+                challenge = new byte[CHALLENGE_LENGTH];
+                new DataInputStream(socket.getInputStream()).readFully(challenge);
+                socket.setSoTimeout(0);
+                mac = newMac(challenge);
+                sequence = 0;
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 8192));
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream frame = new DataOutputStream(bytes);
+
+            for (Update update : batch)
+            {
+                bytes.reset();
+                frame.writeByte(update.op);
+                frame.writeUTF(update.sessionKey);
+                frame.writeUTF(update.jRadiusKey == null ? "" : update.jRadiusKey);
+                if (update.op == OP_UPDATE)
+                {
+                    frame.writeInt(update.data.length);
+                    frame.write(update.data);
+                }
+                frame.flush();
+
+                byte[] data = bytes.toByteArray();
+                out.writeInt(data.length);
+                out.write(data);
+                out.write(sign(mac, challenge, ++sequence, data));
+            }
+
+            out.flush();
+        }
+
+        private void close()
+        {
+            try { if (socket != null) socket.close(); }
+            catch (IOException e) { }
+            socket = null;
+            out = null;
+        }
+
+        synchronized void shutdown()
+        {
+            notify();
+            interrupt();
+        }
+    }
+
+    /**
+     * Accepts the inbound connections of the peers
+     */
+    private class Receiver extends JRadiusThread
+    {
+        Receiver()
+        {
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            while (active)
+            {
+                try
+                {
+                    Socket socket = serverSocket.accept();
+
+                    if (!peerAddresses.contains(socket.getInetAddress()))
+                    {
+                        RadiusLog.warn("Rejecting session replication from unknown peer " + socket.getInetAddress());
+                        socket.close();
+                        continue;
+                    }
+
+                    new Connection(socket).start();
+                }
+                catch (IOException e)
+                {
+                    if (active) RadiusLog.error("Error accepting session replication connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the updates sent by one peer to the local session manager
+     */
+    private class Connection extends JRadiusThread
+    {
+        private final Socket socket;
+
+        Connection(Socket socket)
+        {
+            this.socket = socket;
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            try
+            {
+                byte[] challenge = new byte[CHALLENGE_LENGTH];
+                random.nextBytes(challenge);
+                socket.getOutputStream().write(challenge);
+                socket.getOutputStream().flush();
+
+                Mac mac = newMac(challenge);
+                long sequence = 0;
+                byte[] signature = new byte[MAC_LENGTH];
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+
+                while (active)
+                {
+                    int frameLength = in.readInt();
+                    if (frameLength < 0 || frameLength > maxSessionSize + 8192)
+                    {
+                        throw new IOException("Invalid replication frame length " + frameLength);
+                    }
+
+                    byte[] frame = new byte[frameLength];
+                    in.readFully(frame);
+                    in.readFully(signature);
+
+                    if (!MessageDigest.isEqual(signature, sign(mac, challenge, ++sequence, frame)))
+                    {
+                        throw new IOException("Invalid replication frame signature");
+                    }
+
+                    DataInputStream fin = new DataInputStream(new ByteArrayInputStream(frame));
+                    byte op = fin.readByte();
+                    String sessionKey = fin.readUTF();
+                    String jRadiusKey = fin.readUTF();
+                    if (jRadiusKey.length() == 0) jRadiusKey = null;
+
+                    if (op == OP_UPDATE)
+                    {
+                        int length = fin.readInt();
+                        if (length < 0 || length > maxSessionSize)
+                        {
+                            throw new IOException("Invalid replicated session length " + length);
+                        }
+                        byte[] data = new byte[length];
+                        fin.readFully(data);
+                        ObjectInputStream oin = new SessionInputStream(new ByteArrayInputStream(data));
+                        manager.replicated((JRadiusSession) oin.readObject());
+                    }
+                    else if (op == OP_REMOVE)
+                    {
+                        manager.replicatedRemove(sessionKey, jRadiusKey);
+                    }
+                    else
+                    {
+                        throw new IOException("Invalid session replication operation " + op);
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                if (active) RadiusLog.debug("Session replication connection from " + socket.getInetAddress() + " closed: " + e.getMessage());
+            }
+            finally
+            {
+                try { socket.close(); }
+                catch (IOException e) { }
+            }
+        }
+    }
+
+    /**
+     * @param secret The secret shared by all nodes (required)
+     */
+    public void setSecret(String secret)
+    {
+        this.secret = secret;
+    }
+
+    /**
+     * @param allowedClasses Comma separated class name prefixes allowed in replicated 
+     * sessions, in addition to net.jradius.*, java.lang.*, java.util.* and java.net.*
+     */
+    public void setAllowedClasses(String allowedClasses)
+    {
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < DEFAULT_ALLOWED_CLASSES.length; i++) list.add(DEFAULT_ALLOWED_CLASSES[i]);
+        if (allowedClasses != null)
+        {
+            String[] names = allowedClasses.split("[ \\t]*,[ \\t]*");
+            for (int i = 0; i < names.length; i++)
+            {
+                if (names[i].trim().length() > 0) list.add(names[i].trim());
+            }
+        }
+        this.allowedClasses = list.toArray(new String[list.size()]);
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public void setPort(int port)
+    {
+        this.port = port;
+    }
+
+    public String getPeers()
+    {
+        return peers;
+    }
+
+    /**
+     * @param peers Comma separated list of peer host:port (the other nodes)
+     */
+    public void setPeers(String peers)
+    {
+        this.peers = peers;
+    }
+
+    public int getMaxPending()
+    {
+        return maxPending;
+    }
+
+    /**
+     * @param maxPending Maximum number of sessions queued per peer
+     */
+    public void setMaxPending(int maxPending)
+    {
+        this.maxPending = maxPending;
+    }
+
+    public int getMaxSessionSize()
+    {
+        return maxSessionSize;
+    }
+
+    public void setMaxSessionSize(int maxSessionSize)
+    {
+        this.maxSessionSize = maxSessionSize;
+    }
+
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    /**
+     * @param connectTimeout The peer connect timeout (in seconds)
+     */
+    public void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReconnectInterval()
+    {
+        return reconnectInterval;
+    }
+
+    /**
+     * @param reconnectInterval Time to wait before reconnecting a failed peer (in seconds)
+     */
+    public void setReconnectInterval(int reconnectInterval)
+    {
+        this.reconnectInterval = reconnectInterval;
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies (or any positive values) with a
+ * fixed relative precision, in the manner of HdrHistogram: values below
+ * 2^precision are counted exactly, larger values in log-linear buckets
+ * whose width is at most 1/2^(precision-1) of the value. With the default
+ * precision of 7 bits, percentiles are within 1/64 (about 1.6%) over the
+ * whole range. Values above the highest trackable value are counted as the
+ * highest.
+ */
+public class LatencyHistogram
+{
+    private final int precision;
+    private final int subBuckets;
+    private final long highest;
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * A histogram of up to an hour in microseconds, within 1.6%
+     */
+    public LatencyHistogram()
+    {
+        this(3600L * 1000000L, 7);
+    }
+
+    /**
+     * @param highest The highest value to track
+     * @param precision The number of significant bits of the buckets (1 to 20)
+     */
+    public LatencyHistogram(long highest, int precision)
+    {
+        if (precision < 1 || precision > 20) throw new IllegalArgumentException("precision out of range: " + precision);
+        this.precision = precision;
+        this.subBuckets = 1 << precision;
+        this.highest = Math.max(highest, subBuckets);
+        this.counts = new AtomicLongArray(index(this.highest) + 1);
+    }
+
+    public void record(long value)
+    {
+        record(value, 1);
+    }
+
+    private void record(long value, long n)
+    {
+        if (value < 0) value = 0;
+        if (value > highest) value = highest;
+
+        counts.addAndGet(index(value), n);
+        count.addAndGet(n);
+        sum.addAndGet(value * n);
+
+        long m;
+        while (value > (m = max.get()))
+        {
+            if (max.compareAndSet(m, value)) break;
+        }
+    }
+
+    private int index(long value)
+    {
+        if (value < subBuckets) return (int) value;
+        int exponent = 64 - Long.numberOfLeadingZeros(value) - precision;
+        return subBuckets + (exponent - 1) * (subBuckets / 2) + (int) ((value >> exponent) - subBuckets / 2);
+    }
+
+    /**
+     * @return Returns the highest value counted in the bucket
+     */
+    private long highestValue(int index)
+    {
+        if (index < subBuckets) return index;
+        int exponent = (index - subBuckets) / (subBuckets / 2) + 1;
+        long mantissa = (index - subBuckets) % (subBuckets / 2) + subBuckets / 2;
+        return ((mantissa + 1) << exponent) - 1;
+    }
+
+    /**
+     * @param percentile The percentile (0 to 100)
+     * @return Returns the value below or at which the percentile of values are
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long total = count.get();
+        if (total == 0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+
+        for (int i = 0; i < counts.length(); i++)
+        {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(highestValue(i), max.get());
+        }
+
+        return max.get();
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Adds the counts of another histogram of the same range and precision
+     */
+    public void add(LatencyHistogram other)
+    {
+        if (other.counts.length() != counts.length()) throw new IllegalArgumentException("histograms differ in range or precision");
+
+        for (int i = 0; i < counts.length(); i++)
+        {
+            long n = other.counts.get(i);
+            if (n > 0) record(highestValue(i), n);
+        }
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < counts.length(); i++)
+        {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @param scale The divisor for display (e.g. 1000.0 for microseconds as milliseconds)
+     * @return Returns the count, mean, common percentiles and maximum
+     */
+    public String toString(double scale)
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("count=").append(getCount());
+        sb.append(" mean=").append(format(getMean() / scale));
+        sb.append(" p50=").append(format(getValueAtPercentile(50) / scale));
+        sb.append(" p90=").append(format(getValueAtPercentile(90) / scale));
+        sb.append(" p99=").append(format(getValueAtPercentile(99) / scale));
+        sb.append(" p99.9=").append(format(getValueAtPercentile(99.9) / scale));
+        sb.append(" p99.99=").append(format(getValueAtPercentile(99.99) / scale));
+        sb.append(" max=").append(format(getMax() / scale));
+        return sb.toString();
+    }
+
+    public String toString()
+    {
+        return toString(1);
+    }
+
+    private static String format(double value)
+    {
+        return String.valueOf(Math.round(value * 1000) / 1000.0);
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import net.jradius.log.RadiusLog;
+
+/**
+ * A hashed timer wheel for large numbers of short timeouts (such as
+ * RADIUS retransmissions). Scheduling and cancelling are O(1); a single
+ * thread advances the wheel every tick and runs the expired tasks, so
+ * tasks must be short. Timeouts fire with a precision of one tick.
+ */
+public class TimerWheel implements Runnable
+{
+    private final long tickMillis;
+    private final List<Timeout>[] wheel;
+    private final Thread thread;
+    private volatile boolean active = true;
+    private long tick = 0;
+    private final long startTime;
+
+    /**
+     * A scheduled task, which can be cancelled
+     */
+    public static class Timeout
+    {
+        private final Runnable task;
+        private long rounds;
+        private volatile boolean cancelled = false;
+
+        Timeout(Runnable task, long rounds)
+        {
+            this.task = task;
+            this.rounds = rounds;
+        }
+
+        public void cancel()
+        {
+            cancelled = true;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+    }
+
+    /**
+     * @param name The name of the timer thread
+     * @param tickMillis The duration of a tick (in milliseconds)
+     * @param size The number of slots of the wheel
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(String name, long tickMillis, int size)
+    {
+        this.tickMillis = tickMillis;
+        this.wheel = new List[size];
+        for (int i = 0; i < size; i++)
+        {
+            wheel[i] = new LinkedList<Timeout>();
+        }
+        this.startTime = System.nanoTime();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Runs the task after (at least) the given delay
+     * @param task The task to run on the timer thread
+     * @param delayMillis The delay (in milliseconds)
+     * @return Returns the Timeout, to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMillis)
+    {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+
+        synchronized (this)
+        {
+            Timeout timeout = new Timeout(task, (ticks - 1) / wheel.length);
+            wheel[(int) ((tick + ticks) % wheel.length)].add(timeout);
+            return timeout;
+        }
+    }
+
+    public void stop()
+    {
+        active = false;
+        thread.interrupt();
+    }
+
+    public void run()
+    {
+        List<Timeout> expired = new ArrayList<Timeout>();
+
+        while (active)
+        {
+            long next = startTime + (tick + 1) * tickMillis * 1000000L;
+            long sleep = (next - System.nanoTime()) / 1000000L;
+
+            if (sleep > 0)
+            {
+                try { Thread.sleep(sleep); }
+                catch (InterruptedException e) { continue; }
+            }
+
+            synchronized (this)
+            {
+                tick++;
+                Iterator<Timeout> it = wheel[(int) (tick % wheel.length)].iterator();
+                while (it.hasNext())
+                {
+                    Timeout timeout = it.next();
+                    if (timeout.cancelled)
+                    {
+                        it.remove();
+                    }
+                    else if (timeout.rounds > 0)
+                    {
+                        timeout.rounds--;
+                    }
+                    else
+                    {
+                        it.remove();
+                        expired.add(timeout);
+                    }
+                }
+            }
+
+            for (Timeout timeout : expired)
+            {
+                if (timeout.cancelled) continue;
+                try
+                {
+                    timeout.task.run();
+                }
+                catch (Throwable e)
+                {
+                    RadiusLog.error("Error in timer task", e);
+                }
+            }
+
+            expired.clear();
+        }
+    }
+}
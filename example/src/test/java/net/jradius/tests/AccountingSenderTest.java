@@ -0,0 +1,282 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.tests;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import net.jradius.client.AccountingSender;
+import net.jradius.client.AsyncRadiusClient;
+import net.jradius.packet.AccountingRequest;
+import net.jradius.packet.AccountingResponse;
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusFormat;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.attribute.AttributeDictionary;
+import net.jradius.packet.attribute.AttributeFactory;
+
+/**
+ * Tests that the AccountingSender sends the requests left in its spool
+ * by a previous run, in order, and that it stops cleanly
+ */
+public class AccountingSenderTest extends TestCase
+{
+    private static final String SECRET = "testing123";
+    private static final int REQUESTS = 60;
+    private static final int SESSIONS = 3;
+
+    private File spool;
+    private DatagramSocket silent;
+    private DatagramSocket server;
+    private final List<String> received = new ArrayList<String>();
+
+    protected void setUp() throws Exception
+    {
+        AttributeFactory.loadAttributeDictionary("net.jradius.dictionary.AttributeDictionaryImpl");
+
+        spool = File.createTempFile("jradius-spool", "");
+        spool.delete();
+
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        silent = new DatagramSocket(0, localhost);
+        server = new DatagramSocket(0, localhost);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        silent.close();
+        server.close();
+
+        File[] files = spool.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        spool.delete();
+    }
+
+    public void testSpoolReplayOrder() throws Exception
+    {
+        // first run: the server does not answer, the requests stay in the spool
+        AsyncRadiusClient client = new AsyncRadiusClient();
+        AccountingSender sender = new AccountingSender(client, silent.getLocalAddress(), SECRET);
+        sender.setPort(silent.getLocalPort());
+        sender.setSpoolDirectory(spool);
+        sender.start();
+
+        for (int i = 0; i < REQUESTS; i++)
+        {
+            AccountingRequest request = new AccountingRequest();
+            request.addAttribute(AttributeFactory.newAttribute(AttributeDictionary.ACCT_SESSION_ID, ("session-" + (i % SESSIONS)).getBytes(), false));
+            request.addAttribute(AttributeFactory.newAttribute(AttributeDictionary.CLASS, String.valueOf(i).getBytes(), false));
+            sender.send(request);
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countSpooled() < REQUESTS)
+        {
+            assertTrue("Requests not spooled", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        sender.close();
+        client.close();
+        assertEquals(REQUESTS, countSpooled());
+
+        // second run: the spool is sent to a server that answers
+        Thread responder = new Thread(new Runnable() { public void run() { respond(); } }, "AccountingSenderTest-Server");
+        responder.setDaemon(true);
+        responder.start();
+
+        client = new AsyncRadiusClient();
+        sender = new AccountingSender(client, server.getLocalAddress(), SECRET);
+        sender.setPort(server.getLocalPort());
+        sender.setSpoolDirectory(spool);
+        sender.start();
+
+        try
+        {
+            deadline = System.currentTimeMillis() + 10000;
+            while (sender.getQueued() > 0 || spool.list().length > 0)
+            {
+                assertTrue("Spool not delivered", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+        finally
+        {
+            sender.close();
+            client.close();
+        }
+
+        assertEquals(REQUESTS, sender.getDelivered());
+
+        Map<String, Integer> last = new HashMap<String, Integer>();
+        synchronized (received)
+        {
+            assertEquals(REQUESTS, received.size());
+
+            for (String r : received)
+            {
+                String[] parts = r.split("/");
+                int n = Integer.parseInt(parts[1]);
+                Integer previous = last.put(parts[0], Integer.valueOf(n));
+                assertEquals("Order of " + parts[0], previous == null ? n % SESSIONS : previous.intValue() + SESSIONS, n);
+            }
+        }
+    }
+
+    /**
+     * close() spools the queued requests, stops the threads of the sender
+     * and closes the client the sender created
+     */
+    public void testCloseStopsThreads() throws Exception
+    {
+        Set<String> before = threadNames();
+
+        AccountingSender sender = new AccountingSender(silent.getLocalAddress(), SECRET);
+        sender.setPort(silent.getLocalPort());
+        sender.setSpoolDirectory(spool);
+        sender.start();
+
+        for (int i = 0; i < REQUESTS; i++)
+        {
+            AccountingRequest request = new AccountingRequest();
+            request.addAttribute(AttributeFactory.newAttribute(AttributeDictionary.ACCT_SESSION_ID, ("session-" + (i % SESSIONS)).getBytes(), false));
+            sender.send(request);
+        }
+
+        sender.close();
+        assertEquals(REQUESTS, countSpooled());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        Set<String> left = threadNames();
+        while (!before.containsAll(left) && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+            left = threadNames();
+        }
+        left.removeAll(before);
+        assertTrue("Threads left running: " + left, left.isEmpty());
+    }
+
+    /**
+     * @return Returns the names of the live threads of senders and clients
+     */
+    private static Set<String> threadNames()
+    {
+        Set<String> names = new HashSet<String>();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            String name = thread.getName();
+            if (thread.isAlive() && (name.startsWith("AccountingSender-") || name.startsWith("RadiusClient-"))) names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * @return Returns the number of complete records in the spool files
+     */
+    private int countSpooled() throws IOException
+    {
+        int count = 0;
+        File[] files = spool.listFiles();
+        if (files == null) return 0;
+
+        for (File f : files)
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try
+            {
+                while (true)
+                {
+                    int length = in.readInt();
+                    in.readLong();
+                    in.readFully(new byte[length]);
+                    count++;
+                }
+            }
+            catch (EOFException e)
+            {
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Answers every Accounting-Request, noting its session and number
+     */
+    private void respond()
+    {
+        byte[] data = new byte[RadiusPacket.MAX_PACKET_LENGTH];
+
+        try
+        {
+            while (true)
+            {
+                DatagramPacket packet = new DatagramPacket(data, data.length);
+                server.receive(packet);
+
+                byte[] bytes = new byte[packet.getLength()];
+                System.arraycopy(data, 0, bytes, 0, bytes.length);
+                RadiusPacket request = PacketFactory.parseUDP(ByteBuffer.wrap(bytes), false);
+
+                String session = new String(request.findAttribute(AttributeDictionary.ACCT_SESSION_ID).getValue().getBytes());
+                String n = new String(request.findAttribute(AttributeDictionary.CLASS).getValue().getBytes());
+
+                synchronized (received)
+                {
+                    received.add(session + "/" + n);
+                }
+
+                AccountingResponse response = new AccountingResponse();
+                response.setIdentifier(request.getIdentifier());
+                response.generateAuthenticator(request.getAuthenticator(), SECRET);
+
+                ByteBuffer buffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+                RadiusFormat.getInstance().packPacket(response, SECRET, buffer, true);
+                server.send(new DatagramPacket(buffer.array(), buffer.position(), packet.getSocketAddress()));
+            }
+        }
+        catch (Exception e)
+        {
+            // closed by tearDown()
+        }
+    }
+}
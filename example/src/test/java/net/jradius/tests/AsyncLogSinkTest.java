@@ -0,0 +1,141 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.tests;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import net.jradius.log.AsyncLogSink;
+import net.jradius.log.LogRecord;
+
+/**
+ * Tests the ring buffer and writer thread of the AsyncLogSink
+ */
+public class AsyncLogSinkTest extends TestCase
+{
+    private static final Pattern NUMBER = Pattern.compile("\"n\":(\\d+)");
+
+    private File directory;
+    private AsyncLogSink sink;
+
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile("jradius-log", "");
+        directory.delete();
+
+        sink = new AsyncLogSink();
+        sink.setDirectory(directory);
+        sink.setPrefix("test");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        sink.stop();
+
+        File[] files = directory.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        directory.delete();
+    }
+
+    /**
+     * Many more records than the ring holds must all be written, in order
+     */
+    public void testRingWrap() throws Exception
+    {
+        sink.setCapacity(16);
+        sink.setBatchSize(4);
+        sink.setOverflow("block");
+        sink.setBlockTimeout(10000);
+        sink.start();
+
+        int records = 10000;
+
+        for (int i = 0; i < records; i++)
+        {
+            assertTrue(sink.log(new LogRecord().add("n", Integer.valueOf(i))));
+        }
+
+        sink.stop();
+
+        assertEquals(0, sink.getDropped());
+        assertEquals(0, sink.getPending());
+
+        int expected = 0;
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+
+        for (File f : files)
+        {
+            BufferedReader in = new BufferedReader(new FileReader(f));
+            try
+            {
+                String line;
+                while ((line = in.readLine()) != null)
+                {
+                    Matcher m = NUMBER.matcher(line);
+                    if (m.find()) assertEquals(expected++, Integer.parseInt(m.group(1)));
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        assertEquals(records, expected);
+    }
+
+    /**
+     * A writer sleeping on an empty ring must be woken by the next record
+     */
+    public void testWakesIdleWriter() throws Exception
+    {
+        sink.start();
+
+        sink.log(new LogRecord().add("n", Integer.valueOf(0)));
+        assertTrue("First record not written", awaitWritten(1));
+
+        // let the writer go to sleep
+        Thread.sleep(200);
+
+        sink.log(new LogRecord().add("n", Integer.valueOf(1)));
+        assertTrue("Sleeping writer not woken", awaitWritten(2));
+    }
+
+    private boolean awaitWritten(long n) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 2000;
+
+        while (sink.getWritten() < n)
+        {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(1);
+        }
+
+        return true;
+    }
+}
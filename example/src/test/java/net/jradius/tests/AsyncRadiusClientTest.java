@@ -0,0 +1,139 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.tests;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.jradius.client.AsyncRadiusClient;
+import net.jradius.exception.TimeoutException;
+import net.jradius.packet.AccessAccept;
+import net.jradius.packet.AccessReject;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusFormat;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.RadiusResponse;
+import net.jradius.packet.attribute.AttributeFactory;
+import net.jradius.util.MessageAuthenticator;
+
+/**
+ * Tests the matching of replies to requests in the AsyncRadiusClient,
+ * against a server on a local UDP socket
+ */
+public class AsyncRadiusClientTest extends TestCase
+{
+    private static final String SECRET = "testing123";
+
+    private DatagramSocket server;
+    private AsyncRadiusClient client;
+
+    protected void setUp() throws Exception
+    {
+        AttributeFactory.loadAttributeDictionary("net.jradius.dictionary.AttributeDictionaryImpl");
+        server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(10000);
+        client = new AsyncRadiusClient();
+        client.setSocketTimeout(1);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        client.close();
+        server.close();
+    }
+
+    /**
+     * A late reply to a timed out request must not complete the request
+     * that was given the same Identifier afterwards
+     */
+    public void testLateReplyToReusedIdentifier() throws Exception
+    {
+        Future<RadiusResponse> first = send();
+        DatagramPacket late = receive();
+
+        try
+        {
+            first.get(5, TimeUnit.SECONDS);
+            fail("Request without reply did not time out");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        // go through the other Identifiers, so that the next request gets the first one again
+        for (int i = 1; i < 256; i++)
+        {
+            Future<RadiusResponse> f = send();
+            reply(receive(), new AccessAccept());
+            assertTrue(f.get(5, TimeUnit.SECONDS) instanceof AccessAccept);
+        }
+
+        Future<RadiusResponse> second = send();
+        DatagramPacket request = receive();
+        assertEquals("Identifier reused", late.getData()[1], request.getData()[1]);
+
+        reply(late, new AccessReject());
+        reply(request, new AccessAccept());
+
+        assertTrue("Late reply completed the request reusing its Identifier",
+                second.get(5, TimeUnit.SECONDS) instanceof AccessAccept);
+        assertEquals(0, client.getOutstanding());
+    }
+
+    private Future<RadiusResponse> send()
+    {
+        return client.send(new AccessRequest(), server.getLocalAddress(), server.getLocalPort(), SECRET, 0);
+    }
+
+    private DatagramPacket receive() throws Exception
+    {
+        DatagramPacket packet = new DatagramPacket(new byte[RadiusPacket.MAX_PACKET_LENGTH], RadiusPacket.MAX_PACKET_LENGTH);
+        server.receive(packet);
+        return packet;
+    }
+
+    /**
+     * Answers the request, as a server would
+     */
+    private void reply(DatagramPacket packet, RadiusResponse response) throws Exception
+    {
+        byte[] data = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), 0, data, 0, data.length);
+        RadiusPacket request = PacketFactory.parseUDP(ByteBuffer.wrap(data), false);
+
+        response.setIdentifier(request.getIdentifier());
+        MessageAuthenticator.generateResponseMessageAuthenticator(request, response, SECRET);
+        response.generateAuthenticator(request.getAuthenticator(), SECRET);
+
+        ByteBuffer buffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+        RadiusFormat.getInstance().packPacket(response, SECRET, buffer, true);
+        server.send(new DatagramPacket(buffer.array(), buffer.position(), packet.getSocketAddress()));
+    }
+}
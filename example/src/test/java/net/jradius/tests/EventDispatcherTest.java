@@ -0,0 +1,277 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.tests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import junit.framework.TestCase;
+import net.jradius.freeradius.FreeRadiusRequest;
+import net.jradius.handler.EventHandlerBase;
+import net.jradius.handler.PacketHandlerBase;
+import net.jradius.handler.chain.JRCommand;
+import net.jradius.packet.AccessAccept;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.server.EventDispatcher;
+import net.jradius.server.JRadiusEvent;
+import net.jradius.server.JRadiusRequest;
+import net.jradius.server.JRadiusServer;
+import net.jradius.server.ListenerRequest;
+import net.jradius.server.RadiusProcessor;
+import net.jradius.server.TCPListenerRequest;
+import net.jradius.server.event.HandlerLogEvent;
+import net.jradius.session.JRadiusSession;
+import net.jradius.session.JRadiusSessionManager;
+
+/**
+ * Tests that a processor does not wait for room in a full EventDispatcher
+ * queue while it holds the lock of a session
+ */
+public class EventDispatcherTest extends TestCase
+{
+    private static final String SENDER = "EventDispatcherTest";
+
+    private final CountDownLatch dispatching = new CountDownLatch(1);
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    private EventDispatcher dispatcher;
+    private FreeRadiusRequest request;
+
+    private class TestProcessor extends RadiusProcessor
+    {
+        protected void processRequest(ListenerRequest listenerRequest) throws Exception
+        {
+            runPacketHandlers(listenerRequest, request);
+        }
+
+        protected void requestCompleted(ListenerRequest listenerRequest, JRadiusRequest request)
+        {
+            completed.countDown();
+        }
+
+        protected void logReturnCode(int result, JRCommand handler)
+        {
+        }
+    }
+
+    /**
+     * Holds up the dispatch thread on the first event, until the gate is opened
+     */
+    private class Gate extends EventHandlerBase
+    {
+        public boolean doesHandle(JRadiusEvent event)
+        {
+            return true;
+        }
+
+        public boolean handle(JRadiusEvent event) throws Exception
+        {
+            dispatching.countDown();
+            gate.await();
+            return false;
+        }
+    }
+
+    private class Accept extends PacketHandlerBase
+    {
+        public boolean doesHandle(JRadiusEvent event)
+        {
+            return true;
+        }
+
+        public boolean handle(JRadiusRequest request) throws Exception
+        {
+            request.setReturnValue(JRadiusServer.RLM_MODULE_OK);
+            return false;
+        }
+    }
+
+    protected void setUp() throws Exception
+    {
+        JRadiusSessionManager.setManager(SENDER, new JRadiusSessionManager()
+        {
+            public void lock(JRadiusSession session)
+            {
+                session.lock();
+            }
+
+            public void unlock(JRadiusSession session, boolean save)
+            {
+                session.unlock();
+            }
+        });
+
+        List<JRCommand> handlers = new ArrayList<JRCommand>();
+        handlers.add(new Gate());
+
+        dispatcher = new EventDispatcher();
+        dispatcher.setQueueSize(1);
+        dispatcher.setEventHandlers(handlers);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+        for (int i = 0; i < 500 && !dispatcher.getActive(); i++)
+        {
+            Thread.sleep(10);
+        }
+
+        request = newRequest(newSession("session"));
+    }
+
+    protected void tearDown() throws Exception
+    {
+        gate.countDown();
+        dispatcher.setActive(false);
+    }
+
+    public void testPostWithFullQueue() throws Exception
+    {
+        // one event held up in the dispatch thread, one filling the queue
+        FreeRadiusRequest other = newRequest(newSession("other"));
+        dispatcher.post(new HandlerLogEvent(other, "other", JRadiusServer.RLM_MODULE_OK));
+        assertTrue("Event not dispatched", dispatching.await(5, TimeUnit.SECONDS));
+        dispatcher.post(new HandlerLogEvent(other, "other", JRadiusServer.RLM_MODULE_OK));
+
+        final TestProcessor processor = new TestProcessor();
+        processor.setHandlerMetrics(null);
+        processor.setEventDispatcher(dispatcher);
+        processor.setRequestQueue(new LinkedBlockingQueue<ListenerRequest>());
+        List<JRCommand> handlers = new ArrayList<JRCommand>();
+        handlers.add(new Accept());
+        processor.setRequestHandlers(handlers);
+        processor.getRequestQueue().put(new TCPListenerRequest());
+
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    processor.process();
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }, "EventDispatcherTest-Processor");
+        thread.setDaemon(true);
+        thread.start();
+
+        // the processor now waits for room to post the log event of the request
+        for (int i = 0; i < 500 && thread.getState() != Thread.State.WAITING; i++)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+        assertEquals(1, completed.getCount());
+
+        // the dispatch thread could lock the session of the event
+        JRadiusSession session = request.getSession();
+        assertTrue("Session locked while posting", tryLock(session));
+
+        gate.countDown();
+        assertTrue("Request not completed", completed.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 500 && dispatcher.getDispatched() < 3; i++)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(3, dispatcher.getDispatched());
+        assertEquals(0, dispatcher.getDropped());
+    }
+
+    /**
+     * Locks and unlocks the session on a thread of its own
+     * @return Returns false if the session stays locked by another thread
+     */
+    private boolean tryLock(final JRadiusSession session) throws InterruptedException
+    {
+        final boolean[] locked = new boolean[1];
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                ReentrantLock lock = (ReentrantLock) session.getAttribute("lock");
+                try
+                {
+                    if (lock.tryLock(1, TimeUnit.SECONDS))
+                    {
+                        locked[0] = true;
+                        lock.unlock();
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                }
+            }
+        });
+        thread.start();
+        thread.join(5000);
+        return locked[0];
+    }
+
+    private static FreeRadiusRequest newRequest(JRadiusSession session)
+    {
+        FreeRadiusRequest request = new FreeRadiusRequest();
+        request.setSender(SENDER);
+        request.setType(JRadiusServer.JRADIUS_authorize);
+        request.setPackets(new RadiusPacket[] { new AccessRequest(), new AccessAccept() });
+        request.setSession(session);
+        return request;
+    }
+
+    /**
+     * @return Returns a logging session with a lock, and otherwise doing nothing
+     */
+    private static JRadiusSession newSession(final String key)
+    {
+        final ReentrantLock lock = new ReentrantLock();
+        return (JRadiusSession) Proxy.newProxyInstance(JRadiusSession.class.getClassLoader(),
+                new Class[] { JRadiusSession.class }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("lock")) lock.lock();
+                else if (name.equals("unlock")) lock.unlock();
+                else if (name.equals("getAttribute")) return lock;
+                else if (name.equals("getSessionKey")) return key;
+                else if (name.equals("isLogging")) return Boolean.TRUE;
+
+                Class<?> type = method.getReturnType();
+                if (type == Boolean.TYPE) return Boolean.FALSE;
+                if (type == Integer.TYPE) return Integer.valueOf(0);
+                if (type == Long.TYPE) return Long.valueOf(0);
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.jradius.freeradius.FreeRadiusRequest;
+import net.jradius.handler.EventHandlerBase;
+import net.jradius.handler.chain.HandlerDispatchTable;
+import net.jradius.handler.chain.JRCommand;
+import net.jradius.server.JRadiusEvent;
+import net.jradius.server.JRadiusServer;
+import net.jradius.server.config.HandlerConfigurationItem;
+
+/**
+ * Tests that the HandlerDispatchTable selects the handlers by sender and
+ * type once, and leaves handlers with their own doesHandle() to run time
+ */
+public class HandlerDispatchTableTest extends TestCase
+{
+    private int checks;
+
+    private class Handler extends EventHandlerBase
+    {
+        Handler(String name, String types, String senders)
+        {
+            HandlerConfigurationItem cfg = new HandlerConfigurationItem(name)
+            {
+                public boolean handlesType(String type)
+                {
+                    checks++;
+                    return super.handlesType(type);
+                }
+            };
+            cfg.setHandleTypes(types);
+            cfg.setSenders(senders);
+            setConfig(cfg);
+        }
+
+        public boolean handle(JRadiusEvent event) throws Exception
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Handles requests only while enabled
+     */
+    private static class CustomHandler extends EventHandlerBase
+    {
+        boolean enabled;
+
+        public boolean doesHandle(JRadiusEvent event)
+        {
+            return enabled;
+        }
+
+        public boolean handle(JRadiusEvent event) throws Exception
+        {
+            return false;
+        }
+    }
+
+    public void testLookup() throws Exception
+    {
+        JRCommand any = new Handler("any", null, null);
+        JRCommand authorize = new Handler("authorize", "authorize", null);
+        JRCommand nas1 = new Handler("nas1", null, "nas1");
+        JRCommand accounting = new Handler("accounting", "accounting,preacct", "nas1,nas2");
+        JRCommand custom = new CustomHandler();
+
+        List<JRCommand> handlers = new ArrayList<JRCommand>();
+        handlers.add(any);
+        handlers.add(authorize);
+        handlers.add(nas1);
+        handlers.add(accounting);
+        handlers.add(custom);
+        HandlerDispatchTable table = new HandlerDispatchTable(handlers);
+
+        HandlerDispatchTable.Entry entry = table.lookup(newRequest("nas1", JRadiusServer.JRADIUS_authorize));
+        assertHandlers(entry, new JRCommand[] { any, authorize, nas1, custom });
+        assertSame(entry, table.lookup(newRequest("nas1", JRadiusServer.JRADIUS_authorize)));
+
+        assertHandlers(table.lookup(newRequest("nas2", JRadiusServer.JRADIUS_authorize)), new JRCommand[] { any, authorize, custom });
+        assertHandlers(table.lookup(newRequest("nas2", JRadiusServer.JRADIUS_accounting)), new JRCommand[] { any, accounting, custom });
+        assertHandlers(table.lookup(newRequest("nas3", JRadiusServer.JRADIUS_accounting)), new JRCommand[] { any, custom });
+        assertHandlers(table.lookup(newRequest(null, JRadiusServer.JRADIUS_accounting)), new JRCommand[] { any, custom });
+    }
+
+    public void testCompiledOnce() throws Exception
+    {
+        List<JRCommand> handlers = new ArrayList<JRCommand>();
+        handlers.add(new Handler("authorize", "authorize", null));
+        handlers.add(new Handler("accounting", "accounting", null));
+        HandlerDispatchTable table = new HandlerDispatchTable(handlers);
+
+        table.lookup(newRequest("nas1", JRadiusServer.JRADIUS_authorize));
+        assertEquals(2, checks);
+
+        for (int i = 0; i < 10; i++)
+        {
+            table.lookup(newRequest("nas1", JRadiusServer.JRADIUS_authorize));
+        }
+        assertEquals(2, checks);
+
+        table.lookup(newRequest("nas1", JRadiusServer.JRADIUS_accounting));
+        assertEquals(4, checks);
+    }
+
+    public void testCustomHandler() throws Exception
+    {
+        List<JRCommand> handlers = new ArrayList<JRCommand>();
+        CustomHandler custom = new CustomHandler();
+        handlers.add(custom);
+        HandlerDispatchTable table = new HandlerDispatchTable(handlers);
+
+        FreeRadiusRequest request = newRequest("nas1", JRadiusServer.JRADIUS_authorize);
+        HandlerDispatchTable.Entry entry = table.lookup(request);
+        assertEquals(1, entry.size());
+        assertFalse(entry.handles(0, request));
+
+        // the same entry, asked again for each request
+        custom.enabled = true;
+        assertSame(entry, table.lookup(request));
+        assertTrue(entry.handles(0, request));
+    }
+
+    private static void assertHandlers(HandlerDispatchTable.Entry entry, JRCommand[] expected)
+    {
+        assertEquals(expected.length, entry.size());
+        for (int i = 0; i < expected.length; i++)
+        {
+            assertSame(expected[i], entry.getHandler(i));
+        }
+    }
+
+    private static FreeRadiusRequest newRequest(String sender, int type)
+    {
+        FreeRadiusRequest request = new FreeRadiusRequest();
+        request.setSender(sender);
+        request.setType(type);
+        return request;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.tests;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import net.jradius.freeradius.FreeRadiusRequest;
+import net.jradius.server.JRadiusServer;
+
+/**
+ * Tests the commons-chain Context (Map) contract of JRadiusEvent: bean
+ * properties as entries, other entries in a map, identity equality
+ */
+@SuppressWarnings("unchecked")
+public class JRadiusEventTest extends TestCase
+{
+    public void testProperties()
+    {
+        FreeRadiusRequest request = new FreeRadiusRequest();
+        request.setSender("nas1");
+        request.setType(JRadiusServer.JRADIUS_authorize);
+
+        assertEquals("nas1", request.get("sender"));
+        assertEquals("authorize", request.get("typeString"));
+        assertTrue(request.containsKey("sender"));
+
+        assertEquals("nas1", request.put("sender", "nas2"));
+        assertEquals("nas2", request.getSender());
+
+        try
+        {
+            request.put("typeString", "accounting");
+            fail("Read only property written");
+        }
+        catch (UnsupportedOperationException e)
+        {
+        }
+
+        try
+        {
+            request.remove("sender");
+            fail("Property removed");
+        }
+        catch (UnsupportedOperationException e)
+        {
+        }
+    }
+
+    public void testAttributes()
+    {
+        FreeRadiusRequest request = new FreeRadiusRequest();
+        int properties = request.size();
+        assertTrue(properties > 0);
+        assertNull(request.get("attribute"));
+        assertFalse(request.containsKey("attribute"));
+
+        assertNull(request.put("attribute", "value"));
+        assertEquals("value", request.get("attribute"));
+        assertTrue(request.containsKey("attribute"));
+        assertEquals(properties + 1, request.size());
+
+        assertEquals("value", request.remove("attribute"));
+        assertNull(request.get("attribute"));
+        assertEquals(properties, request.size());
+
+        request.put("attribute", "value");
+        request.setSender("nas1");
+        request.clear();
+        assertNull(request.get("attribute"));
+        assertEquals("nas1", request.getSender());
+        assertEquals(properties, request.size());
+    }
+
+    public void testEntrySet()
+    {
+        FreeRadiusRequest request = new FreeRadiusRequest();
+        request.setSender("nas1");
+        request.put("attribute", "value");
+
+        Map<Object, Object> map = new HashMap<Object, Object>();
+        for (Iterator<Map.Entry<Object, Object>> i = request.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry<Object, Object> e = i.next();
+            map.put(e.getKey(), e.getValue());
+        }
+
+        assertEquals("nas1", map.get("sender"));
+        assertEquals("value", map.get("attribute"));
+        assertFalse(map.containsKey("class"));
+    }
+
+    public void testIdentity()
+    {
+        FreeRadiusRequest a = new FreeRadiusRequest();
+        FreeRadiusRequest b = new FreeRadiusRequest();
+
+        assertTrue(a.equals(a));
+        assertFalse(a.equals(b));
+        assertEquals(System.identityHashCode(a), a.hashCode());
+    }
+}
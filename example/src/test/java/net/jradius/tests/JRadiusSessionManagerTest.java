@@ -0,0 +1,313 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.tests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.jradius.exception.RadiusException;
+import net.jradius.freeradius.FreeRadiusRequest;
+import net.jradius.log.JRadiusLogEntry;
+import net.jradius.server.EventDispatcher;
+import net.jradius.server.JRadiusEvent;
+import net.jradius.server.JRadiusRequest;
+import net.jradius.server.config.XMLConfiguration;
+import net.jradius.server.event.SessionsClosedEvent;
+import net.jradius.session.JRadiusSession;
+import net.jradius.session.JRadiusSessionManager;
+import net.jradius.session.SessionFactory;
+import net.sf.ehcache.CacheManager;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+
+/**
+ * Tests the NAS and realm indexes, the bulk close of sessions and the
+ * negative caching and coalescing of session lookups of the
+ * JRadiusSessionManager
+ */
+public class JRadiusSessionManagerTest extends TestCase
+{
+    private static final String SENDER = "JRadiusSessionManagerTest";
+
+    private final List<JRadiusEvent> posted = new ArrayList<JRadiusEvent>();
+    private final TestSessionFactory factory = new TestSessionFactory();
+
+    private CacheManager cacheManager;
+    private JRadiusSessionManager manager;
+
+    protected void setUp() throws Exception
+    {
+        cacheManager = new CacheManager();
+
+        manager = new JRadiusSessionManager();
+        manager.setCacheManager(cacheManager);
+        manager.setCacheName("JRadiusSessionManagerTest");
+        manager.setSessionFactory(SENDER, factory);
+        manager.setEventDispatcher(new EventDispatcher()
+        {
+            public void post(JRadiusEvent event)
+            {
+                posted.add(event);
+            }
+        });
+        manager.afterPropertiesSet();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        manager.shutdown();
+    }
+
+    public void testSessionsByNasAndRealm() throws Exception
+    {
+        JRadiusSession s1 = newSession("s1", "10.0.0.1", "nas1", "example.com");
+        JRadiusSession s2 = newSession("s2", "10.0.0.1", "nas1", "example.org");
+        JRadiusSession s3 = newSession("s3", "10.0.0.2", "nas2", "example.com");
+        manager.replicated(s1);
+        manager.replicated(s2);
+        manager.replicated(s3);
+
+        assertSessions(manager.getSessionsByNas("10.0.0.1"), new JRadiusSession[] { s1, s2 });
+        assertSessions(manager.getSessionsByNas("nas2"), new JRadiusSession[] { s3 });
+        assertSessions(manager.getSessionsByRealm("example.com"), new JRadiusSession[] { s1, s3 });
+        assertTrue(manager.getSessionsByNas("10.0.0.3").isEmpty());
+
+        // the realm is typically only known once the session was initialized
+        s2.setRealm("example.com");
+        manager.unlock(s2, true);
+
+        assertSessions(manager.getSessionsByRealm("example.com"), new JRadiusSession[] { s1, s2, s3 });
+        assertTrue(manager.getSessionsByRealm("example.org").isEmpty());
+    }
+
+    public void testCloseSessionsByNas() throws Exception
+    {
+        JRadiusSession s1 = newSession("s1", "10.0.0.1", "nas1", "example.com");
+        JRadiusSession s2 = newSession("s2", "10.0.0.1", "nas1", "example.com");
+        JRadiusSession s3 = newSession("s3", "10.0.0.2", "nas2", "example.com");
+        manager.replicated(s1);
+        manager.replicated(s2);
+        manager.replicated(s3);
+
+        List<JRadiusSession> closed = manager.closeSessionsByNas("nas1");
+        assertSessions(closed, new JRadiusSession[] { s1, s2 });
+
+        assertNull(manager.getSession(null, "s1"));
+        assertNull(manager.getSession(null, "s2"));
+        assertSame(s3, manager.getSession(null, "s3"));
+        assertTrue(manager.getSessionsByNas("10.0.0.1").isEmpty());
+        assertSessions(manager.getSessionsByRealm("example.com"), new JRadiusSession[] { s3 });
+
+        // one event for all the closed sessions
+        assertEquals(1, posted.size());
+        SessionsClosedEvent event = (SessionsClosedEvent) posted.get(0);
+        assertEquals("nas:nas1", event.getReason());
+        assertSessions(event.getSessions(), new JRadiusSession[] { s1, s2 });
+
+        assertTrue(manager.closeSessionsByNas("nas1").isEmpty());
+        assertEquals(1, posted.size());
+    }
+
+    public void testCloseSessionsByRealm() throws Exception
+    {
+        JRadiusSession s1 = newSession("s1", "10.0.0.1", "nas1", "example.com");
+        JRadiusSession s2 = newSession("s2", "10.0.0.2", "nas2", "example.org");
+        manager.replicated(s1);
+        manager.replicated(s2);
+
+        assertSessions(manager.closeSessionsByRealm("example.org"), new JRadiusSession[] { s2 });
+        assertSame(s1, manager.getSession(null, "s1"));
+        assertNull(manager.getSession(null, "s2"));
+        assertTrue(manager.getSessionsByNas("nas2").isEmpty());
+    }
+
+    public void testNegativeCache() throws Exception
+    {
+        manager.setNegativeCacheTTL(200);
+        JRadiusRequest request = newRequest();
+
+        assertNull(manager.getSession(request, "missing"));
+        assertNull(manager.getSession(request, "missing"));
+        assertEquals(1, factory.lookups.get());
+
+        // a session stored under the key is found right away
+        JRadiusSession session = newSession("missing", "10.0.0.1", "nas1", "example.com");
+        manager.replicated(session);
+        assertSame(session, manager.getSession(request, "missing"));
+        assertEquals(1, factory.lookups.get());
+
+        assertNull(manager.getSession(request, "other"));
+        assertEquals(2, factory.lookups.get());
+        Thread.sleep(300);
+        assertNull(manager.getSession(request, "other"));
+        assertEquals(3, factory.lookups.get());
+    }
+
+    public void testCoalescedLookups() throws Exception
+    {
+        final JRadiusRequest request = newRequest();
+        final JRadiusSession session = newSession("stored", "10.0.0.1", "nas1", "example.com");
+        final JRadiusSession[] found = new JRadiusSession[8];
+        factory.stored = session;
+        factory.gate = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[found.length];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int n = i;
+            threads[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        found[n] = manager.getSession(request, "stored");
+                    }
+                    catch (RadiusException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        // all threads wait for the one looking up the session
+        for (int i = 0; i < threads.length; i++)
+        {
+            for (int j = 0; j < 500 && threads[i].getState() != Thread.State.WAITING; j++)
+            {
+                Thread.sleep(10);
+            }
+            assertEquals(Thread.State.WAITING, threads[i].getState());
+        }
+
+        factory.gate.countDown();
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i].join(5000);
+            assertSame(session, found[i]);
+        }
+
+        assertEquals(1, factory.lookups.get());
+        assertSame(session, manager.getSession(request, "stored"));
+        assertEquals(1, factory.lookups.get());
+    }
+
+    private static JRadiusRequest newRequest()
+    {
+        FreeRadiusRequest request = new FreeRadiusRequest();
+        request.setSender(SENDER);
+        return request;
+    }
+
+    /**
+     * Finds the stored session (if any) whatever the key, counting the lookups
+     */
+    private static class TestSessionFactory implements SessionFactory
+    {
+        final AtomicInteger lookups = new AtomicInteger();
+        volatile JRadiusSession stored;
+        volatile CountDownLatch gate;
+
+        public JRadiusSession getSession(JRadiusRequest request, Object key) throws RadiusException
+        {
+            lookups.incrementAndGet();
+            try
+            {
+                if (gate != null) gate.await();
+            }
+            catch (InterruptedException e)
+            {
+            }
+            return stored;
+        }
+
+        public JRadiusSession newSession(JRadiusRequest request) throws RadiusException
+        {
+            return null;
+        }
+
+        public JRadiusLogEntry newSessionLogEntry(JRadiusEvent event, JRadiusSession session, String packetId)
+        {
+            return null;
+        }
+
+        public void setConfig(XMLConfiguration config, HierarchicalConfiguration.Node root)
+        {
+        }
+
+        public String getConfigValue(String name)
+        {
+            return null;
+        }
+    }
+
+    private static void assertSessions(List<JRadiusSession> sessions, JRadiusSession[] expected)
+    {
+        assertEquals(expected.length, sessions.size());
+        for (int i = 0; i < expected.length; i++)
+        {
+            assertTrue("Missing session " + expected[i].getSessionKey(), sessions.contains(expected[i]));
+        }
+    }
+
+    /**
+     * @return Returns a session keeping its properties in a map, and otherwise doing nothing
+     */
+    static JRadiusSession newSession(String key, String nasIP, String nasId, String realm)
+    {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("SessionKey", key);
+        properties.put("JRadiusKey", key);
+        properties.put("NasIPAddress", nasIP);
+        properties.put("NasIdentifier", nasId);
+        properties.put("Realm", realm);
+
+        return (JRadiusSession) Proxy.newProxyInstance(JRadiusSession.class.getClassLoader(),
+                new Class[] { JRadiusSession.class }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("equals")) return Boolean.valueOf(proxy == args[0]);
+                if (name.equals("hashCode")) return Integer.valueOf(System.identityHashCode(proxy));
+                if (name.startsWith("get") && args == null) return properties.get(name.substring(3));
+                if (name.startsWith("set") && args != null && args.length == 1) properties.put(name.substring(3), args[0]);
+
+                Class<?> type = method.getReturnType();
+                if (type == Boolean.TYPE) return Boolean.FALSE;
+                if (type == Integer.TYPE) return Integer.valueOf(0);
+                if (type == Long.TYPE) return Long.valueOf(0);
+                return null;
+            }
+        });
+    }
+}
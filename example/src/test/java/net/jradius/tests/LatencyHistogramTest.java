@@ -0,0 +1,123 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.tests;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.jradius.util.LatencyHistogram;
+
+/**
+ * Tests the percentiles and relative precision of the LatencyHistogram
+ */
+public class LatencyHistogramTest extends TestCase
+{
+    public void testSmallValuesExact()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100; i++) histogram.record(i);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(49, histogram.getValueAtPercentile(50));
+        assertEquals(89, histogram.getValueAtPercentile(90));
+        assertEquals(99, histogram.getValueAtPercentile(100));
+        assertEquals(99, histogram.getMax());
+        assertEquals(49.5, histogram.getMean(), 0.001);
+    }
+
+    public void testRelativePrecision()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(1);
+        long[] values = new long[100000];
+
+        for (int i = 0; i < values.length; i++)
+        {
+            // spread over six orders of magnitude
+            values[i] = (long) Math.pow(10, 1 + 6 * random.nextDouble());
+            histogram.record(values[i]);
+        }
+
+        Arrays.sort(values);
+        double[] percentiles = { 1, 10, 50, 90, 99, 99.9, 99.99, 100 };
+
+        for (int i = 0; i < percentiles.length; i++)
+        {
+            long exact = values[(int) Math.ceil(percentiles[i] / 100 * values.length) - 1];
+            long value = histogram.getValueAtPercentile(percentiles[i]);
+            assertTrue("p" + percentiles[i] + " " + value + " below " + exact, value >= exact);
+            assertTrue("p" + percentiles[i] + " " + value + " not within 1/64 of " + exact, value <= exact + exact / 64);
+        }
+
+        assertEquals(values[values.length - 1], histogram.getMax());
+    }
+
+    public void testHighest()
+    {
+        LatencyHistogram histogram = new LatencyHistogram(1000000, 7);
+        histogram.record(5000000);
+        histogram.record(-1);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+
+        try
+        {
+            new LatencyHistogram(1000000, 0);
+            fail("Precision of 0 accepted");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+
+    public void testAddAndReset()
+    {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) a.record(i * 1000);
+        for (int i = 101; i <= 200; i++) b.record(i * 1000);
+
+        a.add(b);
+        assertEquals(200, a.getCount());
+        long p50 = a.getValueAtPercentile(50);
+        assertTrue("p50 " + p50, p50 >= 100000 && p50 <= 100000 + 100000 / 64);
+        // merged values count as the highest value of their bucket
+        assertTrue("max " + a.getMax(), a.getMax() >= 200000 && a.getMax() <= 200000 + 200000 / 64);
+
+        try
+        {
+            a.add(new LatencyHistogram(1000, 7));
+            fail("Histograms of different ranges added");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+
+        a.reset();
+        assertEquals(0, a.getCount());
+        assertEquals(0, a.getMax());
+        assertEquals(0, a.getValueAtPercentile(99));
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.jradius.log.RadiusLog;
+import net.jradius.log.RadiusLogger;
+
+/**
+ * Tests that the parameterized RadiusLog methods format their message,
+ * and only when the level is enabled
+ */
+public class RadiusLogTest extends TestCase
+{
+    private final List<String> messages = new ArrayList<String>();
+
+    private RadiusLogger previous;
+    private int level;
+
+    private class TestLogger implements RadiusLogger
+    {
+        public boolean isLoggable(int logLevel)
+        {
+            return logLevel <= level;
+        }
+
+        public void error(String message) { messages.add("error " + message); }
+        public void error(String message, Throwable e) { messages.add("error " + message); }
+        public void warn(String message) { messages.add("warn " + message); }
+        public void warn(String message, Throwable e) { messages.add("warn " + message); }
+        public void info(String message) { messages.add("info " + message); }
+        public void info(String message, Throwable e) { messages.add("info " + message); }
+        public void debug(String message) { messages.add("debug " + message); }
+        public void debug(String message, Throwable e) { messages.add("debug " + message); }
+    }
+
+    /**
+     * Counts the times it is converted to a String
+     */
+    private static class Argument
+    {
+        int formatted;
+
+        public String toString()
+        {
+            formatted++;
+            return "arg";
+        }
+    }
+
+    protected void setUp() throws Exception
+    {
+        previous = RadiusLog.getRadiusLogger();
+        RadiusLog.setRadiusLogger(new TestLogger());
+    }
+
+    protected void tearDown() throws Exception
+    {
+        RadiusLog.setRadiusLogger(previous);
+    }
+
+    public void testFormat()
+    {
+        assertEquals("a 1 b 2", RadiusLog.format("a {} b {}", new Object[] { new Integer(1), new Integer(2) }));
+        assertEquals("a 1 b {}", RadiusLog.format("a {} b {}", new Object[] { new Integer(1) }));
+        assertEquals("a 1 b", RadiusLog.format("a {} b", new Object[] { new Integer(1), new Integer(2) }));
+        assertEquals("null {}", RadiusLog.format("{} {}", new Object[] { null }));
+        assertEquals("no args", RadiusLog.format("no args", null));
+        assertNull(RadiusLog.format(null, new Object[] { "x" }));
+    }
+
+    public void testLevels()
+    {
+        level = RadiusLogger.LEVEL_DEBUG;
+        RadiusLog.debug("one {}", "x");
+        RadiusLog.info("two {} {}", "x", "y");
+        RadiusLog.warn("three {} {} {}", "x", "y", "z");
+
+        assertEquals(3, messages.size());
+        assertEquals("debug one x", messages.get(0));
+        assertEquals("info two x y", messages.get(1));
+        assertEquals("warn three x y z", messages.get(2));
+
+        messages.clear();
+        level = RadiusLogger.LEVEL_INFO;
+        RadiusLog.debug("one {}", "x");
+        RadiusLog.debug("two {} {}", "x", "y");
+        RadiusLog.info("three {}", "x");
+        assertEquals(1, messages.size());
+        assertEquals("info three x", messages.get(0));
+    }
+
+    public void testNotFormattedWhenDisabled()
+    {
+        Argument arg = new Argument();
+
+        level = RadiusLogger.LEVEL_WARNING;
+        RadiusLog.debug("{}", arg);
+        RadiusLog.debug("{} {}", arg, arg);
+        RadiusLog.debug("{} {} {}", arg, arg, arg);
+        RadiusLog.info("{}", arg);
+        assertEquals(0, arg.formatted);
+        assertTrue(messages.isEmpty());
+        assertFalse(RadiusLog.isDebugEnabled());
+
+        level = RadiusLogger.LEVEL_DEBUG;
+        RadiusLog.debug("{}", arg);
+        assertEquals(1, arg.formatted);
+        assertTrue(RadiusLog.isDebugEnabled());
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.tests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import junit.framework.TestCase;
+import net.jradius.freeradius.FreeRadiusRequest;
+import net.jradius.handler.AsyncPacketHandler;
+import net.jradius.handler.HandlerCompletion;
+import net.jradius.handler.PacketHandlerBase;
+import net.jradius.handler.chain.JRCommand;
+import net.jradius.packet.AccessAccept;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.server.JRadiusEvent;
+import net.jradius.server.JRadiusRequest;
+import net.jradius.server.JRadiusServer;
+import net.jradius.server.ListenerRequest;
+import net.jradius.server.RadiusProcessor;
+import net.jradius.server.TCPListenerRequest;
+import net.jradius.session.JRadiusSession;
+import net.jradius.session.JRadiusSessionManager;
+
+/**
+ * Tests that the RadiusProcessor suspends the handler chain of a request
+ * on an AsyncPacketHandler and resumes it when the handler completes
+ */
+public class RadiusProcessorTest extends TestCase
+{
+    private static final String SENDER = "RadiusProcessorTest";
+
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private HandlerCompletion completion;
+    private volatile Thread completedBy;
+
+    private FreeRadiusRequest request;
+    private TestProcessor processor;
+
+    /**
+     * Runs the handlers of the request of the test, noting when it is completed
+     */
+    private class TestProcessor extends RadiusProcessor
+    {
+        protected void processRequest(ListenerRequest listenerRequest) throws Exception
+        {
+            runPacketHandlers(listenerRequest, request);
+        }
+
+        protected void requestCompleted(ListenerRequest listenerRequest, JRadiusRequest request)
+        {
+            calls.add("completed " + JRadiusServer.resultCodeToString(request.getReturnValue()));
+            completedBy = Thread.currentThread();
+        }
+
+        protected void logReturnCode(int result, JRCommand handler)
+        {
+        }
+    }
+
+    private class Step extends PacketHandlerBase
+    {
+        Step(String name)
+        {
+            setName(name);
+        }
+
+        public boolean doesHandle(JRadiusEvent event)
+        {
+            return true;
+        }
+
+        public boolean handle(JRadiusRequest request) throws Exception
+        {
+            calls.add(getName());
+            request.setReturnValue(JRadiusServer.RLM_MODULE_OK);
+            return false;
+        }
+    }
+
+    private class Suspend extends AsyncPacketHandler
+    {
+        Suspend()
+        {
+            setName("async");
+        }
+
+        public boolean doesHandle(JRadiusEvent event)
+        {
+            return true;
+        }
+
+        public HandlerCompletion handleAsync(JRadiusRequest request) throws Exception
+        {
+            calls.add(getName());
+            request.setReturnValue(JRadiusServer.RLM_MODULE_UPDATED);
+            completion = new HandlerCompletion();
+            return completion;
+        }
+    }
+
+    protected void setUp() throws Exception
+    {
+        JRadiusSessionManager.setManager(SENDER, new JRadiusSessionManager()
+        {
+            public void lock(JRadiusSession session)
+            {
+                calls.add("lock");
+            }
+
+            public void unlock(JRadiusSession session, boolean save)
+            {
+                calls.add("unlock");
+            }
+        });
+
+        request = new FreeRadiusRequest();
+        request.setSender(SENDER);
+        request.setType(JRadiusServer.JRADIUS_authorize);
+        request.setPackets(new RadiusPacket[] { new AccessRequest(), new AccessAccept() });
+        request.setSession(newSession());
+
+        List<JRCommand> handlers = new ArrayList<JRCommand>();
+        handlers.add(new Step("first"));
+        handlers.add(new Suspend());
+        handlers.add(new Step("second"));
+
+        processor = new TestProcessor();
+        processor.setHandlerMetrics(null);
+        processor.setRequestHandlers(handlers);
+        processor.setRequestQueue(new LinkedBlockingQueue<ListenerRequest>());
+    }
+
+    public void testResumeAfterAsyncCompletion() throws Exception
+    {
+        processor.getRequestQueue().put(new TCPListenerRequest());
+        processor.process();
+
+        // suspended on the asynchronous handler, with the session locked
+        assertEquals(Arrays.asList(new String[] { "lock", "first", "async" }), calls);
+        assertFalse(completion.isDone());
+
+        Thread completer = complete(false);
+
+        assertEquals(Arrays.asList(new String[] { "lock", "first", "async", "second", "unlock", "completed OK" }), calls);
+        assertSame("Chain not resumed by the completing thread", completer, completedBy);
+    }
+
+    public void testAsyncCompletionBreaksChain() throws Exception
+    {
+        processor.getRequestQueue().put(new TCPListenerRequest());
+        processor.process();
+
+        complete(true);
+
+        assertEquals(Arrays.asList(new String[] { "lock", "first", "async", "unlock", "completed UPDATED" }), calls);
+    }
+
+    /**
+     * Completes the pending handler on a thread of its own
+     */
+    private Thread complete(final boolean stop) throws InterruptedException
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                completion.complete(stop);
+            }
+        }, "RadiusProcessorTest-Completer");
+
+        thread.start();
+        thread.join(5000);
+        return thread;
+    }
+
+    /**
+     * @return Returns a session doing nothing
+     */
+    private static JRadiusSession newSession()
+    {
+        return (JRadiusSession) Proxy.newProxyInstance(JRadiusSession.class.getClassLoader(), 
+                new Class[] { JRadiusSession.class }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                Class<?> type = method.getReturnType();
+                if (type == Boolean.TYPE) return Boolean.FALSE;
+                if (type == Integer.TYPE) return Integer.valueOf(0);
+                if (type == Long.TYPE) return Long.valueOf(0);
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.tests;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.jradius.client.RadiusServerPool;
+import net.jradius.exception.RadiusException;
+import net.jradius.packet.AccessAccept;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusFormat;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.RadiusResponse;
+import net.jradius.packet.StatusServerRequest;
+import net.jradius.packet.attribute.AttributeFactory;
+import net.jradius.util.MessageAuthenticator;
+
+/**
+ * Tests the balancing, failover and Status-Server probing of the
+ * RadiusServerPool, against servers on local UDP sockets
+ */
+public class RadiusServerPoolTest extends TestCase
+{
+    private static final String SECRET = "testing123";
+
+    private Responder first;
+    private Responder second;
+    private RadiusServerPool pool;
+    private RadiusServerPool.Server firstServer;
+    private RadiusServerPool.Server secondServer;
+
+    protected void setUp() throws Exception
+    {
+        AttributeFactory.loadAttributeDictionary("net.jradius.dictionary.AttributeDictionaryImpl");
+        first = new Responder();
+        second = new Responder();
+        first.start();
+        second.start();
+
+        pool = new RadiusServerPool();
+        pool.setSocketTimeout(1);
+        pool.setProbe(false);
+        pool.setProbeInterval(60);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        pool.close();
+        first.socket.close();
+        second.socket.close();
+    }
+
+    private void addServers()
+    {
+        firstServer = pool.addServer(first.socket.getLocalAddress(), SECRET, first.socket.getLocalPort(), first.socket.getLocalPort());
+        secondServer = pool.addServer(second.socket.getLocalAddress(), SECRET, second.socket.getLocalPort(), second.socket.getLocalPort());
+    }
+
+    public void testRoundRobin() throws Exception
+    {
+        addServers();
+
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(pool.sendReceive(new AccessRequest(), 0) instanceof AccessAccept);
+        }
+
+        assertEquals(2, first.received.get());
+        assertEquals(2, second.received.get());
+        assertEquals(2, firstServer.getRequests());
+        assertEquals(0, firstServer.getOutstanding());
+    }
+
+    public void testFailover() throws Exception
+    {
+        pool.setDeadAfter(2);
+        addServers();
+        first.silent = true;
+
+        // the first server is tried first on every other request
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(pool.sendReceive(new AccessRequest(), 0) instanceof AccessAccept);
+        }
+
+        assertEquals(2, firstServer.getTimeouts());
+        assertTrue(firstServer.isDead());
+        assertEquals(4, second.received.get());
+
+        // a dead server gets no more requests
+        assertTrue(pool.sendReceive(new AccessRequest(), 0) instanceof AccessAccept);
+        assertEquals(2, first.received.get());
+        assertEquals(5, second.received.get());
+    }
+
+    public void testProbeRevives() throws Exception
+    {
+        pool.setDeadAfter(1);
+        pool.setReviveAfter(2);
+        pool.setProbe(true);
+        pool.setProbeInterval(1);
+        addServers();
+        first.silent = true;
+
+        assertTrue(pool.sendReceive(new AccessRequest(), 0) instanceof AccessAccept);
+        assertTrue(firstServer.isDead());
+        assertFalse(secondServer.isDead());
+
+        first.silent = false;
+        for (int i = 0; i < 100 && firstServer.isDead(); i++)
+        {
+            Thread.sleep(100);
+        }
+
+        assertFalse(firstServer.isDead());
+        assertEquals(2, first.statusServer.get());
+    }
+
+    public void testStatusServerNotParsed() throws Exception
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+        RadiusFormat.getInstance().packPacket(new StatusServerRequest(), SECRET, buffer, true);
+        buffer.flip();
+
+        try
+        {
+            PacketFactory.parseUDP(buffer, false);
+            fail("Status-Server parsed");
+        }
+        catch (RadiusException e)
+        {
+        }
+    }
+
+    /**
+     * A server answering every request (and Status-Server) with an Access-Accept,
+     * unless silent
+     */
+    private static class Responder extends Thread
+    {
+        final DatagramSocket socket;
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger statusServer = new AtomicInteger();
+        volatile boolean silent;
+
+        Responder() throws Exception
+        {
+            super("RadiusServerPoolTest-Responder");
+            setDaemon(true);
+            socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        }
+
+        public void run()
+        {
+            byte[] data = new byte[RadiusPacket.MAX_PACKET_LENGTH];
+
+            while (!socket.isClosed())
+            {
+                try
+                {
+                    DatagramPacket packet = new DatagramPacket(data, data.length);
+                    socket.receive(packet);
+
+                    if ((data[0] & 0xff) == (StatusServerRequest.CODE & 0xff))
+                    {
+                        if (silent) continue;
+                        statusServer.incrementAndGet();
+                    }
+                    else
+                    {
+                        received.incrementAndGet();
+                        if (silent) continue;
+                    }
+
+                    reply(packet);
+                }
+                catch (Exception e)
+                {
+                }
+            }
+        }
+
+        private void reply(DatagramPacket packet) throws Exception
+        {
+            AccessRequest request = new AccessRequest();
+            byte[] authenticator = new byte[16];
+            System.arraycopy(packet.getData(), 4, authenticator, 0, 16);
+            request.setIdentifier(packet.getData()[1] & 0xff);
+            request.setAuthenticator(authenticator);
+
+            RadiusResponse response = new AccessAccept();
+            response.setIdentifier(request.getIdentifier());
+            MessageAuthenticator.generateResponseMessageAuthenticator(request, response, SECRET);
+            response.generateAuthenticator(authenticator, SECRET);
+
+            ByteBuffer buffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+            RadiusFormat.getInstance().packPacket(response, SECRET, buffer, true);
+            socket.send(new DatagramPacket(buffer.array(), buffer.position(), packet.getSocketAddress()));
+        }
+    }
+}
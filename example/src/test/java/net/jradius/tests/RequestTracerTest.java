@@ -0,0 +1,138 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.tests;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+import net.jradius.freeradius.FreeRadiusRequest;
+import net.jradius.packet.AccessAccept;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.attribute.AttributeDictionary;
+import net.jradius.packet.attribute.AttributeFactory;
+import net.jradius.server.JRadiusServer;
+import net.jradius.server.RequestTracer;
+
+/**
+ * Tests the ring file of the RequestTracer
+ */
+public class RequestTracerTest extends TestCase
+{
+    private File file;
+
+    protected void setUp() throws Exception
+    {
+        AttributeFactory.loadAttributeDictionary("net.jradius.dictionary.AttributeDictionaryImpl");
+        file = File.createTempFile("jradius-trace", ".bin");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    /**
+     * Traces of varying size wrap around the ring many times; the file
+     * must then hold the newest traces, in order, with none lost in between
+     */
+    public void testWrapAndReclaim() throws Exception
+    {
+        RequestTracer tracer = new RequestTracer(file.getPath(), 8192, false);
+        tracer.setSampleRate(1);
+
+        int traces = 1000;
+
+        for (int i = 0; i < traces; i++)
+        {
+            AccessRequest request = new AccessRequest();
+            request.addAttribute(AttributeFactory.newAttribute(AttributeDictionary.CLASS, new byte[(i * 37) % 200 + 1], false));
+
+            FreeRadiusRequest jRequest = new FreeRadiusRequest();
+            jRequest.setType(JRadiusServer.JRADIUS_authorize);
+            jRequest.setPackets(new RadiusPacket[] { request, new AccessAccept() });
+
+            RequestTracer.Trace trace = tracer.begin(jRequest);
+            assertNotNull(trace);
+            jRequest.setReturnValue(JRadiusServer.RLM_MODULE_OK);
+            tracer.handled(trace, jRequest);
+            tracer.write(trace, null);
+        }
+
+        assertEquals(traces, tracer.getWritten());
+        assertEquals(0, tracer.getDropped());
+        tracer.close();
+
+        RequestTracer.Reader reader = new RequestTracer.Reader(file.getPath());
+        assertEquals(traces, reader.getWritten());
+
+        int count = reader.getCount();
+        assertTrue("Ring holds " + count + " traces", count > 10 && count < traces);
+
+        long expected = traces - count + 1;
+        RequestTracer.Trace trace;
+
+        while ((trace = reader.next()) != null)
+        {
+            assertEquals(expected++, trace.getSequence());
+            assertEquals("authorize", trace.getType());
+            assertEquals(JRadiusServer.RLM_MODULE_OK, trace.getResult());
+            assertEquals(2, trace.getInbound().size());
+        }
+
+        assertEquals(traces + 1, expected);
+    }
+
+    /**
+     * A trace larger than the ring is dropped, leaving the ring intact
+     */
+    public void testTraceLargerThanRing() throws Exception
+    {
+        RequestTracer tracer = new RequestTracer(file.getPath(), 1024, false);
+        tracer.setSampleRate(1);
+
+        FreeRadiusRequest jRequest = new FreeRadiusRequest();
+        jRequest.setPackets(new RadiusPacket[] { new AccessRequest() });
+        RequestTracer.Trace trace = tracer.begin(jRequest);
+        tracer.handled(trace, jRequest);
+        tracer.write(trace, null);
+
+        AccessRequest request = new AccessRequest();
+        request.addAttribute(AttributeFactory.newAttribute(AttributeDictionary.CLASS, new byte[250], false));
+        request.addAttribute(AttributeFactory.newAttribute(AttributeDictionary.CLASS, new byte[250], false));
+        request.addAttribute(AttributeFactory.newAttribute(AttributeDictionary.CLASS, new byte[250], false));
+        request.addAttribute(AttributeFactory.newAttribute(AttributeDictionary.CLASS, new byte[250], false));
+        jRequest.setPackets(new RadiusPacket[] { request });
+        trace = tracer.begin(jRequest);
+        tracer.handled(trace, jRequest);
+        tracer.write(trace, null);
+
+        assertEquals(1, tracer.getWritten());
+        assertEquals(1, tracer.getDropped());
+        tracer.close();
+
+        RequestTracer.Reader reader = new RequestTracer.Reader(file.getPath());
+        assertEquals(1, reader.getCount());
+        assertEquals(1, reader.next().getSequence());
+        assertNull(reader.next());
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.tests;
+
+import junit.framework.TestCase;
+import net.jradius.client.RTTEstimator;
+import net.jradius.client.RetransmitPolicy;
+
+/**
+ * Tests the RFC 5080 retransmission backoff of the RetransmitPolicy
+ * and the round trip time estimation of the RTTEstimator
+ */
+public class RetransmitPolicyTest extends TestCase
+{
+    public void testBackoff()
+    {
+        RetransmitPolicy policy = new RetransmitPolicy();
+        policy.setJitter(0);
+
+        int timeout = policy.getInitialTimeout(null);
+        assertEquals(2000, timeout);
+
+        int[] expected = { 4000, 8000, 16000, 16000 };
+        for (int i = 0; i < expected.length; i++)
+        {
+            timeout = policy.getNextTimeout(timeout);
+            assertEquals(expected[i], timeout);
+        }
+    }
+
+    public void testJitter()
+    {
+        RetransmitPolicy policy = new RetransmitPolicy();
+        boolean varies = false;
+
+        for (int i = 0; i < 1000; i++)
+        {
+            int timeout = policy.getInitialTimeout(null);
+            assertTrue("Timeout " + timeout, timeout >= 1800 && timeout <= 2200);
+            if (timeout != 2000) varies = true;
+
+            timeout = policy.getNextTimeout(16000);
+            assertTrue("Timeout " + timeout, timeout >= 14400 && timeout <= 17600);
+        }
+
+        assertTrue(varies);
+    }
+
+    public void testLimits()
+    {
+        RetransmitPolicy policy = new RetransmitPolicy();
+        policy.setMaxRetransmitCount(3);
+        policy.setMaxRetransmitDuration(10000);
+
+        assertTrue(policy.mayRetransmit(2, 5000));
+        assertFalse(policy.mayRetransmit(3, 5000));
+        assertFalse(policy.mayRetransmit(2, 10000));
+
+        // the last timeout ends with MRD
+        assertEquals(4000, policy.limitTimeout(4000, 5000));
+        assertEquals(2000, policy.limitTimeout(4000, 8000));
+
+        policy.setMaxRetransmitCount(0);
+        policy.setMaxRetransmitDuration(0);
+        assertTrue(policy.mayRetransmit(100, 1000000));
+        assertEquals(4000, policy.limitTimeout(4000, 1000000));
+    }
+
+    public void testEstimator()
+    {
+        RTTEstimator estimator = new RTTEstimator();
+        assertEquals(-1, estimator.getTimeout(100, 2000));
+
+        // SRTT = RTT and RTTVAR = RTT / 2 on the first sample
+        estimator.sample(100);
+        assertEquals(100, estimator.getSmoothedRTT());
+        assertEquals(50, estimator.getRTTVariation());
+        assertEquals(300, estimator.getTimeout(100, 2000));
+
+        // steady round trip times narrow the timeout down to the RTT
+        for (int i = 0; i < 50; i++) estimator.sample(100);
+        assertEquals(100, estimator.getSmoothedRTT());
+        assertTrue(estimator.getTimeout(100, 2000) < 150);
+        assertEquals(51, estimator.getSamples());
+
+        estimator.sample(-1);
+        assertEquals(51, estimator.getSamples());
+
+        estimator.sample(5000);
+        assertEquals(2000, estimator.getTimeout(100, 2000));
+    }
+
+    public void testAdaptiveInitialTimeout()
+    {
+        RetransmitPolicy policy = new RetransmitPolicy();
+        policy.setJitter(0);
+        policy.setMinTimeout(100);
+
+        RTTEstimator estimator = new RTTEstimator();
+        assertEquals(2000, policy.getInitialTimeout(estimator));
+
+        estimator.sample(10);
+        assertEquals(100, policy.getInitialTimeout(estimator));
+
+        estimator.sample(200);
+        int rto = estimator.getTimeout(100, 2000);
+        assertTrue(rto > 100);
+        assertEquals(rto, policy.getInitialTimeout(estimator));
+
+        policy.setAdaptive(false);
+        assertEquals(2000, policy.getInitialTimeout(estimator));
+    }
+}
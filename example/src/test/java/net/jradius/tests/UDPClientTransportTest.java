@@ -0,0 +1,151 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.tests;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import net.jradius.client.RadiusClient;
+import net.jradius.packet.AccessAccept;
+import net.jradius.packet.AccessReject;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusFormat;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.RadiusResponse;
+import net.jradius.packet.attribute.AttributeFactory;
+import net.jradius.util.MessageAuthenticator;
+
+/**
+ * Tests that the UDPClientTransport skips replies to other requests,
+ * against a server on a local UDP socket
+ */
+public class UDPClientTransportTest extends TestCase
+{
+    private static final String SECRET = "testing123";
+
+    private DatagramSocket server;
+
+    protected void setUp() throws Exception
+    {
+        AttributeFactory.loadAttributeDictionary("net.jradius.dictionary.AttributeDictionaryImpl");
+        server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(10000);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        server.close();
+    }
+
+    public void testStrayReplyOverChannel() throws Exception
+    {
+        RadiusClient client = new RadiusClient(server.getLocalAddress(), SECRET, server.getLocalPort(), server.getLocalPort(), 5);
+        try
+        {
+            sendWithStrayReplies(client);
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    public void testStrayReplyOverSocket() throws Exception
+    {
+        RadiusClient client = new RadiusClient(new DatagramSocket(), server.getLocalAddress(), SECRET, server.getLocalPort(), server.getLocalPort(), 5);
+        try
+        {
+            sendWithStrayReplies(client);
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    /**
+     * Answers each request first with a reply carrying another Identifier
+     * and then with the real reply, which must be the one received
+     */
+    private void sendWithStrayReplies(final RadiusClient client) throws Exception
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            final RadiusResponse[] response = new RadiusResponse[1];
+            final Exception[] failure = new Exception[1];
+
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        response[0] = client.sendReceive(new AccessRequest(), 0);
+                    }
+                    catch (Exception e)
+                    {
+                        failure[0] = e;
+                    }
+                }
+            });
+            thread.start();
+
+            DatagramPacket request = receive();
+            reply(request, new AccessReject(), 1);
+            reply(request, new AccessReject(), 128);
+            reply(request, new AccessAccept(), 0);
+
+            thread.join(10000);
+            if (failure[0] != null) throw failure[0];
+            assertTrue("Stray reply received", response[0] instanceof AccessAccept);
+            assertEquals(request.getData()[1] & 0xff, response[0].getIdentifier());
+        }
+    }
+
+    private DatagramPacket receive() throws Exception
+    {
+        DatagramPacket packet = new DatagramPacket(new byte[RadiusPacket.MAX_PACKET_LENGTH], RadiusPacket.MAX_PACKET_LENGTH);
+        server.receive(packet);
+        return packet;
+    }
+
+    /**
+     * Answers the request, as a server would, with the Identifier shifted by offset
+     */
+    private void reply(DatagramPacket packet, RadiusResponse response, int offset) throws Exception
+    {
+        byte[] data = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), 0, data, 0, data.length);
+        RadiusPacket request = PacketFactory.parseUDP(ByteBuffer.wrap(data), false);
+
+        response.setIdentifier((request.getIdentifier() + offset) & 0xff);
+        MessageAuthenticator.generateResponseMessageAuthenticator(request, response, SECRET);
+        response.generateAuthenticator(request.getAuthenticator(), SECRET);
+
+        ByteBuffer buffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+        RadiusFormat.getInstance().packPacket(response, SECRET, buffer, true);
+        server.send(new DatagramPacket(buffer.array(), buffer.position(), packet.getSocketAddress()));
+    }
+}
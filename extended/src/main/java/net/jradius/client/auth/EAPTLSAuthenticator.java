@@ -45,6 +45,7 @@ import net.jradius.tls.AlwaysValidVerifyer;
 import net.jradius.tls.Certificate;
 import net.jradius.tls.DefaultTlsClient;
 import net.jradius.tls.TlsProtocolHandler;
+import net.jradius.tls.TlsSessionCache;
 import net.jradius.util.KeyStoreUtil;
 import org.bouncycastle.asn1.ASN1Encodable;
 
@@ -101,6 +102,8 @@ public class EAPTLSAuthenticator extends EAPAuthenticator
     private String caPassword;
     
     private Boolean trustAll = Boolean.FALSE;
+    private Boolean sessionResumption = Boolean.TRUE;
+    private Boolean sessionTickets = Boolean.FALSE;
 
     private ByteArrayOutputStream bout;
     private ByteArrayInputStream bin;
@@ -132,6 +135,16 @@ public class EAPTLSAuthenticator extends EAPAuthenticator
     {
         super.setupRequest(c, p);
         init();
+
+        if (tlsClient != null && getSessionResumption().booleanValue())
+        {
+            // sessions are bound to the server and to the user
+            byte[] user = getUsername();
+            String key = (c == null ? "" : c.getRemoteInetAddress() + ":" + c.getAuthPort()) 
+            	+ "/" + (user == null ? "" : new String(user));
+            tlsClient.setSessionCache(TlsSessionCache.getDefault(), key);
+            tlsClient.setSessionTickets(getSessionTickets().booleanValue());
+        }
     }
 
     /**
@@ -334,6 +347,8 @@ public class EAPTLSAuthenticator extends EAPAuthenticator
                 return tlsResponse(flags, null);
             }
 
+            byte[] handshake = null;
+
             switch (state)
             {
                 case 0:
@@ -358,6 +373,8 @@ public class EAPTLSAuthenticator extends EAPAuthenticator
                     receivedEAP.clear();
                     if (s == TlsProtocolHandler.CS_DONE) 
                     {
+                    	// with a resumed session, our finished message goes out first
+                    	handshake = data;
                     	state = 2;
                     }
                     else
@@ -375,6 +392,7 @@ public class EAPTLSAuthenticator extends EAPAuthenticator
                     		receivedEAP.remaining());
 
                     ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    if (handshake != null) os.write(handshake);
 
                     byte[] in = handler.readApplicationData(is, os);
 
@@ -548,6 +566,33 @@ public class EAPTLSAuthenticator extends EAPAuthenticator
         this.trustAll = trustAll;
     }
 
+    public Boolean getSessionResumption()
+    {
+        return sessionResumption;
+    }
+
+    /**
+     * @param sessionResumption Whether to resume the TLS session of the last authentication
+     * of the same user with the same server (abbreviated handshake)
+     */
+    public void setSessionResumption(Boolean sessionResumption)
+    {
+        this.sessionResumption = sessionResumption;
+    }
+
+    public Boolean getSessionTickets()
+    {
+        return sessionTickets;
+    }
+
+    /**
+     * @param sessionTickets Whether to ask the server for session tickets (RFC 5077)
+     */
+    public void setSessionTickets(Boolean sessionTickets)
+    {
+        this.sessionTickets = sessionTickets;
+    }
+
     
     /**
      * Create a private key parameter from a PKCS8 PrivateKeyInfo encoding.
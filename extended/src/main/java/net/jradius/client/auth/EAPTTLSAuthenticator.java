@@ -142,7 +142,7 @@ public class EAPTTLSAuthenticator extends EAPTLSAuthenticator implements TunnelA
         diameterFormat.packAttributeList(tunnelRequest.getAttributes(), buffer, true);
 
         putAppBuffer(buffer.array(), 0, buffer.position());
-        RadiusLog.debug("Tunnel Request:\n" + tunnelRequest.toString());
+        RadiusLog.debug("Tunnel Request:\n{}", tunnelRequest);
         return true;
     }
 
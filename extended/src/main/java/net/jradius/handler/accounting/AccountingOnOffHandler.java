@@ -0,0 +1,77 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.handler.accounting;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import net.jradius.dictionary.Attr_NASIPAddress;
+import net.jradius.dictionary.Attr_NASIdentifier;
+import net.jradius.exception.RadiusException;
+import net.jradius.handler.RadiusSessionHandler;
+import net.jradius.packet.AccountingRequest;
+import net.jradius.server.JRadiusRequest;
+import net.jradius.session.JRadiusSession;
+import net.jradius.session.JRadiusSessionManager;
+
+/**
+ * Closes all sessions of a NAS when it sends an Accounting-On or
+ * Accounting-Off (the NAS rebooted, so none of its sessions are alive).
+ * The sessions are looked up through the NAS index of the session manager
+ * and a single SessionsClosedEvent is posted for all of them.
+ * @see net.jradius.server.event.SessionsClosedEvent
+ */
+public class AccountingOnOffHandler extends RadiusSessionHandler
+{
+    public boolean handle(JRadiusRequest request) throws RadiusException
+    {
+        if (!request.isAccountingRequest()) return false;
+
+        AccountingRequest req = (AccountingRequest) request.getRequestPacket();
+        int status = req.getAccountingStatusType();
+
+        if (status != AccountingRequest.ACCT_STATUS_ACCOUNTING_ON &&
+            status != AccountingRequest.ACCT_STATUS_ACCOUNTING_OFF)
+        {
+            return false;
+        }
+
+        String nas = null;
+        InetAddress inet = (InetAddress) req.getAttributeValue(Attr_NASIPAddress.TYPE);
+        if (inet != null) nas = inet.getHostAddress();
+        else nas = (String) req.getAttributeValue(Attr_NASIdentifier.TYPE);
+        if (nas == null) return false;
+
+        JRadiusSession session = request.getSession();
+        JRadiusSessionManager manager = JRadiusSessionManager.getManager(request.getSender());
+
+        List<JRadiusSession> sessions = manager.getSessionsByNas(nas);
+        sessions.remove(session);
+        manager.closeSessions(sessions, "nas:" + nas);
+
+        if (session != null && !sessions.isEmpty())
+        {
+            session.addLogMessage(request, "Closed " + sessions.size() + " sessions of NAS " + nas);
+        }
+
+        return false;
+    }
+}
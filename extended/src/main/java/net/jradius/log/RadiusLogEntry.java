@@ -21,6 +21,8 @@
 
 package net.jradius.log;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.util.Date;
 
@@ -61,6 +63,7 @@ public class RadiusLogEntry implements JRadiusLogEntry
     protected boolean committed = false;
     
     protected Date lastUpdate;
+    private transient long lastUsed;
     
     public RadiusLogEntry()
     {
@@ -376,6 +379,29 @@ public class RadiusLogEntry implements JRadiusLogEntry
         this.committed = committed;
     }
 
+    /**
+     * @return Returns the entry as a structured record, for a LogSink
+     */
+    public LogRecord toLogRecord()
+    {
+        LogRecord record = new LogRecord();
+        record.add("sessionKey", session == null ? null : session.getSessionKey());
+        record.add("packetId", packetId);
+        record.add("type", type);
+        record.add("code", code);
+        record.add("userName", userName);
+        record.add("realm", realm);
+        record.add("userId", userId);
+        record.add("nasIdentifier", nasIdentifier);
+        record.add("clientIPAddress", clientIPAddress);
+        record.add("message", message);
+        record.add("inboundRequest", inboundRequest);
+        record.add("inboundReply", inboundReply);
+        record.add("outboundRequest", outboundRequest);
+        record.add("outboundReply", outboundReply);
+        return record;
+    }
+
     public String toString()
     {
         return "RadiusLogEntry: { type = " + type + ", packetId = " + packetId + " }: " + getMessage();
@@ -383,11 +409,33 @@ public class RadiusLogEntry implements JRadiusLogEntry
 
     public Date getLastUpdate()
     {
+        if (lastUsed != 0)
+        {
+            lastUpdate = new Date(System.currentTimeMillis() - (System.nanoTime() - lastUsed) / 1000000L);
+            lastUsed = 0;
+        }
         return lastUpdate;
     }
 
     public void setLastUpdate(Date lastUpdate)
     {
         this.lastUpdate = lastUpdate;
+        this.lastUsed = 0;
+    }
+
+    /**
+     * Marks the entry as updated, without creating a Date: getLastUpdate()
+     * converts the time when it is asked for
+     * @param nanos The System.nanoTime() of the update
+     */
+    public void setLastUsed(long nanos)
+    {
+        this.lastUsed = nanos;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        getLastUpdate();
+        out.defaultWriteObject();
     }
 }
@@ -20,38 +20,50 @@
 
 package net.jradius.radsec;
 
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 
 import net.jradius.client.RadiusClientTransport;
 import net.jradius.exception.RadiusException;
+import net.jradius.exception.TimeoutException;
+import net.jradius.log.RadiusLog;
 import net.jradius.packet.AccountingRequest;
-import net.jradius.packet.PacketFactory;
-import net.jradius.packet.RadiusFormat;
 import net.jradius.packet.RadiusRequest;
 import net.jradius.packet.RadiusResponse;
 
+/**
+ * The RadSec (RADIUS over TLS, RFC 6614) client transport. It keeps a
+ * few long-lived TLS connections per peer port and pipelines requests
+ * over them: many threads can use the transport (or a RadiusClient on it)
+ * at the same time, each connection carrying up to 256 outstanding
+ * requests. Connections are opened on first use and reopened after a
+ * failure with TLS session resumption, since they share one SSLContext.
+ * <p>
+ * TLS retransmits by itself, so a request is not resent on the same
+ * connection; when it fails or times out and retries are left, it is
+ * sent again over the next connection.
+ */
 public class RadSecClientTransport extends RadiusClientTransport
 {
-	private SSLSocket socket;
-	private SSLSocket socketAcct;
+    public static final String SHARED_SECRET = "radsec";
+
 	private KeyManager keyManagers[];
 	private TrustManager trustManagers[];
-	
-    protected final ByteBuffer buffer_in;
-    protected final ByteBuffer buffer_out;
 
     private String[] protocols = new String[] { "TLSv1" };
+    private int connections = 2;
+    private int connectTimeout = 10000;
+    private int sessionCacheTimeout = 86400;
+
+    private SSLSocketFactory socketFactory;
+    private volatile RadSecConnection[] authConnections;
+    private volatile RadSecConnection[] acctConnections;
+    private final AtomicInteger next = new AtomicInteger();
     
 	public RadSecClientTransport(KeyManager keyManager, TrustManager trustManager) 
 	{
@@ -62,101 +74,193 @@ public class RadSecClientTransport extends RadiusClientTransport
 	{
 		this.keyManagers = keyManagers;
 		this.trustManagers = trustManagers;
-		
-    	buffer_in = ByteBuffer.allocate(25000);
-    	buffer_in.order(ByteOrder.BIG_ENDIAN);
-
-    	buffer_out = ByteBuffer.allocate(25000);
-    	buffer_out.order(ByteOrder.BIG_ENDIAN);
 	}
 	
-	private void initialize()
+	private synchronized void initialize() throws RadiusException
 	{
+		if (authConnections != null) return;
+
 		try
 		{
 	        SSLContext sslContext = SSLContext.getInstance(protocols[0]);
 	        sslContext.init(keyManagers, trustManagers, null);
-	        
-	        SSLSocketFactory socketFactory = sslContext.getSocketFactory();
-	        socket = (SSLSocket) socketFactory.createSocket(getRemoteInetAddress(), getAuthPort());
-	        socket.setReuseAddress(true);
-	        socket.setSoTimeout(getSocketTimeout() * 1000);
-	        socket.setEnabledProtocols(protocols);
-	        
-	        if (getAcctPort() != getAuthPort())
-	        {
-		        socketAcct = (SSLSocket) socketFactory.createSocket(getRemoteInetAddress(), getAcctPort());
-		        socketAcct.setReuseAddress(true);
-		        socketAcct.setSoTimeout(getSocketTimeout() * 1000);
-		        socketAcct.setEnabledProtocols(protocols);
-	        }
+	        sslContext.getClientSessionContext().setSessionTimeout(sessionCacheTimeout);
+	        socketFactory = sslContext.getSocketFactory();
 		} 
 		catch (Exception e)
 		{
-			e.printStackTrace();
+			throw new RadiusException(e);
 		}
+
+        // authConnections is checked without the lock, so it is set last
+        RadSecConnection[] auth = createConnections(getAuthPort());
+        acctConnections = getAcctPort() != getAuthPort() ? createConnections(getAcctPort()) : auth;
+        authConnections = auth;
 	}
-	
-	public RadiusResponse sendReceive(RadiusRequest p, int retries) throws RadiusException 
+
+	private RadSecConnection[] getConnections(RadiusRequest request) throws RadiusException
 	{
-		if (socket == null) initialize();
-		return super.sendReceive(p, retries);
+		if (authConnections == null) initialize();
+		return request instanceof AccountingRequest ? acctConnections : authConnections;
 	}
 
-	public void close() 
+	private RadSecConnection[] createConnections(int port)
 	{
-		try {
-			socket.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		RadSecConnection[] list = new RadSecConnection[connections];
+		InetSocketAddress address = new InetSocketAddress(getRemoteInetAddress(), port);
+		for (int i = 0; i < list.length; i++)
+		{
+			list[i] = new RadSecConnection(socketFactory, address, protocols, connectTimeout);
 		}
+		return list;
 	}
 
-	protected RadiusResponse receive(RadiusRequest req) throws Exception {
-        RadiusResponse res = null;
-        DataInputStream in = new DataInputStream(socket.getInputStream());
-
-        synchronized (in) {
-            if (statusListener != null)
-        		statusListener.onBeforeReceive(this);
-            
-            int code = RadiusFormat.readUnsignedByte(in);
-            int identifier = RadiusFormat.readUnsignedByte(in);
-            int length = RadiusFormat.readUnsignedShort(in);
-
-            buffer_in.clear();
-            buffer_in.limit(in.read(buffer_in.array(), 0, length));
-            
-            res = (RadiusResponse) PacketFactory.parseUDP(code, identifier, length, buffer_in, false);
-
-            if (statusListener != null)
-        		statusListener.onAfterReceive(this, res);
+	public RadiusResponse sendReceive(RadiusRequest p, int retries) throws RadiusException 
+	{
+		RadSecConnection[] list = getConnections(p);
+		int first = next.getAndIncrement() & 0x7fffffff;
+		RadiusException failure = null;
+
+        if (retries < 0) retries = 0; retries++; // do at least one
+
+		for (int attempt = 0; attempt < retries; attempt++)
+		{
+			RadSecConnection connection = list[(first + attempt) % list.length];
+
+			try
+			{
+	            if (statusListener != null)
+	        		statusListener.onBeforeSend(this, p);
+
+				RadSecConnection.Pending pending = connection.send(p);
+
+				if (pending == null)
+				{
+					// all Identifiers of this connection in use, try the next one
+					failure = new RadiusException("Too many outstanding RadSec requests");
+					continue;
+				}
+
+	            if (statusListener != null)
+	            {
+	        		statusListener.onAfterSend(this);
+	        		statusListener.onBeforeReceive(this);
+	            }
+
+	            RadiusResponse res = pending.await(getReceiveTimeout());
+
+	            if (statusListener != null)
+	        		statusListener.onAfterReceive(this, res);
+
+	            return res;
+			}
+			catch (TimeoutException e)
+			{
+				failure = e;
+			}
+			catch (RadiusException e)
+			{
+				if (e.getClass() != RadiusException.class) throw e;
+				failure = e;
+			}
+
+			if (attempt + 1 < retries)
+			{
+				RadiusLog.warn("RadSec retrying request (attempt " + (attempt + 1) + "): " + failure.getMessage());
+			}
 		}
-        
-        return res;
+
+		throw failure;
 	}
 
+	public synchronized void close() 
+	{
+		if (authConnections == null) return;
+
+		for (int i = 0; i < authConnections.length; i++)
+		{
+			authConnections[i].close();
+			if (acctConnections != authConnections) acctConnections[i].close();
+		}
+	}
+
+	protected RadiusResponse receive(RadiusRequest req) throws Exception 
+	{
+		throw new RadiusException("RadSecClientTransport only supports sendReceive()");
+	}
+
+	/**
+	 * Sends a request without waiting for its reply. Its Identifier stays
+	 * reserved until the reply arrives, for at most the receive timeout.
+	 */
 	@Override
-	protected void send(RadiusRequest req, int attempt) throws Exception {
-		Socket sock = socket;
-		
-		if (socketAcct != null && req instanceof AccountingRequest)
-			sock = socketAcct;
-		
-        RadiusFormat format = RadiusFormat.getInstance();
-        OutputStream out = sock.getOutputStream();
-
-        buffer_out.clear();
-        format.packPacket(req, "radsec", buffer_out, true);
-
-        synchronized (out) {
-            if (statusListener != null)
-        		statusListener.onBeforeSend(this, req);
-
-        	out.write(buffer_out.array(), 0, buffer_out.position());
-
-        	if (statusListener != null)
-        		statusListener.onAfterSend(this);
+	protected void send(RadiusRequest req, int attempt) throws Exception 
+	{
+		RadSecConnection[] list = getConnections(req);
+		RadSecConnection.Pending pending = list[(next.getAndIncrement() & 0x7fffffff) % list.length].send(req);
+		if (pending == null)
+		{
+			throw new RadiusException("Too many outstanding RadSec requests");
 		}
+		pending.abandon(getReceiveTimeout());
+	}
+
+	/**
+	 * @return Returns the number of outstanding requests over all connections
+	 */
+	public int getOutstanding()
+	{
+		int n = 0;
+		if (authConnections == null) return n;
+		for (int i = 0; i < authConnections.length; i++)
+		{
+			n += authConnections[i].getOutstanding();
+			if (acctConnections != authConnections) n += acctConnections[i].getOutstanding();
+		}
+		return n;
+	}
+
+	/**
+	 * @return Returns the number of connections opened that resumed an earlier TLS session
+	 */
+	public long getResumptions()
+	{
+		long n = 0;
+		if (authConnections == null) return n;
+		for (int i = 0; i < authConnections.length; i++)
+		{
+			n += authConnections[i].getResumptions();
+			if (acctConnections != authConnections) n += acctConnections[i].getResumptions();
+		}
+		return n;
+	}
+
+	/**
+	 * @param connections The number of TLS connections per peer port (set before the first request)
+	 */
+	public void setConnections(int connections)
+	{
+		this.connections = connections;
+	}
+
+	/**
+	 * @param connectTimeout The TCP connect timeout (in milliseconds)
+	 */
+	public void setConnectTimeout(int connectTimeout)
+	{
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @param sessionCacheTimeout How long TLS sessions are kept for resumption (in seconds)
+	 */
+	public void setSessionCacheTimeout(int sessionCacheTimeout)
+	{
+		this.sessionCacheTimeout = sessionCacheTimeout;
+	}
+
+	public void setProtocols(String[] protocols)
+	{
+		this.protocols = protocols;
 	}
 }
@@ -0,0 +1,490 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.radsec;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import net.jradius.client.RadiusClientTransport;
+import net.jradius.exception.RadiusException;
+import net.jradius.exception.TimeoutException;
+import net.jradius.log.RadiusLog;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusFormat;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.RadiusRequest;
+import net.jradius.packet.RadiusResponse;
+import net.jradius.packet.attribute.AttributeDictionary;
+import net.jradius.util.MessageAuthenticator;
+
+/**
+ * One long-lived TLS connection to a RadSec peer, carrying up to 256
+ * outstanding requests (one per Identifier). Requests of any thread are
+ * queued to a single writer thread, which batches them into the stream;
+ * a reader thread reads the replies and hands each to the request waiting
+ * on its Identifier. When the connection fails, the outstanding requests
+ * fail and the next request reconnects; since the socket factory (its
+ * SSLContext) is kept, the TLS session is resumed.
+ */
+class RadSecConnection
+{
+    private static final RadiusFormat format = RadiusFormat.getInstance();
+
+    private final SSLSocketFactory socketFactory;
+    private final InetSocketAddress address;
+    private final String[] protocols;
+    private final int connectTimeout;
+
+    private final Pending[] slots = new Pending[256];
+    private int nextId = 0;
+    private int used = 0;
+
+    private final Object connectLock = new Object();
+    private volatile Link link;
+    private byte[] lastSessionId;
+    private long connects = 0;
+    private long resumptions = 0;
+
+    RadSecConnection(SSLSocketFactory socketFactory, InetSocketAddress address, String[] protocols, int connectTimeout)
+    {
+        this.socketFactory = socketFactory;
+        this.address = address;
+        this.protocols = protocols;
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Sends a request, assigning it a free Identifier of the connection
+     * @return Returns the pending request, or null when all Identifiers are in use
+     */
+    Pending send(RadiusRequest request) throws RadiusException
+    {
+        Link link = connect();
+        Pending pending = new Pending(link);
+
+        synchronized (this)
+        {
+            if (used == slots.length) reclaim();
+            if (used == slots.length) return null;
+            while (slots[nextId] != null) nextId = (nextId + 1) % slots.length;
+            pending.id = nextId;
+            slots[nextId] = pending;
+            nextId = (nextId + 1) % slots.length;
+            used++;
+        }
+
+        try
+        {
+            request.setIdentifier(pending.id);
+
+            if (request instanceof AccessRequest)
+            {
+                MessageAuthenticator.generateRequestMessageAuthenticator(request, RadSecClientTransport.SHARED_SECRET);
+            }
+            else
+            {
+                request.setAuthenticator(null);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+            format.packPacket(request, RadSecClientTransport.SHARED_SECRET, buffer, true);
+            byte[] data = new byte[buffer.position()];
+            System.arraycopy(buffer.array(), 0, data, 0, data.length);
+            pending.requestAuthenticator = request.getAuthenticator();
+
+            link.queue.put(data);
+
+            if (!link.open)
+            {
+                release(pending);
+                throw new RadiusException("RadSec connection to " + address + " closed");
+            }
+        }
+        catch (Exception e)
+        {
+            release(pending);
+            throw e instanceof RadiusException ? (RadiusException) e : new RadiusException(e);
+        }
+
+        return pending;
+    }
+
+    /**
+     * @return Returns the number of outstanding requests
+     */
+    synchronized int getOutstanding()
+    {
+        return used;
+    }
+
+    synchronized long getConnects()
+    {
+        return connects;
+    }
+
+    /**
+     * @return Returns the number of reconnects that resumed the previous TLS session
+     */
+    synchronized long getResumptions()
+    {
+        return resumptions;
+    }
+
+    void close()
+    {
+        Link link = this.link;
+        if (link != null) link.close(new RadiusException("RadSec connection closed"));
+    }
+
+    /**
+     * @return Returns the open link, connecting first if there is none. The
+     * connect and TLS handshake do not hold the lock of the Identifiers.
+     */
+    private Link connect() throws RadiusException
+    {
+        Link link = this.link;
+        if (link != null && link.open) return link;
+
+        synchronized (connectLock)
+        {
+            link = this.link;
+            if (link != null && link.open) return link;
+
+            try
+            {
+                SSLSocket socket = (SSLSocket) socketFactory.createSocket();
+                socket.connect(address, connectTimeout);
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.setEnabledProtocols(protocols);
+                socket.startHandshake();
+
+                byte[] sessionId = socket.getSession().getId();
+                boolean resumed = lastSessionId != null && Arrays.equals(lastSessionId, sessionId);
+                lastSessionId = sessionId;
+
+                synchronized (this)
+                {
+                    if (resumed) resumptions++;
+                    connects++;
+                }
+
+                link = new Link(socket);
+                this.link = link;
+                RadiusLog.debug("RadSec connection to " + address + " established");
+                return link;
+            }
+            catch (IOException e)
+            {
+                throw new RadiusException("Unable to connect to RadSec peer " + address + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Frees the Identifier of the request
+     * @return Returns false if it was already freed (e.g. after a timeout)
+     */
+    private synchronized boolean release(Pending pending)
+    {
+        if (pending.id >= 0 && slots[pending.id] == pending)
+        {
+            slots[pending.id] = null;
+            used--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Frees the Identifiers of abandoned requests whose time is up
+     */
+    private synchronized void reclaim()
+    {
+        long now = System.currentTimeMillis();
+
+        for (int id = 0; id < slots.length; id++)
+        {
+            Pending pending = slots[id];
+            if (pending != null && pending.deadline != 0 && pending.deadline - now <= 0)
+            {
+                slots[id] = null;
+                used--;
+            }
+        }
+    }
+
+    private synchronized Pending peek(int id)
+    {
+        return slots[id];
+    }
+
+    /**
+     * Fails the outstanding requests sent over a broken link
+     */
+    private void failAll(Link link, RadiusException e)
+    {
+        for (int id = 0; id < slots.length; id++)
+        {
+            Pending pending;
+            synchronized (this)
+            {
+                pending = slots[id];
+                if (pending == null || pending.link != link) continue;
+                slots[id] = null;
+                used--;
+            }
+            pending.complete(null, e);
+        }
+    }
+
+    /**
+     * A request waiting for its reply
+     */
+    class Pending
+    {
+        final Link link;
+        final CountDownLatch done = new CountDownLatch(1);
+        int id = -1;
+        volatile byte[] requestAuthenticator;
+        volatile long deadline = 0;
+        private RadiusResponse response;
+        private RadiusException failure;
+
+        Pending(Link link)
+        {
+            this.link = link;
+        }
+
+        void complete(RadiusResponse response, RadiusException failure)
+        {
+            this.response = response;
+            this.failure = failure;
+            done.countDown();
+        }
+
+        /**
+         * Gives up the request without waiting for its reply: its Identifier
+         * is freed when the reply arrives, or may be reused once the timeout
+         * has passed
+         * @param timeout The time to keep the Identifier (in milliseconds)
+         */
+        void abandon(long timeout)
+        {
+            deadline = System.currentTimeMillis() + Math.max(1, timeout);
+        }
+
+        /**
+         * @param timeout The time to wait for the reply (in milliseconds, 0 for no limit)
+         */
+        RadiusResponse await(long timeout) throws RadiusException
+        {
+            try
+            {
+                if (timeout <= 0) done.await();
+                else if (!done.await(timeout, TimeUnit.MILLISECONDS))
+                {
+                    release(this);
+                    throw new TimeoutException("Timeout: No Response from RadSec peer " + address);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                release(this);
+                Thread.currentThread().interrupt();
+                throw new RadiusException("Interrupted waiting for RadSec reply");
+            }
+
+            if (failure != null) throw failure;
+            return response;
+        }
+    }
+
+    /**
+     * A TLS connection with its writer and reader threads
+     */
+    private class Link
+    {
+        final SSLSocket socket;
+        final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+        final Thread writer;
+        volatile boolean open = true;
+
+        Link(SSLSocket socket)
+        {
+            this.socket = socket;
+            String name = "RadSec-" + address.getAddress().getHostAddress() + ":" + address.getPort();
+
+            writer = new Thread(new Runnable() { public void run() { write(); } }, name + "-Writer");
+            writer.setDaemon(true);
+            writer.start();
+
+            Thread reader = new Thread(new Runnable() { public void run() { read(); } }, name + "-Reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Writes the queued requests, flushing when the queue runs empty
+         */
+        void write()
+        {
+            try
+            {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 16384);
+
+                while (open)
+                {
+                    byte[] data = queue.take();
+                    out.write(data);
+
+                    while ((data = queue.poll()) != null)
+                    {
+                        out.write(data);
+                    }
+
+                    out.flush();
+                }
+            }
+            catch (InterruptedException e)
+            {
+            }
+            catch (IOException e)
+            {
+                close(new RadiusException("RadSec connection to " + address + " failed: " + e.getMessage()));
+            }
+        }
+
+        void read()
+        {
+            try
+            {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                byte[] header = new byte[RadiusPacket.RADIUS_HEADER_LENGTH];
+
+                while (open)
+                {
+                    in.readFully(header, 0, 4);
+                    int length = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+
+                    if (length < RadiusPacket.RADIUS_HEADER_LENGTH || length > RadiusPacket.MAX_PACKET_LENGTH)
+                    {
+                        throw new IOException("Invalid RADIUS packet length " + length);
+                    }
+
+                    // parsed attributes keep a reference to the bytes, so read each packet into its own array
+                    byte[] data = new byte[length];
+                    System.arraycopy(header, 0, data, 0, 4);
+                    in.readFully(data, 4, length - 4);
+
+                    Pending pending = peek(data[1] & 0xff);
+                    if (pending == null)
+                    {
+                        RadiusLog.debug("Ignoring late RadSec reply from {}", address);
+                        continue;
+                    }
+
+                    complete(pending, data);
+                }
+            }
+            catch (IOException e)
+            {
+                close(new RadiusException("RadSec connection to " + address + " failed: " + e.getMessage()));
+            }
+        }
+
+        /**
+         * Completes the request the reply answers. A reply that does not
+         * verify against the request holding its Identifier (e.g. a late
+         * reply to a timed out request whose Identifier was reused) is
+         * dropped, leaving the request pending.
+         */
+        private void complete(Pending pending, byte[] data)
+        {
+            RadiusResponse response;
+
+            try
+            {
+                RadiusPacket packet = PacketFactory.parseUDP(ByteBuffer.wrap(data), false);
+
+                if (!(packet instanceof RadiusResponse))
+                {
+                    RadiusLog.debug("Ignoring RadSec packet other than a RADIUS Response from {}", address);
+                    return;
+                }
+
+                response = (RadiusResponse) packet;
+                String secret = RadSecClientTransport.SHARED_SECRET;
+                byte[] authenticator = pending.requestAuthenticator;
+
+                if (authenticator == null
+                        || !RadiusClientTransport.verifyAuthenticator(authenticator, response, secret)
+                        || !RadiusClientTransport.verifyMessageAuthenticator(authenticator, response, secret,
+                                response.findAttribute(AttributeDictionary.EAP_MESSAGE) != null))
+                {
+                    RadiusLog.debug("Ignoring RadSec reply from {} not matching the pending request", address);
+                    return;
+                }
+            }
+            catch (Exception e)
+            {
+                RadiusLog.debug("Ignoring invalid RadSec reply from {}: {}", address, e.getMessage());
+                return;
+            }
+
+            if (release(pending))
+            {
+                pending.complete(response, null);
+            }
+        }
+
+        void close(RadiusException e)
+        {
+            synchronized (this)
+            {
+                if (!open) return;
+                open = false;
+            }
+
+            writer.interrupt();
+
+            try { socket.close(); }
+            catch (IOException ioe) { }
+
+            RadiusLog.warn(e.getMessage());
+            failAll(this, e);
+        }
+    }
+}
@@ -38,6 +38,7 @@ import net.jradius.server.JRadiusRequest;
 import net.jradius.server.JRadiusServer;
 import net.jradius.server.ListenerRequest;
 import net.jradius.server.RadiusProcessor;
+import net.jradius.server.RequestTimestamps;
 import net.jradius.server.config.Configuration;
 import net.jradius.util.MessageAuthenticator;
 
@@ -52,24 +53,18 @@ public class RadSecProcessor extends RadiusProcessor
     protected void processRequest(ListenerRequest listenerRequest) throws Exception
     {
         RadSecRequest request = (RadSecRequest) listenerRequest.getRequestEvent();
-        
-        try
-        {
-            request.setApplicationContext(getApplicationContext());
-            request.setReturnValue(runPacketHandlers(request));
-        }
-        catch (Throwable th)
-        {
-            request.setReturnValue(JRadiusServer.RLM_MODULE_FAIL);
-            RadiusLog.error(">>> processRequest(): Error during processing RunPacketHandlers block", th);
-        }
+        request.setApplicationContext(getApplicationContext());
+        runPacketHandlers(listenerRequest, request);
+    }
 
+    protected void requestCompleted(ListenerRequest listenerRequest, JRadiusRequest request)
+    {
         try
         {
         	OutputStream out = listenerRequest.getOutputStream();
         	synchronized (out)
         	{
-                this.writeResponse(request, request.buffer_out, out);
+                this.writeResponse(request, ((RadSecRequest) request).buffer_out, out);
 			}
         }
         catch(Throwable e)
@@ -97,9 +92,11 @@ public class RadSecProcessor extends RadiusProcessor
 
 		buffer.clear();
 		format.packPacket(res, sharedSecret, buffer, true);
+        request.markTimestamp(RequestTimestamps.ENCODED);
         
         outputStream.write(buffer.array(), 0, buffer.position());
         outputStream.flush();
+        request.markTimestamp(RequestTimestamps.FLUSHED);
     }
 
     protected void logReturnCode(int result, JRCommand handler)
@@ -114,8 +111,8 @@ public class RadSecProcessor extends RadiusProcessor
                 break;
             case JRadiusServer.RLM_MODULE_HANDLED:
             case JRadiusServer.RLM_MODULE_REJECT:
-                RadiusLog.info("Packet handler returned " + JRadiusServer.resultCodeToString(result)
-                        + ". Stopped handling this packet.");
+                RadiusLog.info("Packet handler returned {}. Stopped handling this packet.",
+                        JRadiusServer.resultCodeToString(result));
                 break;
             case JRadiusServer.RLM_MODULE_OK:
             case JRadiusServer.RLM_MODULE_NOOP:
@@ -123,8 +120,8 @@ public class RadSecProcessor extends RadiusProcessor
             case JRadiusServer.RLM_MODULE_NUMCODES:
             case JRadiusServer.RLM_MODULE_USERLOCK:
             default:
-                RadiusLog.debug("Packet handler " + handler.getName() + " returned "
-                        + JRadiusServer.resultCodeToString(result) + ". Continue handling this packet.");
+                RadiusLog.debug("Packet handler {} returned {}. Continue handling this packet.",
+                        handler.getName(), JRadiusServer.resultCodeToString(result));
         }
     }
 }
@@ -22,34 +22,101 @@ package net.jradius.radsec;
 
 import java.net.InetAddress;
 
+import net.jradius.client.AsyncRadiusClient;
 import net.jradius.client.RadiusClient;
-import net.jradius.handler.PacketHandlerBase;
+import net.jradius.client.RadiusClientPool;
+import net.jradius.client.RadiusResponseHandler;
+import net.jradius.handler.AsyncPacketHandler;
+import net.jradius.handler.HandlerCompletion;
+import net.jradius.packet.AccountingRequest;
 import net.jradius.packet.RadiusRequest;
 import net.jradius.packet.RadiusResponse;
 import net.jradius.server.JRadiusRequest;
 
 import org.springframework.beans.factory.InitializingBean;
 
-public class SimpleProxyHandler extends PacketHandlerBase implements InitializingBean
+/**
+ * Proxies requests to a RADIUS server. With "async" set, the requests
+ * are sent with an AsyncRadiusClient and the processor thread is not
+ * held while waiting for the response.
+ */
+public class SimpleProxyHandler extends AsyncPacketHandler implements InitializingBean
 {
 	private RadiusClient radiusClient;
+	private RadiusClientPool radiusClientPool;
+	private AsyncRadiusClient asyncRadiusClient;
+	private InetAddress serverAddress;
+	private boolean async = false;
 	private String radiusServer = "localhost";
 	private String sharedSecret = "testing123";
 	private Integer authPort = 1812;
 	private Integer acctPort = 1813;
+	private Integer maxClients = 32;
 	
+    public HandlerCompletion handleAsync(final JRadiusRequest request) throws Exception
+    {
+        if (asyncRadiusClient == null)
+        {
+            return HandlerCompletion.completed(handle(request));
+        }
+
+        RadiusRequest req = (RadiusRequest) request.getRequestPacket();
+        int port = (req instanceof AccountingRequest) ? acctPort : authPort;
+        final HandlerCompletion completion = new HandlerCompletion();
+
+        asyncRadiusClient.send(req, serverAddress, port, sharedSecret, 3, new RadiusResponseHandler()
+        {
+            public void onResponse(RadiusRequest req, RadiusResponse res)
+            {
+                request.setReplyPacket(res);
+                completion.complete(false);
+            }
+
+            public void onFailure(RadiusRequest req, Exception e)
+            {
+                completion.fail(e);
+            }
+        });
+
+        return completion;
+    }
+
     public boolean handle(JRadiusRequest request) throws Exception
     {
+        if (asyncRadiusClient != null)
+        {
+            return handleAsync(request).get();
+        }
+
         RadiusRequest req = (RadiusRequest) request.getRequestPacket();
-        RadiusResponse res = radiusClient.sendReceive(req, 3);
+        RadiusResponse res;
+        if (radiusClient != null)
+        {
+            // a single client can only be used by one thread at a time
+            synchronized (radiusClient)
+            {
+                res = radiusClient.sendReceive(req, 3);
+            }
+        }
+        else
+        {
+            res = radiusClientPool.sendReceive(req, 3);
+        }
         request.setReplyPacket(res);
         return false;
     }
 
 	public void afterPropertiesSet() throws Exception 
 	{
-		radiusClient = new RadiusClient(InetAddress.getByName(radiusServer), sharedSecret, authPort, acctPort, 60);
-		if (radiusClient == null) throw new RuntimeException("could not create RadSec proxy radius client");
+		serverAddress = InetAddress.getByName(radiusServer);
+		if (async && radiusClient == null)
+		{
+			asyncRadiusClient = new AsyncRadiusClient();
+		}
+		else if (radiusClient == null)
+		{
+			radiusClientPool = new RadiusClientPool(InetAddress.getByName(radiusServer), sharedSecret, authPort, acctPort, 60, maxClients, 60000);
+		}
 	}
 
 	public void setRadiusClient(RadiusClient radiusClient) {
@@ -71,4 +138,19 @@ public class SimpleProxyHandler extends PacketHandlerBase implements Initializin
 	public void setSharedSecret(String sharedSecret) {
 		this.sharedSecret = sharedSecret;
 	}
+
+	public void setMaxClients(Integer maxClients) {
+		this.maxClients = maxClients;
+	}
+
+	/**
+	 * @param async Send the requests without holding the processor thread
+	 */
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	public RadiusClientPool getRadiusClientPool() {
+		return radiusClientPool;
+	}
 }
@@ -0,0 +1,197 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2007 David Bird <david@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package net.jradius.session;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import net.jradius.log.JRadiusLogEntry;
+
+/**
+ * A small ring of the log entries of a session, keyed by packet id.
+ * Entries are kept in creation order with a System.nanoTime() stamp of
+ * their last use. The oldest entry is overwritten when the ring is full.
+ * An entry that was not committed yet (commits run later, on the
+ * EventDispatcher) is not overwritten while the ring can double in size,
+ * up to its maximum capacity; at that capacity the oldest entry is
+ * dropped, committed or not. Entries last used before a given time are
+ * dropped from the oldest end with expire(), committed or not. Dropped
+ * entries that were not committed are counted. Lookups scan at most the
+ * capacity of the ring, which is small.
+ */
+class LogEntryRing implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int maxCapacity;
+    private String[] keys;
+    private JRadiusLogEntry[] entries;
+    private transient long[] used;
+    private int head = 0;   // next slot to fill
+    private int size = 0;
+    private long dropped = 0;
+
+    /**
+     * @param capacity The initial capacity
+     * @param maxCapacity The capacity the ring may grow to
+     */
+    LogEntryRing(int capacity, int maxCapacity)
+    {
+        this.maxCapacity = Math.max(capacity, maxCapacity);
+        keys = new String[capacity];
+        entries = new JRadiusLogEntry[capacity];
+        used = new long[capacity];
+    }
+
+    /**
+     * @param key The packet id
+     * @param now The current System.nanoTime()
+     * @return Returns the entry (marked as used now), or null
+     */
+    JRadiusLogEntry get(String key, long now)
+    {
+        for (int n = 0, i = prev(head); n < size; n++, i = prev(i))
+        {
+            if (key.equals(keys[i]))
+            {
+                used[i] = now;
+                return entries[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds an entry, overwriting the oldest one if the ring is full
+     * and the oldest entry was committed (growing the ring otherwise,
+     * up to the maximum capacity)
+     * @return Returns the uncommitted entry that was dropped, or null
+     */
+    JRadiusLogEntry add(String key, JRadiusLogEntry entry, long now)
+    {
+        JRadiusLogEntry lost = null;
+
+        if (size == keys.length && isUncommitted(head))
+        {
+            if (keys.length < maxCapacity)
+            {
+                grow();
+            }
+            else
+            {
+                lost = entries[head];
+                dropped++;
+            }
+        }
+
+        keys[head] = key;
+        entries[head] = entry;
+        used[head] = now;
+        head = (head + 1) % keys.length;
+        if (size < keys.length) size++;
+        return lost;
+    }
+
+    /**
+     * Drops the oldest entries while they were last used before the given time
+     * @param before A System.nanoTime() value
+     * @return Returns the number of uncommitted entries dropped
+     */
+    int expire(long before)
+    {
+        int lost = 0;
+
+        while (size > 0)
+        {
+            int tail = (head - size + keys.length) % keys.length;
+            if (used[tail] - before >= 0) break;
+            if (isUncommitted(tail)) lost++;
+            keys[tail] = null;
+            entries[tail] = null;
+            size--;
+        }
+
+        dropped += lost;
+        return lost;
+    }
+
+    /**
+     * @return Returns the number of entries dropped before they were committed
+     */
+    long getDropped()
+    {
+        return dropped;
+    }
+
+    private boolean isUncommitted(int i)
+    {
+        return entries[i] != null && !entries[i].isCommitted();
+    }
+
+    private void grow()
+    {
+        int capacity = Math.min(keys.length * 2, maxCapacity);
+        String[] k = new String[capacity];
+        JRadiusLogEntry[] e = new JRadiusLogEntry[capacity];
+        long[] u = new long[capacity];
+
+        for (int n = 0; n < size; n++)
+        {
+            int i = (head - size + n + keys.length) % keys.length;
+            k[n] = keys[i];
+            e[n] = entries[i];
+            u[n] = used[i];
+        }
+
+        keys = k;
+        entries = e;
+        used = u;
+        head = size;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param n Index from 0 (oldest) to size() - 1 (newest)
+     */
+    JRadiusLogEntry entry(int n)
+    {
+        return entries[(head - size + n + keys.length) % keys.length];
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        // the stamps of another JVM mean nothing here: the entries count as used now
+        in.defaultReadObject();
+        used = new long[keys.length];
+        Arrays.fill(used, System.nanoTime());
+    }
+
+    private int prev(int i)
+    {
+        return (i - 1 + keys.length) % keys.length;
+    }
+}
@@ -21,11 +21,12 @@
 
 package net.jradius.session;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 import net.jradius.dictionary.Attr_AcctAuthentic;
@@ -57,7 +58,9 @@ import net.jradius.dictionary.vsa_jradius.Attr_JRadiusRequestId;
 import net.jradius.exception.RadiusException;
 import net.jradius.exception.RadiusSecurityException;
 import net.jradius.log.JRadiusLogEntry;
+import net.jradius.log.LogSink;
 import net.jradius.log.RadiusLog;
+import net.jradius.log.RadiusLogEntry;
 import net.jradius.packet.AccessAccept;
 import net.jradius.packet.AccountingRequest;
 import net.jradius.packet.RadiusPacket;
@@ -75,6 +78,10 @@ import net.jradius.server.JRadiusServer;
 public class RadiusSession implements JRadiusSession, Serializable
 {
     public static final long serialVersionUID = 0L;
+
+    private static final int LOG_ENTRY_CAPACITY = 8;
+    private static final int LOG_ENTRY_MAX_CAPACITY = 64;
+    private static final long LOG_ENTRY_RETENTION = 180L * 1000000L;  // 180 ms in nanos
     
     // Internal "State" Attributes
     private int sessionState = JRadiusSession.UNKNOWN_STATE;
@@ -83,8 +90,8 @@ public class RadiusSession implements JRadiusSession, Serializable
     private boolean newSession = true;
     private long timeStamp;
     
-    private JRadiusRequest lastRadiusRequest;
-    private Map<String, JRadiusLogEntry> logEntryMap = new HashMap<String, JRadiusLogEntry>();
+    private transient JRadiusRequest lastRadiusRequest;
+    private LogEntryRing logEntries = new LogEntryRing(LOG_ENTRY_CAPACITY, LOG_ENTRY_MAX_CAPACITY);
     private Map<String, Serializable> attributeMap = new HashMap<String, Serializable>();
 
     // Basic Session Configuration
@@ -140,7 +147,7 @@ public class RadiusSession implements JRadiusSession, Serializable
     private Date lastInterimTime;
     private Date stopTime;
 
-	private volatile boolean locked = false;
+	private transient volatile boolean locked = false;
 
 	public void lock()
 	{
@@ -181,7 +188,7 @@ public class RadiusSession implements JRadiusSession, Serializable
     {
         this();
         setSessionKey(session);
-        RadiusLog.debug("Creating new session: " + session);
+        RadiusLog.debug("Creating new session: {}", session);
     }
     
     
@@ -205,17 +212,22 @@ public class RadiusSession implements JRadiusSession, Serializable
 	
 	public JRadiusLogEntry getLogEntry(JRadiusEvent event, String key)
     {
-        JRadiusLogEntry entry = logEntryMap.get(key);
+        long now = System.nanoTime();
+        JRadiusLogEntry entry = logEntries.get(key, now);
         
         if (entry == null)
         {
-            RadiusLog.debug("Creating new Session/LogEntry: " + getSessionKey() + "/" + key);
+            RadiusLog.debug("Creating new Session/LogEntry: {}/{}", getSessionKey(), key);
             entry = JRadiusSessionManager.getManager(event.getSender()).newLogEntry(event, this, key);
-            logEntryMap.put(key, entry);
+            if (logEntries.add(key, entry, now) != null)
+            {
+                RadiusLog.debug("Dropped uncommitted Session/LogEntry of {}, log entry ring full", getSessionKey());
+            }
         }
         
-        RadiusLog.debug("Retreived Session/LogEntry: " + getSessionKey() + "/" + key);
-        entry.setLastUpdate(new Date());
+        RadiusLog.debug("Retreived Session/LogEntry: {}/{}", getSessionKey(), key);
+        if (entry instanceof RadiusLogEntry) ((RadiusLogEntry) entry).setLastUsed(now);
+        else entry.setLastUpdate(new Date());
         return entry;
     }
     
@@ -240,30 +252,38 @@ public class RadiusSession implements JRadiusSession, Serializable
 
     public void commitLogEntries(int result)
     {
-        Iterator<Map.Entry<String, JRadiusLogEntry>> it = logEntryMap.entrySet().iterator();
-
-        long now = new Date().getTime();
-        long threshold = 180;
-
-        while (it.hasNext())
+        for (int i = 0; i < logEntries.size(); i++)
         {
-            Map.Entry<String, JRadiusLogEntry> mapEntry = it.next();
-            JRadiusLogEntry entry = mapEntry.getValue();
+            JRadiusLogEntry entry = logEntries.entry(i);
             if (entry.isFinished() && !entry.isCommitted())
             {
                 entry.setCode(new Integer(result));
                 commitLogEntry(entry, result);
                 entry.setCommitted(true);
             }
-            if (entry.getLastUpdate().getTime() < (now - threshold))
-            {
-                it.remove();
-            }
+        }
+
+        int lost = logEntries.expire(System.nanoTime() - LOG_ENTRY_RETENTION);
+        if (lost > 0)
+        {
+            RadiusLog.debug("Dropped {} uncommitted Session/LogEntries of {}", lost, getSessionKey());
         }
     }
 
+    /**
+     * Logs a finished entry: as a structured record when RadiusLog has a
+     * LogSink (written in the background), otherwise as a message.
+     */
     public void commitLogEntry(JRadiusLogEntry entry, int result)
     {
+        LogSink sink = RadiusLog.getLogSink();
+
+        if (sink != null && entry instanceof RadiusLogEntry)
+        {
+            sink.log(((RadiusLogEntry) entry).toLogRecord());
+            return;
+        }
+
         String mesg = entry.toString();
         if (mesg != null) RadiusLog.info(mesg);
     }
@@ -347,7 +367,7 @@ public class RadiusSession implements JRadiusSession, Serializable
     { 
         RadiusPacket rep = request.getReplyPacket();
         boolean success = (rep instanceof AccessAccept && request.getReturnValue() != JRadiusServer.RLM_MODULE_REJECT);
-        RadiusLog.debug("Authentication: " + request + " was" + (success ? "" : " NOT") + " sucessful");
+        RadiusLog.debug("Authentication: {} was{} sucessful", request, success ? "" : " NOT");
         if (success)
         {
             Long sessionTimeout = (Long)rep.getAttributeValue(Attr_SessionTimeout.TYPE);
@@ -1204,4 +1224,15 @@ public class RadiusSession implements JRadiusSession, Serializable
 	{
 		this.radiusState = radiusState;
 	}
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+
+        // sessions serialized before the log entry ring kept a map instead
+        if (logEntries == null)
+        {
+            logEntries = new LogEntryRing(LOG_ENTRY_CAPACITY, LOG_ENTRY_MAX_CAPACITY);
+        }
+    }
 }
@@ -63,6 +63,9 @@ public class DefaultTlsClient implements TlsClient
     private static final int TLS_SRP_SHA_RSA_WITH_AES_256_CBC_SHA = 0xC021;
     private static final int TLS_SRP_SHA_DSS_WITH_AES_256_CBC_SHA = 0xC022;
 
+    // RFC 5077
+    static final int EXT_SessionTicket = 35;
+
     private CertificateVerifyer verifyer;
 
     private TlsProtocolHandler handler;
@@ -74,6 +77,12 @@ public class DefaultTlsClient implements TlsClient
 
     private int selectedCipherSuite;
 
+    // (Optional) session resumption
+    private TlsSessionCache sessionCache = null;
+    private String sessionKey = null;
+    private boolean sessionTickets = false;
+    private TlsSession offeredSession = null;
+
     public DefaultTlsClient(CertificateVerifyer verifyer)
     {
         this.verifyer = verifyer;
@@ -117,6 +126,28 @@ public class DefaultTlsClient implements TlsClient
         this.clientPrivateKey = clientPrivateKey;
     }
 
+    /**
+     * Enables session resumption: the session of the last handshake with
+     * the same key is offered to the server, so that it can skip the key
+     * exchange (and certificates) with an abbreviated handshake.
+     * 
+     * @param sessionCache The cache of sessions (e.g. TlsSessionCache.getDefault())
+     * @param sessionKey The identity of the server (and client) of the session
+     */
+    public void setSessionCache(TlsSessionCache sessionCache, String sessionKey)
+    {
+        this.sessionCache = sessionCache;
+        this.sessionKey = sessionKey;
+    }
+
+    /**
+     * @param sessionTickets Whether to ask for RFC 5077 session tickets (with a session cache)
+     */
+    public void setSessionTickets(boolean sessionTickets)
+    {
+        this.sessionTickets = sessionTickets;
+    }
+
     public void init(TlsProtocolHandler handler)
     {
         this.handler = handler;
@@ -164,6 +195,14 @@ public class DefaultTlsClient implements TlsClient
 //        // TODO[SRP] RFC5054 2.8.1: ExtensionType.srp = 12
 //        clientExtensions.put(Integer.valueOf(12), srpData.toByteArray());
 //        return clientExtensions;
+        if (sessionTickets && sessionCache != null)
+        {
+            // RFC 5077: an empty SessionTicket extension asks for a ticket
+            Hashtable clientExtensions = new Hashtable();
+            clientExtensions.put(new Integer(EXT_SessionTicket), 
+                offeredSession != null && offeredSession.ticket != null ? offeredSession.ticket : new byte[0]);
+            return clientExtensions;
+        }
         return null;
     }
 
@@ -172,6 +211,39 @@ public class DefaultTlsClient implements TlsClient
         // Currently ignored 
     }
 
+    public TlsSession getSessionToResume()
+    {
+        if (sessionCache == null || sessionKey == null)
+        {
+            return null;
+        }
+
+        TlsSession session = sessionCache.get(sessionKey);
+        if (session != null && session.ticket != null && !sessionTickets)
+        {
+            session = null;
+        }
+        this.offeredSession = session;
+        return session;
+    }
+
+    public void notifySessionEstablished(TlsSession session)
+    {
+        if (sessionCache == null || sessionKey == null)
+        {
+            return;
+        }
+
+        if (session == null)
+        {
+            sessionCache.remove(sessionKey);
+        }
+        else
+        {
+            sessionCache.put(sessionKey, session);
+        }
+    }
+
     public void notifySelectedCipherSuite(int selectedCipherSuite)
     {
         this.selectedCipherSuite = selectedCipherSuite;
@@ -41,6 +41,11 @@ class RecordStream
         this.writeCipher = tlsCipher;
     }
 
+    void serverCipherSpecDecided(TlsCipher tlsCipher)
+    {
+        this.readCipher = tlsCipher;
+    }
+
     void serverClientSpecReceived()
     {
         this.readCipher = this.writeCipher;
@@ -15,6 +15,12 @@ interface TlsClient
 
     void notifySessionID(byte[] sessionID);
 
+    // The session to offer for resumption, or null for a full handshake
+    TlsSession getSessionToResume();
+
+    // Called when the handshake is done with the session to resume next time (null if none)
+    void notifySessionEstablished(TlsSession session);
+
     void notifySelectedCipherSuite(int selectedCipherSuite);
 
     // Hashtable is (Integer -> byte[])
@@ -40,6 +40,7 @@ public class TlsProtocolHandler
     private static final short HP_HELLO_REQUEST = 0;
     private static final short HP_CLIENT_HELLO = 1;
     private static final short HP_SERVER_HELLO = 2;
+    private static final short HP_NEW_SESSION_TICKET = 4;
     private static final short HP_CERTIFICATE = 11;
     private static final short HP_SERVER_KEY_EXCHANGE = 12;
     private static final short HP_CERTIFICATE_REQUEST = 13;
@@ -134,6 +135,18 @@ public class TlsProtocolHandler
     private int[] offeredCipherSuites = null;
     private TlsKeyExchange keyExchange = null;
 
+    /*
+     * Session resumption: the session offered in the client hello, whether the
+     * server accepted it, and a session ticket received (RFC 5077)
+     */
+    private TlsSession offeredSession = null;
+    private byte[] offeredSessionID = emptybuf;
+    private byte[] sessionID = emptybuf;
+    private int selectedCipherSuite;
+    private boolean resumedSession = false;
+    private byte[] sessionTicket = null;
+    private TlsCipher resumedCipher = null;
+
     private short connection_state = 0;
     
     private KeyManager[] keyManagers = null;
@@ -338,12 +351,31 @@ public class TlsProtocolHandler
                             this.failWithError(AL_fatal, AP_handshake_failure);
                         }
 
+                        if (resumedSession)
+                        {
+                            /*
+                             * In the abbreviated handshake the client finishes last, its
+                             * finished message covers the one of the server.
+                             */
+                            byte[] header = new byte[4];
+                            TlsUtils.writeUint8(type, header, 0);
+                            TlsUtils.writeUint24(buf.length, header, 1);
+                            rs.updateHandshakeData(header, 0, 4);
+                            rs.updateHandshakeData(buf, 0, buf.length);
+
+                            sendChangeCipherSpec();
+                            rs.clientCipherSpecDecided(resumedCipher);
+                            sendFinished();
+                        }
+
                         connection_state = CS_DONE;
 
                         /*
                          * We are now ready to receive application data.
                          */
                         this.appDataReady = true;
+
+                        notifySessionEstablished();
                         break;
                     default:
                         this.failWithError(AL_fatal, AP_unexpected_message);
@@ -372,13 +404,22 @@ public class TlsProtocolHandler
                         }
 
                         this.tlsClient.notifySessionID(sessionID);
+                        this.sessionID = sessionID;
+
+                        /*
+                         * RFC 2246 7.4.1.3. The server resumes the session by answering with
+                         * the session ID of the client hello.
+                         */
+                        this.resumedSession = offeredSessionID.length > 0 
+                            && Arrays.areEqual(offeredSessionID, sessionID);
 
                         /*
                          * Find out which ciphersuite the server has chosen and check that
                          * it was one of the offered ones.
                          */
-                        int selectedCipherSuite = TlsUtils.readUint16(is);
-                        if (!wasCipherSuiteOffered(selectedCipherSuite))
+                        selectedCipherSuite = TlsUtils.readUint16(is);
+                        if (!wasCipherSuiteOffered(selectedCipherSuite)
+                            || (resumedSession && selectedCipherSuite != offeredSession.cipherSuite))
                         {
                             this.failWithError(TlsProtocolHandler.AL_fatal,
                                 TlsProtocolHandler.AP_illegal_parameter);
@@ -430,7 +471,18 @@ public class TlsProtocolHandler
 
                         assertEmpty(is);
 
-                        this.keyExchange = tlsClient.createKeyExchange();
+                        if (resumedSession)
+                        {
+                            /*
+                             * Abbreviated handshake, the server continues with its change
+                             * cipher spec and finished messages.
+                             */
+                            securityParameters.masterSecret = Arrays.clone(offeredSession.masterSecret);
+                        }
+                        else
+                        {
+                            this.keyExchange = tlsClient.createKeyExchange();
+                        }
 
                         connection_state = CS_SERVER_HELLO_RECEIVED;
                         break;
@@ -484,9 +536,7 @@ public class TlsProtocolHandler
                         /*
                          * Now, we send change cipher state
                          */
-                        byte[] cmessage = new byte[1];
-                        cmessage[0] = 1;
-                        rs.writeMessage(RL_CHANGE_CIPHER_SPEC, cmessage, 0, cmessage.length);
+                        sendChangeCipherSpec();
 
                         connection_state = CS_CLIENT_CHANGE_CIPHER_SPEC_SEND;
 
@@ -514,15 +564,7 @@ public class TlsProtocolHandler
                         /*
                          * Send our finished message.
                          */
-                        byte[] clientVerifyData = TlsUtils.PRF(securityParameters.masterSecret,
-                            "client finished", rs.getCurrentHash(), 12);
-
-                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                        TlsUtils.writeUint8(HP_FINISHED, bos);
-                        TlsUtils.writeOpaque24(clientVerifyData, bos);
-                        byte[] message = bos.toByteArray();
-
-                        rs.writeMessage(RL_HANDSHAKE, message, 0, message.length);
+                        sendFinished();
 
                         this.connection_state = CS_CLIENT_FINISHED_SEND;
                         break;
@@ -593,6 +635,28 @@ public class TlsProtocolHandler
                 this.connection_state = CS_CERTIFICATE_REQUEST_RECEIVED;
                 break;
             }
+            case HP_NEW_SESSION_TICKET:
+            {
+                /*
+                 * RFC 5077 3.3. Sent before the change cipher spec of the server,
+                 * if the server hello had the SessionTicket extension.
+                 */
+                if (connection_state == CS_CLIENT_FINISHED_SEND
+                    || (resumedSession && connection_state == CS_SERVER_HELLO_RECEIVED))
+                {
+                    TlsUtils.readUint32(is); // ticket_lifetime_hint
+                    byte[] ticket = TlsUtils.readOpaque16(is);
+
+                    assertEmpty(is);
+
+                    this.sessionTicket = ticket.length > 0 ? ticket : null;
+                }
+                else
+                {
+                    this.failWithError(AL_fatal, AP_unexpected_message);
+                }
+                break;
+            }
             case HP_HELLO_REQUEST:
                 /*
                  * RFC 2246 7.4.1.1 Hello request
@@ -702,20 +766,81 @@ public class TlsProtocolHandler
                 this.failWithError(AL_fatal, AP_unexpected_message);
             }
 
-            /*
-             * Check if we are in the correct connection state.
-             */
-            if (this.connection_state != CS_CLIENT_FINISHED_SEND)
+            if (resumedSession && this.connection_state == CS_SERVER_HELLO_RECEIVED)
             {
-                this.failWithError(AL_fatal, AP_handshake_failure);
+                /*
+                 * Abbreviated handshake, the server switches to the new keys first.
+                 */
+                this.resumedCipher = tlsClient.createCipher(securityParameters);
+                rs.serverCipherSpecDecided(resumedCipher);
             }
+            else
+            {
+                /*
+                 * Check if we are in the correct connection state.
+                 */
+                if (this.connection_state != CS_CLIENT_FINISHED_SEND)
+                {
+                    this.failWithError(AL_fatal, AP_handshake_failure);
+                }
 
-            rs.serverClientSpecReceived();
+                rs.serverClientSpecReceived();
+            }
 
             this.connection_state = CS_SERVER_CHANGE_CIPHER_SPEC_RECEIVED;
         }
     }
 
+    private void sendChangeCipherSpec() throws IOException
+    {
+        byte[] cmessage = new byte[1];
+        cmessage[0] = 1;
+        rs.writeMessage(RL_CHANGE_CIPHER_SPEC, cmessage, 0, cmessage.length);
+    }
+
+    private void sendFinished() throws IOException
+    {
+        byte[] clientVerifyData = TlsUtils.PRF(securityParameters.masterSecret,
+            "client finished", rs.getCurrentHash(), 12);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        TlsUtils.writeUint8(HP_FINISHED, bos);
+        TlsUtils.writeOpaque24(clientVerifyData, bos);
+        byte[] message = bos.toByteArray();
+
+        rs.writeMessage(RL_HANDSHAKE, message, 0, message.length);
+    }
+
+    /**
+     * Hands the session to the client for resumption of a later handshake
+     */
+    private void notifySessionEstablished()
+    {
+        if (resumedSession && sessionTicket == null)
+        {
+            // the cached session stays valid
+            return;
+        }
+
+        if (sessionID.length == 0 && sessionTicket == null)
+        {
+            // the server does not allow resumption
+            tlsClient.notifySessionEstablished(null);
+            return;
+        }
+
+        tlsClient.notifySessionEstablished(new TlsSession(sessionID, selectedCipherSuite, 
+            Arrays.clone(securityParameters.masterSecret), sessionTicket));
+    }
+
+    /**
+     * @return Returns whether the last handshake resumed an earlier session
+     */
+    public boolean isResumedSession()
+    {
+        return resumedSession;
+    }
+
     private void sendClientCertificate(Certificate clientCert) throws IOException
     {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -827,10 +952,24 @@ public class TlsProtocolHandler
         os.write(securityParameters.clientRandom);
 
         /*
-         * Length of Session id
+         * Session id, of the session to resume (if any). With a session ticket,
+         * a random session id which the server echoes when it accepts the ticket
+         * (RFC 5077 3.4).
          */
-        TlsUtils.writeUint8((short)0, os);
-        //TlsUtils.writeUint8((short)1, os);
+        this.offeredSession = this.tlsClient.getSessionToResume();
+        if (offeredSession != null)
+        {
+            if (offeredSession.ticket != null)
+            {
+                offeredSessionID = new byte[32];
+                random.nextBytes(offeredSessionID);
+            }
+            else
+            {
+                offeredSessionID = offeredSession.sessionID;
+            }
+        }
+        TlsUtils.writeOpaque8(offeredSessionID, os);
 
         /*
          * Cipher suites
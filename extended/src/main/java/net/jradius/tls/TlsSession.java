@@ -0,0 +1,33 @@
+package net.jradius.tls;
+
+/**
+ * The state of an established TLS session needed to resume it: the
+ * session ID (or a session ticket, RFC 5077), the cipher suite and the
+ * master secret.
+ */
+public class TlsSession
+{
+    final byte[] sessionID;
+    final int cipherSuite;
+    final byte[] masterSecret;
+    final byte[] ticket;
+    final long created = System.currentTimeMillis();
+
+    TlsSession(byte[] sessionID, int cipherSuite, byte[] masterSecret, byte[] ticket)
+    {
+        this.sessionID = sessionID;
+        this.cipherSuite = cipherSuite;
+        this.masterSecret = masterSecret;
+        this.ticket = ticket;
+    }
+
+    public boolean hasTicket()
+    {
+        return ticket != null;
+    }
+
+    public long getCreated()
+    {
+        return created;
+    }
+}
@@ -0,0 +1,113 @@
+package net.jradius.tls;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A client side cache of resumable TLS sessions, keyed by the identity of
+ * the server (and of the client, where sessions must not be shared between
+ * users, as with EAP-TLS). The least recently used sessions are dropped
+ * beyond maxSize, and sessions older than the lifetime are not resumed.
+ */
+public class TlsSessionCache
+{
+    private static final TlsSessionCache defaultCache = new TlsSessionCache();
+
+    private int maxSize = 10000;
+    private long lifetime = 3600 * 1000L;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    private final LinkedHashMap<String, TlsSession> sessions = new LinkedHashMap<String, TlsSession>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 0L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, TlsSession> eldest)
+        {
+            return size() > maxSize;
+        }
+    };
+
+    /**
+     * @return Returns the cache shared by default by all TLS clients
+     */
+    public static TlsSessionCache getDefault()
+    {
+        return defaultCache;
+    }
+
+    /**
+     * @param key The server (and client) identity
+     * @return Returns the session to resume, or null
+     */
+    public synchronized TlsSession get(String key)
+    {
+        TlsSession session = sessions.get(key);
+
+        if (session != null && System.currentTimeMillis() - session.created > lifetime)
+        {
+            sessions.remove(key);
+            session = null;
+        }
+
+        if (session == null) misses++;
+        else hits++;
+
+        return session;
+    }
+
+    public synchronized void put(String key, TlsSession session)
+    {
+        sessions.put(key, session);
+    }
+
+    public synchronized void remove(String key)
+    {
+        sessions.remove(key);
+    }
+
+    /**
+     * Drops the expired sessions
+     */
+    public synchronized void expire()
+    {
+        long now = System.currentTimeMillis();
+        for (Iterator<TlsSession> it = sessions.values().iterator(); it.hasNext(); )
+        {
+            if (now - it.next().created > lifetime) it.remove();
+        }
+    }
+
+    public synchronized int size()
+    {
+        return sessions.size();
+    }
+
+    /**
+     * @return Returns the number of lookups that found a session to resume
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized void setMaxSize(int maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param lifetime How long a session may be resumed (in seconds)
+     */
+    public synchronized void setLifetime(int lifetime)
+    {
+        this.lifetime = lifetime * 1000L;
+    }
+}
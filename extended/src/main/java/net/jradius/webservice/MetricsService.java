@@ -0,0 +1,82 @@
+/**
+ * JRadius - A RADIUS Server Java Adapter
+ * Copyright (c) 2009 Coova Technologies, LLC <support@coova.com>
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package net.jradius.webservice;
+
+import net.jradius.handler.EventHandlerBase;
+import net.jradius.server.HandlerMetrics;
+import net.jradius.server.JRadiusEvent;
+import net.jradius.server.StatisticsRegistry;
+
+/**
+ * Serves the handler metrics and the statistics of the server components
+ * (pools, listeners, session managers, event dispatcher) in the Prometheus
+ * text format, for a WebServiceListener, at the path "/metrics" (by default).
+ * @see HandlerMetrics
+ * @see StatisticsRegistry
+ */
+public class MetricsService extends EventHandlerBase
+{
+    private String path = "/metrics";
+    private HandlerMetrics handlerMetrics = HandlerMetrics.getInstance();
+    private StatisticsRegistry statisticsRegistry = StatisticsRegistry.getInstance();
+
+    public boolean doesHandle(JRadiusEvent event)
+    {
+        WebServiceRequest request = (WebServiceRequest) event;
+        return path.equals(request.getUri().getPath());
+    }
+
+    public boolean handle(JRadiusEvent event) throws Exception
+    {
+        WebServiceRequest request = (WebServiceRequest) event;
+
+        StringBuilder sb = new StringBuilder(4096);
+        if (handlerMetrics != null) handlerMetrics.writeText(sb);
+        if (statisticsRegistry != null) statisticsRegistry.writeText(sb);
+
+        WebServiceResponse response = new WebServiceResponse(sb.toString().getBytes("UTF-8"));
+        response.getHeaders().put("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        request.setResponse(response);
+
+        return true;
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+
+    public void setPath(String path)
+    {
+        this.path = path;
+    }
+
+    public void setHandlerMetrics(HandlerMetrics handlerMetrics)
+    {
+        this.handlerMetrics = handlerMetrics;
+    }
+
+    public void setStatisticsRegistry(StatisticsRegistry statisticsRegistry)
+    {
+        this.statisticsRegistry = statisticsRegistry;
+    }
+}
@@ -31,17 +31,19 @@ import java.net.Socket;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 
 import net.jradius.exception.RadiusException;
+import net.jradius.handler.chain.HandlerDispatchTable;
 import net.jradius.handler.chain.JRCommand;
 import net.jradius.log.RadiusLog;
+import net.jradius.server.HandlerMetrics;
 import net.jradius.server.ListenerRequest;
 import net.jradius.server.Processor;
+import net.jradius.server.RequestTimestamps;
 import net.jradius.server.TCPListenerRequest;
 
 /**
@@ -99,6 +101,7 @@ public class WebServiceProcessor extends Processor
             request.setCertificate(x509);
             request.setApplicationContext(getApplicationContext());
             processRequest(request);
+            listenerRequest.getTimestamps().mark(RequestTimestamps.HANDLED);
 
             os = socket.getOutputStream();
             sendResponse(request, os);
@@ -108,6 +111,7 @@ public class WebServiceProcessor extends Processor
             if (os != null)
             {
             	try { os.flush(); } catch (Exception e) { }
+            	listenerRequest.getTimestamps().mark(RequestTimestamps.FLUSHED);
             }
 
             if (!tcpListenerRequest.isKeepAlive())
@@ -123,36 +127,42 @@ public class WebServiceProcessor extends Processor
  
     protected void runHandlers(WebServiceRequest request)
     {
-        RadiusLog.debug("Processing WebServiceRequest: " + request.toString());
-        List<JRCommand> handlers = getRequestHandlers();
+        RadiusLog.debug("Processing WebServiceRequest: {}", request);
+        HandlerDispatchTable handlers = getRequestDispatchTable();
         if (handlers == null) return;
 
-        for (JRCommand handler : handlers)
+        HandlerDispatchTable.Entry entry = handlers.lookup(request);
+        HandlerMetrics metrics = getHandlerMetrics();
+
+        for (int i = 0; i < entry.size(); i++)
         {
+            JRCommand handler = entry.getHandler(i);
             boolean stop = false;
+            boolean exception = false;
+            long started = System.nanoTime();
             try
             {
-                if (handler.doesHandle(request))
-                {
-                    stop = handler.execute(request);
-                    if (stop) break;
-                }
+                if (!entry.handles(i, request)) continue;
+                stop = handler.execute(request);
             }
             catch (WebServiceException e)
             {
+                exception = true;
                 RadiusLog.error(e.getMessage(), e);
-                break;
             }
             catch (RadiusException e)
             {
+                exception = true;
                 RadiusLog.error(e.getMessage(), e);
-                break;
             }
             catch (Throwable e)
             {
+                exception = true;
                 RadiusLog.error(e.getMessage(), e);
-                break;
             }
+
+            if (metrics != null) metrics.record(handler, request, -1, System.nanoTime() - started, exception);
+            if (stop || exception) break;
         }
     }
     